@@ -0,0 +1,93 @@
+package com.qevans.metricapp.benchmark;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.qevans.metricapp.MetricController;
+import com.qevans.metricapp.repository.MetricsRepository;
+
+/**
+ * <p>End to end request throughput through MetricController with MockMvc: JSON parsing, the handler,
+ * the repository and response serialization, without a network in the way.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ControllerBenchmark {
+
+	private static final String METRIC = "benchmark";
+	private static final int BATCH_SIZE = 1000;
+
+	private MockMvc mockMvc;
+	private byte[] batchBody;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		MetricsRepository repository = new MetricsRepository();
+		MetricController controller = new MetricController();
+		ReflectionTestUtils.setField(controller, "metricsRepository", repository);
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+
+		repository.addMetric(METRIC);
+
+		Random random = new Random(42);
+		double[] values = new double[100000];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = random.nextDouble() * 1000;
+		}
+		repository.addDataToMetric(METRIC, values);
+
+		StringBuilder batch = new StringBuilder("{\"values\":[");
+		for (int index = 0; index < BATCH_SIZE; index++) {
+			batch.append(index == 0 ? "" : ",").append(random.nextDouble() * 1000);
+		}
+		batchBody = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public MvcResult postData() throws Exception {
+		return mockMvc.perform(post("/metric/" + METRIC).content(dataBody()).contentType(MediaType.APPLICATION_JSON))
+				.andReturn();
+	}
+
+	@Benchmark
+	public MvcResult postDataNoResponse() throws Exception {
+		return mockMvc.perform(post("/metric/" + METRIC + "?response=none").content(dataBody())
+				.contentType(MediaType.APPLICATION_JSON)).andReturn();
+	}
+
+	@Benchmark
+	public MvcResult postBatch() throws Exception {
+		return mockMvc.perform(post("/metric/" + METRIC + "/batch").content(batchBody)
+				.contentType(MediaType.APPLICATION_JSON)).andReturn();
+	}
+
+	@Benchmark
+	public MvcResult getStatistics() throws Exception {
+		return mockMvc.perform(get("/metric/" + METRIC + "?stat=mean,median,p99")).andReturn();
+	}
+
+	private byte[] dataBody() {
+		return ("{\"value\":" + ThreadLocalRandom.current().nextDouble() * 1000 + "}").getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,97 @@
+package com.qevans.metricapp.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
+
+/**
+ * <p>Throughput of the repository hot paths: adding data at different series sizes and thread counts,
+ * and reading median and mean while other threads write.
+ * </p>
+ * seriesSize is the size of the metric when each trial starts, the series keeps growing while adds are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RepositoryBenchmark {
+
+	private static final String METRIC = "benchmark";
+
+	@Param({"1000", "100000", "1000000"})
+	private int seriesSize;
+
+	@Param({"HEAP", "TREE"})
+	private String storage;
+
+	@Param({"DIRECT", "STRIPED"})
+	private String writeMode;
+
+	private MetricsRepository repository;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		MetricConfig config = new MetricConfig(StorageType.fromString(storage));
+		config.setWriteMode(WriteMode.fromString(writeMode));
+
+		repository = new MetricsRepository(config);
+		repository.addMetric(METRIC);
+
+		Random random = new Random(42);
+		double[] values = new double[seriesSize];
+		for (int index = 0; index < seriesSize; index++) {
+			values[index] = random.nextDouble() * 1000;
+		}
+		repository.addDataToMetric(METRIC, values);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean addDataOneThread() {
+		return repository.addDataToMetric(METRIC, ThreadLocalRandom.current().nextDouble() * 1000);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean addDataEightThreads() {
+		return repository.addDataToMetric(METRIC, ThreadLocalRandom.current().nextDouble() * 1000);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(4)
+	public boolean writer() {
+		return repository.addDataToMetric(METRIC, ThreadLocalRandom.current().nextDouble() * 1000);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	public double median() {
+		return repository.getMedianOfMetric(METRIC);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	public double mean() {
+		return repository.getAverageOfMetric(METRIC);
+	}
+}
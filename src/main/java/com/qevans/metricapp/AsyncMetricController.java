@@ -0,0 +1,113 @@
+package com.qevans.metricapp;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.qevans.metricapp.dto.BatchDataDTO;
+import com.qevans.metricapp.dto.DataDTO;
+
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * <p>Asynchronous variants of the ingest and statistics endpoints of MetricController, under /async.
+ * </p>
+ * The request thread only reads the body and queues the call on the bounded metrics request executor, then goes
+ * back to the container, so many slow or bursty clients cannot take every container thread while they wait on
+ * metric locks. The executor has a fixed number of threads and a fixed queue. When the queue is full the request
+ * is answered 503 with Retry-After right away, so load beyond what the repository can absorb is pushed back to
+ * the clients rather than queued without bound.
+ *
+ * Responses are the same as the MetricController endpoint each one calls.
+ */
+@RestController
+public class AsyncMetricController {
+
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	@Autowired
+	private MetricController metricController;
+
+	@Autowired
+	@Qualifier("metricsRequestExecutor")
+	private ExecutorService executor;
+
+    @ApiOperation(value = "Add data to specified metric, see POST /metric/{metricName}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 503, message = "too many requests are waiting, retry after the Retry-After header")
+    })
+	@PostMapping("/async/metric/{metricName}")
+	public CompletableFuture<ResponseEntity<?>> addDataToMetric(@PathVariable String metricName, @RequestBody DataDTO data,
+			@ApiParam(value = "ack (default) returns count and aggregates, none returns 204, series returns every stored value")
+			@RequestParam(value = "response", defaultValue = "ack") String response) {
+		return submit(() -> metricController.addDataToMetric(metricName, data, response));
+	}
+
+    @ApiOperation(value = "Add a batch of data to specified metric, see POST /metric/{metricName}/batch")
+    @ApiResponses(value = {
+            @ApiResponse(code = 503, message = "too many requests are waiting, retry after the Retry-After header")
+    })
+	@PostMapping("/async/metric/{metricName}/batch")
+	public CompletableFuture<ResponseEntity<?>> addBatchToMetric(@PathVariable String metricName, @RequestBody BatchDataDTO data) {
+		return submit(() -> metricController.addBatchToMetric(metricName, data));
+	}
+
+    @ApiOperation(value = "Add batches of data to several metrics, see POST /batch")
+    @ApiResponses(value = {
+            @ApiResponse(code = 503, message = "too many requests are waiting, retry after the Retry-After header")
+    })
+	@PostMapping("/async/batch")
+	public CompletableFuture<ResponseEntity<?>> addBatches(@RequestBody Map<String, double[]> batches) {
+		return submit(() -> metricController.addBatches(batches));
+	}
+
+    @ApiOperation(value = "Add batches of data in binary frames, see POST /ingest")
+    @ApiResponses(value = {
+            @ApiResponse(code = 503, message = "too many requests are waiting, retry after the Retry-After header")
+    })
+	@PostMapping(value = "/async/ingest", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public CompletableFuture<ResponseEntity<?>> ingestFrames(@RequestBody byte[] frames) {
+		return submit(() -> metricController.ingestFrames(frames));
+	}
+
+    @ApiOperation(value = "Get statistics for given metric, see GET /metric/{metricName}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 503, message = "too many requests are waiting, retry after the Retry-After header")
+    })
+	@GetMapping("/async/metric/{metricName}")
+	public CompletableFuture<ResponseEntity<?>> getMetricStatistic(@PathVariable String metricName,
+			@RequestParam("stat") String requestedStatistic,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
+		return submit(() -> metricController.getMetricStatistic(metricName, requestedStatistic, from, to));
+	}
+
+	private CompletableFuture<ResponseEntity<?>> submit(Supplier<ResponseEntity<?>> call) {
+		try {
+			return CompletableFuture.supplyAsync(call, executor);
+		} catch (RejectedExecutionException ex) {
+			ResponseEntity<?> busy = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+					.body("Too many requests are waiting, retry later.");
+			return CompletableFuture.completedFuture(busy);
+		}
+	}
+}
@@ -1,43 +1,141 @@
 package com.qevans.metricapp;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.springframework.web.bind.annotation.RestController;
 
+import com.qevans.metricapp.dto.BatchDataDTO;
 import com.qevans.metricapp.dto.DataDTO;
+import com.qevans.metricapp.dto.QueryDTO;
+import com.qevans.metricapp.dto.SummaryDTO;
+import com.qevans.metricapp.dto.WriteAckDTO;
+import com.qevans.metricapp.ingest.BinaryFrames;
 import com.qevans.metricapp.repository.IMetricsRepository;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricExport;
+import com.qevans.metricapp.repository.MetricKey;
+import com.qevans.metricapp.repository.MetricSummary;
+import com.qevans.metricapp.repository.Statistic;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
 
 import io.swagger.annotations.ApiOperation;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import io.swagger.annotations.*;
 
 @RestController
 public class MetricController {
 
+	private static final List<Statistic> WRITE_ACK_STATISTICS = Statistic.parseList("count,mean,min,max");
+	private static final int EXPORT_CHUNK_SIZE = 8192;
+	private static final int EXPORT_BUFFER_BYTES = 64 * 1024;
+
 	@Autowired
 	private IMetricsRepository metricsRepository;
 
     @ApiOperation(value = "Add a metric")
     @ApiResponses(value = {
             @ApiResponse(code = 201, message = "Successfully created metric"),
-            @ApiResponse(code = 400, message = "Metric was null or empty"),
+            @ApiResponse(code = 400, message = "Metric was null or empty or storage settings were not valid"),
             @ApiResponse(code = 417, message = "Tried to add a duplicate metric"),            
     })
 	@PostMapping("/metric")
-	public ResponseEntity<String> index(@RequestBody String newMetric) {
+	public ResponseEntity<String> index(@RequestBody String newMetric,
+			@ApiParam(value = "heap|off-heap|tree|sketch|compressed, defaults to the repository storage") @RequestParam(value = "storage", required = false) String storage,
+			@ApiParam(value = "sketch accuracy, higher is more accurate and larger") @RequestParam(value = "compression", required = false) Double compression,
+			@ApiParam(value = "direct|striped, striped lets many threads write to the metric at once") @RequestParam(value = "writeMode", required = false) String writeMode,
+			@ApiParam(value = "width of the time partitions read by from/to queries, in milliseconds") @RequestParam(value = "partitionMillis", required = false) Long partitionMillis,
+			@ApiParam(value = "keep only the latest this many values, statistics describe just those") @RequestParam(value = "windowSamples", required = false) Integer windowSamples,
+			@ApiParam(value = "keep only the values of the latest this many milliseconds, statistics describe just those") @RequestParam(value = "windowMillis", required = false) Long windowMillis,
+			@ApiParam(value = "drop values measured longer ago than this many milliseconds") @RequestParam(value = "maxAgeMillis", required = false) Long maxAgeMillis,
+			@ApiParam(value = "drop the oldest values past this many") @RequestParam(value = "maxSamples", required = false) Long maxSamples,
+			@ApiParam(value = "drop the oldest values once the metric takes about this many bytes") @RequestParam(value = "maxBytes", required = false) Long maxBytes,
+			@ApiParam(value = "true to keep 10s, 1m and 1h rollups so long from/to ranges are read from them") @RequestParam(value = "rollups", required = false) Boolean rollups,
+			@ApiParam(value = "true to keep every value with its timestamp, for exact from/to ranges and export") @RequestParam(value = "timeIndex", required = false) Boolean timeIndex) {
 
 		if(newMetric == null || newMetric.isEmpty())
 		{
 			return ResponseEntity.badRequest().body("Metric cannot be null or empty");
 		}
 		
-		if (metricsRepository.addMetric(newMetric)) {
+		// tags are written sorted, so the same tags in any order name the same metric
+		newMetric = MetricKey.parse(newMetric).toString();
+		
+		if (storage == null && compression == null && writeMode == null && partitionMillis == null
+				&& windowSamples == null && windowMillis == null
+				&& maxAgeMillis == null && maxSamples == null && maxBytes == null && rollups == null && timeIndex == null) {
+			if (metricsRepository.addMetric(newMetric)) {
+				return ResponseEntity.status(HttpStatus.CREATED).body(newMetric);
+			}
+			
+			return ResponseEntity.status(HttpStatus.EXPECTATION_FAILED).body("Metric Already Exists.");
+		}
+		
+		MetricConfig config = metricsRepository.getDefaultConfig();
+		
+		try {
+			if (storage != null) {
+				config.setStorageType(StorageType.fromString(storage));
+			} else if (compression != null) {
+				config.setStorageType(StorageType.SKETCH);
+			}
+			if (compression != null) {
+				config.setCompression(compression);
+			}
+			if (writeMode != null) {
+				config.setWriteMode(WriteMode.fromString(writeMode));
+			}
+			if (partitionMillis != null) {
+				config.setPartitionMillis(partitionMillis);
+			}
+			if (windowSamples != null) {
+				config.setWindowSamples(windowSamples);
+			}
+			if (windowMillis != null) {
+				config.setWindowMillis(windowMillis);
+			}
+			if (maxAgeMillis != null) {
+				config.setMaxAgeMillis(maxAgeMillis);
+			}
+			if (maxSamples != null) {
+				config.setMaxSamples(maxSamples);
+			}
+			if (maxBytes != null) {
+				config.setMaxBytes(maxBytes);
+			}
+			if (rollups != null) {
+				config.setRollups(rollups);
+			}
+			if (timeIndex != null) {
+				config.setTimeIndex(timeIndex);
+			}
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+		
+		if (metricsRepository.addMetric(newMetric, config)) {
 			return ResponseEntity.status(HttpStatus.CREATED).body(newMetric);
 		}
 		
@@ -58,31 +156,186 @@ public class MetricController {
 
     @ApiOperation(value = "Add data to specified metric")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "added data successfully"),
-            @ApiResponse(code = 400, message = "metric specified was null or did not exist")
+            @ApiResponse(code = 200, message = "added data successfully, returns count, mean, min and max (only the accepted count for striped metrics), or the whole series with response=series"),
+            @ApiResponse(code = 204, message = "added data successfully, with response=none"),
+            @ApiResponse(code = 400, message = "metric specified was null or did not exist, value was not a finite number, response was not ack|none|series, or response was series for a metric that only keeps a sketch, nothing is added then")
     })
 	@PostMapping("/metric/{metricName}")
-	public ResponseEntity<?> addDataToMetric(@PathVariable String metricName, @RequestBody DataDTO data) {
+	public ResponseEntity<?> addDataToMetric(@PathVariable String metricName, @RequestBody DataDTO data,
+			@ApiParam(value = "ack (default) returns count and aggregates, none returns 204, series returns every stored value")
+			@RequestParam(value = "response", defaultValue = "ack") String response) {
 		if(metricName == null)
 		{
 			return ResponseEntity.badRequest().body("Metric Name cannot be null.");
 		}
 		
-		if (!metricsRepository.addDataToMetric(metricName, data.getValue())) {
+		if (!response.equalsIgnoreCase("ack") && !response.equalsIgnoreCase("none") && !response.equalsIgnoreCase("series"))
+		{
+			return ResponseEntity.badRequest().body("Response must be ack, none or series.");
+		}
+		
+		if (!Double.isFinite(data.getValue())) {
+			return ResponseEntity.badRequest().body("Value must be a finite number.");
+		}
+		
+		// a series echo that cannot be sent is refused before the value is written, not after
+		if (response.equalsIgnoreCase("series")) {
+			try {
+				if (!metricsRepository.getConfigOfMetric(metricName).keepsRawValues()) {
+					return ResponseEntity.badRequest().body("Metric: " + metricName + " only keeps a sketch, response=series is not available.");
+				}
+			} catch (IllegalArgumentException ex) {
+				return ResponseEntity.badRequest().body("Metric Name : " + metricName + " does not exist.");
+			}
+		}
+		
+		boolean added = data.getTimestamp() == null
+				? metricsRepository.addDataToMetric(metricName, data.getValue())
+				: metricsRepository.addDataToMetric(metricName, data.getValue(), data.getTimestamp());
+		
+		if (!added) {
 			return ResponseEntity.badRequest().body("Metric Name : " + metricName + " does not exist.");
 		}
 
-		return ResponseEntity.ok().body(metricsRepository.getDataForMetric(metricName));
+		if (response.equalsIgnoreCase("none")) {
+			return ResponseEntity.noContent().build();
+		}
+		
+		try {
+			if (response.equalsIgnoreCase("series")) {
+				// the full echo grows with the series, so it is only sent when asked for
+				return ResponseEntity.ok().body(metricsRepository.getDataForMetric(metricName));
+			}
+			
+			WriteAckDTO ack = new WriteAckDTO();
+			ack.setMetric(metricName);
+			ack.setAccepted(1);
+			
+			// aggregates of a striped metric would drain every stripe under the metric lock on each write
+			if (metricsRepository.getConfigOfMetric(metricName).getWriteMode() == WriteMode.STRIPED) {
+				return ResponseEntity.ok(ack);
+			}
+			
+			Map<String, Double> aggregates = metricsRepository.getStatisticsOfMetric(metricName, WRITE_ACK_STATISTICS);
+			ack.setCount(aggregates.get("count").longValue());
+			ack.setMean(aggregates.get("mean"));
+			ack.setMin(aggregates.get("min"));
+			ack.setMax(aggregates.get("max"));
+			
+			return ResponseEntity.ok(ack);
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+	}
+
+    @ApiOperation(value = "Add a batch of data to specified metric")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "added data successfully, returns the number of values added"),
+            @ApiResponse(code = 400, message = "metric specified did not exist, values were missing or timestamps did not match values")
+    })
+	@PostMapping("/metric/{metricName}/batch")
+	public ResponseEntity<?> addBatchToMetric(@PathVariable String metricName, @RequestBody BatchDataDTO data) {
+		if (data == null || data.getValues() == null)
+		{
+			return ResponseEntity.badRequest().body("Values cannot be null.");
+		}
+		
+		try {
+			if (!metricsRepository.addDataToMetric(metricName, data.getValues(), data.getTimestamps())) {
+				return ResponseEntity.badRequest().body("Metric Name : " + metricName + " does not exist.");
+			}
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+
+		return ResponseEntity.ok(data.getValues().length);
+	}
+
+    @ApiOperation(value = "Add batches of data to several metrics, body maps metric name to an array of values")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "added data successfully, returns the number of values added per metric"),
+            @ApiResponse(code = 400, message = "values were missing or not finite numbers or some metrics did not exist, nothing is added then")
+    })
+	@PostMapping("/batch")
+	public ResponseEntity<?> addBatches(@RequestBody Map<String, double[]> batches) {
+		if (batches == null || batches.isEmpty())
+		{
+			return ResponseEntity.badRequest().body("Batches cannot be null or empty.");
+		}
+		
+		Map<String, Integer> added = new LinkedHashMap<>();
+		List<String> missingMetrics = new ArrayList<>();
+		
+		// every batch is checked before any is added, so a rejected request leaves no metric changed
+		for (Map.Entry<String, double[]> batch : batches.entrySet()) {
+			if (batch.getValue() == null) {
+				return ResponseEntity.badRequest().body("Values for Metric Name : " + batch.getKey() + " cannot be null.");
+			}
+			for (double value : batch.getValue()) {
+				if (!Double.isFinite(value)) {
+					return ResponseEntity.badRequest().body("Values for Metric Name : " + batch.getKey() + " must be finite numbers.");
+				}
+			}
+			if (!metricsRepository.hasMetric(batch.getKey())) {
+				missingMetrics.add(batch.getKey());
+			}
+		}
+		
+		if (!missingMetrics.isEmpty()) {
+			return ResponseEntity.badRequest().body("Metric Names : " + missingMetrics + " do not exist.");
+		}
+		
+		try {
+			for (Map.Entry<String, double[]> batch : batches.entrySet()) {
+				metricsRepository.addDataToMetric(batch.getKey(), batch.getValue());
+				added.put(batch.getKey(), batch.getValue().length);
+			}
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+
+		return ResponseEntity.ok(added);
+	}
+
+    @ApiOperation(value = "Add batches of data in binary frames: int frame length, short name length, UTF-8 metric name, byte flags (1 = timestamps follow), int count, count doubles, then count long timestamps if flagged. Big endian")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "added data successfully, returns the number of values added"),
+            @ApiResponse(code = 400, message = "a frame was malformed, the body ended inside a frame or some metrics did not exist, frames before a malformed one and frames for the metrics that exist are still added")
+    })
+	@PostMapping(value = "/ingest", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<?> ingestFrames(@RequestBody byte[] frames) {
+		ByteBuffer buffer = ByteBuffer.wrap(frames);
+		List<String> missingMetrics = new ArrayList<>();
+		long added;
+		
+		try {
+			// values go from the frames into primitive batches, no DataDTO or Double is made per sample
+			added = BinaryFrames.decode(buffer, metricsRepository, missingMetrics);
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+		
+		if (buffer.hasRemaining()) {
+			return ResponseEntity.badRequest().body("Body ends inside a frame.");
+		}
+		
+		if (!missingMetrics.isEmpty()) {
+			return ResponseEntity.badRequest().body("Metric Names : " + missingMetrics + " do not exist.");
+		}
+		
+		return ResponseEntity.ok(added);
 	}
 
-    @ApiOperation(value = "Get statistic (mean, median, min, max) for given metric")
+    @ApiOperation(value = "Get statistic (count, mean, median, min, max, variance, stddev, pNN) for given metric. Several comma separated statistics return a JSON object. from and to limit the statistics to values measured in that time range")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "got desired statistic for metric successfully"),
-            @ApiResponse(code = 400, message = "metric specified was null or did not exist or statistic requested did not exist, was null, or was empty")
+            @ApiResponse(code = 400, message = "metric specified was null or did not exist, statistic requested did not exist, was null, or was empty, or from was after to")
     })
 	@GetMapping("/metric/{metricName}")
 	public ResponseEntity<?> getMetricStatistic(@PathVariable String metricName,
-			@RequestParam("stat") String requestedStatistic) {
+			@RequestParam("stat") String requestedStatistic,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
 		
 		if (metricName == null || metricName.isEmpty())
 		{
@@ -104,25 +357,285 @@ public class MetricController {
 			}			
 		}
 		
-		double result = 0.0;
+		List<Statistic> statistics;
+		
+		try {
+			statistics = Statistic.parseList(requestedStatistic);
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body("No Supported Statistic Requested. Please add ?stat=count|mean|median|min|max|variance|stddev|pNN to url, comma separated for several.");
+		}
+		
+		Map<String, Double> results;
 		
 		try {
-			if (requestedStatistic.equalsIgnoreCase("mean")) {
-				result = metricsRepository.getAverageOfMetric(metricName);
-			} else if (requestedStatistic.equalsIgnoreCase("median")) {
-				result = metricsRepository.getMedianOfMetric(metricName);
-			} else if (requestedStatistic.equalsIgnoreCase("min")) {
-				result = metricsRepository.getMinimumOfMetric(metricName);
-			} else if (requestedStatistic.equalsIgnoreCase("max")) {
-				result = metricsRepository.getMaximumOfMetric(metricName);
+			// every statistic is read under one lock so a dashboard panel sees one consistent set of values
+			if (from == null && to == null) {
+				results = metricsRepository.getStatisticsOfMetric(metricName, statistics);
 			} else {
-				return ResponseEntity.badRequest().body("No Supported Statistic Requested. Please add ?stat=mean|median|min|max to url.");
+				results = metricsRepository.getStatisticsOfMetric(metricName, statistics,
+						from != null ? from : Long.MIN_VALUE, to != null ? to : System.currentTimeMillis());
 			}
 		} catch (IllegalArgumentException ex) {
-			System.out.println();
 			return ResponseEntity.badRequest().body(ex.getMessage());
 		}
 
-		return ResponseEntity.ok(result);
+		// a single statistic keeps the original bare number response
+		if (!requestedStatistic.contains(",")) {
+			return ResponseEntity.ok(results.get(statistics.get(0).getName()));
+		}
+
+		return ResponseEntity.ok(results);
+	}
+
+    @ApiOperation(value = "Get a mergeable summary (count, sum, mean, squared differences, min, max and t-digest centroids) of given metric. from and to limit it to values measured in that time range")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "got the summary of the metric"),
+            @ApiResponse(code = 400, message = "metric specified did not exist, from was after to or a time range was asked of a windowed metric")
+    })
+	@GetMapping("/metric/{metricName}/summary")
+	public ResponseEntity<?> getMetricSummary(@PathVariable String metricName,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
+		
+		try {
+			MetricSummary summary = from == null && to == null
+					? metricsRepository.getSummaryOfMetric(metricName, Long.MIN_VALUE, Long.MAX_VALUE)
+					: metricsRepository.getSummaryOfMetric(metricName, from != null ? from : Long.MIN_VALUE,
+							to != null ? to : System.currentTimeMillis());
+			return ResponseEntity.ok(SummaryDTO.of(summary));
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+	}
+
+    @ApiOperation(value = "Get statistics over several metrics at once, from the merge of their summaries. Without stat the merged summary is returned")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "got desired statistics, or the merged summary"),
+            @ApiResponse(code = 400, message = "metrics were empty or some did not exist, statistic requested did not exist, or from was after to")
+    })
+	@GetMapping("/summary")
+	public ResponseEntity<?> getSummaryOfMetrics(
+			@ApiParam(value = "comma separated metric names") @RequestParam("metrics") String metrics,
+			@ApiParam(value = "count|mean|median|min|max|variance|stddev|pNN, comma separated for several. Median and percentiles are estimates") @RequestParam(value = "stat", required = false) String requestedStatistic,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
+		
+		List<Statistic> statistics = null;
+		
+		if (requestedStatistic != null && !requestedStatistic.isEmpty()) {
+			try {
+				statistics = Statistic.parseList(requestedStatistic);
+			} catch (IllegalArgumentException ex) {
+				return ResponseEntity.badRequest().body("No Supported Statistic Requested. Please add ?stat=count|mean|median|min|max|variance|stddev|pNN to url, comma separated for several.");
+			}
+		}
+		
+		List<String> metricNames = new ArrayList<>();
+		for (String metric : metrics.split(",")) {
+			if (!metric.isEmpty()) {
+				metricNames.add(metric);
+			}
+		}
+		
+		MetricSummary summary;
+		
+		try {
+			summary = from == null && to == null
+					? metricsRepository.getSummaryOfMetrics(metricNames, Long.MIN_VALUE, Long.MAX_VALUE)
+					: metricsRepository.getSummaryOfMetrics(metricNames, from != null ? from : Long.MIN_VALUE,
+							to != null ? to : System.currentTimeMillis());
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+		
+		// summaries merge, so several summaries can be merged again by the caller
+		if (statistics == null) {
+			return ResponseEntity.ok(SummaryDTO.of(summary));
+		}
+		
+		Map<String, Double> results = summary.getStatistics(statistics);
+		if (!requestedStatistic.contains(",")) {
+			return ResponseEntity.ok(results.get(statistics.get(0).getName()));
+		}
+		
+		return ResponseEntity.ok(results);
+	}
+
+    @ApiOperation(value = "Get statistics of every metric whose name matches a pattern, in one call, with the min, max and mean of each statistic across them")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "got the statistics of every matching metric, none may match"),
+            @ApiResponse(code = 400, message = "pattern was empty, statistic requested did not exist, from was after to, or a matching metric keeps a sliding window and from or to was given")
+    })
+	@GetMapping("/query")
+	public ResponseEntity<?> queryMetrics(
+			@ApiParam(value = "metric name pattern, * matches any run of characters and ? any one character, e.g. latency.*") @RequestParam("metrics") String pattern,
+			@ApiParam(value = "count|mean|median|min|max|variance|stddev|pNN, comma separated for several") @RequestParam("stat") String requestedStatistic,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
+		
+		List<Statistic> statistics;
+		
+		try {
+			statistics = Statistic.parseList(requestedStatistic);
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body("No Supported Statistic Requested. Please add ?stat=count|mean|median|min|max|variance|stddev|pNN to url, comma separated for several.");
+		}
+		
+		try {
+			Map<String, Map<String, Double>> results = from == null && to == null
+					? metricsRepository.getStatisticsOfMetrics(pattern, statistics)
+					: metricsRepository.getStatisticsOfMetrics(pattern, statistics, from != null ? from : Long.MIN_VALUE,
+							to != null ? to : System.currentTimeMillis());
+			return ResponseEntity.ok(QueryDTO.of(results));
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+	}
+
+    @ApiOperation(value = "Get the keys of the labeled metrics with a name and tags, like latency{region=us,service=api}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "got the sorted keys of the selected metrics, none may match"),
+            @ApiResponse(code = 400, message = "neither name nor tags were given, or tags were not key=value pairs")
+    })
+	@GetMapping("/select")
+	public ResponseEntity<?> selectMetrics(
+			@ApiParam(value = "metric name without tags") @RequestParam(value = "name", required = false) String name,
+			@ApiParam(value = "tags every metric must have, e.g. service=api,region=us") @RequestParam(value = "tags", required = false) String tags) {
+		
+		try {
+			return ResponseEntity.ok(metricsRepository.selectMetrics(name, MetricKey.parseTags(tags)));
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+	}
+
+    @ApiOperation(value = "Get statistics of the selected labeled metrics grouped by the value of a tag, from the merge of their summaries. Without stat the merged summary of each group is returned")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "got desired statistics, or the merged summary, of each group"),
+            @ApiResponse(code = 400, message = "neither name nor tags were given, tags were not key=value pairs, groupBy was empty, statistic requested did not exist, or from was after to")
+    })
+	@GetMapping("/select/summary")
+	public ResponseEntity<?> getSummariesByTag(
+			@ApiParam(value = "metric name without tags") @RequestParam(value = "name", required = false) String name,
+			@ApiParam(value = "tags every metric must have, e.g. service=api,region=us") @RequestParam(value = "tags", required = false) String tags,
+			@ApiParam(value = "tag key to group by, e.g. host") @RequestParam("groupBy") String groupBy,
+			@ApiParam(value = "count|mean|median|min|max|variance|stddev|pNN, comma separated for several. Median and percentiles are estimates") @RequestParam(value = "stat", required = false) String requestedStatistic,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now when from is given") @RequestParam(value = "to", required = false) Long to) {
+		
+		List<Statistic> statistics = null;
+		
+		if (requestedStatistic != null && !requestedStatistic.isEmpty()) {
+			try {
+				statistics = Statistic.parseList(requestedStatistic);
+			} catch (IllegalArgumentException ex) {
+				return ResponseEntity.badRequest().body("No Supported Statistic Requested. Please add ?stat=count|mean|median|min|max|variance|stddev|pNN to url, comma separated for several.");
+			}
+		}
+		
+		Map<String, MetricSummary> summaries;
+		
+		try {
+			summaries = metricsRepository.getSummariesByTag(name, MetricKey.parseTags(tags), groupBy,
+					from != null ? from : Long.MIN_VALUE,
+					to != null ? to : from != null ? System.currentTimeMillis() : Long.MAX_VALUE);
+		} catch (IllegalArgumentException ex) {
+			return ResponseEntity.badRequest().body(ex.getMessage());
+		}
+		
+		Map<String, Object> results = new LinkedHashMap<>();
+		for (Map.Entry<String, MetricSummary> group : summaries.entrySet()) {
+			results.put(group.getKey(), statistics == null ? SummaryDTO.of(group.getValue())
+					: group.getValue().getStatistics(statistics));
+		}
+		
+		return ResponseEntity.ok(results);
+	}
+
+    @ApiOperation(value = "Stream the samples of a metric measured between from and to, in time order. A page that stops at limit has an X-Next-Cursor header, pass it back as cursor for the next page")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "streamed the samples"),
+            @ApiResponse(code = 400, message = "metric specified did not exist or only keeps a sketch or a sliding window, format was not ndjson|csv|binary, from was after to, cursor was not valid or limit was not positive")
+    })
+	@GetMapping("/metric/{metricName}/export")
+	public ResponseEntity<StreamingResponseBody> exportMetric(@PathVariable String metricName,
+			@ApiParam(value = "ndjson (default) writes a {\"timestamp\":..,\"value\":..} line per sample, csv writes timestamp,value rows, binary writes a big endian long timestamp and double value per sample") @RequestParam(value = "format", defaultValue = "ndjson") String format,
+			@ApiParam(value = "first timestamp included, epoch milliseconds") @RequestParam(value = "from", required = false) Long from,
+			@ApiParam(value = "last timestamp included, epoch milliseconds, defaults to now") @RequestParam(value = "to", required = false) Long to,
+			@ApiParam(value = "X-Next-Cursor of the previous page, the page then reads the same range as the first") @RequestParam(value = "cursor", required = false) String cursor,
+			@ApiParam(value = "most samples read by the page, all of them by default") @RequestParam(value = "limit", required = false) Long limit) {
+		
+		MediaType mediaType;
+		if (format.equalsIgnoreCase("ndjson")) {
+			mediaType = MediaType.parseMediaType("application/x-ndjson");
+		} else if (format.equalsIgnoreCase("csv")) {
+			mediaType = MediaType.parseMediaType("text/csv");
+		} else if (format.equalsIgnoreCase("binary")) {
+			mediaType = MediaType.APPLICATION_OCTET_STREAM;
+		} else {
+			return exportError("Format must be ndjson, csv or binary.");
+		}
+		
+		MetricExport export;
+		
+		try {
+			export = metricsRepository.exportMetric(metricName, from != null ? from : Long.MIN_VALUE,
+					to != null ? to : System.currentTimeMillis(), cursor, limit != null ? limit : Long.MAX_VALUE);
+		} catch (IllegalArgumentException ex) {
+			return exportError(ex.getMessage());
+		}
+		
+		// samples are copied a partition at a time as the client reads, so a large metric never sits in memory whole
+		StreamingResponseBody body = outputStream -> writeExport(export, mediaType, outputStream);
+		
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(mediaType);
+		if (export.getNextCursor() != null) {
+			response.header("X-Next-Cursor", export.getNextCursor());
+		}
+		
+		return response.body(body);
+	}
+	
+	/**
+	 * Streaming handlers are only chosen by the declared body type, so errors of the export are streamed as well
+	 */
+	private static ResponseEntity<StreamingResponseBody> exportError(String message) {
+		return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN)
+				.body(outputStream -> outputStream.write(message.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	private static void writeExport(MetricExport export, MediaType mediaType, OutputStream outputStream) throws IOException {
+		long[] timestamps = new long[EXPORT_CHUNK_SIZE];
+		double[] values = new double[EXPORT_CHUNK_SIZE];
+		int read;
+		
+		if (mediaType.equals(MediaType.APPLICATION_OCTET_STREAM)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, EXPORT_BUFFER_BYTES));
+			while ((read = export.read(timestamps, values)) > 0) {
+				for (int index = 0; index < read; index++) {
+					out.writeLong(timestamps[index]);
+					out.writeDouble(values[index]);
+				}
+			}
+			out.flush();
+			return;
+		}
+		
+		boolean csv = mediaType.getSubtype().equals("csv");
+		Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), EXPORT_BUFFER_BYTES);
+		if (csv) {
+			out.write("timestamp,value\n");
+		}
+		
+		while ((read = export.read(timestamps, values)) > 0) {
+			for (int index = 0; index < read; index++) {
+				if (csv) {
+					out.write(timestamps[index] + "," + values[index] + "\n");
+				} else {
+					out.write("{\"timestamp\":" + timestamps[index] + ",\"value\":" + values[index] + "}\n");
+				}
+			}
+		}
+		out.flush();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package com.qevans.metricapp;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.qevans.metricapp.persistence.ReplicationFollower;
+import com.qevans.metricapp.persistence.ReplicationLeader;
+
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * <p>Reports the replication role of this node and promotes a follower to take writes.
+ * </p>
+ */
+@RestController
+public class ReplicationController {
+
+	@Autowired(required = false)
+	private ReplicationLeader leader;
+
+	@Autowired(required = false)
+	private ReplicationFollower follower;
+
+    @ApiOperation(value = "Get the replication role of this node: none, leader, follower or promoted")
+	@GetMapping("/replication")
+	public ResponseEntity<Map<String, Object>> getStatus() throws IOException {
+		Map<String, Object> status = new LinkedHashMap<>();
+		if (leader != null) {
+			status.put("role", "leader");
+			status.put("port", leader.getPort());
+			status.put("followers", leader.getFollowerCount());
+		} else if (follower != null) {
+			status.put("role", follower.isFollowing() ? "follower" : "promoted");
+			status.put("connected", follower.isConnected());
+			status.put("appliedSequence", follower.getAppliedSequence());
+		} else {
+			status.put("role", "none");
+		}
+		return ResponseEntity.ok(status);
+	}
+
+    @ApiOperation(value = "Stop following the leader and take writes")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Follower was promoted"),
+            @ApiResponse(code = 409, message = "Node is not a follower or was already promoted")
+    })
+	@PostMapping("/replication/promote")
+	public ResponseEntity<String> promote() {
+		if (follower == null || !follower.promote()) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).body("This node is not following a leader.");
+		}
+		return ResponseEntity.ok("Promoted at sequence " + follower.getAppliedSequence() + ".");
+	}
+}
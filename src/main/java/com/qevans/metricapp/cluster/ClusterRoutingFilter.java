@@ -0,0 +1,722 @@
+package com.qevans.metricapp.cluster;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qevans.metricapp.dto.QueryDTO;
+import com.qevans.metricapp.dto.SummaryDTO;
+import com.qevans.metricapp.repository.MetricKey;
+import com.qevans.metricapp.repository.MetricSummary;
+import com.qevans.metricapp.repository.Statistic;
+
+/**
+ * <p>Sends every metric request to the node of the cluster that owns the metric, so clients may call any node.
+ * </p>
+ * Requests for one metric, POST /metric and /metric/{name} with its batch and export (and their /async variants),
+ * are handled here when this node owns the metric and otherwise forwarded whole to the owner, whose response is
+ * streamed back as it is. /batch and /ingest bodies are split by owner, each part is sent to its node and the
+ * results are added up. GET /metric lists the metrics of every node, and GET /query asks every node for the
+ * statistics of its own metrics matching the pattern. GET /select lists the labeled metrics of every node with the
+ * given name and tags, and GET /select/summary merges the group summaries of every node. GET /summary asks every node for the merged
+ * summary of its own metrics, all at once, and merges those, so only one summary per node crosses the network.
+ *
+ * Forwarded requests carry X-Metrics-Forwarded and are always handled by the node they reach, so nodes that
+ * disagree about the ring answer wrongly instead of forwarding in a loop. A node that cannot be reached is
+ * answered 502.
+ */
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+
+	public static final String FORWARDED_HEADER = "X-Metrics-Forwarded";
+
+	private static final Pattern METRIC_PATH = Pattern.compile("(?:/async)?/metric/([^/]+)(?:/batch|/export|/summary)?");
+	private static final String[] FORWARDED_RESPONSE_HEADERS = {"X-Next-Cursor", HttpHeaders.RETRY_AFTER};
+
+	private final HashRing ring;
+	private final String self;
+	private final int timeoutMillis;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ExecutorService executor;
+
+	/**
+	 * @param ring is the HashRing of the cluster
+	 * @param self is the base URL of this node, as listed in the ring
+	 * @param timeoutMillis is how long to wait to connect to a node, and for each read from it
+	 * @throws IllegalArgumentException if ring is null, self is not one of its nodes or timeoutMillis is negative
+	 */
+	public ClusterRoutingFilter(HashRing ring, String self, int timeoutMillis) {
+		if (ring == null) {
+			throw new IllegalArgumentException("Ring cannot be null");
+		}
+
+		if (!ring.getNodes().contains(HashRing.normalize(self))) {
+			throw new IllegalArgumentException("Node: " + self + " is not one of the cluster nodes " + ring.getNodes());
+		}
+
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+
+		this.ring = ring;
+		this.self = HashRing.normalize(self);
+		this.timeoutMillis = timeoutMillis;
+
+		AtomicInteger created = new AtomicInteger();
+		// calls mostly wait on other nodes, so threads are made as needed rather than bounded by cores
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-cluster-" + created.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		if (request.getHeader(FORWARDED_HEADER) != null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		String method = request.getMethod();
+		Matcher metricPath = METRIC_PATH.matcher(path);
+
+		try {
+			if (metricPath.matches()) {
+				route(UriUtils.decode(metricPath.group(1), StandardCharsets.UTF_8), request, response, chain);
+			} else if (path.equals("/metric") && method.equals("POST")) {
+				byte[] body = StreamUtils.copyToByteArray(request.getInputStream());
+				String metric = new String(body, request.getCharacterEncoding() != null
+						? request.getCharacterEncoding() : StandardCharsets.UTF_8.name());
+				route(metric, new CachedBodyRequest(request, body), response, chain);
+			} else if (path.equals("/metric") && method.equals("GET")) {
+				listMetrics(request, response);
+			} else if (path.equals("/summary") && method.equals("GET")) {
+				scatterSummaries(request, response, chain);
+			} else if (path.equals("/query") && method.equals("GET")) {
+				scatterQuery(request, response, chain);
+			} else if (path.equals("/select") && method.equals("GET")) {
+				scatterSelect(request, response, chain);
+			} else if (path.equals("/select/summary") && method.equals("GET")) {
+				scatterSummariesByTag(request, response, chain);
+			} else if ((path.equals("/batch") || path.equals("/async/batch")) && method.equals("POST")) {
+				scatterBatches(request, response, chain);
+			} else if ((path.equals("/ingest") || path.equals("/async/ingest")) && method.equals("POST")) {
+				scatterFrames(request, response, chain);
+			} else {
+				chain.doFilter(request, response);
+			}
+		} catch (NodeException ex) {
+			if (!response.isCommitted()) {
+				response.reset();
+				writeText(response, HttpStatus.BAD_GATEWAY.value(), ex.getMessage());
+			}
+		}
+	}
+
+	private void route(String metric, HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String owner = metric.isEmpty() ? self : ring.ownerOf(metric);
+		if (owner.equals(self)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		byte[] body = StreamUtils.copyToByteArray(request.getInputStream());
+		HttpURLConnection connection = send(owner, new Call(request, request.getQueryString()), request.getContentType(), body);
+
+		// streamed, so an export is never held whole on this node
+		response.setStatus(connection.getResponseCode());
+		if (connection.getContentType() != null) {
+			response.setContentType(connection.getContentType());
+		}
+		for (String header : FORWARDED_RESPONSE_HEADERS) {
+			if (connection.getHeaderField(header) != null) {
+				response.setHeader(header, connection.getHeaderField(header));
+			}
+		}
+
+		try (InputStream in = responseStream(connection)) {
+			if (in != null) {
+				StreamUtils.copy(in, response.getOutputStream());
+			}
+		}
+	}
+
+	private void listMetrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Call call = new Call(request, request.getQueryString());
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			calls.add(() -> exchange(node, call, null, null));
+		}
+
+		TreeSet<String> metrics = new TreeSet<>();
+		List<NodeResponse> responses = exchangeAll(calls);
+		for (int index = 0; index < responses.size(); index++) {
+			NodeResponse listed = responses.get(index);
+			if (listed.status != HttpStatus.OK.value()) {
+				throw new NodeException("Node: " + ring.getNodes().get(index) + " answered " + listed.status
+						+ " listing its metrics.");
+			}
+			Collections.addAll(metrics, objectMapper.readValue(listed.body, String[].class));
+		}
+
+		writeJson(response, metrics);
+	}
+
+	private void scatterSummaries(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String requestedStatistic = request.getParameter("stat");
+		List<Statistic> statistics = null;
+		if (requestedStatistic != null && !requestedStatistic.isEmpty()) {
+			try {
+				statistics = Statistic.parseList(requestedStatistic);
+			} catch (IllegalArgumentException ex) {
+				// the controller answers statistics it cannot read before it looks at any metric
+				chain.doFilter(request, response);
+				return;
+			}
+		}
+
+		Map<String, List<String>> parts = new LinkedHashMap<>();
+		String metrics = request.getParameter("metrics");
+		if (metrics != null) {
+			for (String metric : metrics.split(",")) {
+				if (!metric.isEmpty()) {
+					parts.computeIfAbsent(ring.ownerOf(metric), node -> new ArrayList<>()).add(metric);
+				}
+			}
+		}
+
+		if (parts.isEmpty() || parts.size() == 1 && parts.containsKey(self)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String from = request.getParameter("from");
+		String to = request.getParameter("to");
+		if (from != null && to == null) {
+			// to defaults to now, fixed here so every node reads the same range
+			to = String.valueOf(System.currentTimeMillis());
+		}
+
+		// each node merges the summaries of its own metrics, and only those summaries cross the network
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (Map.Entry<String, List<String>> part : parts.entrySet()) {
+			String query = "metrics=" + UriUtils.encodeQueryParam(String.join(",", part.getValue()), StandardCharsets.UTF_8)
+					+ (from != null ? "&from=" + UriUtils.encodeQueryParam(from, StandardCharsets.UTF_8) : "")
+					+ (to != null ? "&to=" + UriUtils.encodeQueryParam(to, StandardCharsets.UTF_8) : "");
+			Call call = new Call(request, query);
+			calls.add(() -> exchange(part.getKey(), call, null, null));
+		}
+
+		List<NodeResponse> responses = exchangeAll(calls);
+		if (writeFailures(response, responses)) {
+			return;
+		}
+
+		MetricSummary merged = new MetricSummary();
+		for (NodeResponse part : responses) {
+			merged.merge(objectMapper.readValue(part.body, SummaryDTO.class).toSummary());
+		}
+
+		if (statistics == null) {
+			writeJson(response, SummaryDTO.of(merged));
+			return;
+		}
+
+		Map<String, Double> results = merged.getStatistics(statistics);
+		writeJson(response, requestedStatistic.contains(",") ? results : results.get(statistics.get(0).getName()));
+	}
+
+	private void scatterQuery(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String pattern = request.getParameter("metrics");
+		String requestedStatistic = request.getParameter("stat");
+		try {
+			Statistic.parseList(requestedStatistic);
+		} catch (IllegalArgumentException ex) {
+			// answered once by this node, rather than once per node
+			chain.doFilter(request, response);
+			return;
+		}
+
+		if (pattern == null || pattern.isEmpty()) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String from = request.getParameter("from");
+		String to = request.getParameter("to");
+		if (from != null && to == null) {
+			// to defaults to now, fixed here so every node reads the same range
+			to = String.valueOf(System.currentTimeMillis());
+		}
+
+		// a pattern can match metrics owned by any node, each node answers for its own
+		String query = "metrics=" + UriUtils.encodeQueryParam(pattern, StandardCharsets.UTF_8)
+				+ "&stat=" + UriUtils.encodeQueryParam(requestedStatistic, StandardCharsets.UTF_8)
+				+ (from != null ? "&from=" + UriUtils.encodeQueryParam(from, StandardCharsets.UTF_8) : "")
+				+ (to != null ? "&to=" + UriUtils.encodeQueryParam(to, StandardCharsets.UTF_8) : "");
+		Call call = new Call(request, query);
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			calls.add(() -> exchange(node, call, null, null));
+		}
+
+		List<NodeResponse> responses = exchangeAll(calls);
+		if (writeFailures(response, responses)) {
+			return;
+		}
+
+		TreeMap<String, Map<String, Double>> metrics = new TreeMap<>();
+		for (NodeResponse part : responses) {
+			metrics.putAll(objectMapper.readValue(part.body, QueryDTO.class).getMetrics());
+		}
+		writeJson(response, QueryDTO.of(metrics));
+	}
+
+	private void scatterSelect(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		if (!isValidSelector(request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		Call call = new Call(request, request.getQueryString());
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			calls.add(() -> exchange(node, call, null, null));
+		}
+
+		List<NodeResponse> responses = exchangeAll(calls);
+		if (writeFailures(response, responses)) {
+			return;
+		}
+
+		TreeSet<String> metrics = new TreeSet<>();
+		for (NodeResponse part : responses) {
+			Collections.addAll(metrics, objectMapper.readValue(part.body, String[].class));
+		}
+		writeJson(response, metrics);
+	}
+
+	private void scatterSummariesByTag(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String requestedStatistic = request.getParameter("stat");
+		String groupBy = request.getParameter("groupBy");
+		List<Statistic> statistics = null;
+		try {
+			if (requestedStatistic != null && !requestedStatistic.isEmpty()) {
+				statistics = Statistic.parseList(requestedStatistic);
+			}
+		} catch (IllegalArgumentException ex) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		if (!isValidSelector(request) || groupBy == null || groupBy.isEmpty()) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String from = request.getParameter("from");
+		String to = request.getParameter("to");
+		if (from != null && to == null) {
+			// to defaults to now, fixed here so every node reads the same range
+			to = String.valueOf(System.currentTimeMillis());
+		}
+
+		// each node merges the summaries of its own metrics per group, and only those cross the network
+		String query = "groupBy=" + UriUtils.encodeQueryParam(groupBy, StandardCharsets.UTF_8);
+		for (String parameter : new String[] {"name", "tags"}) {
+			String value = request.getParameter(parameter);
+			if (value != null) {
+				query += "&" + parameter + "=" + UriUtils.encodeQueryParam(value, StandardCharsets.UTF_8);
+			}
+		}
+		query += (from != null ? "&from=" + UriUtils.encodeQueryParam(from, StandardCharsets.UTF_8) : "")
+				+ (to != null ? "&to=" + UriUtils.encodeQueryParam(to, StandardCharsets.UTF_8) : "");
+		Call call = new Call(request, query);
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			calls.add(() -> exchange(node, call, null, null));
+		}
+
+		List<NodeResponse> responses = exchangeAll(calls);
+		if (writeFailures(response, responses)) {
+			return;
+		}
+
+		TreeMap<String, MetricSummary> merged = new TreeMap<>();
+		for (NodeResponse part : responses) {
+			Map<String, SummaryDTO> groups = objectMapper.readValue(part.body,
+					new TypeReference<LinkedHashMap<String, SummaryDTO>>() {});
+			for (Map.Entry<String, SummaryDTO> group : groups.entrySet()) {
+				merged.computeIfAbsent(group.getKey(), value -> new MetricSummary()).merge(group.getValue().toSummary());
+			}
+		}
+
+		Map<String, Object> results = new LinkedHashMap<>();
+		for (Map.Entry<String, MetricSummary> group : merged.entrySet()) {
+			results.put(group.getKey(), statistics == null ? SummaryDTO.of(group.getValue())
+					: group.getValue().getStatistics(statistics));
+		}
+		writeJson(response, results);
+	}
+
+	/**
+	 * @return true if the name and tags of request select something, otherwise this node answers why not
+	 */
+	private static boolean isValidSelector(HttpServletRequest request) {
+		try {
+			Map<String, String> tags = MetricKey.parseTags(request.getParameter("tags"));
+			return request.getParameter("name") != null || !tags.isEmpty();
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	private void scatterBatches(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		byte[] body = StreamUtils.copyToByteArray(request.getInputStream());
+		Map<String, JsonNode> batches;
+		try {
+			batches = objectMapper.readValue(body, new TypeReference<LinkedHashMap<String, JsonNode>>() {});
+		} catch (IOException ex) {
+			batches = null;
+		}
+
+		Map<String, Map<String, JsonNode>> parts = new LinkedHashMap<>();
+		if (batches != null) {
+			for (Map.Entry<String, JsonNode> batch : batches.entrySet()) {
+				parts.computeIfAbsent(ring.ownerOf(batch.getKey()), node -> new LinkedHashMap<>())
+						.put(batch.getKey(), batch.getValue());
+			}
+		}
+
+		// bodies this node cannot read are left to the controller to answer
+		if (parts.isEmpty() || parts.size() == 1 && parts.containsKey(self)) {
+			chain.doFilter(new CachedBodyRequest(request, body), response);
+			return;
+		}
+
+		Call call = new Call(request, request.getQueryString());
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (Map.Entry<String, Map<String, JsonNode>> part : parts.entrySet()) {
+			byte[] partBody = objectMapper.writeValueAsBytes(part.getValue());
+			calls.add(() -> exchange(part.getKey(), call, MediaType.APPLICATION_JSON_VALUE, partBody));
+		}
+		List<NodeResponse> responses = exchangeAll(calls);
+
+		if (!writeFailures(response, responses)) {
+			Map<String, Object> counts = new HashMap<>();
+			for (NodeResponse part : responses) {
+				counts.putAll(objectMapper.readValue(part.body, new TypeReference<HashMap<String, Object>>() {}));
+			}
+
+			// in the order of the request, as a single node would answer
+			Map<String, Object> added = new LinkedHashMap<>();
+			for (String metric : batches.keySet()) {
+				added.put(metric, counts.get(metric));
+			}
+			writeJson(response, added);
+		}
+	}
+
+	private void scatterFrames(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		byte[] body = StreamUtils.copyToByteArray(request.getInputStream());
+		Map<String, ByteBuffer> parts = splitFrames(body);
+
+		// malformed or partial bodies are left to the controller to answer
+		if (parts == null || parts.isEmpty() || parts.size() == 1 && parts.containsKey(self)) {
+			chain.doFilter(new CachedBodyRequest(request, body), response);
+			return;
+		}
+
+		Call call = new Call(request, request.getQueryString());
+		List<Callable<NodeResponse>> calls = new ArrayList<>();
+		for (Map.Entry<String, ByteBuffer> part : parts.entrySet()) {
+			byte[] frames = Arrays.copyOf(part.getValue().array(), part.getValue().position());
+			calls.add(() -> exchange(part.getKey(), call, MediaType.APPLICATION_OCTET_STREAM_VALUE, frames));
+		}
+		List<NodeResponse> responses = exchangeAll(calls);
+
+		if (!writeFailures(response, responses)) {
+			long added = 0;
+			for (NodeResponse part : responses) {
+				added += objectMapper.readValue(part.body, Long.class);
+			}
+			writeJson(response, added);
+		}
+	}
+
+	/**
+	 * @return the frames of body grouped by the owner of their metric, null if body is not whole valid frames
+	 */
+	private Map<String, ByteBuffer> splitFrames(byte[] body) {
+		Map<String, ByteBuffer> parts = new LinkedHashMap<>();
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+
+		while (buffer.hasRemaining()) {
+			if (buffer.remaining() < Integer.BYTES + Short.BYTES) {
+				return null;
+			}
+
+			int start = buffer.position();
+			int length = buffer.getInt(start);
+			int nameLength = buffer.getShort(start + Integer.BYTES) & 0xFFFF;
+			if (length < Short.BYTES + nameLength || length > buffer.remaining() - Integer.BYTES) {
+				return null;
+			}
+
+			String metric = new String(body, start + Integer.BYTES + Short.BYTES, nameLength, StandardCharsets.UTF_8);
+			ByteBuffer part = parts.computeIfAbsent(ring.ownerOf(metric), node -> ByteBuffer.allocate(body.length));
+			part.put(body, start, Integer.BYTES + length);
+			buffer.position(start + Integer.BYTES + length);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Answers with the first failed status and what every failed node said, data sent to the other nodes
+	 * is still added.
+	 *
+	 * @return true if some node failed
+	 */
+	private static boolean writeFailures(HttpServletResponse response, List<NodeResponse> responses) throws IOException {
+		int status = 0;
+		StringBuilder message = new StringBuilder();
+		for (NodeResponse part : responses) {
+			if (part.status / 100 != 2) {
+				status = status == 0 ? part.status : status;
+				message.append(message.length() > 0 ? " " : "").append(new String(part.body, StandardCharsets.UTF_8));
+			}
+		}
+
+		if (status == 0) {
+			return false;
+		}
+
+		writeText(response, status, message.toString());
+		return true;
+	}
+
+	private NodeResponse exchange(String node, Call call, String contentType, byte[] body) throws IOException {
+		HttpURLConnection connection = send(node, call, contentType, body);
+		try (InputStream in = responseStream(connection)) {
+			return new NodeResponse(connection.getResponseCode(), in != null ? StreamUtils.copyToByteArray(in) : new byte[0]);
+		} catch (IOException ex) {
+			throw new NodeException("Node: " + node + " did not answer: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * <p>This method answers every call at once, each on a pool thread
+	 * </p>
+	 * @param calls is a List of Callable, one per node
+	 * @return the responses in the order of calls, once every node answered
+	 */
+	private List<NodeResponse> exchangeAll(List<Callable<NodeResponse>> calls) throws IOException {
+		List<NodeResponse> responses = new ArrayList<>(calls.size());
+		try {
+			for (Future<NodeResponse> future : executor.invokeAll(calls)) {
+				responses.add(future.get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new NodeException("Interrupted while waiting for the cluster nodes.");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		}
+		return responses;
+	}
+
+	/**
+	 * Sends the method, path and query of call to node, with body in place of the request body.
+	 */
+	private HttpURLConnection send(String node, Call call, String contentType, byte[] body) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(node + call.target).openConnection();
+			connection.setRequestMethod(call.method);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setRequestProperty(FORWARDED_HEADER, self);
+			if (call.accept != null) {
+				connection.setRequestProperty(HttpHeaders.ACCEPT, call.accept);
+			}
+
+			if (body != null && body.length > 0) {
+				if (contentType != null) {
+					connection.setRequestProperty(HttpHeaders.CONTENT_TYPE, contentType);
+				}
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(body.length);
+				try (OutputStream out = connection.getOutputStream()) {
+					out.write(body);
+				}
+			}
+
+			connection.getResponseCode();
+			return connection;
+		} catch (IOException ex) {
+			throw new NodeException("Node: " + node + " did not answer: " + ex.getMessage());
+		}
+	}
+
+	private static InputStream responseStream(HttpURLConnection connection) throws IOException {
+		return connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+	}
+
+	private void writeJson(HttpServletResponse response, Object body) throws IOException {
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		objectMapper.writeValue(response.getOutputStream(), body);
+	}
+
+	private static void writeText(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType(MediaType.TEXT_PLAIN_VALUE + ";charset=UTF-8");
+		response.getOutputStream().write(message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method, path and query of a request to send on, read on the request thread
+	 */
+	private static final class Call {
+		final String method;
+		final String target;
+		final String accept;
+
+		Call(HttpServletRequest request, String query) {
+			this.method = request.getMethod();
+			this.target = request.getRequestURI().substring(request.getContextPath().length())
+					+ (query != null ? "?" + query : "");
+			this.accept = request.getHeader(HttpHeaders.ACCEPT);
+		}
+	}
+
+	private static final class NodeResponse {
+		final int status;
+		final byte[] body;
+
+		NodeResponse(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * A node of the cluster could not be reached, answered 502.
+	 */
+	private static final class NodeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		NodeException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Gives the rest of the chain the body this filter already read.
+	 */
+	private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+
+		private final byte[] body;
+
+		CachedBodyRequest(HttpServletRequest request, byte[] body) {
+			super(request);
+			this.body = body;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			ByteArrayInputStream in = new ByteArrayInputStream(body);
+			return new ServletInputStream() {
+				@Override
+				public int read() {
+					return in.read();
+				}
+
+				@Override
+				public int read(byte[] bytes, int offset, int length) {
+					return in.read(bytes, offset, length);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener listener) {
+					throw new UnsupportedOperationException("The body is already read");
+				}
+			};
+		}
+
+		@Override
+		public BufferedReader getReader() throws IOException {
+			String encoding = getCharacterEncoding() != null ? getCharacterEncoding() : StandardCharsets.UTF_8.name();
+			return new BufferedReader(new InputStreamReader(getInputStream(), encoding));
+		}
+	}
+}
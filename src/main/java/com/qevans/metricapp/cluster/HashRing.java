@@ -0,0 +1,115 @@
+package com.qevans.metricapp.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.qevans.metricapp.repository.MetricKey;
+
+/**
+ * <p>Consistent hash ring that decides which node of the cluster owns a metric.
+ * </p>
+ * Every node is placed on the ring at many points, its virtual nodes, and a metric belongs to the first point at or
+ * after the hash of its name. Adding or removing a node only moves the metrics between its points and the points
+ * before them, about 1/N of all metrics, and the virtual nodes keep each node's share close to even.
+ *
+ * Every node must be configured with the same nodes in any order and the same number of virtual nodes, so they all
+ * agree on the owners.
+ */
+public class HashRing {
+
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final List<String> nodes;
+
+	/**
+	 * @param nodes is a List of node base URLs, like http://host:8080
+	 * @param virtualNodes is the number of points each node gets on the ring
+	 * @throws IllegalArgumentException if nodes is null or empty, holds a null, empty or duplicate node, or
+	 * virtualNodes is not positive
+	 *
+	 * Big O(nodes * virtualNodes * log(nodes * virtualNodes))
+	 */
+	public HashRing(List<String> nodes, int virtualNodes) {
+		if (nodes == null || nodes.isEmpty()) {
+			throw new IllegalArgumentException("Nodes cannot be null or empty");
+		}
+
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException("Virtual nodes must be positive");
+		}
+
+		List<String> normalized = new ArrayList<>();
+		for (String node : nodes) {
+			String url = normalize(node);
+			if (url.isEmpty()) {
+				throw new IllegalArgumentException("Node cannot be null or empty");
+			}
+			if (normalized.contains(url)) {
+				throw new IllegalArgumentException("Node: " + url + " is listed more than once.");
+			}
+			normalized.add(url);
+
+			for (int index = 0; index < virtualNodes; index++) {
+				// a collision keeps the node that sorts first, so every node places it the same way
+				ring.merge(hash(url + "#" + index), url, (first, second) -> first.compareTo(second) <= 0 ? first : second);
+			}
+		}
+
+		Collections.sort(normalized);
+		this.nodes = Collections.unmodifiableList(normalized);
+	}
+
+	/**
+	 * @param metric is a String, the tags of a labeled metric in any order
+	 * @return the base URL of the node that owns metric, the same for every order of its tags
+	 *
+	 * Big O(log(nodes * virtualNodes)), plus O(length of metric) for a labeled metric
+	 */
+	public String ownerOf(String metric) {
+		Long point = ring.ceilingKey(hash(MetricKey.canonical(metric)));
+		return ring.get(point != null ? point : ring.firstKey());
+	}
+
+	/**
+	 * @return the base URLs of every node, sorted
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param node is a node base URL
+	 * @return node without surrounding spaces or trailing slashes, empty if node is null
+	 */
+	public static String normalize(String node) {
+		if (node == null) {
+			return "";
+		}
+
+		String url = node.trim();
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		return url;
+	}
+
+	/**
+	 * 64 bit FNV-1a, finished with the MurmurHash3 mixer since names that differ in a last character
+	 * would otherwise land next to each other.
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int index = 0; index < key.length(); index++) {
+			hash ^= key.charAt(index);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -1,17 +1,273 @@
 package com.qevans.metricapp.config;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.qevans.metricapp.cluster.ClusterRoutingFilter;
+import com.qevans.metricapp.cluster.HashRing;
+import com.qevans.metricapp.ingest.BinaryIngestListener;
+import com.qevans.metricapp.ingest.StatsdListener;
+import com.qevans.metricapp.persistence.FollowerReadOnlyFilter;
+import com.qevans.metricapp.persistence.MetricsPersistence;
+import com.qevans.metricapp.persistence.ReplicationFollower;
+import com.qevans.metricapp.persistence.ReplicationLeader;
+import com.qevans.metricapp.persistence.SnapshotStore;
+import com.qevans.metricapp.persistence.WriteAheadLog;
+import com.qevans.metricapp.repository.MetricConfig;
 import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.RetentionCompactor;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
 
 @Configuration
 public class AppConfig {
 
+	@Value("${metrics.storage:heap}")
+	private String storageType;
+
+	@Value("${metrics.write-mode:direct}")
+	private String writeMode;
+
+	@Value("${metrics.retention.max-age-ms:0}")
+	private long retentionMaxAgeMillis;
+
+	@Value("${metrics.retention.max-samples:0}")
+	private long retentionMaxSamples;
+
+	@Value("${metrics.retention.max-bytes:0}")
+	private long retentionMaxBytes;
+
+	@Value("${metrics.rollups:false}")
+	private boolean rollups;
+
+	@Value("${metrics.time-index:false}")
+	private boolean timeIndex;
+
+	@Value("${metrics.compaction.interval-seconds:60}")
+	private long compactionIntervalSeconds;
+
+	@Value("${metrics.ingest.tcp.enabled:false}")
+	private boolean ingestTcpEnabled;
+
+	@Value("${metrics.ingest.tcp.port:7000}")
+	private int ingestTcpPort;
+
+	@Value("${metrics.ingest.tcp.threads:0}")
+	private int ingestTcpThreads;
+
+	@Value("${metrics.statsd.enabled:false}")
+	private boolean statsdEnabled;
+
+	@Value("${metrics.statsd.port:8125}")
+	private int statsdPort;
+
+	@Value("${metrics.async.threads:0}")
+	private int asyncThreads;
+
+	@Value("${metrics.async.queue-size:1000}")
+	private int asyncQueueSize;
+
+	@Value("${metrics.cluster.nodes:}")
+	private String clusterNodes;
+
+	@Value("${metrics.cluster.self:}")
+	private String clusterSelf;
+
+	@Value("${metrics.cluster.virtual-nodes:128}")
+	private int clusterVirtualNodes;
+
+	@Value("${metrics.cluster.timeout-ms:5000}")
+	private int clusterTimeoutMillis;
+
+	@Value("${metrics.wal.enabled:false}")
+	private boolean walEnabled;
+
+	@Value("${metrics.wal.directory:data/wal}")
+	private String walDirectory;
+
+	@Value("${metrics.wal.sync-interval-ms:50}")
+	private long walSyncIntervalMillis;
+
+	@Value("${metrics.wal.segment-size-mb:64}")
+	private long walSegmentSizeMb;
+
+	@Value("${metrics.snapshot.enabled:false}")
+	private boolean snapshotEnabled;
+
+	@Value("${metrics.snapshot.directory:data/snapshots}")
+	private String snapshotDirectory;
+
+	@Value("${metrics.snapshot.interval-seconds:300}")
+	private long snapshotIntervalSeconds;
+
+	@Value("${metrics.replication.port:7100}")
+	private int replicationPort;
+
+	@Value("${metrics.replication.leader:}")
+	private String replicationLeader;
+
+	@Value("${metrics.replication.directory:data/replication}")
+	private String replicationDirectory;
+
+	@Value("${metrics.replication.max-pending-mb:64}")
+	private long replicationMaxPendingMb;
+
+	@Value("${metrics.replication.reconnect-ms:1000}")
+	private long replicationReconnectMillis;
+
 	@Bean
 	public MetricsRepository metricsRepository()
 	{
-		return new MetricsRepository();
+		MetricConfig defaultConfig = new MetricConfig(StorageType.fromString(storageType));
+		defaultConfig.setWriteMode(WriteMode.fromString(writeMode));
+		defaultConfig.setMaxAgeMillis(retentionMaxAgeMillis);
+		defaultConfig.setMaxSamples(retentionMaxSamples);
+		defaultConfig.setMaxBytes(retentionMaxBytes);
+		defaultConfig.setRollups(rollups);
+		defaultConfig.setTimeIndex(timeIndex);
+		return new MetricsRepository(defaultConfig);
+	}
+
+	/**
+	 * Runs the calls of the /async endpoints. Bounded in threads and queue, a full queue rejects the call
+	 * so the endpoint can answer 503 instead of holding the request.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService metricsRequestExecutor()
+	{
+		int threads = asyncThreads > 0 ? asyncThreads : Runtime.getRuntime().availableProcessors();
+		AtomicInteger created = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(asyncQueueSize), runnable -> {
+					Thread thread = new Thread(runnable, "metrics-request-" + created.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Routes each metric request to the node of the cluster that owns the metric, when cluster nodes are listed.
+	 */
+	@Bean
+	@ConditionalOnExpression("'${metrics.cluster.nodes:}' != ''")
+	public FilterRegistrationBean<ClusterRoutingFilter> clusterRoutingFilter()
+	{
+		HashRing ring = new HashRing(Arrays.asList(clusterNodes.split(",")), clusterVirtualNodes);
+		FilterRegistrationBean<ClusterRoutingFilter> registration = new FilterRegistrationBean<>(
+				new ClusterRoutingFilter(ring, clusterSelf, clusterTimeoutMillis));
+		registration.addUrlPatterns("/metric", "/metric/*", "/batch", "/ingest", "/summary", "/query", "/select", "/select/*",
+				"/async/*");
+		return registration;
+	}
+
+	/**
+	 * Enforces the retention limits of every metric in the background, metrics without limits are skipped.
+	 */
+	@Bean(destroyMethod = "close")
+	public RetentionCompactor retentionCompactor(MetricsRepository metricsRepository)
+	{
+		return new RetentionCompactor(metricsRepository, compactionIntervalSeconds);
+	}
+
+	/**
+	 * Restores the repository from the snapshot and the log before the web server starts taking requests.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnExpression("${metrics.wal.enabled:false} or ${metrics.snapshot.enabled:false}")
+	public MetricsPersistence metricsPersistence(MetricsRepository metricsRepository) throws IOException
+	{
+		SnapshotStore snapshotStore = snapshotEnabled ? new SnapshotStore(Paths.get(snapshotDirectory)) : null;
+		WriteAheadLog writeAheadLog = walEnabled ? new WriteAheadLog(Paths.get(walDirectory), walSyncIntervalMillis,
+				walSegmentSizeMb * 1024 * 1024) : null;
+
+		MetricsPersistence metricsPersistence = new MetricsPersistence(metricsRepository, snapshotStore, writeAheadLog,
+				snapshotIntervalSeconds);
+		metricsPersistence.start();
+		return metricsPersistence;
+	}
+
+	/**
+	 * Takes binary ingest frames over raw TCP, alongside POST /ingest, once the repository is restored.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnExpression("${metrics.ingest.tcp.enabled:false}")
+	public BinaryIngestListener binaryIngestListener(MetricsRepository metricsRepository,
+			ObjectProvider<MetricsPersistence> metricsPersistence) throws IOException
+	{
+		metricsPersistence.getIfAvailable();
+		int threads = ingestTcpThreads > 0 ? ingestTcpThreads : Runtime.getRuntime().availableProcessors();
+		return new BinaryIngestListener(metricsRepository, new InetSocketAddress(ingestTcpPort), threads);
+	}
+
+	/**
+	 * Takes StatsD lines over UDP, creating metrics as they are first seen, once the repository is restored.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnExpression("${metrics.statsd.enabled:false}")
+	public StatsdListener statsdListener(MetricsRepository metricsRepository,
+			ObjectProvider<MetricsPersistence> metricsPersistence) throws IOException
+	{
+		metricsPersistence.getIfAvailable();
+		return new StatsdListener(metricsRepository, new InetSocketAddress(statsdPort));
+	}
+
+	/**
+	 * Streams every change to followers once the repository is restored, when this node is the replication leader.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnExpression("'${metrics.replication.role:none}' == 'leader'")
+	public ReplicationLeader replicationLeader(MetricsRepository metricsRepository,
+			ObjectProvider<MetricsPersistence> metricsPersistence) throws IOException
+	{
+		metricsPersistence.getIfAvailable();
+		return new ReplicationLeader(metricsRepository, new InetSocketAddress(replicationPort),
+				Paths.get(replicationDirectory), replicationMaxPendingMb * 1024 * 1024);
+	}
+
+	/**
+	 * Keeps the repository a copy of the leader's, when this node is a replication follower. The listeners write
+	 * without going through the FollowerReadOnlyFilter, so a follower refuses to start with either enabled.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnExpression("'${metrics.replication.role:none}' == 'follower'")
+	public ReplicationFollower replicationFollower(MetricsRepository metricsRepository,
+			ObjectProvider<MetricsPersistence> metricsPersistence) throws IOException
+	{
+		if (ingestTcpEnabled || statsdEnabled) {
+			throw new IllegalStateException("A replication follower cannot take writes, disable "
+					+ "metrics.ingest.tcp.enabled and metrics.statsd.enabled");
+		}
+
+		metricsPersistence.getIfAvailable();
+		return new ReplicationFollower(metricsRepository, ReplicationFollower.parseAddress(replicationLeader),
+				Paths.get(replicationDirectory), replicationReconnectMillis);
+	}
+
+	/**
+	 * Refuses writes on a replication follower until it is promoted.
+	 */
+	@Bean
+	@ConditionalOnExpression("'${metrics.replication.role:none}' == 'follower'")
+	public FilterRegistrationBean<FollowerReadOnlyFilter> followerReadOnlyFilter(ReplicationFollower replicationFollower)
+	{
+		FilterRegistrationBean<FollowerReadOnlyFilter> registration = new FilterRegistrationBean<>(
+				new FollowerReadOnlyFilter(replicationFollower));
+		registration.addUrlPatterns("/metric", "/metric/*", "/batch", "/ingest", "/async/*");
+		return registration;
 	}
 	
 }
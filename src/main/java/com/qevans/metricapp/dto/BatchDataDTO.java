@@ -0,0 +1,24 @@
+package com.qevans.metricapp.dto;
+
+public class BatchDataDTO {
+
+	private double[] values;
+	// epoch milliseconds, one per value, null for the time the batch arrives
+	private long[] timestamps;
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public void setValues(double[] values) {
+		this.values = values;
+	}
+
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	public void setTimestamps(long[] timestamps) {
+		this.timestamps = timestamps;
+	}
+}
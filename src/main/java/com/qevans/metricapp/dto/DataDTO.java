@@ -3,6 +3,8 @@ package com.qevans.metricapp.dto;
 public class DataDTO {
 
 	private double value;
+	// epoch milliseconds the value was measured at, null for the time it arrives
+	private Long timestamp;
 
 	public double getValue() {
 		return value;
@@ -11,4 +13,12 @@ public class DataDTO {
 	public void setValue(double value) {
 		this.value = value;
 	}	
+
+	public Long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(Long timestamp) {
+		this.timestamp = timestamp;
+	}
 }
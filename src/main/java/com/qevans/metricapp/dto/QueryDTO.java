@@ -0,0 +1,68 @@
+package com.qevans.metricapp.dto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of every metric matched by a query, and for each statistic its min, max and mean across them.
+ */
+public class QueryDTO {
+
+	private int count;
+	private Map<String, Map<String, Double>> metrics;
+	private Map<String, Map<String, Double>> across;
+
+	/**
+	 * @param metrics is metric name to statistic name to value, every metric with the same statistics
+	 * @return the query result, across is empty if no metric matched
+	 */
+	public static QueryDTO of(Map<String, Map<String, Double>> metrics) {
+		Map<String, Map<String, Double>> across = new LinkedHashMap<>();
+		for (Map<String, Double> statistics : metrics.values()) {
+			for (Map.Entry<String, Double> statistic : statistics.entrySet()) {
+				double value = statistic.getValue();
+				Map<String, Double> aggregates = across.get(statistic.getKey());
+				if (aggregates == null) {
+					aggregates = new LinkedHashMap<>();
+					aggregates.put("min", value);
+					aggregates.put("max", value);
+					aggregates.put("mean", 0.0);
+					across.put(statistic.getKey(), aggregates);
+				}
+				aggregates.put("min", Math.min(aggregates.get("min"), value));
+				aggregates.put("max", Math.max(aggregates.get("max"), value));
+				aggregates.put("mean", aggregates.get("mean") + value / metrics.size());
+			}
+		}
+
+		QueryDTO dto = new QueryDTO();
+		dto.setCount(metrics.size());
+		dto.setMetrics(metrics);
+		dto.setAcross(across);
+		return dto;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	public Map<String, Map<String, Double>> getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(Map<String, Map<String, Double>> metrics) {
+		this.metrics = metrics;
+	}
+
+	public Map<String, Map<String, Double>> getAcross() {
+		return across;
+	}
+
+	public void setAcross(Map<String, Map<String, Double>> across) {
+		this.across = across;
+	}
+}
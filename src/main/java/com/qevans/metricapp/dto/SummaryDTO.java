@@ -0,0 +1,109 @@
+package com.qevans.metricapp.dto;
+
+import com.qevans.metricapp.repository.MetricSummary;
+
+public class SummaryDTO {
+
+	private long count;
+	private double sum;
+	private double mean;
+	private double squaredDifferences;
+	private double min;
+	private double max;
+	private double compression;
+	private double[] means;
+	private double[] weights;
+
+	public static SummaryDTO of(MetricSummary summary) {
+		SummaryDTO dto = new SummaryDTO();
+		dto.setCount(summary.getCount());
+		dto.setSum(summary.getSum());
+		dto.setMean(summary.getMean());
+		dto.setSquaredDifferences(summary.getSquaredDifferences());
+		dto.setMin(summary.getMinimum());
+		dto.setMax(summary.getMaximum());
+		dto.setCompression(summary.getCompression());
+		dto.setMeans(summary.getCentroidMeans());
+		dto.setWeights(summary.getCentroidWeights());
+		return dto;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the digest is not valid
+	 */
+	public MetricSummary toSummary() {
+		return MetricSummary.restore(count, sum, mean, squaredDifferences, min, max, compression, means, weights);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public void setSum(double sum) {
+		this.sum = sum;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public void setMean(double mean) {
+		this.mean = mean;
+	}
+
+	public double getSquaredDifferences() {
+		return squaredDifferences;
+	}
+
+	public void setSquaredDifferences(double squaredDifferences) {
+		this.squaredDifferences = squaredDifferences;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public void setMin(double min) {
+		this.min = min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public void setMax(double max) {
+		this.max = max;
+	}
+
+	public double getCompression() {
+		return compression;
+	}
+
+	public void setCompression(double compression) {
+		this.compression = compression;
+	}
+
+	public double[] getMeans() {
+		return means;
+	}
+
+	public void setMeans(double[] means) {
+		this.means = means;
+	}
+
+	public double[] getWeights() {
+		return weights;
+	}
+
+	public void setWeights(double[] weights) {
+		this.weights = weights;
+	}
+}
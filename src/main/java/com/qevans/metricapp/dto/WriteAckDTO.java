@@ -0,0 +1,66 @@
+package com.qevans.metricapp.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Answer to a single write. count and the aggregates are left out for STRIPED metrics, reading them would merge
+ * every buffered value under the metric lock on each write.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WriteAckDTO {
+
+	private String metric;
+	private Long count;
+	private Double mean;
+	private Double min;
+	private Double max;
+	private long accepted;
+
+	public String getMetric() {
+		return metric;
+	}
+
+	public void setMetric(String metric) {
+		this.metric = metric;
+	}
+
+	public Long getCount() {
+		return count;
+	}
+
+	public void setCount(Long count) {
+		this.count = count;
+	}
+
+	public Double getMean() {
+		return mean;
+	}
+
+	public void setMean(Double mean) {
+		this.mean = mean;
+	}
+
+	public Double getMin() {
+		return min;
+	}
+
+	public void setMin(Double min) {
+		this.min = min;
+	}
+
+	public Double getMax() {
+		return max;
+	}
+
+	public void setMax(Double max) {
+		this.max = max;
+	}
+
+	public long getAccepted() {
+		return accepted;
+	}
+
+	public void setAccepted(long accepted) {
+		this.accepted = accepted;
+	}
+}
@@ -0,0 +1,191 @@
+package com.qevans.metricapp.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import com.qevans.metricapp.repository.IMetricsRepository;
+
+/**
+ * <p>The binary ingest format, shared by POST /ingest and the BinaryIngestListener.
+ * </p>
+ * A stream is a run of frames, each holding a batch of values for one metric, all numbers big endian:
+ *
+ * int length of the rest of the frame in bytes
+ * short length of the metric name in bytes, then the name in UTF-8
+ * byte flags, 1 if timestamps follow the values
+ * int count of values
+ * count doubles
+ * count longs of epoch milliseconds if flagged, otherwise the values are stamped when they arrive
+ *
+ * Values and timestamps are bulk copied from the frame into primitive arrays and handed to the repository
+ * as one batch, so no object is created per sample.
+ */
+public final class BinaryFrames {
+
+	public static final byte TIMESTAMPS = 1;
+	public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+	// name length, flags and count of a frame with a one byte name
+	private static final int MIN_FRAME_BYTES = Short.BYTES + 1 + Byte.BYTES + Integer.BYTES;
+
+	private BinaryFrames() {
+	}
+
+	/**
+	 * <p>This method adds the values of every whole frame in the buffer to their metrics
+	 * </p>
+	 * @param buffer is a ByteBuffer read from its position, left at the start of a frame that is not whole yet
+	 * @param repository is the IMetricsRepository to add to
+	 * @param missingMetrics collects the names of metrics that do not exist, their frames are skipped. May be null.
+	 * @return number of values added
+	 * @throws IllegalArgumentException if a frame is malformed, holds NaN or an infinite value or is larger than
+	 * MAX_FRAME_BYTES, frames before it are already added
+	 *
+	 * Big O(bytes), one repository batch per frame
+	 */
+	public static long decode(ByteBuffer buffer, IMetricsRepository repository, Collection<String> missingMetrics) {
+		long added = 0;
+
+		while (buffer.remaining() >= Integer.BYTES) {
+			int start = buffer.position();
+			int length = frameLength(buffer, start);
+
+			if (buffer.remaining() < Integer.BYTES + length) {
+				break;
+			}
+
+			ByteBuffer frame = buffer.duplicate();
+			frame.position(start + Integer.BYTES);
+			frame.limit(start + Integer.BYTES + length);
+			buffer.position(start + Integer.BYTES + length);
+
+			added += decodeFrame(frame, repository, missingMetrics);
+		}
+
+		return added;
+	}
+
+	/**
+	 * <p>This method measures the whole frames at the start of a buffer without decoding them, so they can be
+	 * handed on and decoded elsewhere
+	 * </p>
+	 * @param buffer is a ByteBuffer read from its position, it is not changed
+	 * @return number of bytes from the position up to the first frame that is not whole yet
+	 * @throws IllegalArgumentException if a frame length is not valid
+	 *
+	 * Big O(frames)
+	 */
+	public static int wholeFrameBytes(ByteBuffer buffer) {
+		int position = buffer.position();
+		while (buffer.limit() - position >= Integer.BYTES) {
+			int length = frameLength(buffer, position);
+			if (buffer.limit() - position - Integer.BYTES < length) {
+				break;
+			}
+			position += Integer.BYTES + length;
+		}
+		return position - buffer.position();
+	}
+
+	private static int frameLength(ByteBuffer buffer, int start) {
+		int length = buffer.getInt(start);
+		if (length < MIN_FRAME_BYTES || length > MAX_FRAME_BYTES) {
+			throw new IllegalArgumentException("Frame length: " + length + " is not valid.");
+		}
+		return length;
+	}
+
+	private static long decodeFrame(ByteBuffer frame, IMetricsRepository repository, Collection<String> missingMetrics) {
+		int nameLength = frame.getShort() & 0xFFFF;
+		if (nameLength == 0 || nameLength > frame.remaining() - Byte.BYTES - Integer.BYTES) {
+			throw new IllegalArgumentException("Metric name length: " + nameLength + " is not valid.");
+		}
+
+		byte[] name = new byte[nameLength];
+		frame.get(name);
+		String metric = new String(name, StandardCharsets.UTF_8);
+
+		boolean timestamped = (frame.get() & TIMESTAMPS) != 0;
+		int count = frame.getInt();
+		long expectedBytes = (long) count * (timestamped ? Double.BYTES + Long.BYTES : Double.BYTES);
+
+		if (count < 0 || expectedBytes != frame.remaining()) {
+			throw new IllegalArgumentException("Frame for metric: " + metric + " has " + frame.remaining()
+					+ " bytes for " + count + " values.");
+		}
+
+		double[] values = new double[count];
+		frame.asDoubleBuffer().get(values);
+		frame.position(frame.position() + count * Double.BYTES);
+
+		for (double value : values) {
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				throw new IllegalArgumentException("Frame for metric: " + metric + " holds a value that is not finite.");
+			}
+		}
+
+		long[] timestamps = null;
+		if (timestamped) {
+			timestamps = new long[count];
+			frame.asLongBuffer().get(timestamps);
+		}
+
+		if (!repository.addDataToMetric(metric, values, timestamps)) {
+			if (missingMetrics != null) {
+				missingMetrics.add(metric);
+			}
+			return 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @param metric is a String
+	 * @param values is a double array
+	 * @param timestamps is a long array of epoch milliseconds, one per value, or null to be stamped on arrival
+	 * @return one frame, ready to be read
+	 * @throws IllegalArgumentException if metric is null or empty or too long, values is null, timestamps is not
+	 * the same length as values, or the frame would be larger than MAX_FRAME_BYTES
+	 */
+	public static ByteBuffer encode(String metric, double[] values, long[] timestamps) {
+		if (metric == null || metric.isEmpty()) {
+			throw new IllegalArgumentException("Metric cannot be null or empty.");
+		}
+
+		if (values == null) {
+			throw new IllegalArgumentException("Values cannot be null.");
+		}
+
+		if (timestamps != null && timestamps.length != values.length) {
+			throw new IllegalArgumentException("Timestamps must be the same length as data");
+		}
+
+		byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF) {
+			throw new IllegalArgumentException("Metric name cannot be longer than 65535 bytes.");
+		}
+
+		long length = Short.BYTES + name.length + Byte.BYTES + Integer.BYTES
+				+ (long) values.length * (timestamps != null ? Double.BYTES + Long.BYTES : Double.BYTES);
+		if (length > MAX_FRAME_BYTES) {
+			throw new IllegalArgumentException("Frame of " + length + " bytes is larger than " + MAX_FRAME_BYTES);
+		}
+
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + (int) length);
+		frame.putInt((int) length);
+		frame.putShort((short) name.length);
+		frame.put(name);
+		frame.put(timestamps != null ? TIMESTAMPS : 0);
+		frame.putInt(values.length);
+		frame.asDoubleBuffer().put(values);
+		frame.position(frame.position() + values.length * Double.BYTES);
+		if (timestamps != null) {
+			frame.asLongBuffer().put(timestamps);
+		}
+		frame.rewind();
+
+		return frame;
+	}
+}
@@ -0,0 +1,279 @@
+package com.qevans.metricapp.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.IMetricsRepository;
+
+/**
+ * <p>Accepts streams of BinaryFrames over raw TCP, for producers that would rather keep a connection open than
+ * pay for an HTTP request per batch.
+ * </p>
+ * One selector thread serves every connection with non blocking reads. Each connection keeps a buffer that starts
+ * at 64KB and grows to hold the largest frame it is sent. The whole frames read are handed to a pool of workers that
+ * add them to the repository, so a write that waits on the write ahead log only holds up its own connection. A
+ * connection is not read again until its frames are added, which keeps them in order and pushes back on producers
+ * that send faster than the repository takes them. A partial frame waits in the buffer for the rest of it.
+ *
+ * Nothing is sent back. Frames for metrics that do not exist are skipped, and a malformed frame closes the connection.
+ */
+public class BinaryIngestListener implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BinaryIngestListener.class);
+	private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+	private final IMetricsRepository repository;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	// connections whose frames are added, to be read again by the selector thread
+	private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param repository is the IMetricsRepository frames are added to
+	 * @param address is the address to listen on, port 0 picks a free port
+	 * @throws IllegalArgumentException if repository or address is null
+	 * @throws IOException if the address cannot be bound
+	 */
+	public BinaryIngestListener(IMetricsRepository repository, InetSocketAddress address) throws IOException {
+		this(repository, address, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param repository is the IMetricsRepository frames are added to
+	 * @param address is the address to listen on, port 0 picks a free port
+	 * @param workerThreads is how many threads add frames to the repository
+	 * @throws IllegalArgumentException if repository or address is null or workerThreads is not positive
+	 * @throws IOException if the address cannot be bound
+	 */
+	public BinaryIngestListener(IMetricsRepository repository, InetSocketAddress address, int workerThreads)
+			throws IOException {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (address == null) {
+			throw new IllegalArgumentException("Address cannot be null");
+		}
+
+		if (workerThreads <= 0) {
+			throw new IllegalArgumentException("Worker threads must be positive");
+		}
+
+		this.repository = repository;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(address);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		AtomicInteger created = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+			Thread worker = new Thread(runnable, "metrics-ingest-tcp-worker-" + created.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		});
+
+		this.thread = new Thread(this::run, "metrics-ingest-tcp");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Listening for binary ingest on {}", serverChannel.getLocalAddress());
+	}
+
+	/**
+	 * @return the port the listener is bound to
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException ex) {
+				LOGGER.error("Binary ingest selector failed", ex);
+				return;
+			}
+
+			SelectionKey resume;
+			while ((resume = resumed.poll()) != null) {
+				if (resume.isValid()) {
+					resume.interestOps(SelectionKey.OP_READ);
+				}
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try {
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				} catch (IOException | RuntimeException ex) {
+					LOGGER.warn("Closing binary ingest connection: {}", ex.getMessage());
+					closeQuietly(key);
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		ByteBuffer buffer = connection.buffer;
+
+		int read = channel.read(buffer);
+		buffer.flip();
+
+		int whole = BinaryFrames.wholeFrameBytes(buffer);
+		int partial = buffer.remaining() - whole;
+		if (read < 0 && partial > 0) {
+			LOGGER.warn("Binary ingest connection closed inside a frame, {} bytes dropped", partial);
+		}
+
+		if (whole == 0) {
+			if (read < 0) {
+				closeQuietly(key);
+				return;
+			}
+			buffer.compact();
+			connection.growIfFull();
+			return;
+		}
+
+		// the partial frame moves to the spare buffer, the whole frames go to a worker with this one
+		ByteBuffer frames = buffer;
+		connection.buffer = connection.spare != null && connection.spare.capacity() >= buffer.capacity()
+				? connection.spare : ByteBuffer.allocate(buffer.capacity());
+		connection.spare = null;
+		ByteBuffer tail = frames.duplicate();
+		tail.position(frames.position() + whole);
+		connection.buffer.put(tail);
+		connection.growIfFull();
+		frames.limit(frames.position() + whole);
+
+		key.interestOps(0);
+		boolean closeAfter = read < 0;
+		workers.execute(() -> add(key, connection, frames, closeAfter));
+	}
+
+	/**
+	 * Runs on a worker: adds the frames, then hands the connection back to the selector thread to read more.
+	 */
+	private void add(SelectionKey key, Connection connection, ByteBuffer frames, boolean closeAfter) {
+		try {
+			List<String> missingMetrics = new ArrayList<>();
+			BinaryFrames.decode(frames, repository, missingMetrics);
+			if (!missingMetrics.isEmpty()) {
+				LOGGER.debug("Skipped binary ingest frames for Metric Names : {} that do not exist.", missingMetrics);
+			}
+		} catch (RuntimeException ex) {
+			LOGGER.warn("Closing binary ingest connection: {}", ex.getMessage());
+			closeQuietly(key);
+			return;
+		}
+
+		if (closeAfter) {
+			closeQuietly(key);
+			return;
+		}
+
+		frames.clear();
+		connection.spare = frames;
+		resumed.add(key);
+		selector.wakeup();
+	}
+
+	private static void closeQuietly(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ex) {
+			LOGGER.debug("Could not close binary ingest channel", ex);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		// frames already read are added before the connections close
+		workers.shutdown();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	/**
+	 * The buffers of one connection. The spare is handed back by the worker before the connection is resumed, so
+	 * the selector thread sees it once it reads again.
+	 */
+	private static final class Connection {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+		private ByteBuffer spare;
+
+		/**
+		 * Grows the buffer if a frame larger than it fills it, decode already refused frames over MAX_FRAME_BYTES
+		 */
+		void growIfFull() {
+			if (buffer.hasRemaining()) {
+				return;
+			}
+
+			ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2,
+					BinaryFrames.MAX_FRAME_BYTES + Integer.BYTES));
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+}
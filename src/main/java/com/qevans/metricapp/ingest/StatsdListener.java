@@ -0,0 +1,370 @@
+package com.qevans.metricapp.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.IMetricsRepository;
+
+/**
+ * <p>Takes StatsD lines over UDP and adds their values to the repository, creating metrics the first time they
+ * are seen, so services that already emit StatsD need no translator in front of the REST API.
+ * </p>
+ * Lines look like name:value|type, optionally followed by |@sample rate and |#tags, several to a packet separated
+ * by newlines. Counters (c) are scaled up by their sample rate, gauges (g), timers (ms), histograms (h) and
+ * distributions (d) are added as they are. Sets (s) and tags are ignored, and malformed lines are skipped.
+ *
+ * Lines are parsed in place in the receive buffer: names are looked up in a cache by their bytes and common
+ * decimal values are read digit by digit, so a steady stream of known metrics creates no String per line.
+ * One thread drains every packet waiting on the socket, then adds the values it collected to the repository
+ * as one batch per metric, stamped with the time each packet arrived.
+ */
+public class StatsdListener implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StatsdListener.class);
+	private static final int MAX_PACKET_BYTES = 64 * 1024;
+	// values held before they are added even if more packets are waiting
+	private static final int MAX_BATCHED_VALUES = 8192;
+
+	private final IMetricsRepository repository;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread thread;
+	private final Batches batches = new Batches();
+	private volatile boolean running = true;
+
+	/**
+	 * @param repository is the IMetricsRepository values are added to
+	 * @param address is the address to listen on, port 0 picks a free port
+	 * @throws IllegalArgumentException if repository or address is null
+	 * @throws IOException if the address cannot be bound
+	 */
+	public StatsdListener(IMetricsRepository repository, InetSocketAddress address) throws IOException {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (address == null) {
+			throw new IllegalArgumentException("Address cannot be null");
+		}
+
+		this.repository = repository;
+		this.selector = Selector.open();
+		this.channel = DatagramChannel.open();
+		channel.bind(address);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+
+		this.thread = new Thread(this::run, "metrics-ingest-statsd");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Listening for StatsD on {}", channel.getLocalAddress());
+	}
+
+	/**
+	 * @return the port the listener is bound to
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	private void run() {
+		ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_BYTES);
+
+		while (running) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+
+				while (channel.receive(packet) != null) {
+					packet.flip();
+					batches.timestamp = System.currentTimeMillis();
+					parse(packet, batches);
+					packet.clear();
+
+					if (batches.size >= MAX_BATCHED_VALUES) {
+						batches.flush(repository);
+					}
+				}
+
+				batches.flush(repository);
+			} catch (IOException | RuntimeException ex) {
+				if (running) {
+					LOGGER.error("StatsD listener failed to read a packet", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>This method collects the values of every line of a packet
+	 * </p>
+	 * @param packet is a ByteBuffer holding one packet between its position and limit, it is read in place
+	 * @param batches collects the values per metric
+	 * @return number of lines skipped as malformed
+	 *
+	 * Big O(bytes)
+	 */
+	static int parse(ByteBuffer packet, Batches batches) {
+		byte[] bytes = packet.array();
+		int end = packet.arrayOffset() + packet.limit();
+		int lineStart = packet.arrayOffset() + packet.position();
+		int skipped = 0;
+
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && bytes[lineEnd] != '\n') {
+				lineEnd++;
+			}
+
+			int contentEnd = lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			if (contentEnd > lineStart && !parseLine(bytes, lineStart, contentEnd, batches)) {
+				skipped++;
+			}
+			lineStart = lineEnd + 1;
+		}
+
+		return skipped;
+	}
+
+	private static boolean parseLine(byte[] bytes, int start, int end, Batches batches) {
+		int colon = indexOf(bytes, start, end, (byte) ':');
+		int pipe = colon < 0 ? -1 : indexOf(bytes, colon + 1, end, (byte) '|');
+		if (colon <= start || pipe < 0) {
+			return false;
+		}
+
+		int typeEnd = indexOf(bytes, pipe + 1, end, (byte) '|');
+		if (typeEnd < 0) {
+			typeEnd = end;
+		}
+
+		boolean counter;
+		if (matches(bytes, pipe + 1, typeEnd, "c")) {
+			counter = true;
+		} else if (matches(bytes, pipe + 1, typeEnd, "g") || matches(bytes, pipe + 1, typeEnd, "ms")
+				|| matches(bytes, pipe + 1, typeEnd, "h") || matches(bytes, pipe + 1, typeEnd, "d")) {
+			counter = false;
+		} else {
+			// sets count distinct members, which is nothing a value can stand for
+			return matches(bytes, pipe + 1, typeEnd, "s");
+		}
+
+		double value = parseNumber(bytes, colon + 1, pipe);
+		if (Double.isNaN(value)) {
+			return false;
+		}
+
+		if (counter && typeEnd + 1 < end && bytes[typeEnd + 1] == '@') {
+			int rateEnd = indexOf(bytes, typeEnd + 2, end, (byte) '|');
+			double rate = parseNumber(bytes, typeEnd + 2, rateEnd < 0 ? end : rateEnd);
+			if (!(rate > 0 && rate <= 1)) {
+				return false;
+			}
+			value /= rate;
+			// a huge counter scaled up by its rate no longer fits a double and the repository would refuse it
+			if (Double.isInfinite(value)) {
+				return false;
+			}
+		}
+
+		batches.add(batches.names.lookup(bytes, start, colon), value);
+		return true;
+	}
+
+	private static int indexOf(byte[] bytes, int start, int end, byte target) {
+		for (int index = start; index < end; index++) {
+			if (bytes[index] == target) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches(byte[] bytes, int start, int end, String text) {
+		if (end - start != text.length()) {
+			return false;
+		}
+		for (int index = 0; index < text.length(); index++) {
+			if (bytes[start + index] != text.charAt(index)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number, NaN if it is not one. Plain decimals of up to 15 digits are read in place, anything
+	 * else falls back to Double.parseDouble.
+	 */
+	static double parseNumber(byte[] bytes, int start, int end) {
+		int index = start;
+		boolean negative = false;
+		if (index < end && (bytes[index] == '-' || bytes[index] == '+')) {
+			negative = bytes[index] == '-';
+			index++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int scale = -1;
+		for (; index < end; index++) {
+			byte current = bytes[index];
+			if (current >= '0' && current <= '9') {
+				mantissa = mantissa * 10 + (current - '0');
+				digits++;
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if (current == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				break;
+			}
+		}
+
+		if (index == end && digits > 0 && digits <= 15) {
+			// both are exact doubles, so the one division is correctly rounded
+			double value = scale > 0 ? mantissa / Math.pow(10, scale) : mantissa;
+			return negative ? -value : value;
+		}
+
+		try {
+			double value = Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+			return Double.isInfinite(value) ? Double.NaN : value;
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.close();
+		selector.close();
+	}
+
+	/**
+	 * Values collected per metric between flushes. Only used by the listener thread.
+	 */
+	static final class Batches {
+
+		private static final int MAX_METRICS = 1024;
+
+		final NameCache names = new NameCache();
+		private final Map<String, Batch> batches = new HashMap<>();
+		long timestamp;
+		int size;
+
+		void add(String metric, double value) {
+			Batch batch = batches.get(metric);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(metric, batch);
+			}
+
+			if (batch.count == batch.values.length) {
+				batch.values = Arrays.copyOf(batch.values, batch.count * 2);
+				batch.timestamps = Arrays.copyOf(batch.timestamps, batch.count * 2);
+			}
+			batch.values[batch.count] = value;
+			batch.timestamps[batch.count++] = timestamp;
+			size++;
+		}
+
+		/**
+		 * Adds every collected value as one batch per metric, creating metrics that do not exist yet. A metric the
+		 * repository refuses loses its batch, so it cannot be sent again on every later flush.
+		 */
+		void flush(IMetricsRepository repository) {
+			if (size == 0) {
+				return;
+			}
+
+			for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+				Batch batch = entry.getValue();
+				if (batch.count == 0) {
+					continue;
+				}
+
+				double[] values = Arrays.copyOf(batch.values, batch.count);
+				long[] timestamps = Arrays.copyOf(batch.timestamps, batch.count);
+				try {
+					if (!repository.addDataToMetric(entry.getKey(), values, timestamps)) {
+						repository.addMetric(entry.getKey());
+						repository.addDataToMetric(entry.getKey(), values, timestamps);
+					}
+				} catch (RuntimeException ex) {
+					LOGGER.warn("Dropped {} StatsD values for metric {}: {}", batch.count, entry.getKey(), ex.getMessage());
+				} finally {
+					batch.count = 0;
+				}
+			}
+
+			size = 0;
+			// batches are kept for the metrics seen again, unless there are too many to keep
+			if (batches.size() > MAX_METRICS) {
+				batches.clear();
+			}
+		}
+	}
+
+	private static final class Batch {
+		double[] values = new double[16];
+		long[] timestamps = new long[16];
+		int count;
+	}
+
+	/**
+	 * Direct mapped cache from the bytes of a metric name to its String, a miss replaces the slot.
+	 */
+	static final class NameCache {
+
+		private static final int SLOTS = 1024;
+
+		private final byte[][] keys = new byte[SLOTS][];
+		private final String[] names = new String[SLOTS];
+
+		String lookup(byte[] bytes, int start, int end) {
+			int hash = 0x811c9dc5;
+			for (int index = start; index < end; index++) {
+				hash = (hash ^ bytes[index]) * 0x01000193;
+			}
+			int slot = hash & (SLOTS - 1);
+
+			byte[] key = keys[slot];
+			if (key != null && key.length == end - start) {
+				boolean same = true;
+				for (int index = 0; index < key.length && same; index++) {
+					same = key[index] == bytes[start + index];
+				}
+				if (same) {
+					return names[slot];
+				}
+			}
+
+			keys[slot] = Arrays.copyOfRange(bytes, start, end);
+			names[slot] = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+			return names[slot];
+		}
+	}
+}
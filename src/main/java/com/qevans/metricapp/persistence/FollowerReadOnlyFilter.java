@@ -0,0 +1,56 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * <p>Refuses every request that would write to the repository while the node follows a ReplicationLeader,
+ * so the follower stays an exact copy of the leader. Reads pass through.
+ * </p>
+ * Writes are answered 503 until the follower is promoted, clients should send them to the leader.
+ */
+public class FollowerReadOnlyFilter extends OncePerRequestFilter {
+
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final ReplicationFollower follower;
+
+	/**
+	 * @param follower is the ReplicationFollower of this node
+	 * @throws IllegalArgumentException if follower is null
+	 */
+	public FollowerReadOnlyFilter(ReplicationFollower follower) {
+		if (follower == null) {
+			throw new IllegalArgumentException("Follower cannot be null");
+		}
+
+		this.follower = follower;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		if (!follower.isFollowing() || HttpMethod.GET.matches(request.getMethod())
+				|| HttpMethod.HEAD.matches(request.getMethod()) || HttpMethod.OPTIONS.matches(request.getMethod())) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		response.setContentType(MediaType.TEXT_PLAIN_VALUE + ";charset=UTF-8");
+		response.getOutputStream().write("This node is a read only replication follower, write to the leader."
+				.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,146 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.MetricsRepository;
+
+/**
+ * <p>Keeps a MetricsRepository on disk with a snapshot store, a write ahead log, or both.
+ * </p>
+ * On start the newest snapshot is mapped, the log is replayed on top of it (changes the snapshot already holds
+ * are skipped) and the log is attached so every later change is written. Restored metrics are warmed up on a
+ * background thread while they already answer reads from the mapped snapshot.
+ *
+ * Every snapshot interval the log is rolled, a snapshot is written and log segments it covers are deleted,
+ * so the log only ever holds the changes made since the last snapshot. A last snapshot is written on close.
+ */
+public class MetricsPersistence implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsPersistence.class);
+
+	private final MetricsRepository repository;
+	private final SnapshotStore snapshotStore;
+	private final WriteAheadLog writeAheadLog;
+	private final long snapshotIntervalSeconds;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param repository is the MetricsRepository to keep on disk
+	 * @param snapshotStore is a SnapshotStore, null to keep no snapshots
+	 * @param writeAheadLog is a WriteAheadLog, null to keep no log
+	 * @param snapshotIntervalSeconds is how often a snapshot is written, 0 to only write one on close
+	 * @throws IllegalArgumentException if repository is null or snapshotIntervalSeconds is negative
+	 */
+	public MetricsPersistence(MetricsRepository repository, SnapshotStore snapshotStore, WriteAheadLog writeAheadLog,
+			long snapshotIntervalSeconds) {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (snapshotIntervalSeconds < 0) {
+			throw new IllegalArgumentException("Snapshot interval cannot be negative");
+		}
+
+		this.repository = repository;
+		this.snapshotStore = snapshotStore;
+		this.writeAheadLog = writeAheadLog;
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-persistence");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * <p>This method restores the repository and starts logging and snapshotting it
+	 * </p>
+	 * @throws IOException if the snapshot or the log cannot be read
+	 */
+	public void start() throws IOException {
+		long started = System.nanoTime();
+
+		if (snapshotStore != null) {
+			long coveredSequence = snapshotStore.load(repository);
+			LOGGER.info("Mapped snapshot covering sequence {} with {} metrics", coveredSequence,
+					repository.getAllMetrics().length);
+		}
+
+		if (writeAheadLog != null) {
+			long records = writeAheadLog.replay(repository);
+			LOGGER.info("Replayed {} write ahead log records", records);
+			repository.addJournal(writeAheadLog);
+		}
+
+		LOGGER.info("Metrics restored in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+		scheduler.execute(() -> LOGGER.info("Warmed up {} metrics", repository.warmUp()));
+
+		if (snapshotStore != null && snapshotIntervalSeconds > 0) {
+			scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalSeconds, snapshotIntervalSeconds,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * <p>This method writes a snapshot and deletes the log segments it covers
+	 * </p>
+	 * @return sequence number the snapshot covers
+	 * @throws IllegalStateException if there is no snapshot store
+	 * @throws IOException if the snapshot cannot be written or a segment cannot be deleted
+	 */
+	public synchronized long snapshot() throws IOException {
+		if (snapshotStore == null) {
+			throw new IllegalStateException("Snapshots are not enabled");
+		}
+
+		// every change in the segments rolled here is numbered at or before the sequence the snapshot covers
+		if (writeAheadLog != null) {
+			writeAheadLog.roll();
+		}
+
+		long coveredSequence = snapshotStore.write(repository);
+
+		if (writeAheadLog != null) {
+			writeAheadLog.deleteSegmentsThrough(coveredSequence);
+		}
+
+		return coveredSequence;
+	}
+
+	private void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (IOException | RuntimeException ex) {
+			LOGGER.error("Snapshot failed, the write ahead log is kept", ex);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			if (snapshotStore != null) {
+				snapshot();
+			}
+		} finally {
+			if (writeAheadLog != null) {
+				repository.removeJournal(writeAheadLog);
+				writeAheadLog.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.MetricsRepository;
+
+/**
+ * <p>Keeps a MetricsRepository a copy of the repository of a ReplicationLeader.
+ * </p>
+ * On connecting the follower receives a snapshot of the leader, drops every metric it held, maps the snapshot
+ * and then applies every change the leader streams after it. If the connection is lost it reconnects and starts
+ * over from a new snapshot, so a follower never has to find where it left off. Failed attempts back off, doubling
+ * the wait up to MAX_RECONNECT_MILLIS with some jitter, so followers of a leader that restarts do not all
+ * reconnect at once.
+ *
+ * While following, the repository must not be written to by anything else: the endpoints that write are
+ * refused by the FollowerReadOnlyFilter, and the application refuses to start a follower with the TCP or StatsD
+ * listeners enabled. Once promoted
+ * the follower stops following and the repository takes writes like any other.
+ */
+public class ReplicationFollower implements Closeable {
+
+	public static final long DEFAULT_RECONNECT_MILLIS = 1000;
+	static final long MAX_RECONNECT_MILLIS = 60000;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationFollower.class);
+	private static final String REPLICA_PREFIX = "replica-";
+	private static final String REPLICA_SUFFIX = ".snap";
+	private static final String TEMPORARY_NAME = "replica.tmp";
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+	private final MetricsRepository repository;
+	private final InetSocketAddress leader;
+	private final Path directory;
+	private final long reconnectMillis;
+	private final Thread follower;
+	private volatile boolean following = true;
+	private volatile boolean connected;
+	private volatile long appliedSequence;
+	// guarded by this
+	private Socket socket;
+
+	/**
+	 * @param repository is the MetricsRepository to keep a copy in, its metrics are replaced on every connect
+	 * @param leader is the address of the ReplicationLeader
+	 * @param directory is the Path snapshots from the leader are kept in, it is created if missing
+	 * @param reconnectMillis is how long to wait before connecting again after the connection is lost, the wait
+	 * doubles with every attempt that fails until a snapshot is loaded
+	 * @throws IllegalArgumentException if repository, leader or directory is null or reconnectMillis is not positive
+	 * @throws IOException if the directory cannot be created
+	 */
+	public ReplicationFollower(MetricsRepository repository, InetSocketAddress leader, Path directory,
+			long reconnectMillis) throws IOException {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (leader == null) {
+			throw new IllegalArgumentException("Leader cannot be null");
+		}
+
+		if (directory == null) {
+			throw new IllegalArgumentException("Directory cannot be null");
+		}
+
+		if (reconnectMillis <= 0) {
+			throw new IllegalArgumentException("Reconnect interval must be positive");
+		}
+
+		this.repository = repository;
+		this.leader = leader;
+		this.directory = directory;
+		this.reconnectMillis = reconnectMillis;
+		Files.createDirectories(directory);
+
+		this.follower = new Thread(this::follow, "metrics-replication-follower");
+		follower.setDaemon(true);
+		follower.start();
+		LOGGER.info("Following replication leader {}", leader);
+	}
+
+	/**
+	 * @param address is a String like host:port
+	 * @return the address
+	 * @throws IllegalArgumentException if address is not host:port
+	 */
+	public static InetSocketAddress parseAddress(String address) {
+		int colon = address == null ? -1 : address.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Leader must be host:port");
+		}
+
+		try {
+			return new InetSocketAddress(address.substring(0, colon).trim(),
+					Integer.parseInt(address.substring(colon + 1).trim()));
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Leader must be host:port");
+		}
+	}
+
+	/**
+	 * @return true until promoted or closed, writes to the repository are refused while following
+	 */
+	public boolean isFollowing() {
+		return following;
+	}
+
+	/**
+	 * @return true while connected to the leader with its snapshot loaded
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return sequence number of the last change received from the leader
+	 */
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * <p>This method stops following the leader, the repository keeps every change applied so far and takes writes
+	 * from then on. Changes the leader made but had not sent yet are lost to this node.
+	 * </p>
+	 * @return true if this call promoted the follower, false if it was already promoted or closed
+	 */
+	public boolean promote() {
+		if (!following) {
+			return false;
+		}
+
+		following = false;
+		disconnect();
+		try {
+			follower.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info("Promoted at sequence {}, no longer following {}", appliedSequence, leader);
+		return true;
+	}
+
+	private void follow() {
+		long backoffMillis = reconnectMillis;
+		while (following) {
+			long waitMillis = backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+			try (Socket connection = connect()) {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream(),
+						COPY_BUFFER_BYTES));
+				loadSnapshot(input);
+				connected = true;
+				backoffMillis = reconnectMillis;
+				waitMillis = reconnectMillis;
+				applyChanges(input);
+			} catch (IOException | RuntimeException ex) {
+				if (following) {
+					LOGGER.warn("Lost replication leader {}, reconnecting in {} ms: {}", leader, waitMillis,
+							ex.getMessage());
+				}
+			} finally {
+				if (!connected) {
+					backoffMillis = Math.min(backoffMillis * 2, Math.max(reconnectMillis, MAX_RECONNECT_MILLIS));
+				}
+				connected = false;
+			}
+
+			if (following) {
+				try {
+					Thread.sleep(waitMillis);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+	}
+
+	private synchronized Socket connect() throws IOException {
+		if (!following) {
+			throw new IOException("Promoted");
+		}
+
+		socket = new Socket();
+		socket.connect(leader, CONNECT_TIMEOUT_MILLIS);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	// package private so tests can drop the connection
+	synchronized void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				LOGGER.debug("Could not close replication leader socket", ex);
+			}
+		}
+	}
+
+	/**
+	 * <p>This method receives the snapshot the leader sends first, then replaces every metric with it
+	 * </p>
+	 */
+	private void loadSnapshot(DataInputStream input) throws IOException {
+		if (input.readInt() != ReplicationLeader.MAGIC) {
+			throw new IOException("Leader: " + leader + " is not a replication leader.");
+		}
+
+		int version = input.readInt();
+		if (version != ReplicationLeader.VERSION) {
+			throw new IOException("Leader: " + leader + " has unsupported version " + version + ".");
+		}
+
+		long coveredSequence = input.readLong();
+		long size = input.readLong();
+
+		// a reconnect can cover the same sequence, whose file is still mapped by metrics restored from it, so the
+		// snapshot is downloaded aside and moved over it rather than rewritten in place
+		Path temporary = directory.resolve(TEMPORARY_NAME);
+		try (OutputStream output = Files.newOutputStream(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			long remaining = size;
+			while (remaining > 0) {
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					throw new IOException("Snapshot from leader: " + leader + " is truncated.");
+				}
+				output.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+
+		Path replica = directory.resolve(String.format("%s%020d%s", REPLICA_PREFIX, coveredSequence, REPLICA_SUFFIX));
+		Files.move(temporary, replica, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// reads see an empty repository until the snapshot is mapped, which does not read any values
+		repository.clear();
+		SnapshotStore.load(repository, replica);
+		appliedSequence = coveredSequence;
+
+		// mapped snapshots stay readable once deleted, until the metrics restored from them are rewritten
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, REPLICA_PREFIX + "*" + REPLICA_SUFFIX)) {
+			for (Path older : stream) {
+				if (!older.equals(replica)) {
+					Files.deleteIfExists(older);
+				}
+			}
+		}
+
+		LOGGER.info("Loaded snapshot from {} covering sequence {} with {} metrics", leader, coveredSequence,
+				repository.getAllMetrics().length);
+	}
+
+	private void applyChanges(DataInputStream input) throws IOException {
+		byte[] body = new byte[256];
+		while (following) {
+			int length = input.readInt();
+			if (length <= 0) {
+				throw new IOException("Leader: " + leader + " sent a record of length " + length + ".");
+			}
+
+			if (body.length < length) {
+				body = new byte[Math.max(length, body.length * 2)];
+			}
+			input.readFully(body, 0, length);
+
+			long sequence = WriteAheadLog.applyRecord(ByteBuffer.wrap(body, 0, length), WriteAheadLog.VERSION,
+					repository);
+			appliedSequence = Math.max(appliedSequence, sequence);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		following = false;
+		disconnect();
+		try {
+			follower.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
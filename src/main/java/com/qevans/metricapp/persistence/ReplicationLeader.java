@@ -0,0 +1,447 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.IMetricsJournal;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+
+/**
+ * <p>Ships every change made to a MetricsRepository to ReplicationFollowers over TCP, so a standby holds the
+ * same metrics and can take over or answer reads.
+ * </p>
+ * A follower that connects is first sent a snapshot of the whole repository, then every change journaled from
+ * just before the snapshot was taken, in the record layout of the WriteAheadLog without the crc. Changes the
+ * snapshot already holds are skipped by the follower.
+ *
+ * Changes are encoded into a buffer per follower on the write path and a sender thread per follower writes
+ * whatever has gathered in one go, without waiting for the follower to acknowledge anything, so writes never
+ * wait on the network. Replication is asynchronous: changes not yet sent when the leader dies are lost to the
+ * follower. A follower that falls more than the pending limit behind is disconnected and starts over with a
+ * new snapshot.
+ *
+ * Writing a snapshot costs a pass over every metric, so followers that connect within SNAPSHOT_REUSE_MILLIS of
+ * the last snapshot are sent that one instead, along with the changes journaled since it was taken. The leader
+ * keeps those changes only while they fit in the pending limit, past it the next follower gets a new snapshot.
+ */
+public class ReplicationLeader implements IMetricsJournal, Closeable {
+
+	static final int MAGIC = 0x4D52504C;
+	static final int VERSION = 1;
+	public static final long DEFAULT_MAX_PENDING_BYTES = 64L * 1024 * 1024;
+	static final long SNAPSHOT_REUSE_MILLIS = 30000;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationLeader.class);
+	private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+	private final MetricsRepository repository;
+	private final SnapshotStore snapshotStore;
+	private final long maxPendingBytes;
+	private final ServerSocketChannel serverChannel;
+	private final Thread acceptor;
+	private final List<Session> sessions = new CopyOnWriteArrayList<>();
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	// read locked to send a change, write locked to join a follower so no change falls between backlog and session
+	private final ReentrantReadWriteLock joinLock = new ReentrantReadWriteLock();
+	// changes since the last snapshot, null once it can no longer be reused
+	private volatile Backlog backlog;
+	// guarded by this
+	private Path lastSnapshot;
+	private long lastCoveredSequence;
+	private int snapshotsWritten;
+	private volatile boolean running = true;
+
+	/**
+	 * @param repository is the MetricsRepository to replicate, the leader attaches itself as a journal
+	 * @param address is the address followers connect to, port 0 picks a free port
+	 * @param directory is the Path snapshots for followers are written to, it is created if missing. It must not
+	 * be the directory of the SnapshotStore of the repository
+	 * @param maxPendingBytes is how many bytes of changes may wait for a follower before it is disconnected
+	 * @throws IllegalArgumentException if repository, address or directory is null or maxPendingBytes is not positive
+	 * @throws IOException if the directory cannot be created or the address cannot be bound
+	 */
+	public ReplicationLeader(MetricsRepository repository, InetSocketAddress address, Path directory,
+			long maxPendingBytes) throws IOException {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (address == null) {
+			throw new IllegalArgumentException("Address cannot be null");
+		}
+
+		if (directory == null) {
+			throw new IllegalArgumentException("Directory cannot be null");
+		}
+
+		if (maxPendingBytes <= 0) {
+			throw new IllegalArgumentException("Max pending bytes must be positive");
+		}
+
+		this.repository = repository;
+		this.snapshotStore = new SnapshotStore(directory);
+		this.maxPendingBytes = maxPendingBytes;
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(address);
+
+		repository.addJournal(this);
+
+		this.acceptor = new Thread(this::accept, "metrics-replication-leader");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOGGER.info("Replicating to followers connecting on {}", serverChannel.getLocalAddress());
+	}
+
+	/**
+	 * @return the port followers connect to
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return number of followers connected
+	 */
+	public int getFollowerCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return number of snapshots written for followers
+	 */
+	synchronized int getSnapshotsWritten() {
+		return snapshotsWritten;
+	}
+
+	@Override
+	public void metricAdded(long sequence, String metric, MetricConfig config) {
+		if (sessions.isEmpty() && backlog == null) {
+			return;
+		}
+
+		byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = record(WriteAheadLog.METRIC_RECORD, sequence, name, WriteAheadLog.CONFIG_BYTES);
+		WriteAheadLog.putConfig(record, config);
+		send(record);
+	}
+
+	@Override
+	public void dataAdded(long sequence, String metric, double[] values, long[] timestamps) {
+		if (sessions.isEmpty() && backlog == null) {
+			return;
+		}
+
+		byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = record(WriteAheadLog.DATA_RECORD, sequence, name,
+				Integer.BYTES + values.length * (Double.BYTES + Long.BYTES));
+		record.putInt(values.length);
+		for (int index = 0; index < values.length; index++) {
+			record.putDouble(values[index]);
+			record.putLong(timestamps[index]);
+		}
+		send(record);
+	}
+
+	/**
+	 * @return buffer holding the length prefix and header of a record, positioned for payloadLength more bytes
+	 */
+	private static ByteBuffer record(byte type, long sequence, byte[] name, int payloadLength) {
+		int length = 1 + Long.BYTES + Short.BYTES + name.length + payloadLength;
+		ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + length);
+		record.putInt(length);
+		record.put(type);
+		record.putLong(sequence);
+		record.putShort((short) name.length);
+		record.put(name);
+		return record;
+	}
+
+	private void send(ByteBuffer record) {
+		record.flip();
+		joinLock.readLock().lock();
+		try {
+			Backlog current = backlog;
+			if (current != null && !current.add(record.duplicate())) {
+				backlog = null;
+			}
+
+			for (Session session : sessions) {
+				session.offer(record.duplicate());
+			}
+		} finally {
+			joinLock.readLock().unlock();
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				Session session = new Session(channel);
+				Thread sender = new Thread(session::run, "metrics-replication-sender-" + sessionCount.incrementAndGet());
+				sender.setDaemon(true);
+				sender.start();
+			} catch (IOException ex) {
+				if (running) {
+					LOGGER.error("Replication leader failed to accept a follower", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>This method finds a snapshot for a follower and opens it before another follower can replace it. A recent
+	 * snapshot is reused with the changes journaled since it, otherwise a new one is written. Either way the
+	 * session starts collecting changes before the snapshot is taken, so none fall between the two.
+	 * </p>
+	 * @param session is the Session to stream changes to
+	 * @param coveredSequence is set to the sequence number the snapshot covers
+	 * @return the open snapshot file
+	 */
+	private synchronized FileChannel snapshotFor(Session session, long[] coveredSequence) throws IOException {
+		boolean reuse;
+		joinLock.writeLock().lock();
+		try {
+			Backlog current = backlog;
+			reuse = current != null && !current.isExpired();
+			sessions.add(session);
+			if (reuse) {
+				session.offer(current.records());
+			} else {
+				backlog = new Backlog();
+			}
+		} finally {
+			joinLock.writeLock().unlock();
+		}
+
+		if (!reuse) {
+			try {
+				lastCoveredSequence = snapshotStore.write(repository);
+				lastSnapshot = snapshotStore.getLatest();
+				snapshotsWritten++;
+			} catch (IOException | RuntimeException ex) {
+				backlog = null;
+				throw ex;
+			}
+		}
+
+		coveredSequence[0] = lastCoveredSequence;
+		return FileChannel.open(lastSnapshot, StandardOpenOption.READ);
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		repository.removeJournal(this);
+		serverChannel.close();
+		try {
+			acceptor.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Changes journaled since the last snapshot, for followers that reuse it.
+	 */
+	private final class Backlog {
+
+		private final long expiresAt = System.currentTimeMillis() + SNAPSHOT_REUSE_MILLIS;
+		// guarded by this
+		private ByteBuffer records = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+
+		/**
+		 * @param record is a ByteBuffer holding one encoded record, it is consumed
+		 * @return false once the backlog is past the pending limit or expired and cannot be reused
+		 */
+		synchronized boolean add(ByteBuffer record) {
+			if (records.position() + (long) record.remaining() > maxPendingBytes || isExpired()) {
+				return false;
+			}
+
+			if (records.remaining() < record.remaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(records.capacity() * 2,
+						records.position() + record.remaining()));
+				records.flip();
+				larger.put(records);
+				records = larger;
+			}
+			records.put(record);
+			return true;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+
+		/**
+		 * @return every change in the backlog, to be read only
+		 */
+		synchronized ByteBuffer records() {
+			ByteBuffer copy = records.duplicate();
+			copy.flip();
+			return copy;
+		}
+	}
+
+	/**
+	 * One follower: changes waiting to be sent and the thread sending them.
+	 */
+	private final class Session {
+
+		private final SocketChannel channel;
+		// guarded by this
+		private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+		private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+		private boolean open = true;
+
+		Session(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * <p>This method queues a record for the follower, or drops the follower if it is too far behind
+		 * </p>
+		 * @param record is a ByteBuffer holding one encoded record, it is consumed
+		 */
+		synchronized void offer(ByteBuffer record) {
+			if (!open) {
+				return;
+			}
+
+			if (pending.position() + (long) record.remaining() > maxPendingBytes) {
+				LOGGER.warn("Replication follower {} is more than {} bytes behind, disconnecting it", remote(),
+						maxPendingBytes);
+				closeLocked();
+				return;
+			}
+
+			if (pending.remaining() < record.remaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+						pending.position() + record.remaining()));
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+
+			boolean wasEmpty = pending.position() == 0;
+			pending.put(record);
+			if (wasEmpty) {
+				notifyAll();
+			}
+		}
+
+		void run() {
+			try {
+				long[] coveredSequence = new long[1];
+				try (FileChannel snapshot = snapshotFor(this, coveredSequence)) {
+					ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES * 2);
+					header.putInt(MAGIC).putInt(VERSION).putLong(coveredSequence[0]).putLong(snapshot.size()).flip();
+					writeFully(header);
+
+					long sent = 0;
+					while (sent < snapshot.size()) {
+						sent += snapshot.transferTo(sent, snapshot.size() - sent, channel);
+					}
+				}
+				LOGGER.info("Sent follower {} a snapshot covering sequence {}", remote(), coveredSequence[0]);
+
+				while (true) {
+					ByteBuffer toSend = take();
+					if (toSend == null) {
+						return;
+					}
+					writeFully(toSend);
+					giveBack(toSend);
+				}
+			} catch (IOException | InterruptedException ex) {
+				if (running) {
+					LOGGER.warn("Replication follower {} disconnected: {}", remote(), ex.getMessage());
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * @return every change gathered so far, waiting until there is one, or null once the session is closed
+		 */
+		private synchronized ByteBuffer take() throws InterruptedException {
+			while (open && pending.position() == 0) {
+				wait();
+			}
+
+			if (!open) {
+				return null;
+			}
+
+			ByteBuffer toSend = pending;
+			pending = spare != null ? spare : ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+			spare = null;
+			toSend.flip();
+			return toSend;
+		}
+
+		private synchronized void giveBack(ByteBuffer sent) {
+			sent.clear();
+			// keep the buffer for the next swap unless a burst grew it far past its usual size
+			if (sent.capacity() <= INITIAL_BUFFER_BYTES * 16) {
+				spare = sent;
+			}
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		private Object remote() {
+			try {
+				return channel.getRemoteAddress();
+			} catch (IOException ex) {
+				return "unknown";
+			}
+		}
+
+		synchronized void close() {
+			closeLocked();
+		}
+
+		private void closeLocked() {
+			if (!open) {
+				return;
+			}
+
+			open = false;
+			sessions.remove(this);
+			notifyAll();
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				LOGGER.debug("Could not close replication follower channel", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricSnapshot;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.RunningStatistics;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.TimePartitionSnapshot;
+import com.qevans.metricapp.repository.WriteMode;
+
+/**
+ * <p>Writes every metric of a MetricsRepository to a columnar snapshot file and loads it back with memory mapping.
+ * </p>
+ * Each metric's sorted values are written as one contiguous column of little endian doubles, followed by the
+ * timestamp and value columns of each of its time partitions, or of its sliding window buckets for a windowed
+ * metric, and the centroid columns of its rollups. After all columns comes a directory of metric names, configs, statistics and column offsets, and a
+ * fixed size footer pointing at the directory.
+ * Loading reads only the directory: the file is mapped in large regions and every column is handed to the
+ * repository as a slice of them, so min, max, median and percentiles are answered from the mapped pages while
+ * the metrics warm up and restart time does not grow with the number of values.
+ *
+ * A snapshot is written to a temporary file and renamed into place, so a crash while writing leaves the
+ * previous snapshot untouched.
+ */
+public class SnapshotStore {
+
+	static final int MAGIC = 0x4D534E50;
+	// version 2 added time partitions, version 3 sliding windows, version 4 retention limits, version 5 rollups,
+	// version 6 the time index
+	static final int VERSION = 6;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	private static final String TEMPORARY_NAME = "snapshot.tmp";
+	private static final int HEADER_BYTES = Integer.BYTES * 2;
+	private static final int FOOTER_BYTES = Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+
+	private final Path directory;
+
+	/**
+	 * @param directory is the Path snapshot files are kept in, it is created if missing
+	 * @throws IllegalArgumentException if directory is null
+	 * @throws IOException if the directory cannot be created
+	 */
+	public SnapshotStore(Path directory) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("Directory cannot be null");
+		}
+
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * <p>This method writes a snapshot of every metric and deletes older snapshots once it is in place
+	 * </p>
+	 * @param repository is a MetricsRepository, writes to it carry on while the snapshot is taken
+	 * @return sequence number every change at or before which is in the snapshot
+	 * @throws IOException if the snapshot cannot be written
+	 *
+	 * Big O(n) over all metrics, only one metric's values are held in memory at a time
+	 */
+	public synchronized long write(MetricsRepository repository) throws IOException {
+		Path temporary = directory.resolve(TEMPORARY_NAME);
+		List<DirectoryEntry> entries = new ArrayList<>();
+		long coveredSequence;
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ColumnWriter writer = new ColumnWriter(channel);
+			writer.buffer.putInt(MAGIC).putInt(VERSION);
+
+			try {
+				coveredSequence = repository.snapshotMetrics(snapshot -> {
+					try {
+						DirectoryEntry entry = new DirectoryEntry(snapshot);
+						entry.valuesOffset = writer.position();
+						writer.putDoubles(snapshot.getValues());
+						if (snapshot.getWeights() != null) {
+							entry.weightsOffset = writer.position();
+							writer.putDoubles(snapshot.getWeights());
+						}
+						for (PartitionEntry partition : entry.partitions) {
+							partition.write(writer);
+						}
+						for (PartitionEntry rollup : entry.rollups) {
+							rollup.write(writer);
+						}
+						entries.add(entry);
+					} catch (IOException ex) {
+						throw new UncheckedIOException(ex);
+					}
+				});
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+
+			long directoryOffset = writer.position();
+			for (DirectoryEntry entry : entries) {
+				entry.writeTo(writer);
+			}
+
+			writer.ensureRoom(FOOTER_BYTES);
+			writer.buffer.putLong(directoryOffset).putInt(entries.size()).putLong(coveredSequence).putInt(MAGIC);
+			writer.flush();
+			channel.force(true);
+		}
+
+		Path snapshot = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, coveredSequence, SNAPSHOT_SUFFIX));
+		Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		for (Path older : listSnapshots()) {
+			if (!older.equals(snapshot)) {
+				Files.deleteIfExists(older);
+			}
+		}
+
+		return coveredSequence;
+	}
+
+	/**
+	 * <p>This method maps the newest snapshot and restores every metric in it. It should be called on an empty
+	 * repository before any log is replayed.
+	 * </p>
+	 * @param repository is a MetricsRepository
+	 * @return sequence number the snapshot covers, 0 if there is no snapshot
+	 * @throws IOException if the snapshot cannot be read or is not a snapshot file
+	 *
+	 * Big O(number of metrics), values are not read until they are asked for
+	 */
+	public long load(MetricsRepository repository) throws IOException {
+		List<Path> snapshots = listSnapshots();
+		if (snapshots.isEmpty()) {
+			return 0;
+		}
+
+		return load(repository, snapshots.get(snapshots.size() - 1));
+	}
+
+	/**
+	 * <p>This method maps a snapshot file and restores every metric in it, e.g. a snapshot sent by a
+	 * ReplicationLeader. It should be called on an empty repository. The file must not be changed while the
+	 * repository reads from it, it may be deleted.
+	 * </p>
+	 * @param repository is a MetricsRepository
+	 * @param snapshot is the Path of a snapshot file
+	 * @return sequence number the snapshot covers
+	 * @throws IOException if the snapshot cannot be read or is not a snapshot file
+	 */
+	public static long load(MetricsRepository repository, Path snapshot) throws IOException {
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES + FOOTER_BYTES) {
+				throw new IOException("Snapshot: " + snapshot + " is truncated.");
+			}
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.getInt();
+			int version = header.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Snapshot: " + snapshot + " has unsupported version " + version + ".");
+			}
+
+			ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_BYTES, FOOTER_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			long directoryOffset = footer.getLong();
+			int metricCount = footer.getInt();
+			long coveredSequence = footer.getLong();
+			if (footer.getInt() != MAGIC) {
+				throw new IOException("Snapshot: " + snapshot + " is not a snapshot file.");
+			}
+
+			ByteBuffer directoryBuffer = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset,
+					size - FOOTER_BYTES - directoryOffset).order(ByteOrder.LITTLE_ENDIAN);
+			ColumnMapper mapper = new ColumnMapper(channel, directoryOffset);
+
+			for (int index = 0; index < metricCount; index++) {
+				DirectoryEntry entry = DirectoryEntry.readFrom(directoryBuffer, version);
+				DoubleBuffer values = mapper.doubles(entry.valuesOffset, entry.valueCount);
+				DoubleBuffer weights = entry.weightsOffset < 0 ? null : mapper.doubles(entry.weightsOffset, entry.valueCount);
+
+				List<TimePartitionSnapshot> partitions = new ArrayList<>(entry.partitions.size());
+				for (PartitionEntry partition : entry.partitions) {
+					partitions.add(partition.map(mapper));
+				}
+				List<TimePartitionSnapshot> rollups = new ArrayList<>(entry.rollups.size());
+				for (PartitionEntry rollup : entry.rollups) {
+					rollups.add(rollup.map(mapper));
+				}
+
+				repository.restoreMetric(new MetricSnapshot(entry.name, entry.config, entry.lastSequence,
+						entry.statistics, values, weights, partitions, rollups));
+			}
+
+			return coveredSequence;
+		}
+	}
+
+	/**
+	 * @return the newest snapshot file, null if there is none
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public Path getLatest() throws IOException {
+		List<Path> snapshots = listSnapshots();
+		return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	private List<Path> listSnapshots() throws IOException {
+		List<Path> snapshots = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			for (Path snapshot : stream) {
+				snapshots.add(snapshot);
+			}
+		}
+
+		// names are zero padded, so name order is sequence order
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+	/**
+	 * Maps the column area of a snapshot in regions of up to REGION_BYTES and hands out columns as slices, so a
+	 * snapshot with many small columns uses a handful of mappings. A column crossing a region boundary gets its own.
+	 * Mappings stay valid after the channel is closed.
+	 */
+	private static final class ColumnMapper {
+
+		private static final long REGION_BYTES = 1L << 30;
+
+		private final FileChannel channel;
+		private final long end;
+		private final ByteBuffer[] regions;
+
+		ColumnMapper(FileChannel channel, long end) {
+			this.channel = channel;
+			this.end = end;
+			this.regions = new ByteBuffer[(int) ((end + REGION_BYTES - 1) / REGION_BYTES)];
+		}
+
+		DoubleBuffer doubles(long offset, int count) throws IOException {
+			return slice(offset, (long) count * Double.BYTES).asDoubleBuffer();
+		}
+
+		LongBuffer longs(long offset, int count) throws IOException {
+			return slice(offset, (long) count * Long.BYTES).asLongBuffer();
+		}
+
+		private ByteBuffer slice(long offset, long length) throws IOException {
+			int region = (int) (offset / REGION_BYTES);
+			long regionStart = region * REGION_BYTES;
+
+			if (length == 0 || offset + length > regionStart + REGION_BYTES) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			if (regions[region] == null) {
+				regions[region] = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+						Math.min(REGION_BYTES, end - regionStart));
+			}
+
+			ByteBuffer view = regions[region].duplicate();
+			view.position((int) (offset - regionStart));
+			view.limit((int) (offset - regionStart + length));
+			return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Streams a file through one direct buffer and keeps track of the file position.
+	 */
+	private static final class ColumnWriter {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private long written;
+
+		ColumnWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		long position() {
+			return written + buffer.position();
+		}
+
+		void putDoubles(DoubleBuffer values) throws IOException {
+			DoubleBuffer reader = values.duplicate();
+			reader.rewind();
+			while (reader.hasRemaining()) {
+				ensureRoom(Double.BYTES);
+				DoubleBuffer target = buffer.asDoubleBuffer();
+				int count = Math.min(target.remaining(), reader.remaining());
+				DoubleBuffer slice = reader.slice();
+				slice.limit(count);
+				target.put(slice);
+				reader.position(reader.position() + count);
+				buffer.position(buffer.position() + count * Double.BYTES);
+			}
+		}
+
+		void putLongs(LongBuffer values) throws IOException {
+			LongBuffer reader = values.duplicate();
+			reader.rewind();
+			while (reader.hasRemaining()) {
+				ensureRoom(Long.BYTES);
+				LongBuffer target = buffer.asLongBuffer();
+				int count = Math.min(target.remaining(), reader.remaining());
+				LongBuffer slice = reader.slice();
+				slice.limit(count);
+				target.put(slice);
+				reader.position(reader.position() + count);
+				buffer.position(buffer.position() + count * Long.BYTES);
+			}
+		}
+
+		void ensureRoom(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	private static final class DirectoryEntry {
+
+		String name;
+		MetricConfig config;
+		long lastSequence;
+		RunningStatistics statistics;
+		int valueCount;
+		long valuesOffset;
+		long weightsOffset = -1;
+		List<PartitionEntry> partitions = new ArrayList<>();
+		List<PartitionEntry> rollups = new ArrayList<>();
+
+		DirectoryEntry() {
+		}
+
+		DirectoryEntry(MetricSnapshot snapshot) {
+			this.name = snapshot.getName();
+			this.config = snapshot.getConfig();
+			this.lastSequence = snapshot.getLastSequence();
+			this.statistics = snapshot.getStatistics();
+			this.valueCount = snapshot.getValues().limit();
+			if (snapshot.getPartitions() != null) {
+				for (TimePartitionSnapshot partition : snapshot.getPartitions()) {
+					partitions.add(new PartitionEntry(partition));
+				}
+			}
+			if (snapshot.getRollups() != null) {
+				for (TimePartitionSnapshot rollup : snapshot.getRollups()) {
+					rollups.add(new PartitionEntry(rollup));
+				}
+			}
+		}
+
+		void writeTo(ColumnWriter writer) throws IOException {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			writer.ensureRoom(Integer.BYTES + nameBytes.length + 2 + Double.BYTES * 6 + Long.BYTES * 9 + Integer.BYTES * 4 + 2);
+
+			ByteBuffer buffer = writer.buffer;
+			buffer.putInt(nameBytes.length).put(nameBytes);
+			buffer.put(config.getStorageType().getCode());
+			buffer.putDouble(config.getCompression());
+			buffer.put(config.getWriteMode().getCode());
+			buffer.putLong(lastSequence);
+			buffer.putLong(statistics.getCount());
+			buffer.putDouble(statistics.getSum());
+			buffer.putDouble(statistics.getMean());
+			buffer.putDouble(statistics.getSquaredDifferences());
+			buffer.putDouble(statistics.getMinimum());
+			buffer.putDouble(statistics.getMaximum());
+			buffer.putInt(valueCount);
+			buffer.putLong(valuesOffset);
+			buffer.putLong(weightsOffset);
+			buffer.putLong(config.getPartitionMillis());
+			buffer.putInt(config.getWindowSamples());
+			buffer.putLong(config.getWindowMillis());
+			buffer.putLong(config.getMaxAgeMillis());
+			buffer.putLong(config.getMaxSamples());
+			buffer.putLong(config.getMaxBytes());
+			buffer.put((byte) (config.isRollups() ? 1 : 0));
+			buffer.put((byte) (config.isTimeIndex() ? 1 : 0));
+			buffer.putInt(partitions.size());
+
+			for (PartitionEntry partition : partitions) {
+				partition.writeTo(writer);
+			}
+
+			writer.ensureRoom(Integer.BYTES);
+			writer.buffer.putInt(rollups.size());
+			for (PartitionEntry rollup : rollups) {
+				rollup.writeTo(writer);
+			}
+		}
+
+		static DirectoryEntry readFrom(ByteBuffer buffer, int version) {
+			DirectoryEntry entry = new DirectoryEntry();
+			byte[] nameBytes = new byte[buffer.getInt()];
+			buffer.get(nameBytes);
+			entry.name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			entry.config = new MetricConfig(StorageType.fromCode(buffer.get()));
+			entry.config.setCompression(buffer.getDouble());
+			entry.config.setWriteMode(WriteMode.fromCode(buffer.get()));
+			entry.lastSequence = buffer.getLong();
+
+			long count = buffer.getLong();
+			double sum = buffer.getDouble();
+			double mean = buffer.getDouble();
+			double squaredDifferences = buffer.getDouble();
+			double minimum = buffer.getDouble();
+			double maximum = buffer.getDouble();
+			entry.statistics = RunningStatistics.restore(count, sum, mean, squaredDifferences, minimum, maximum);
+
+			entry.valueCount = buffer.getInt();
+			entry.valuesOffset = buffer.getLong();
+			entry.weightsOffset = buffer.getLong();
+			// metrics saved before version 6 always kept their samples by time
+			entry.config.setTimeIndex(version < 6);
+
+			if (version >= 2) {
+				entry.config.setPartitionMillis(buffer.getLong());
+				if (version >= 3) {
+					entry.config.setWindowSamples(buffer.getInt());
+					entry.config.setWindowMillis(buffer.getLong());
+				}
+				if (version >= 4) {
+					entry.config.setMaxAgeMillis(buffer.getLong());
+					entry.config.setMaxSamples(buffer.getLong());
+					entry.config.setMaxBytes(buffer.getLong());
+				}
+				if (version >= 5) {
+					entry.config.setRollups(buffer.get() == 1);
+				}
+				if (version >= 6) {
+					entry.config.setTimeIndex(buffer.get() == 1);
+				}
+				int partitionCount = buffer.getInt();
+				for (int index = 0; index < partitionCount; index++) {
+					entry.partitions.add(PartitionEntry.readFrom(buffer, version));
+				}
+			}
+			if (version >= 5) {
+				int rollupCount = buffer.getInt();
+				for (int index = 0; index < rollupCount; index++) {
+					entry.rollups.add(PartitionEntry.readFrom(buffer, version));
+				}
+			}
+			return entry;
+		}
+	}
+
+	private static final class PartitionEntry {
+
+		private static final int BYTES = Long.BYTES * 3 + Double.BYTES * 5 + Integer.BYTES + Long.BYTES * 3;
+
+		long start;
+		long width;
+		RunningStatistics statistics;
+		TimePartitionSnapshot snapshot;
+		int valueCount;
+		long timestampsOffset = -1;
+		long valuesOffset;
+		long weightsOffset = -1;
+
+		PartitionEntry() {
+		}
+
+		PartitionEntry(TimePartitionSnapshot snapshot) {
+			this.start = snapshot.getStart();
+			this.width = snapshot.getWidth();
+			this.statistics = snapshot.getStatistics();
+			this.snapshot = snapshot;
+			this.valueCount = snapshot.getValues().limit();
+		}
+
+		/**
+		 * Writes the columns of the partition and records where they are.
+		 */
+		void write(ColumnWriter writer) throws IOException {
+			if (snapshot.getTimestamps() != null) {
+				timestampsOffset = writer.position();
+				writer.putLongs(snapshot.getTimestamps());
+			}
+			valuesOffset = writer.position();
+			writer.putDoubles(snapshot.getValues());
+			if (snapshot.getWeights() != null) {
+				weightsOffset = writer.position();
+				writer.putDoubles(snapshot.getWeights());
+			}
+		}
+
+		void writeTo(ColumnWriter writer) throws IOException {
+			writer.ensureRoom(BYTES);
+
+			ByteBuffer buffer = writer.buffer;
+			buffer.putLong(start);
+			buffer.putLong(width);
+			buffer.putLong(statistics.getCount());
+			buffer.putDouble(statistics.getSum());
+			buffer.putDouble(statistics.getMean());
+			buffer.putDouble(statistics.getSquaredDifferences());
+			buffer.putDouble(statistics.getMinimum());
+			buffer.putDouble(statistics.getMaximum());
+			buffer.putInt(valueCount);
+			buffer.putLong(timestampsOffset);
+			buffer.putLong(valuesOffset);
+			buffer.putLong(weightsOffset);
+		}
+
+		static PartitionEntry readFrom(ByteBuffer buffer, int version) {
+			PartitionEntry entry = new PartitionEntry();
+			entry.start = buffer.getLong();
+			if (version >= 5) {
+				entry.width = buffer.getLong();
+			}
+
+			long count = buffer.getLong();
+			double sum = buffer.getDouble();
+			double mean = buffer.getDouble();
+			double squaredDifferences = buffer.getDouble();
+			double minimum = buffer.getDouble();
+			double maximum = buffer.getDouble();
+			entry.statistics = RunningStatistics.restore(count, sum, mean, squaredDifferences, minimum, maximum);
+
+			entry.valueCount = buffer.getInt();
+			entry.timestampsOffset = buffer.getLong();
+			entry.valuesOffset = buffer.getLong();
+			entry.weightsOffset = buffer.getLong();
+			return entry;
+		}
+
+		TimePartitionSnapshot map(ColumnMapper mapper) throws IOException {
+			LongBuffer timestamps = timestampsOffset < 0 ? null : mapper.longs(timestampsOffset, valueCount);
+			DoubleBuffer values = mapper.doubles(valuesOffset, valueCount);
+			DoubleBuffer weights = weightsOffset < 0 ? null : mapper.doubles(weightsOffset, valueCount);
+			return new TimePartitionSnapshot(start, width, statistics, timestamps, values, weights);
+		}
+	}
+}
@@ -0,0 +1,557 @@
+package com.qevans.metricapp.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qevans.metricapp.repository.IMetricsJournal;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
+
+/**
+ * <p>Append only log of every metric and data value added to a MetricsRepository, so the repository can be
+ * rebuilt after a restart.
+ * </p>
+ * Records are encoded into an in memory buffer on the write path and a background thread writes and fsyncs
+ * the buffer every sync interval, so one fsync covers every record added during that window (group commit).
+ * A crash loses at most the last sync interval of changes. With a sync interval of 0 every write waits for its
+ * record to be on disk, and writers arriving during an fsync still share the next one. Writers only wait in
+ * awaitDurable, once the repository has released the metric lock, so an fsync never holds up other readers and
+ * writers of the metric.
+ *
+ * The log is split into segment files, a new one is started on every open and when the current one
+ * grows past the segment size. Each record is [int length][type][long sequence][name][payload][int crc32],
+ * a torn or corrupt record at the end of a segment ends replay of that segment, and a record the repository
+ * refuses is logged and skipped. Once a snapshot holds every change in a segment the segment can be deleted.
+ */
+public class WriteAheadLog implements IMetricsJournal, Closeable {
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	static final int MAGIC = 0x4D57414C;
+	// version 2 added timestamps to data records and the partition width to metric records, version 3 the window,
+	// version 4 the retention limits, version 5 rollups, version 6 the time index
+	static final int VERSION = 6;
+	static final byte METRIC_RECORD = 1;
+	static final byte DATA_RECORD = 2;
+	// storage, compression, write mode, partition width, window, retention limits, rollups and time index of a
+	// metric record
+	static final int CONFIG_BYTES = 1 + Double.BYTES + 1 + Long.BYTES + Integer.BYTES + Long.BYTES * 4 + 1 + 1;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_BYTES = Integer.BYTES * 2;
+	private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+	// writers flush themselves in awaitDurable past this point so a slow disk cannot grow the buffer without bound
+	private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+	private final Path directory;
+	private final long syncIntervalMillis;
+	private final long segmentBytes;
+	private final ScheduledExecutorService syncer;
+
+	private final Object appendLock = new Object();
+	private final Object flushLock = new Object();
+
+	// guarded by appendLock
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+	private final CRC32 crc = new CRC32();
+	private long pendingLastSequence;
+	private boolean closed;
+	// read without appendLock in awaitDurable
+	private volatile boolean overflowing;
+	private IOException failure;
+
+	// guarded by flushLock
+	private FileChannel channel;
+	private long segmentIndex;
+	private long segmentSize;
+	// highest sequence number in each finished segment, only segments replayed or written by this log are known
+	private final Map<Long, Long> segmentLastSequence = new TreeMap<>();
+	private long currentLastSequence;
+
+	public WriteAheadLog(Path directory) throws IOException {
+		this(directory, 0, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * @param directory is the Path segment files are kept in, it is created if missing
+	 * @param syncIntervalMillis is how long a change may wait before it is fsynced, 0 to fsync on every write
+	 * @param segmentBytes is the size after which a new segment file is started
+	 * @throws IllegalArgumentException if directory is null, syncIntervalMillis is negative or segmentBytes is not positive
+	 * @throws IOException if the directory or the first segment cannot be created
+	 */
+	public WriteAheadLog(Path directory, long syncIntervalMillis, long segmentBytes) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("Directory cannot be null");
+		}
+
+		if (syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("Sync interval cannot be negative");
+		}
+
+		if (segmentBytes <= 0) {
+			throw new IllegalArgumentException("Segment size must be positive");
+		}
+
+		this.directory = directory;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.segmentBytes = segmentBytes;
+
+		Files.createDirectories(directory);
+		List<Path> segments = listSegments();
+		segmentIndex = segments.isEmpty() ? 0 : indexOf(segments.get(segments.size() - 1)) + 1;
+		openSegment();
+
+		if (syncIntervalMillis > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-wal-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(this::flushQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	@Override
+	public void metricAdded(long sequence, String metric, MetricConfig config) {
+		byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + Long.BYTES + Short.BYTES + name.length + CONFIG_BYTES;
+
+		synchronized (appendLock) {
+			int start = beginRecord(length, METRIC_RECORD, sequence, name);
+			putConfig(pending, config);
+			endRecord(start);
+		}
+	}
+
+	@Override
+	public void dataAdded(long sequence, String metric, double[] values, long[] timestamps) {
+		byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + Long.BYTES + Short.BYTES + name.length + Integer.BYTES
+				+ values.length * (Double.BYTES + Long.BYTES);
+
+		synchronized (appendLock) {
+			int start = beginRecord(length, DATA_RECORD, sequence, name);
+			pending.putInt(values.length);
+			for (int index = 0; index < values.length; index++) {
+				pending.putDouble(values[index]);
+				pending.putLong(timestamps[index]);
+			}
+			endRecord(start);
+		}
+	}
+
+	/**
+	 * <p>This method writes and fsyncs buffered records when the sync interval is 0, or when the buffer has grown
+	 * past its limit. Any writer arriving while another fsyncs its record waits for that fsync to end, then
+	 * flushes whatever is still buffered.
+	 * </p>
+	 * @throws UncheckedIOException if writing fails, after which the log refuses further records
+	 */
+	@Override
+	public void awaitDurable(long sequence) {
+		if (syncIntervalMillis == 0 || overflowing) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the payload of a metric record, CONFIG_BYTES long
+	 */
+	static void putConfig(ByteBuffer buffer, MetricConfig config) {
+		buffer.put(config.getStorageType().getCode());
+		buffer.putDouble(config.getCompression());
+		buffer.put(config.getWriteMode().getCode());
+		buffer.putLong(config.getPartitionMillis());
+		buffer.putInt(config.getWindowSamples());
+		buffer.putLong(config.getWindowMillis());
+		buffer.putLong(config.getMaxAgeMillis());
+		buffer.putLong(config.getMaxSamples());
+		buffer.putLong(config.getMaxBytes());
+		buffer.put((byte) (config.isRollups() ? 1 : 0));
+		buffer.put((byte) (config.isTimeIndex() ? 1 : 0));
+	}
+
+	private int beginRecord(int length, byte type, long sequence, byte[] name) {
+		if (failure != null) {
+			throw new UncheckedIOException("Write ahead log failed", failure);
+		}
+
+		if (closed) {
+			throw new IllegalStateException("Write ahead log is closed");
+		}
+
+		if (name.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Metric name is too long to log");
+		}
+
+		int needed = Integer.BYTES + length + Integer.BYTES;
+		if (pending.remaining() < needed) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+
+		pending.putInt(length);
+		int start = pending.position();
+		pending.put(type);
+		pending.putLong(sequence);
+		pending.putShort((short) name.length);
+		pending.put(name);
+		pendingLastSequence = Math.max(pendingLastSequence, sequence);
+		return start;
+	}
+
+	private void endRecord(int start) {
+		crc.reset();
+		crc.update(pending.array(), start, pending.position() - start);
+		pending.putInt((int) crc.getValue());
+		if (pending.position() >= MAX_PENDING_BYTES) {
+			overflowing = true;
+		}
+	}
+
+	/**
+	 * <p>This method writes every buffered record to the current segment and fsyncs it
+	 * </p>
+	 * @throws UncheckedIOException if writing fails, after which the log refuses further records
+	 */
+	public void flush() {
+		flush(false);
+	}
+
+	/**
+	 * <p>This method flushes every buffered record and starts a new segment, so every change logged so far
+	 * sits in segments that deleteSegmentsThrough can remove once a snapshot holds them
+	 * </p>
+	 * @throws UncheckedIOException if writing fails, after which the log refuses further records
+	 */
+	public void roll() {
+		flush(true);
+	}
+
+	private void flush(boolean roll) {
+		synchronized (flushLock) {
+			ByteBuffer toWrite;
+			long lastSequence;
+			synchronized (appendLock) {
+				if (failure != null) {
+					throw new UncheckedIOException("Write ahead log failed", failure);
+				}
+
+				if (channel == null || (pending.position() == 0 && !roll)) {
+					return;
+				}
+
+				toWrite = pending;
+				lastSequence = pendingLastSequence;
+				pending = spare != null ? spare : ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+				pendingLastSequence = 0;
+				spare = null;
+				overflowing = false;
+			}
+
+			try {
+				toWrite.flip();
+				while (toWrite.hasRemaining()) {
+					segmentSize += channel.write(toWrite);
+				}
+				channel.force(false);
+				currentLastSequence = Math.max(currentLastSequence, lastSequence);
+
+				if (roll || segmentSize >= segmentBytes) {
+					channel.close();
+					segmentLastSequence.put(segmentIndex, currentLastSequence);
+					segmentIndex++;
+					openSegment();
+				}
+			} catch (IOException ex) {
+				synchronized (appendLock) {
+					failure = ex;
+				}
+				throw new UncheckedIOException("Write ahead log failed", ex);
+			}
+
+			toWrite.clear();
+			synchronized (appendLock) {
+				// keep the buffer for the next swap unless a burst grew it far past its usual size
+				if (toWrite.capacity() <= MAX_PENDING_BYTES) {
+					spare = toWrite;
+				}
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException ex) {
+			// recorded in failure, the next write reports it
+		}
+	}
+
+	/**
+	 * <p>This method rebuilds a repository from every segment written before this log was opened. It should be
+	 * called before the log is attached to the repository as a journal, so replayed changes are not logged again.
+	 * </p>
+	 * @param repository is a MetricsRepository
+	 * @return number of records replayed
+	 * @throws IOException if a segment cannot be read
+	 *
+	 * Big O(size of the log)
+	 */
+	public long replay(MetricsRepository repository) throws IOException {
+		long records = 0;
+
+		for (Path segment : listSegments()) {
+			if (indexOf(segment) >= currentSegmentIndex()) {
+				continue;
+			}
+
+			long[] lastSequence = new long[1];
+			// the last write to a segment is the closest known time for values logged without timestamps
+			long modified = Files.getLastModifiedTime(segment).toMillis();
+			try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+				records += replaySegment(buffer, repository, lastSequence, modified);
+			}
+
+			synchronized (flushLock) {
+				segmentLastSequence.put(indexOf(segment), lastSequence[0]);
+			}
+		}
+
+		return records;
+	}
+
+	private long replaySegment(ByteBuffer buffer, MetricsRepository repository, long[] lastSequence, long modified) {
+		if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+			return 0;
+		}
+
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) {
+			return 0;
+		}
+
+		long records = 0;
+		CRC32 check = new CRC32();
+		byte[] body = new byte[256];
+
+		while (buffer.remaining() >= Integer.BYTES) {
+			int length = buffer.getInt();
+			if (length <= 0 || buffer.remaining() < length + Integer.BYTES) {
+				break;
+			}
+
+			if (body.length < length) {
+				body = new byte[Math.max(length, body.length * 2)];
+			}
+			buffer.get(body, 0, length);
+			int expected = buffer.getInt();
+
+			check.reset();
+			check.update(body, 0, length);
+			if ((int) check.getValue() != expected) {
+				break;
+			}
+
+			// the sequence follows the type byte, read here so a skipped record still counts for its segment
+			lastSequence[0] = Math.max(lastSequence[0], ByteBuffer.wrap(body, 1, Long.BYTES).getLong());
+			try {
+				applyRecord(ByteBuffer.wrap(body, 0, length), version, modified, repository);
+				records++;
+			} catch (RuntimeException ex) {
+				LOGGER.warn("Skipped a write ahead log record the repository refused: {}", ex.getMessage());
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * <p>This method applies one record, without its length and crc, e.g. sent by a ReplicationLeader
+	 * </p>
+	 * @return sequence number of the record
+	 */
+	static long applyRecord(ByteBuffer record, int version, MetricsRepository repository) {
+		return applyRecord(record, version, System.currentTimeMillis(), repository);
+	}
+
+	/**
+	 * <p>This method applies one record, without its length and crc, e.g. replayed from a segment
+	 * </p>
+	 * @param legacyTimestamp is the time given to values of version 1 records, which carry no timestamps
+	 * @return sequence number of the record
+	 */
+	static long applyRecord(ByteBuffer record, int version, long legacyTimestamp, MetricsRepository repository) {
+		byte type = record.get();
+		long sequence = record.getLong();
+		byte[] name = new byte[record.getShort()];
+		record.get(name);
+		String metric = new String(name, StandardCharsets.UTF_8);
+
+		if (type == METRIC_RECORD) {
+			MetricConfig config = new MetricConfig(StorageType.fromCode(record.get()));
+			config.setCompression(record.getDouble());
+			config.setWriteMode(WriteMode.fromCode(record.get()));
+			if (version >= 2) {
+				config.setPartitionMillis(record.getLong());
+			}
+			if (version >= 3) {
+				config.setWindowSamples(record.getInt());
+				config.setWindowMillis(record.getLong());
+			}
+			if (version >= 4) {
+				config.setMaxAgeMillis(record.getLong());
+				config.setMaxSamples(record.getLong());
+				config.setMaxBytes(record.getLong());
+			}
+			if (version >= 5) {
+				config.setRollups(record.get() == 1);
+			}
+			// metrics logged before version 6 always kept their samples by time
+			config.setTimeIndex(version >= 6 ? record.get() == 1 : true);
+			repository.restoreMetric(sequence, metric, config);
+		} else if (type == DATA_RECORD) {
+			double[] values = new double[record.getInt()];
+			// version 1 records carry no timestamps, their values are placed at the legacy timestamp so max age
+			// retention does not drop them as decades old
+			long[] timestamps = new long[values.length];
+			for (int index = 0; index < values.length; index++) {
+				values[index] = record.getDouble();
+				timestamps[index] = version >= 2 ? record.getLong() : legacyTimestamp;
+			}
+			repository.restoreData(sequence, metric, values, timestamps);
+		}
+
+		return sequence;
+	}
+
+	/**
+	 * <p>This method deletes finished segments whose every change is at or before a sequence number, e.g. the
+	 * sequence a snapshot covers. The segment being written to is never deleted.
+	 * </p>
+	 * @param sequence is a long
+	 * @return number of segments deleted
+	 * @throws IOException if a segment cannot be deleted
+	 */
+	public int deleteSegmentsThrough(long sequence) throws IOException {
+		int deleted = 0;
+
+		synchronized (flushLock) {
+			Iterator<Map.Entry<Long, Long>> segments = segmentLastSequence.entrySet().iterator();
+			while (segments.hasNext()) {
+				Map.Entry<Long, Long> segment = segments.next();
+				if (segment.getValue() <= sequence) {
+					Files.deleteIfExists(segmentPath(segment.getKey()));
+					segments.remove();
+					deleted++;
+				}
+			}
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * <p>This method flushes every buffered record, stops the background sync and closes the current segment
+	 * </p>
+	 */
+	@Override
+	public void close() throws IOException {
+		if (syncer != null) {
+			syncer.shutdown();
+		}
+
+		try {
+			flush();
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			synchronized (flushLock) {
+				synchronized (appendLock) {
+					closed = true;
+				}
+				if (channel != null) {
+					channel.close();
+					channel = null;
+				}
+			}
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	private long currentSegmentIndex() {
+		synchronized (flushLock) {
+			return segmentIndex;
+		}
+	}
+
+	private void openSegment() throws IOException {
+		channel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		channel.force(true);
+		segmentSize = HEADER_BYTES;
+		currentLastSequence = 0;
+	}
+
+	private Path segmentPath(long index) {
+		return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+	}
+
+	private List<Path> listSegments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path segment : stream) {
+				segments.add(segment);
+			}
+		}
+
+		// names are zero padded, so name order is segment order
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long indexOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
@@ -0,0 +1,453 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Sorted series backed by fixed size chunks of primitive doubles, either on the heap
+ * (double[]) or off heap (direct ByteBuffer).
+ * </p>
+ * Values are never boxed, so a sample costs 8 bytes plus a small share of the chunk header.
+ * Chunks are split in half when they fill up, so an insert only shifts values inside one chunk
+ * and the series never needs one large contiguous allocation. A chunk starts small and doubles up to
+ * CHUNK_CAPACITY as it fills, and is sized to its values when split or refilled, so a metric with a few
+ * samples costs a few hundred bytes rather than a whole chunk.
+ *
+ * Space is linear
+ */
+public class ChunkedSeries implements IMetricSeries {
+
+	static final int CHUNK_CAPACITY = 4096;
+	static final int INITIAL_CHUNK_CAPACITY = 16;
+	private static final int SMALL_BATCH_VALUES_PER_CHUNK = 8;
+
+	private final boolean offHeap;
+	private List<Chunk> chunks;
+	private int size;
+
+	public ChunkedSeries(boolean offHeap) {
+		this.offHeap = offHeap;
+		this.chunks = new ArrayList<>();
+	}
+
+	/**
+	 * <p>This method inserts a value keeping the series sorted
+	 * </p>
+	 * @param value is a double
+	 *
+	 * Big O(log n + chunk size): binary search for the chunk, binary search inside it,
+	 * then shift at most one chunk worth of values.
+	 */
+	@Override
+	public void add(double value) {
+		if (chunks.isEmpty()) {
+			chunks.add(newChunk());
+		}
+
+		int chunkIndex = findChunk(value);
+		Chunk chunk = chunks.get(chunkIndex);
+
+		if (chunk.size() == CHUNK_CAPACITY) {
+			Chunk upperHalf = chunk.splitUpperHalf(newChunk());
+			chunks.add(chunkIndex + 1, upperHalf);
+
+			if (value >= upperHalf.get(0)) {
+				chunk = upperHalf;
+			}
+		}
+
+		chunk.insert(chunk.insertionIndex(value), value);
+		size++;
+	}
+
+	/**
+	 * <p>This method merges a sorted batch of values into the series
+	 * </p>
+	 * @param sortedValues is a double array in ascending order
+	 *
+	 * Big O(batch size + chunks touched * chunk size): each chunk that receives values is merged with its
+	 * share of the batch once and refilled, chunks that receive nothing are kept as they are.
+	 * Batches too small to give each chunk several values are inserted one at a time instead.
+	 */
+	@Override
+	public void addAll(double[] sortedValues) {
+		if (sortedValues.length == 0) {
+			return;
+		}
+
+		if (chunks.isEmpty()) {
+			chunks.add(newChunk());
+		}
+
+		// a chunk rebuild copies the whole chunk, which only pays off when a chunk gets several new values
+		if (sortedValues.length < chunks.size() * SMALL_BATCH_VALUES_PER_CHUNK) {
+			for (double value : sortedValues) {
+				add(value);
+			}
+			return;
+		}
+
+		List<Chunk> merged = new ArrayList<>(chunks.size() + sortedValues.length / CHUNK_CAPACITY + 1);
+		int next = 0;
+
+		for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+			Chunk chunk = chunks.get(chunkIndex);
+
+			// this chunk takes every batch value below the first value of the following chunk
+			int end = sortedValues.length;
+			if (chunkIndex < chunks.size() - 1) {
+				double bound = chunks.get(chunkIndex + 1).get(0);
+				end = next;
+				while (end < sortedValues.length && sortedValues[end] < bound) {
+					end++;
+				}
+			}
+
+			if (end == next) {
+				merged.add(chunk);
+				continue;
+			}
+
+			double[] combined = mergeWith(chunk, sortedValues, next, end);
+			next = end;
+
+			// spread the merged values evenly so the new chunks have room for later single inserts
+			int pieces = (combined.length + CHUNK_CAPACITY - 1) / CHUNK_CAPACITY;
+			int perPiece = (combined.length + pieces - 1) / pieces;
+			for (int piece = 0; piece < pieces; piece++) {
+				Chunk target = piece == 0 ? chunk : newChunk();
+				int offset = piece * perPiece;
+				target.fill(combined, offset, Math.min(perPiece, combined.length - offset));
+				merged.add(target);
+			}
+		}
+
+		chunks = merged;
+		size += sortedValues.length;
+	}
+
+	/**
+	 * <p>This method removes a sorted batch of values from the series
+	 * </p>
+	 * @param sortedValues is a double array in ascending order, every value must be in the series
+	 *
+	 * Big O(n + batch size): one merge pass over the series, then the kept values are packed back into as few
+	 * chunks as they need so memory freed by the removal is returned.
+	 */
+	@Override
+	public void removeAll(double[] sortedValues) {
+		if (sortedValues.length == 0 || size == 0) {
+			return;
+		}
+
+		double[] kept = new double[size];
+		int keptCount = 0;
+		int next = 0;
+
+		for (Chunk chunk : chunks) {
+			for (int index = 0; index < chunk.size(); index++) {
+				double value = chunk.get(index);
+				while (next < sortedValues.length && sortedValues[next] < value) {
+					next++;
+				}
+
+				if (next < sortedValues.length && sortedValues[next] == value) {
+					next++;
+				} else {
+					kept[keptCount++] = value;
+				}
+			}
+		}
+
+		List<Chunk> packed = new ArrayList<>();
+		int pieces = (keptCount + CHUNK_CAPACITY - 1) / CHUNK_CAPACITY;
+		for (int piece = 0; piece < pieces; piece++) {
+			// the existing chunks are reused, there are never fewer of them than pieces
+			Chunk target = chunks.get(piece);
+			int offset = piece * CHUNK_CAPACITY;
+			target.fill(kept, offset, Math.min(CHUNK_CAPACITY, keptCount - offset));
+			packed.add(target);
+		}
+
+		chunks = packed;
+		size = keptCount;
+	}
+
+	/**
+	 * Big O(number of chunks)
+	 */
+	@Override
+	public long sizeInBytes() {
+		long bytes = 0;
+		for (Chunk chunk : chunks) {
+			bytes += (long) chunk.capacity() * Double.BYTES;
+		}
+		return bytes;
+	}
+
+	private double[] mergeWith(Chunk chunk, double[] sortedValues, int from, int to) {
+		double[] existing = new double[chunk.size()];
+		chunk.copyTo(existing, 0);
+
+		double[] combined = new double[existing.length + to - from];
+		int existingIndex = 0;
+		int batchIndex = from;
+
+		for (int index = 0; index < combined.length; index++) {
+			if (batchIndex >= to || (existingIndex < existing.length && existing[existingIndex] <= sortedValues[batchIndex])) {
+				combined[index] = existing[existingIndex++];
+			} else {
+				combined[index] = sortedValues[batchIndex++];
+			}
+		}
+
+		return combined;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * <p>This method returns the value at a given position of the sorted series
+	 * </p>
+	 * @param rank is an int between 0 and size - 1
+	 * @return value at that rank
+	 * @throws IndexOutOfBoundsException if rank is outside the series
+	 *
+	 * Big O(number of chunks)
+	 */
+	@Override
+	public double valueAt(int rank) {
+		if (rank < 0 || rank >= size) {
+			throw new IndexOutOfBoundsException("Rank: " + rank + " Size: " + size);
+		}
+
+		// the last value is asked for on every max request, so skip the walk
+		if (rank == size - 1) {
+			Chunk last = chunks.get(chunks.size() - 1);
+			return last.get(last.size() - 1);
+		}
+
+		int remaining = rank;
+		for (Chunk chunk : chunks) {
+			if (remaining < chunk.size()) {
+				return chunk.get(remaining);
+			}
+			remaining -= chunk.size();
+		}
+
+		throw new IndexOutOfBoundsException("Rank: " + rank + " Size: " + size);
+	}
+
+	@Override
+	public double[] toArray() {
+		double[] values = new double[size];
+		int offset = 0;
+		for (Chunk chunk : chunks) {
+			chunk.copyTo(values, offset);
+			offset += chunk.size();
+		}
+		return values;
+	}
+
+	/**
+	 * Finds the first chunk whose last value is greater than the given value, or the last chunk.
+	 */
+	private int findChunk(double value) {
+		int low = 0;
+		int high = chunks.size() - 1;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			Chunk chunk = chunks.get(mid);
+			if (chunk.get(chunk.size() - 1) > value) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+
+		return low;
+	}
+
+	private Chunk newChunk() {
+		return offHeap ? new DirectChunk() : new HeapChunk();
+	}
+
+	abstract static class Chunk {
+
+		protected int size;
+
+		int size() {
+			return size;
+		}
+
+		abstract double get(int index);
+
+		abstract void set(int index, double value);
+
+		abstract void shiftRight(int fromIndex);
+
+		abstract int capacity();
+
+		/**
+		 * Replaces the storage with one of the given capacity, keeping the first size values.
+		 */
+		abstract void resize(int capacity);
+
+		/**
+		 * @return smallest power of 2 capacity, between INITIAL_CHUNK_CAPACITY and CHUNK_CAPACITY, holding needed values
+		 */
+		static int capacityFor(int needed) {
+			return Math.min(CHUNK_CAPACITY, Math.max(INITIAL_CHUNK_CAPACITY, Integer.highestOneBit(Math.max(1, needed - 1)) << 1));
+		}
+
+		void insert(int index, double value) {
+			if (size == capacity()) {
+				resize(capacityFor(size + 1));
+			}
+			shiftRight(index);
+			set(index, value);
+			size++;
+		}
+
+		/**
+		 * Index after the last value less than or equal to the given value, so equal values keep
+		 * insertion order.
+		 */
+		int insertionIndex(double value) {
+			int low = 0;
+			int high = size;
+
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (get(mid) > value) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+
+			return low;
+		}
+
+		Chunk splitUpperHalf(Chunk target) {
+			int half = size / 2;
+			target.resize(capacityFor(size - half));
+			for (int index = half; index < size; index++) {
+				target.set(index - half, get(index));
+			}
+			target.size = size - half;
+			size = half;
+			resize(capacityFor(half));
+			return target;
+		}
+
+		void copyTo(double[] destination, int offset) {
+			for (int index = 0; index < size; index++) {
+				destination[offset + index] = get(index);
+			}
+		}
+
+		void fill(double[] source, int offset, int length) {
+			size = 0;
+			if (capacity() != capacityFor(length)) {
+				resize(capacityFor(length));
+			}
+			for (int index = 0; index < length; index++) {
+				set(index, source[offset + index]);
+			}
+			size = length;
+		}
+	}
+
+	static final class HeapChunk extends Chunk {
+
+		private double[] values = new double[INITIAL_CHUNK_CAPACITY];
+
+		@Override
+		double get(int index) {
+			return values[index];
+		}
+
+		@Override
+		void set(int index, double value) {
+			values[index] = value;
+		}
+
+		@Override
+		void shiftRight(int fromIndex) {
+			System.arraycopy(values, fromIndex, values, fromIndex + 1, size - fromIndex);
+		}
+
+		@Override
+		void copyTo(double[] destination, int offset) {
+			System.arraycopy(values, 0, destination, offset, size);
+		}
+
+		@Override
+		int capacity() {
+			return values.length;
+		}
+
+		@Override
+		void resize(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		@Override
+		void fill(double[] source, int offset, int length) {
+			if (values.length != capacityFor(length)) {
+				values = new double[capacityFor(length)];
+			}
+			System.arraycopy(source, offset, values, 0, length);
+			size = length;
+		}
+	}
+
+	static final class DirectChunk extends Chunk {
+
+		private DoubleBuffer values = allocate(INITIAL_CHUNK_CAPACITY);
+
+		private static DoubleBuffer allocate(int capacity) {
+			return ByteBuffer.allocateDirect(capacity * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+
+		@Override
+		int capacity() {
+			return values.capacity();
+		}
+
+		@Override
+		void resize(int capacity) {
+			DoubleBuffer resized = allocate(capacity);
+			for (int index = 0; index < size; index++) {
+				resized.put(index, values.get(index));
+			}
+			values = resized;
+		}
+
+		@Override
+		double get(int index) {
+			return values.get(index);
+		}
+
+		@Override
+		void set(int index, double value) {
+			values.put(index, value);
+		}
+
+		@Override
+		void shiftRight(int fromIndex) {
+			for (int index = size; index > fromIndex; index--) {
+				values.put(index, values.get(index - 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.qevans.metricapp.repository;
+
+import java.util.Arrays;
+
+/**
+ * <p>Compressed set of non negative ints, laid out like a roaring bitmap.
+ * </p>
+ * Values are split by their high 16 bits into containers. A container holding up to 4096 values keeps them as a
+ * sorted char array, a fuller one as a 65536 bit bitset, so a sparse set costs about 2 bytes a value and a dense
+ * one at most 8 KB per 65536 values. Intersections work container by container and skip containers the other set
+ * does not have, so intersecting a small set with a large one costs about the size of the small one.
+ *
+ * Not thread safe.
+ */
+class CompressedBitmap {
+
+	private static final int ARRAY_MAX = 4096;
+	private static final int BITSET_WORDS = 1024;
+
+	private char[] highs = new char[4];
+	private Object[] containers = new Object[4];
+	private int[] cardinalities = new int[4];
+	private int size;
+
+	/**
+	 * @param value is a non negative int
+	 * @throws IllegalArgumentException if value is negative
+	 *
+	 * Big O(log containers + 4096) worst case, O(1) amortized for values added in ascending order
+	 */
+	void add(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Value cannot be negative");
+		}
+
+		char high = (char) (value >>> 16);
+		char low = (char) value;
+		// ids are handed out in ascending order, so the last container is checked before searching
+		int index = size > 0 && highs[size - 1] == high ? size - 1 : Arrays.binarySearch(highs, 0, size, high);
+		if (index < 0) {
+			index = insertContainer(-index - 1, high);
+		}
+
+		Object container = containers[index];
+		if (container instanceof long[]) {
+			long[] bits = (long[]) container;
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) == 0) {
+				bits[low >>> 6] |= mask;
+				cardinalities[index]++;
+			}
+			return;
+		}
+
+		char[] values = (char[]) container;
+		int cardinality = cardinalities[index];
+		int position = cardinality > 0 && values[cardinality - 1] < low ? -cardinality - 1
+				: Arrays.binarySearch(values, 0, cardinality, low);
+		if (position >= 0) {
+			return;
+		}
+
+		if (cardinality == ARRAY_MAX) {
+			long[] bits = toBits(values, cardinality);
+			bits[low >>> 6] |= 1L << low;
+			containers[index] = bits;
+			cardinalities[index] = cardinality + 1;
+			return;
+		}
+
+		int insertAt = -position - 1;
+		if (cardinality == values.length) {
+			values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+			containers[index] = values;
+		}
+		System.arraycopy(values, insertAt, values, insertAt + 1, cardinality - insertAt);
+		values[insertAt] = low;
+		cardinalities[index] = cardinality + 1;
+	}
+
+	/**
+	 * @param value is an int
+	 * @return true if value is in the set
+	 *
+	 * Big O(log containers + log 4096)
+	 */
+	boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int index = Arrays.binarySearch(highs, 0, size, (char) (value >>> 16));
+		if (index < 0) {
+			return false;
+		}
+
+		char low = (char) value;
+		Object container = containers[index];
+		if (container instanceof long[]) {
+			return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+		}
+		return Arrays.binarySearch((char[]) container, 0, cardinalities[index], low) >= 0;
+	}
+
+	/**
+	 * @param other is a CompressedBitmap, it is not changed
+	 * @return new set of the values in both this and other
+	 *
+	 * Big O(containers of both + values of the containers they share)
+	 */
+	CompressedBitmap and(CompressedBitmap other) {
+		CompressedBitmap result = new CompressedBitmap();
+		int left = 0;
+		int right = 0;
+		while (left < size && right < other.size) {
+			if (highs[left] < other.highs[right]) {
+				left++;
+			} else if (highs[left] > other.highs[right]) {
+				right++;
+			} else {
+				result.andContainers(highs[left], containers[left], cardinalities[left], other.containers[right],
+						other.cardinalities[right]);
+				left++;
+				right++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of values in the set
+	 *
+	 * Big O(containers)
+	 */
+	int cardinality() {
+		int cardinality = 0;
+		for (int index = 0; index < size; index++) {
+			cardinality += cardinalities[index];
+		}
+		return cardinality;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the values in ascending order
+	 *
+	 * Big O(values + bitset containers * 1024)
+	 */
+	int[] toArray() {
+		int[] values = new int[cardinality()];
+		int position = 0;
+		for (int index = 0; index < size; index++) {
+			int high = highs[index] << 16;
+			Object container = containers[index];
+			if (container instanceof long[]) {
+				long[] bits = (long[]) container;
+				for (int word = 0; word < BITSET_WORDS; word++) {
+					long remaining = bits[word];
+					while (remaining != 0) {
+						values[position++] = high | (word << 6) | Long.numberOfTrailingZeros(remaining);
+						remaining &= remaining - 1;
+					}
+				}
+			} else {
+				char[] lows = (char[]) container;
+				for (int value = 0; value < cardinalities[index]; value++) {
+					values[position++] = high | lows[value];
+				}
+			}
+		}
+		return values;
+	}
+
+	private void andContainers(char high, Object first, int firstCardinality, Object second, int secondCardinality) {
+		if (first instanceof long[] && second instanceof long[]) {
+			long[] bits = new long[BITSET_WORDS];
+			int cardinality = 0;
+			for (int word = 0; word < BITSET_WORDS; word++) {
+				bits[word] = ((long[]) first)[word] & ((long[]) second)[word];
+				cardinality += Long.bitCount(bits[word]);
+			}
+			if (cardinality > ARRAY_MAX) {
+				appendContainer(high, bits, cardinality);
+			} else if (cardinality > 0) {
+				appendContainer(high, toChars(bits, cardinality), cardinality);
+			}
+			return;
+		}
+
+		if (first instanceof long[]) {
+			andContainers(high, second, secondCardinality, first, firstCardinality);
+			return;
+		}
+
+		char[] lows = (char[]) first;
+		char[] values = new char[Math.min(firstCardinality, secondCardinality)];
+		int cardinality = 0;
+		if (second instanceof long[]) {
+			long[] bits = (long[]) second;
+			for (int index = 0; index < firstCardinality; index++) {
+				if ((bits[lows[index] >>> 6] & (1L << lows[index])) != 0) {
+					values[cardinality++] = lows[index];
+				}
+			}
+		} else {
+			char[] others = (char[]) second;
+			int left = 0;
+			int right = 0;
+			while (left < firstCardinality && right < secondCardinality) {
+				if (lows[left] < others[right]) {
+					left++;
+				} else if (lows[left] > others[right]) {
+					right++;
+				} else {
+					values[cardinality++] = lows[left];
+					left++;
+					right++;
+				}
+			}
+		}
+
+		if (cardinality > 0) {
+			appendContainer(high, values, cardinality);
+		}
+	}
+
+	private int insertContainer(int insertAt, char high) {
+		if (size == highs.length) {
+			highs = Arrays.copyOf(highs, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+			cardinalities = Arrays.copyOf(cardinalities, size * 2);
+		}
+		System.arraycopy(highs, insertAt, highs, insertAt + 1, size - insertAt);
+		System.arraycopy(containers, insertAt, containers, insertAt + 1, size - insertAt);
+		System.arraycopy(cardinalities, insertAt, cardinalities, insertAt + 1, size - insertAt);
+		highs[insertAt] = high;
+		containers[insertAt] = new char[4];
+		cardinalities[insertAt] = 0;
+		size++;
+		return insertAt;
+	}
+
+	private void appendContainer(char high, Object container, int cardinality) {
+		int index = insertContainer(size, high);
+		containers[index] = container;
+		cardinalities[index] = cardinality;
+	}
+
+	private static long[] toBits(char[] values, int cardinality) {
+		long[] bits = new long[BITSET_WORDS];
+		for (int index = 0; index < cardinality; index++) {
+			bits[values[index] >>> 6] |= 1L << values[index];
+		}
+		return bits;
+	}
+
+	private static char[] toChars(long[] bits, int cardinality) {
+		char[] values = new char[cardinality];
+		int position = 0;
+		for (int word = 0; word < BITSET_WORDS; word++) {
+			long remaining = bits[word];
+			while (remaining != 0) {
+				values[position++] = (char) ((word << 6) | Long.numberOfTrailingZeros(remaining));
+				remaining &= remaining - 1;
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,241 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>Timestamps and values of a sealed time partition packed into a bit stream, as described for Gorilla.
+ * </p>
+ * Each timestamp is stored as the change of its delta from the previous one, zigzag encoded so out of order
+ * samples work, in 1 bit when samples arrive at a steady rate. Each value is XORed with the previous one and
+ * only the bits that differ are stored, in 1 bit for a repeated value and usually in the same window of
+ * meaningful bits as the previous value. Metrics sampled at a fixed rate with slowly moving values take a few
+ * bytes per sample instead of 16.
+ *
+ * Samples can only be read back in order, so the block is decoded whole by forEach. Immutable.
+ */
+final class CompressedBlock {
+
+	private final long[] words;
+	private final int count;
+
+	private CompressedBlock(long[] words, int count) {
+		this.words = words;
+		this.count = count;
+	}
+
+	/**
+	 * @param timestamps is a LongBuffer of epoch milliseconds in arrival order, it is not changed
+	 * @param values is a DoubleBuffer, one per timestamp, it is not changed
+	 * @param count is how many samples to encode from the start of the buffers
+	 * @return the encoded samples
+	 *
+	 * Big O(count)
+	 */
+	static CompressedBlock encode(LongBuffer timestamps, DoubleBuffer values, int count) {
+		BitWriter writer = new BitWriter(count);
+		long previousTimestamp = 0;
+		long previousDelta = 0;
+		long previousBits = 0;
+		int previousLeading = -1;
+		int previousTrailing = 0;
+
+		for (int index = 0; index < count; index++) {
+			long timestamp = timestamps.get(index);
+			long bits = Double.doubleToRawLongBits(values.get(index));
+
+			if (index == 0) {
+				writer.write(timestamp, 64);
+				writer.write(bits, 64);
+				previousTimestamp = timestamp;
+				previousBits = bits;
+				continue;
+			}
+
+			long delta = timestamp - previousTimestamp;
+			long deltaOfDelta = delta - previousDelta;
+			long zigzag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+
+			if (zigzag == 0) {
+				writer.write(0, 1);
+			} else if (zigzag >>> 7 == 0) {
+				writer.write(0b10, 2);
+				writer.write(zigzag, 7);
+			} else if (zigzag >>> 9 == 0) {
+				writer.write(0b110, 3);
+				writer.write(zigzag, 9);
+			} else if (zigzag >>> 12 == 0) {
+				writer.write(0b1110, 4);
+				writer.write(zigzag, 12);
+			} else {
+				writer.write(0b1111, 4);
+				writer.write(zigzag, 64);
+			}
+			previousTimestamp = timestamp;
+			previousDelta = delta;
+
+			long xor = bits ^ previousBits;
+			if (xor == 0) {
+				writer.write(0, 1);
+			} else {
+				// 5 bits hold the leading zeros, any beyond 31 are written as meaningful bits
+				int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+				int trailing = Long.numberOfTrailingZeros(xor);
+
+				if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+					writer.write(0b10, 2);
+					writer.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+				} else {
+					int meaningful = 64 - leading - trailing;
+					writer.write(0b11, 2);
+					writer.write(leading, 5);
+					// 1 to 64 meaningful bits are written as 0 to 63
+					writer.write(meaningful - 1, 6);
+					writer.write(xor >>> trailing, meaningful);
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+			previousBits = bits;
+		}
+
+		return new CompressedBlock(writer.toArray(), count);
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return bytes of memory held by the encoded samples
+	 */
+	long sizeInBytes() {
+		return (long) words.length * Long.BYTES;
+	}
+
+	/**
+	 * <p>This method decodes every sample in the order it was encoded
+	 * </p>
+	 * @param visitor is handed each timestamp and value
+	 *
+	 * Big O(count)
+	 */
+	void forEach(TimePartition.SampleVisitor visitor) {
+		BitReader reader = new BitReader(words);
+		long timestamp = 0;
+		long delta = 0;
+		long bits = 0;
+		int leading = 0;
+		int trailing = 0;
+
+		for (int index = 0; index < count; index++) {
+			if (index == 0) {
+				timestamp = reader.read(64);
+				bits = reader.read(64);
+				visitor.accept(timestamp, Double.longBitsToDouble(bits));
+				continue;
+			}
+
+			long zigzag;
+			if (reader.read(1) == 0) {
+				zigzag = 0;
+			} else if (reader.read(1) == 0) {
+				zigzag = reader.read(7);
+			} else if (reader.read(1) == 0) {
+				zigzag = reader.read(9);
+			} else if (reader.read(1) == 0) {
+				zigzag = reader.read(12);
+			} else {
+				zigzag = reader.read(64);
+			}
+			delta += (zigzag >>> 1) ^ -(zigzag & 1);
+			timestamp += delta;
+
+			if (reader.read(1) == 1) {
+				if (reader.read(1) == 1) {
+					leading = (int) reader.read(5);
+					trailing = 64 - leading - ((int) reader.read(6) + 1);
+				}
+				bits ^= reader.read(64 - leading - trailing) << trailing;
+			}
+
+			visitor.accept(timestamp, Double.longBitsToDouble(bits));
+		}
+	}
+
+	/**
+	 * Appends bit fields most significant bit first.
+	 */
+	private static final class BitWriter {
+
+		private long[] words;
+		private long size;
+
+		BitWriter(int samples) {
+			// a steady metric takes about 2 bits a sample after the first 128
+			words = new long[Math.max(4, samples / 16)];
+		}
+
+		/**
+		 * @param value holds the field in its lowest bits
+		 * @param bits is the width of the field, 1 to 64
+		 */
+		void write(long value, int bits) {
+			if (bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+
+			int word = (int) (size >>> 6);
+			if (word + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+
+			int free = 64 - (int) (size & 63);
+			if (bits <= free) {
+				words[word] |= value << (free - bits);
+			} else {
+				words[word] |= value >>> (bits - free);
+				words[word + 1] |= value << (64 - (bits - free));
+			}
+			size += bits;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(words, (int) ((size + 63) >>> 6));
+		}
+	}
+
+	/**
+	 * Reads the fields of a BitWriter back in order.
+	 */
+	private static final class BitReader {
+
+		private final long[] words;
+		private long position;
+
+		BitReader(long[] words) {
+			this.words = words;
+		}
+
+		/**
+		 * @param bits is the width of the field, 1 to 64
+		 * @return the field in the lowest bits
+		 */
+		long read(int bits) {
+			int word = (int) (position >>> 6);
+			int free = 64 - (int) (position & 63);
+			long value;
+
+			if (bits <= free) {
+				value = words[word] >>> (free - bits);
+			} else {
+				int rest = bits - free;
+				value = (words[word] << rest) | (words[word + 1] >>> (64 - rest));
+			}
+			position += bits;
+
+			return bits == 64 ? value : value & ((1L << bits) - 1);
+		}
+	}
+}
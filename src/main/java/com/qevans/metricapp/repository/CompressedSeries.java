@@ -0,0 +1,94 @@
+package com.qevans.metricapp.repository;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * <p>Sorted view over the values of a COMPRESSED metric, which are kept only once, in its time partitions.
+ * </p>
+ * Values reach the series through the time index, so it is read only and dropped partitions take their values with
+ * them. Ranks are read from a sorted copy decoded from every partition on the first rank read
+ * after a change. The copy is held softly, so it never keeps heap the collector needs and is decoded again at worst.
+ */
+class CompressedSeries implements IMetricSeries {
+
+	private final TimeIndex timeIndex;
+	private SoftReference<double[]> sorted = new SoftReference<>(null);
+	private long sortedModifications = -1;
+
+	/**
+	 * @param timeIndex is the TimeIndex of the owning metric
+	 */
+	CompressedSeries(TimeIndex timeIndex) {
+		this.timeIndex = timeIndex;
+	}
+
+	@Override
+	public void add(double value) {
+		throw new UnsupportedOperationException("A compressed series is read through its time index.");
+	}
+
+	@Override
+	public void addAll(double[] sortedValues) {
+		throw new UnsupportedOperationException("A compressed series is read through its time index.");
+	}
+
+	/**
+	 * Big O(partitions)
+	 */
+	@Override
+	public int size() {
+		return (int) timeIndex.getCount();
+	}
+
+	/**
+	 * Big O(constant) while nothing changes, O(n log n) to decode and sort after a change
+	 */
+	@Override
+	public double valueAt(int rank) {
+		double[] values = sorted();
+
+		if (rank < 0 || rank >= values.length) {
+			throw new IndexOutOfBoundsException("Rank: " + rank + " Size: " + values.length);
+		}
+
+		return values[rank];
+	}
+
+	@Override
+	public double[] toArray() {
+		return sorted().clone();
+	}
+
+	/**
+	 * @return bytes of the sealed blocks and open partitions holding the values, the sorted copy is only held
+	 * softly and not counted. O(partitions)
+	 */
+	@Override
+	public long sizeInBytes() {
+		long bytes = 0;
+		for (TimePartition partition : timeIndex.partitions()) {
+			bytes += partition.sizeInBytes();
+		}
+		return bytes;
+	}
+
+	private double[] sorted() {
+		double[] values = sorted.get();
+
+		if (values == null || sortedModifications != timeIndex.getModifications()) {
+			double[] decoded = new double[size()];
+			int[] next = new int[1];
+			for (TimePartition partition : timeIndex.partitions()) {
+				partition.forEach((timestamp, value) -> decoded[next[0]++] = value);
+			}
+			Arrays.sort(decoded);
+			values = decoded;
+
+			sorted = new SoftReference<>(values);
+			sortedModifications = timeIndex.getModifications();
+		}
+
+		return values;
+	}
+}
@@ -0,0 +1,221 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Sliding window over the last N values of a metric.
+ * </p>
+ * Values sit in a ring, and each new value past the N-th evicts the oldest one:
+ * - mean and spread are Welford's running state with the evicted value taken back out. Removal loses a little
+ *   precision, so the state is recomputed from the ring once every N evictions, O(constant) amortized.
+ * - min and max are the heads of two monotonic deques, each value enters and leaves them at most once.
+ * - median and percentiles are read from an order statistic tree that values are removed from on eviction.
+ *
+ * Every add is O(log N) expected, count, mean, min, max and spread are O(constant) and a percentile is O(log N).
+ * Memory grows with the values held up to N of them, about 40 bytes per value.
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+class CountWindow implements ISlidingWindow {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int windowSize;
+	private final TreeSeries sorted = new TreeSeries();
+
+	// value number k is at index k % windowSize, the arrays only grow to windowSize
+	private double[] values = new double[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private long added;
+	private int size;
+
+	private double mean;
+	private double squaredDifferences;
+	private int evictionsSinceRecompute;
+
+	// value numbers in the window, their values ascending from the head for minimums, descending for maximums
+	private long[] minimums = new long[INITIAL_CAPACITY];
+	private int minimumsHead;
+	private int minimumsSize;
+	private long[] maximums = new long[INITIAL_CAPACITY];
+	private int maximumsHead;
+	private int maximumsSize;
+
+	/**
+	 * @param windowSize is how many of the latest values the window holds
+	 */
+	CountWindow(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @param windowSize is how many of the latest values the window holds
+	 * @param snapshots is what snapshot() returned, its values are added again oldest first
+	 */
+	CountWindow(int windowSize, List<TimePartitionSnapshot> snapshots) {
+		this(windowSize);
+		for (TimePartitionSnapshot snapshot : snapshots) {
+			for (int index = 0; index < snapshot.getValues().limit(); index++) {
+				add(snapshot.getTimestamps().get(index), snapshot.getValues().get(index));
+			}
+		}
+	}
+
+	/**
+	 * Big O(log N) expected
+	 */
+	@Override
+	public void add(long timestamp, double value) {
+		if (Double.isNaN(value)) {
+			throw new IllegalArgumentException("Cannot add NaN to a window");
+		}
+
+		if (size == windowSize) {
+			evict(added - windowSize);
+		} else if (size == values.length) {
+			grow();
+		}
+
+		long number = added++;
+		int index = indexOf(number);
+		values[index] = value;
+		timestamps[index] = timestamp;
+		size++;
+		sorted.add(value);
+
+		double delta = value - mean;
+		mean += delta / size;
+		squaredDifferences += delta * (value - mean);
+
+		while (minimumsSize > 0 && valueOf(minimums[(minimumsHead + minimumsSize - 1) % minimums.length]) > value) {
+			minimumsSize--;
+		}
+		minimums[(minimumsHead + minimumsSize++) % minimums.length] = number;
+
+		while (maximumsSize > 0 && valueOf(maximums[(maximumsHead + maximumsSize - 1) % maximums.length]) < value) {
+			maximumsSize--;
+		}
+		maximums[(maximumsHead + maximumsSize++) % maximums.length] = number;
+	}
+
+	private void evict(long number) {
+		double value = valueOf(number);
+		sorted.remove(value);
+		size--;
+
+		if (size == 0) {
+			mean = 0;
+			squaredDifferences = 0;
+		} else {
+			double delta = value - mean;
+			mean -= delta / size;
+			squaredDifferences = Math.max(0, squaredDifferences - delta * (value - mean));
+		}
+
+		// the evicted value is the oldest in the window, so if a deque still holds it, it is at the head
+		if (minimums[minimumsHead] == number) {
+			minimumsHead = (minimumsHead + 1) % minimums.length;
+			minimumsSize--;
+		}
+		if (maximums[maximumsHead] == number) {
+			maximumsHead = (maximumsHead + 1) % maximums.length;
+			maximumsSize--;
+		}
+
+		if (++evictionsSinceRecompute == windowSize) {
+			recompute(number + 1);
+		}
+	}
+
+	/**
+	 * Big O(N), two passes over the ring so the error from removals does not build up
+	 */
+	private void recompute(long oldest) {
+		double total = 0;
+		for (long number = oldest; number < oldest + size; number++) {
+			total += valueOf(number);
+		}
+		mean = size == 0 ? 0 : total / size;
+
+		squaredDifferences = 0;
+		for (long number = oldest; number < oldest + size; number++) {
+			double delta = valueOf(number) - mean;
+			squaredDifferences += delta * delta;
+		}
+		evictionsSinceRecompute = 0;
+	}
+
+	/**
+	 * The window has not wrapped yet, so value numbers are still their own index
+	 */
+	private void grow() {
+		int capacity = (int) Math.min(windowSize, (long) values.length * 2);
+		values = Arrays.copyOf(values, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		minimums = unwrap(minimums, minimumsHead, minimumsSize, capacity);
+		minimumsHead = 0;
+		maximums = unwrap(maximums, maximumsHead, maximumsSize, capacity);
+		maximumsHead = 0;
+	}
+
+	private static long[] unwrap(long[] deque, int head, int size, int capacity) {
+		long[] unwrapped = new long[capacity];
+		for (int index = 0; index < size; index++) {
+			unwrapped[index] = deque[(head + index) % deque.length];
+		}
+		return unwrapped;
+	}
+
+	private int indexOf(long number) {
+		return (int) (number % windowSize);
+	}
+
+	private double valueOf(long number) {
+		return values[indexOf(number)];
+	}
+
+	/**
+	 * Big O(constant), the window does not depend on the time
+	 */
+	@Override
+	public RunningStatistics getStatistics(long now) {
+		if (size == 0) {
+			return new RunningStatistics();
+		}
+
+		return RunningStatistics.restore(size, mean * size, mean, squaredDifferences,
+				valueOf(minimums[minimumsHead]), valueOf(maximums[maximumsHead]));
+	}
+
+	@Override
+	public IMetricSeries getSeries(long now) {
+		return sorted;
+	}
+
+	@Override
+	public boolean keepsRawValues() {
+		return true;
+	}
+
+	/**
+	 * @return one partition holding the values and timestamps in the window, oldest first
+	 */
+	@Override
+	public List<TimePartitionSnapshot> snapshot() {
+		long[] timestampCopy = new long[size];
+		double[] valueCopy = new double[size];
+		long oldest = added - size;
+
+		for (int index = 0; index < size; index++) {
+			timestampCopy[index] = timestamps[indexOf(oldest + index)];
+			valueCopy[index] = values[indexOf(oldest + index)];
+		}
+
+		return Collections.singletonList(new TimePartitionSnapshot(0, getStatistics(0), LongBuffer.wrap(timestampCopy),
+				DoubleBuffer.wrap(valueCopy), null));
+	}
+}
@@ -0,0 +1,92 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>Storage for the values of a single metric, kept in ascending order so that
+ * rank based statistics (min, max, median, percentiles) can be read without sorting.
+ * </p>
+ * Implementations are not thread safe. Callers synchronize on the series instance.
+ */
+public interface IMetricSeries {
+
+	public void add(double value);
+	public int size();
+
+	/**
+	 * @param rank is an int between 0 and size - 1
+	 * @return value at that rank
+	 * @throws UnsupportedOperationException if keepsRawValues is false, callers check it first
+	 */
+	public double valueAt(int rank);
+
+	/**
+	 * @return the values in ascending order
+	 * @throws UnsupportedOperationException if keepsRawValues is false, callers check it first
+	 */
+	public double[] toArray();
+
+	/**
+	 * <p>This method adds a batch of values that is already sorted
+	 * </p>
+	 * @param sortedValues is a double array in ascending order
+	 *
+	 * Implementations that can merge a sorted run in one pass override this, the default adds one value at a time.
+	 */
+	public default void addAll(double[] sortedValues) {
+		for (double value : sortedValues) {
+			add(value);
+		}
+	}
+
+	/**
+	 * <p>This method returns the value at a quantile, interpolating between the 2 closest ranks
+	 * </p>
+	 * @param quantile is a double between 0 and 1
+	 * @return value at the quantile. If the series is empty, will return 0.
+	 *
+	 * For an even sized series quantile 0.5 is the average of the 2 center values.
+	 */
+	public default double quantile(double quantile) {
+		int size = size();
+
+		if (size == 0) {
+			return 0.0;
+		}
+
+		double position = quantile * (size - 1);
+		int lowerRank = (int) Math.floor(position);
+		int upperRank = (int) Math.ceil(position);
+		double fraction = position - lowerRank;
+
+		if (lowerRank == upperRank) {
+			return valueAt(lowerRank);
+		}
+
+		return (1 - fraction) * valueAt(lowerRank) + fraction * valueAt(upperRank);
+	}
+
+	/**
+	 * <p>This method removes one occurrence of each value of a sorted batch, e.g. values past their retention
+	 * </p>
+	 * @param sortedValues is a double array in ascending order, every value must be in the series
+	 * @throws UnsupportedOperationException if the series cannot remove values
+	 */
+	public default void removeAll(double[] sortedValues) {
+		throw new UnsupportedOperationException("This series cannot remove values.");
+	}
+
+	/**
+	 * @return approximate bytes of memory the series holds
+	 */
+	public default long sizeInBytes() {
+		return (long) size() * Double.BYTES;
+	}
+
+	/**
+	 * @return false if the series only keeps a summary and cannot return its raw values or read them by rank,
+	 * quantile still works
+	 */
+	public default boolean keepsRawValues() {
+		return true;
+	}
+
+}
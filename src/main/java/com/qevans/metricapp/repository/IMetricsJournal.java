@@ -0,0 +1,26 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>Receives every change made to a MetricsRepository, e.g. to write it to disk.
+ * </p>
+ * Calls are made while the change is being applied, so for one metric they arrive in the same order the
+ * changes were applied, and a metric is always journaled before any data for it. Sequence numbers increase
+ * across the whole repository. timestamps are epoch milliseconds, one per value. Implementations should be quick,
+ * they run on the write path.
+ *
+ * Once the change is applied and every lock the repository took for it is released, awaitDurable is called on
+ * the writing thread, so a journal that must have the change on disk before the write returns can wait there
+ * without holding up other readers and writers of the metric.
+ */
+public interface IMetricsJournal {
+
+	public void metricAdded(long sequence, String metric, MetricConfig config);
+	public void dataAdded(long sequence, String metric, double[] values, long[] timestamps);
+
+	/**
+	 * @param sequence is the sequence number of a change this journal was given
+	 */
+	public default void awaitDurable(long sequence) {
+	}
+
+}
@@ -1,16 +1,38 @@
 package com.qevans.metricapp.repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface IMetricsRepository {
 
 	public boolean addMetric(String metric);
+	public boolean addMetric(String metric, MetricConfig config);
+	public MetricConfig getDefaultConfig();
+	public MetricConfig getConfigOfMetric(String metric);
+	public boolean hasMetric(String metric);
 	public String[] getAllMetrics();
+	public List<String> findMetrics(String pattern);
+	public List<String> selectMetrics(String name, Map<String, String> tags);
 	public boolean addDataToMetric(String metric, double data);
+	public boolean addDataToMetric(String metric, double data, long timestamp);
+	public boolean addDataToMetric(String metric, double[] data);
+	public boolean addDataToMetric(String metric, double[] data, long[] timestamps);
 	public double getMedianOfMetric(String metric);
+	public double getPercentileOfMetric(String metric, double percentile);
 	public double getMinimumOfMetric(String metric);
 	public double getMaximumOfMetric(String metric);
 	public double getAverageOfMetric(String metric);
+	public double getVarianceOfMetric(String metric);
+	public double getStandardDeviationOfMetric(String metric);
+	public Map<String, Double> getStatisticsOfMetric(String metric, List<Statistic> statistics);
+	public Map<String, Double> getStatisticsOfMetric(String metric, List<Statistic> statistics, long from, long to);
+	public Map<String, Map<String, Double>> getStatisticsOfMetrics(String pattern, List<Statistic> statistics);
+	public Map<String, Map<String, Double>> getStatisticsOfMetrics(String pattern, List<Statistic> statistics, long from, long to);
+	public MetricSummary getSummaryOfMetric(String metric, long from, long to);
+	public MetricSummary getSummaryOfMetrics(Collection<String> metrics, long from, long to);
+	public Map<String, MetricSummary> getSummariesByTag(String name, Map<String, String> tags, String groupBy, long from, long to);
 	public List<Double> getDataForMetric(String metric);
+	public MetricExport exportMetric(String metric, long from, long to, String cursor, long limit);
 	
 }
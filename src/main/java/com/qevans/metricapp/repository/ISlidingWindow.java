@@ -0,0 +1,62 @@
+package com.qevans.metricapp.repository;
+
+import java.util.List;
+
+/**
+ * <p>Statistics over only the most recent values of a metric, the last N samples or the last N milliseconds.
+ * </p>
+ * Older values are evicted as new ones arrive, so memory is bounded by the window size instead of growing
+ * with everything the metric has ever received.
+ *
+ * Implementations are not thread safe. Callers synchronize on the owning metric.
+ */
+interface ISlidingWindow {
+
+	/**
+	 * @param timestamp is when the value was measured, epoch milliseconds
+	 * @param value is a double
+	 * @throws IllegalArgumentException if value is NaN
+	 */
+	void add(long timestamp, double value);
+
+	/**
+	 * @param now is the time the window ends at, epoch milliseconds
+	 * @return count, sum, min, max and spread of the values in the window, a copy the caller may keep
+	 */
+	RunningStatistics getStatistics(long now);
+
+	/**
+	 * @param now is the time the window ends at, epoch milliseconds
+	 * @return the values in the window in ascending order, or a sketch of them, for rank based statistics
+	 */
+	IMetricSeries getSeries(long now);
+
+	/**
+	 * @return false if the window only keeps a summary and cannot return its raw values
+	 */
+	boolean keepsRawValues();
+
+	/**
+	 * @return the window as it would be saved in a snapshot, sharing no state with it
+	 */
+	List<TimePartitionSnapshot> snapshot();
+
+	/**
+	 * <p>This method adds a batch of values, nothing is added if any of them is NaN
+	 * </p>
+	 * @param timestamps is a long array the same length as values
+	 * @param values is a double array
+	 * @throws IllegalArgumentException if a value is NaN
+	 */
+	default void addAll(long[] timestamps, double[] values) {
+		for (double value : values) {
+			if (Double.isNaN(value)) {
+				throw new IllegalArgumentException("Cannot add NaN to a window");
+			}
+		}
+
+		for (int index = 0; index < values.length; index++) {
+			add(timestamps[index], values[index]);
+		}
+	}
+}
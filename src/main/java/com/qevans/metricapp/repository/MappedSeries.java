@@ -0,0 +1,60 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * <p>Read only series over sorted values that already sit in memory or in a memory mapped snapshot file.
+ * </p>
+ * Nothing is copied when the series is created, pages are read from the file as ranks are asked for,
+ * so a restored metric can answer min, max, median and percentiles right away. The owning metric replaces
+ * it with its configured series before the first write.
+ */
+class MappedSeries implements IMetricSeries {
+
+	private final DoubleBuffer values;
+
+	/**
+	 * @param values is a DoubleBuffer of values in ascending order, it is not changed
+	 */
+	MappedSeries(DoubleBuffer values) {
+		this.values = values.duplicate();
+	}
+
+	@Override
+	public void add(double value) {
+		throw new UnsupportedOperationException("A mapped series is read only.");
+	}
+
+	@Override
+	public int size() {
+		return values.limit();
+	}
+
+	/**
+	 * Big O(constant)
+	 */
+	@Override
+	public double valueAt(int rank) {
+		if (rank < 0 || rank >= values.limit()) {
+			throw new IndexOutOfBoundsException("Rank: " + rank + " Size: " + values.limit());
+		}
+
+		return values.get(rank);
+	}
+
+	@Override
+	public double[] toArray() {
+		return copyOf(values);
+	}
+
+	/**
+	 * @return a heap copy of every value up to the limit of the buffer, its position is not changed
+	 */
+	static double[] copyOf(DoubleBuffer buffer) {
+		double[] copy = new double[buffer.limit()];
+		DoubleBuffer reader = buffer.duplicate();
+		reader.rewind();
+		reader.get(copy);
+		return copy;
+	}
+}
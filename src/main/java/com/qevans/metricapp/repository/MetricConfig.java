@@ -0,0 +1,257 @@
+package com.qevans.metricapp.repository;
+
+import java.util.List;
+
+/**
+ * <p>Settings chosen when a metric is created.
+ * </p>
+ * compression only applies to SKETCH storage. partitionMillis is the width of the time partitions
+ * that time range queries read.
+ *
+ * A metric with windowSamples or windowMillis set keeps only a sliding window of its latest values, and its
+ * statistics describe that window instead of everything the metric has received.
+ *
+ * rollups keeps 10 second, 1 minute and 1 hour rollups alongside the values, so long time ranges are answered
+ * from a few rollups instead of every value, with rank based statistics estimated from the rollup digests.
+ *
+ * timeIndex keeps every sample with its timestamp in the time partitions as well as in the sorted series, for
+ * exact time ranges and export, at the cost of a second copy of every value. Without it partitions only keep running
+ * statistics, so ranges are rounded out to whole partitions and median and percentiles need rollups. COMPRESSED
+ * storage keeps its samples only in the partitions and metrics with retention limits need them to drop the oldest
+ * values, so both keep samples by time either way. For SKETCH storage timeIndex keeps a t-digest per partition
+ * instead, for median and percentiles over a range without rollups. Retention limits keep those digests too, the
+ * metric digest is rebuilt from them once the oldest partitions are dropped.
+ *
+ * maxAgeMillis, maxSamples and maxBytes are retention limits, 0 for no limit. Compaction drops the oldest time
+ * partitions of a metric until it is back within all of them.
+ */
+public class MetricConfig {
+
+	private StorageType storageType = StorageType.HEAP;
+	private double compression = TDigest.DEFAULT_COMPRESSION;
+	private WriteMode writeMode = WriteMode.DIRECT;
+	private long partitionMillis = TimeIndex.DEFAULT_PARTITION_MILLIS;
+	private int windowSamples;
+	private long windowMillis;
+	private long maxAgeMillis;
+	private long maxSamples;
+	private long maxBytes;
+	private boolean rollups;
+	private boolean timeIndex;
+
+	public MetricConfig() {
+	}
+
+	public MetricConfig(StorageType storageType) {
+		setStorageType(storageType);
+	}
+
+	public MetricConfig(MetricConfig other) {
+		this.storageType = other.storageType;
+		this.compression = other.compression;
+		this.writeMode = other.writeMode;
+		this.partitionMillis = other.partitionMillis;
+		this.windowSamples = other.windowSamples;
+		this.windowMillis = other.windowMillis;
+		this.maxAgeMillis = other.maxAgeMillis;
+		this.maxSamples = other.maxSamples;
+		this.maxBytes = other.maxBytes;
+		this.rollups = other.rollups;
+		this.timeIndex = other.timeIndex;
+	}
+
+	public StorageType getStorageType() {
+		return storageType;
+	}
+
+	public void setStorageType(StorageType storageType) {
+		if (storageType == null) {
+			throw new IllegalArgumentException("Storage type cannot be null");
+		}
+		this.storageType = storageType;
+	}
+
+	public double getCompression() {
+		return compression;
+	}
+
+	public void setCompression(double compression) {
+		if (compression < 10) {
+			throw new IllegalArgumentException("Compression must be at least 10");
+		}
+		this.compression = compression;
+	}
+
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	public void setWriteMode(WriteMode writeMode) {
+		if (writeMode == null) {
+			throw new IllegalArgumentException("Write mode cannot be null");
+		}
+		this.writeMode = writeMode;
+	}
+
+	public long getPartitionMillis() {
+		return partitionMillis;
+	}
+
+	public void setPartitionMillis(long partitionMillis) {
+		if (partitionMillis <= 0) {
+			throw new IllegalArgumentException("Partition width must be positive");
+		}
+		this.partitionMillis = partitionMillis;
+	}
+
+	public int getWindowSamples() {
+		return windowSamples;
+	}
+
+	/**
+	 * @param windowSamples is how many of the latest values the metric keeps, 0 to keep them all
+	 * @throws IllegalArgumentException if windowSamples is negative or a time window is already set
+	 */
+	public void setWindowSamples(int windowSamples) {
+		if (windowSamples < 0) {
+			throw new IllegalArgumentException("Window size cannot be negative");
+		}
+		if (windowSamples > 0 && windowMillis > 0) {
+			throw new IllegalArgumentException("A window is either a number of samples or a time span, not both");
+		}
+		this.windowSamples = windowSamples;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @param windowMillis is how many milliseconds of the latest values the metric keeps, 0 to keep them all
+	 * @throws IllegalArgumentException if windowMillis is negative or a sample window is already set
+	 */
+	public void setWindowMillis(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("Window size cannot be negative");
+		}
+		if (windowMillis > 0 && windowSamples > 0) {
+			throw new IllegalArgumentException("A window is either a number of samples or a time span, not both");
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	public boolean isWindowed() {
+		return windowSamples > 0 || windowMillis > 0;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * @param maxAgeMillis is how long values are kept after the time they were measured at, 0 to keep them forever
+	 * @throws IllegalArgumentException if maxAgeMillis is negative
+	 */
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		if (maxAgeMillis < 0) {
+			throw new IllegalArgumentException("Retention cannot be negative");
+		}
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	public long getMaxSamples() {
+		return maxSamples;
+	}
+
+	/**
+	 * @param maxSamples is how many values are kept, 0 for no limit
+	 * @throws IllegalArgumentException if maxSamples is negative
+	 */
+	public void setMaxSamples(long maxSamples) {
+		if (maxSamples < 0) {
+			throw new IllegalArgumentException("Retention cannot be negative");
+		}
+		this.maxSamples = maxSamples;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes is roughly how much memory the values and their time partitions may take, 0 for no limit
+	 * @throws IllegalArgumentException if maxBytes is negative
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Retention cannot be negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isRollups() {
+		return rollups;
+	}
+
+	public void setRollups(boolean rollups) {
+		this.rollups = rollups;
+	}
+
+	public boolean isTimeIndex() {
+		return timeIndex;
+	}
+
+	public void setTimeIndex(boolean timeIndex) {
+		this.timeIndex = timeIndex;
+	}
+
+	/**
+	 * @return true if the time partitions keep every sample with its timestamp, false if they only keep running
+	 * statistics, or a t-digest for SKETCH storage
+	 */
+	public boolean keepsSamplesByTime() {
+		if (storageType == StorageType.SKETCH) {
+			return false;
+		}
+		return timeIndex || storageType == StorageType.COMPRESSED || hasRetention();
+	}
+
+	/**
+	 * @return true if the time partitions of a SKETCH metric keep a t-digest each, false if they only keep
+	 * running statistics
+	 */
+	public boolean keepsPartitionDigests() {
+		return storageType == StorageType.SKETCH && (timeIndex || hasRetention());
+	}
+
+	/**
+	 * <p>This method tells callers whether raw values and ranks of a metric with this config can be read,
+	 * so they check before asking for them rather than catching the failure
+	 * </p>
+	 * @return false if the metric only keeps a sketch, either by storage or by a time window
+	 */
+	public boolean keepsRawValues() {
+		if (windowMillis > 0) {
+			return false;
+		}
+		return windowSamples > 0 || storageType.keepsRawValues();
+	}
+
+	public boolean hasRetention() {
+		return maxAgeMillis > 0 || maxSamples > 0 || maxBytes > 0;
+	}
+
+	/**
+	 * @param snapshots is what a window of this config saved in a snapshot, empty for a new window
+	 * @return a sliding window, null if the metric is not windowed
+	 */
+	ISlidingWindow newWindow(List<TimePartitionSnapshot> snapshots) {
+		if (windowSamples > 0) {
+			return new CountWindow(windowSamples, snapshots);
+		}
+		if (windowMillis > 0) {
+			return new TimeWindow(windowMillis, compression, snapshots);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,628 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Everything the repository keeps for one metric: the sorted values, the running statistics
+ * that are updated alongside them and a time index for statistics over a time range.
+ * </p>
+ * All access goes through synchronized methods so the series and the statistics always agree.
+ * With STRIPED write mode values first land in a StripedWriteBuffer without taking the metric lock,
+ * and every read merges the buffer in before answering.
+ *
+ * Changes are handed to the repository journals inside the same critical section that applies them,
+ * so lastSequence always matches the values held. Waiting for a journal to make them durable happens after
+ * the lock is released.
+ *
+ * A metric restored from a snapshot reads from a MappedSeries until it is warmed up or first written to,
+ * at which point the values are copied into the configured series.
+ *
+ * Retention limits are enforced by compact(), called from a background compactor rather than the write path,
+ * which drops whole time partitions so the series, running statistics and time index stay in agreement.
+ * A COMPRESSED metric keeps its values only in the time index, its series is a sorted view over the partitions.
+ *
+ * A windowed metric keeps an ISlidingWindow in place of the series, running statistics and time index,
+ * and answers every statistic from the window as of the time it is asked.
+ */
+class MetricData {
+
+	private final String name;
+	private final MetricConfig config;
+	private final MetricsJournals journals;
+	private IMetricSeries series;
+	private RunningStatistics statistics;
+	private final TimeIndex timeIndex;
+	private final ISlidingWindow window;
+	private final StripedWriteBuffer writeBuffer;
+	private long lastSequence;
+	// changes journaled at or before this sequence are already in the snapshot the metric was restored from
+	private final long restoredThrough;
+
+	MetricData(String name, MetricConfig config, MetricsJournals journals) {
+		this.name = name;
+		this.config = config;
+		this.journals = journals;
+		this.window = config.newWindow(Collections.<TimePartitionSnapshot>emptyList());
+		this.statistics = new RunningStatistics();
+		this.timeIndex = window == null ? new TimeIndex(config) : null;
+		this.series = window == null ? newSeries() : null;
+		this.writeBuffer = config.getWriteMode() == WriteMode.STRIPED ? new StripedWriteBuffer() : null;
+		this.restoredThrough = 0;
+	}
+
+	/**
+	 * @param snapshot is a MetricSnapshot, raw values are read from its buffer in place
+	 * @param journals is the MetricsJournals of the owning repository
+	 */
+	MetricData(MetricSnapshot snapshot, MetricsJournals journals) {
+		this.name = snapshot.getName();
+		this.config = new MetricConfig(snapshot.getConfig());
+		this.journals = journals;
+		this.statistics = snapshot.getStatistics();
+		List<TimePartitionSnapshot> partitions = snapshot.getPartitions() == null
+				? Collections.<TimePartitionSnapshot>emptyList() : snapshot.getPartitions();
+		if (partitions.isEmpty() && statistics.getCount() > 0) {
+			// written before time partitions, the values are placed at the epoch as the log does for them
+			LongBuffer timestamps = snapshot.getWeights() == null ? LongBuffer.allocate(snapshot.getValues().limit()) : null;
+			partitions = Collections.singletonList(new TimePartitionSnapshot(0, statistics.copy(), timestamps,
+					snapshot.getValues(), snapshot.getWeights()));
+		}
+		this.window = config.newWindow(partitions);
+		this.timeIndex = window == null ? new TimeIndex(config, partitions, snapshot.getRollups() == null
+				? Collections.<TimePartitionSnapshot>emptyList() : snapshot.getRollups()) : null;
+		this.writeBuffer = config.getWriteMode() == WriteMode.STRIPED ? new StripedWriteBuffer() : null;
+		this.lastSequence = snapshot.getLastSequence();
+		this.restoredThrough = snapshot.getLastSequence();
+
+		if (window != null) {
+			this.series = null;
+		} else if (config.getStorageType() == StorageType.COMPRESSED) {
+			// the values are restored with the partitions, the snapshot holds no column of them
+			this.series = newSeries();
+		} else if (snapshot.getWeights() != null) {
+			TDigest digest = TDigest.fromCentroids(config.getCompression(), MappedSeries.copyOf(snapshot.getValues()),
+					MappedSeries.copyOf(snapshot.getWeights()), statistics.getMinimum(), statistics.getMaximum());
+			this.series = new SketchSeries(digest);
+		} else {
+			this.series = new MappedSeries(snapshot.getValues());
+		}
+	}
+
+	MetricConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * @param value is a double
+	 * @param timestamp is when the value was measured, epoch milliseconds
+	 *
+	 * Big O(series insert + log partitions), O(constant) amortized in STRIPED write mode
+	 */
+	void add(double value, long timestamp) {
+		if (writeBuffer != null) {
+			// nothing checks a buffered value until the next drain, by when it is journaled and cannot be refused
+			checkValue(value);
+			StripedWriteBuffer.Stripe stripe = writeBuffer.acquireStripe();
+			boolean full;
+			long sequence;
+			try {
+				full = stripe.append(value, timestamp);
+				sequence = journals.dataAdded(name, value, timestamp);
+				stripe.lastSequence = Math.max(stripe.lastSequence, sequence);
+			} finally {
+				stripe.unlock();
+			}
+
+			if (full) {
+				drainWriteBuffer();
+			}
+			journals.awaitDurable(sequence);
+			return;
+		}
+
+		long sequence;
+		synchronized (this) {
+			if (window != null) {
+				window.add(timestamp, value);
+			} else {
+				warmUp();
+				if (seriesTakesValues()) {
+					series.add(value);
+				}
+				statistics.add(value);
+				timeIndex.add(timestamp, value);
+			}
+			sequence = journals.dataAdded(name, value, timestamp);
+			lastSequence = Math.max(lastSequence, sequence);
+		}
+		journals.awaitDurable(sequence);
+	}
+
+	/**
+	 * <p>This method adds a batch of values. The batch is sorted outside the lock and merged
+	 * into the series in one pass under it.
+	 * </p>
+	 * @param values is a double array in any order, it is not changed
+	 * @param timestamps is a long array of epoch milliseconds, one per value, it is not changed
+	 *
+	 * Big O(m log m) to sort plus one merge pass
+	 */
+	void addAll(double[] values, long[] timestamps) {
+		if (writeBuffer != null) {
+			for (double value : values) {
+				checkValue(value);
+			}
+			StripedWriteBuffer.Stripe stripe = writeBuffer.acquireStripe();
+			boolean full;
+			long sequence;
+			try {
+				full = stripe.appendAll(values, timestamps);
+				sequence = journals.dataAdded(name, values, timestamps);
+				stripe.lastSequence = Math.max(stripe.lastSequence, sequence);
+			} finally {
+				stripe.unlock();
+			}
+
+			if (full) {
+				drainWriteBuffer();
+			}
+			journals.awaitDurable(sequence);
+			return;
+		}
+
+		long sequence;
+		if (window != null) {
+			synchronized (this) {
+				window.addAll(timestamps, values);
+				sequence = journals.dataAdded(name, values, timestamps);
+				lastSequence = Math.max(lastSequence, sequence);
+			}
+			journals.awaitDurable(sequence);
+			return;
+		}
+
+		double[] sortedValues = Arrays.copyOf(values, values.length);
+		Arrays.sort(sortedValues);
+
+		synchronized (this) {
+			mergeSorted(sortedValues);
+			timeIndex.addAll(timestamps, values);
+			sequence = journals.dataAdded(name, values, timestamps);
+			lastSequence = Math.max(lastSequence, sequence);
+		}
+		journals.awaitDurable(sequence);
+	}
+
+	/**
+	 * <p>This method checks a value before it is stored. NaN has no place in a sorted series and an infinite value
+	 * turns the running sum into NaN, so neither is accepted by any storage.
+	 * </p>
+	 * @param value is a double
+	 * @throws IllegalArgumentException if value is NaN or infinite
+	 */
+	static void checkValue(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException("Data must be a finite number");
+		}
+	}
+
+	/**
+	 * <p>This method adds values that were journaled before, e.g. while replaying a log. Nothing is journaled
+	 * again, and values already in the snapshot this metric was restored from are skipped.
+	 * </p>
+	 * @param sequence is the sequence number the values were journaled with
+	 * @param values is a double array in any order, it is not changed
+	 * @param timestamps is a long array of epoch milliseconds, one per value
+	 */
+	void restore(long sequence, double[] values, long[] timestamps) {
+		if (sequence <= restoredThrough) {
+			return;
+		}
+
+		if (window != null) {
+			synchronized (this) {
+				drainWriteBuffer();
+				window.addAll(timestamps, values);
+				lastSequence = Math.max(lastSequence, sequence);
+			}
+			return;
+		}
+
+		double[] sortedValues = Arrays.copyOf(values, values.length);
+		Arrays.sort(sortedValues);
+
+		synchronized (this) {
+			drainWriteBuffer();
+			mergeSorted(sortedValues);
+			timeIndex.addAll(timestamps, values);
+			lastSequence = Math.max(lastSequence, sequence);
+		}
+	}
+
+	/**
+	 * <p>This method copies values read from a snapshot into the configured series, so later writes
+	 * do not have to
+	 * </p>
+	 * @return true if the metric was still reading from the snapshot
+	 *
+	 * Big O(n) once, O(constant) after
+	 */
+	synchronized boolean warmUp() {
+		if (!(series instanceof MappedSeries)) {
+			return false;
+		}
+
+		IMetricSeries warmed = newSeries();
+		warmed.addAll(series.toArray());
+		series = warmed;
+		return true;
+	}
+
+	private IMetricSeries newSeries() {
+		return config.getStorageType().newSeries(config, timeIndex);
+	}
+
+	/**
+	 * @return false for COMPRESSED storage, whose series is a view over the time index and takes no values itself
+	 */
+	private boolean seriesTakesValues() {
+		return !(series instanceof CompressedSeries);
+	}
+
+	/**
+	 * <p>This method captures the metric for a snapshot under one acquisition of the metric lock
+	 * </p>
+	 * @return MetricSnapshot holding copies of the values and statistics
+	 *
+	 * Big O(n) for raw storage, O(compression) for sketch storage
+	 */
+	synchronized MetricSnapshot snapshot() {
+		drainWriteBuffer();
+
+		if (window != null) {
+			return new MetricSnapshot(name, new MetricConfig(config), lastSequence,
+					window.getStatistics(System.currentTimeMillis()), DoubleBuffer.allocate(0), null, window.snapshot(),
+					Collections.<TimePartitionSnapshot>emptyList());
+		}
+
+		RunningStatistics copy = statistics.copy();
+
+		if (series instanceof SketchSeries) {
+			TDigest digest = ((SketchSeries) series).getDigest();
+			return new MetricSnapshot(name, new MetricConfig(config), lastSequence, copy,
+					DoubleBuffer.wrap(digest.centroidMeans()), DoubleBuffer.wrap(digest.centroidWeights()),
+					timeIndex.snapshot(), timeIndex.snapshotRollups());
+		}
+
+		// a compressed series is decoded from the partitions, which are saved anyway
+		DoubleBuffer values = seriesTakesValues() ? DoubleBuffer.wrap(series.toArray()) : DoubleBuffer.allocate(0);
+		return new MetricSnapshot(name, new MetricConfig(config), lastSequence, copy, values, null,
+				timeIndex.snapshot(), timeIndex.snapshotRollups());
+	}
+
+	/**
+	 * <p>This method drops the oldest time partitions until the metric is back within its retention limits,
+	 * and takes their values out of the series and the running statistics in one pass. Rollups past the horizon
+	 * of their tier are dropped as well.
+	 * </p>
+	 * @param now is the time ages are measured from, epoch milliseconds
+	 * @return number of values dropped
+	 *
+	 * Big O(n + m log m) for the m values dropped from raw storage, O(partitions * compression) for sketch storage
+	 */
+	synchronized long compact(long now) {
+		if (window != null) {
+			return 0;
+		}
+
+		drainWriteBuffer();
+		timeIndex.compact(now);
+
+		if (!config.hasRetention()) {
+			return 0;
+		}
+
+		long count = statistics.getCount();
+		// a compressed series reports the partitions the time index already counts
+		long seriesBytes = seriesTakesValues() ? series.sizeInBytes() : 0;
+		long bytes = seriesBytes + timeIndex.sizeInBytes();
+		double seriesBytesPerValue = series.size() == 0 ? 0 : (double) seriesBytes / series.size();
+		int expired = 0;
+
+		for (TimePartition partition : timeIndex.partitions()) {
+			boolean tooOld = config.getMaxAgeMillis() > 0
+					&& partition.getStart() + config.getPartitionMillis() <= now - config.getMaxAgeMillis();
+			boolean tooMany = config.getMaxSamples() > 0 && count > config.getMaxSamples();
+			boolean tooLarge = config.getMaxBytes() > 0 && bytes > config.getMaxBytes();
+
+			if (!tooOld && !tooMany && !tooLarge) {
+				break;
+			}
+
+			long partitionCount = partition.getStatistics().getCount();
+			count -= partitionCount;
+			bytes -= partition.sizeInBytes() + (long) (partitionCount * seriesBytesPerValue);
+			expired++;
+		}
+
+		if (expired == 0) {
+			return 0;
+		}
+
+		warmUp();
+		List<TimePartition> removed = timeIndex.removeOldest(expired);
+		long removedCount = statistics.getCount();
+		statistics = timeIndex.getStatistics();
+		removedCount -= statistics.getCount();
+
+		if (series instanceof SketchSeries) {
+			series = new SketchSeries(timeIndex.getDigest());
+			return removedCount;
+		}
+
+		if (!seriesTakesValues()) {
+			// the values left with their partitions
+			return removedCount;
+		}
+
+		double[] removedValues = new double[(int) removedCount];
+		int next = 0;
+		for (TimePartition partition : removed) {
+			double[] partitionValues = partition.copyOfValues();
+			System.arraycopy(partitionValues, 0, removedValues, next, partitionValues.length);
+			next += partitionValues.length;
+		}
+		Arrays.sort(removedValues);
+		series.removeAll(removedValues);
+
+		return removedCount;
+	}
+
+	void setLastSequence(long sequence) {
+		lastSequence = sequence;
+	}
+
+	/**
+	 * @return sequence number of the last journaled change applied to this metric, 0 if none
+	 */
+	synchronized long getLastSequence() {
+		drainWriteBuffer();
+		return lastSequence;
+	}
+
+	/**
+	 * <p>This method moves values buffered by STRIPED writers into the sorted series. Values are checked by add
+	 * and addAll before they reach a stripe, so nothing drained can be refused here.
+	 * </p>
+	 * Big O(m log m) to sort the buffered values plus one merge pass
+	 */
+	synchronized void drainWriteBuffer() {
+		if (writeBuffer == null) {
+			return;
+		}
+
+		StripedWriteBuffer.Drained drained = writeBuffer.drain();
+		if (drained.values.length > 0 && window != null) {
+			window.addAll(drained.timestamps, drained.values);
+		} else if (drained.values.length > 0) {
+			double[] sortedValues = Arrays.copyOf(drained.values, drained.values.length);
+			Arrays.sort(sortedValues);
+			mergeSorted(sortedValues);
+			timeIndex.addAll(drained.timestamps, drained.values);
+		}
+		lastSequence = Math.max(lastSequence, drained.lastSequence);
+	}
+
+	private void mergeSorted(double[] sortedValues) {
+		warmUp();
+		if (seriesTakesValues()) {
+			series.addAll(sortedValues);
+		}
+		for (double value : sortedValues) {
+			statistics.add(value);
+		}
+	}
+
+	synchronized long getCount() {
+		drainWriteBuffer();
+		return currentStatistics().getCount();
+	}
+
+	synchronized double getMean() {
+		drainWriteBuffer();
+		return currentStatistics().getMean();
+	}
+
+	synchronized double getVariance() {
+		drainWriteBuffer();
+		return currentStatistics().getVariance();
+	}
+
+	synchronized double getStandardDeviation() {
+		drainWriteBuffer();
+		return currentStatistics().getStandardDeviation();
+	}
+
+	synchronized double getMinimum() {
+		drainWriteBuffer();
+		return currentStatistics().getMinimum();
+	}
+
+	synchronized double getMaximum() {
+		drainWriteBuffer();
+		return currentStatistics().getMaximum();
+	}
+
+	/**
+	 * @return median of the values. If there is an even amount of values, the average of the 2 center values.
+	 * If there are no values, 0.
+	 */
+	synchronized double getMedian() {
+		drainWriteBuffer();
+		return currentSeries().quantile(0.5);
+	}
+
+	/**
+	 * @param quantile is a double between 0 and 1
+	 * @return value at the quantile, an estimate for sketch storage. If there are no values, 0.
+	 */
+	synchronized double getQuantile(double quantile) {
+		drainWriteBuffer();
+		return currentSeries().quantile(quantile);
+	}
+
+	/**
+	 * <p>This method answers several statistics under one acquisition of the metric lock,
+	 * so they all describe the same set of values
+	 * </p>
+	 * @param statistics is a List of Statistic
+	 * @return statistic name to value, in the order asked for
+	 */
+	synchronized Map<String, Double> getStatistics(List<Statistic> statistics) {
+		drainWriteBuffer();
+		Map<String, Double> results = new LinkedHashMap<>();
+		RunningStatistics runningStatistics = currentStatistics();
+		IMetricSeries rankedSeries = currentSeries();
+
+		for (Statistic statistic : statistics) {
+			results.put(statistic.getName(), statistic.valueOf(runningStatistics, rankedSeries));
+		}
+
+		return results;
+	}
+
+	/**
+	 * <p>This method answers several statistics over the values measured between from and to
+	 * </p>
+	 * @param statistics is a List of Statistic
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return statistic name to value, in the order asked for
+	 * @throws IllegalArgumentException if the metric is windowed and keeps no time index, or if a rank based
+	 * statistic is asked for over a narrower range than all time and the metric keeps neither samples by time
+	 * nor rollups
+	 */
+	synchronized Map<String, Double> getStatistics(List<Statistic> statistics, long from, long to) {
+		if (window != null) {
+			throw new IllegalArgumentException("Metric: " + name + " keeps a sliding window and cannot answer time ranges");
+		}
+
+		drainWriteBuffer();
+		if (!timeIndex.answersRanks() && statistics.stream().anyMatch(Statistic::isRankBased)) {
+			if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+				return getStatistics(statistics);
+			}
+			throw new IllegalArgumentException("Metric: " + name + " keeps no samples by time and cannot answer "
+					+ "median or percentiles over a time range, create it with timeIndex or rollups");
+		}
+		return timeIndex.getStatistics(statistics, from, to);
+	}
+
+	/**
+	 * <p>This method summarizes the values measured between from and to, a windowed metric summarizes its window
+	 * </p>
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return MetricSummary of the values
+	 * @throws IllegalArgumentException if a range narrower than all time is asked for and the metric is windowed,
+	 * or keeps neither samples by time nor rollups
+	 *
+	 * Big O(partitions in range * compression) under the lock, plus a copy of the raw values that are not already
+	 * summarized by a digest. Those values are read into digests once the lock is released, O(m log compression)
+	 * over the m copied values
+	 */
+	MetricSummary summarize(long from, long to) {
+		TimeIndex.SummaryPlan plan;
+		RunningStatistics rankedStatistics;
+		TDigest digest = new TDigest(config.getCompression());
+		double[] values = null;
+
+		synchronized (this) {
+			drainWriteBuffer();
+			boolean allTime = from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+
+			if (window == null && timeIndex.answersRanks()) {
+				plan = timeIndex.planSummary(from, to);
+				rankedStatistics = null;
+			} else if (!allTime) {
+				throw new IllegalArgumentException("Metric: " + name + (window != null ? " keeps a sliding window"
+						: " keeps no samples by time") + " and cannot answer time ranges");
+			} else {
+				plan = null;
+				long now = System.currentTimeMillis();
+				IMetricSeries rankedSeries = window != null ? window.getSeries(now) : series;
+				rankedStatistics = (window != null ? window.getStatistics(now) : statistics).copy();
+				if (rankedSeries instanceof SketchSeries) {
+					digest.merge(((SketchSeries) rankedSeries).getDigest());
+				} else {
+					values = rankedSeries.toArray();
+				}
+			}
+		}
+
+		if (plan == null) {
+			if (values != null) {
+				for (double value : values) {
+					digest.add(value);
+				}
+			}
+			return new MetricSummary(rankedStatistics, digest);
+		}
+
+		MetricSummary summary = plan.summarize();
+		synchronized (this) {
+			plan.cacheDigests();
+		}
+		return summary;
+	}
+
+	/**
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @param cursorStart is the start of the partition to resume in, Long.MIN_VALUE for the first page
+	 * @param cursorOffset is the position to resume at within that partition
+	 * @param limit is the most samples the page reads
+	 * @return a MetricExport of the samples between from and to, fixed as of now
+	 * @throws IllegalArgumentException if the metric is windowed or keeps no samples by time
+	 *
+	 * Big O(partitions in range) under the lock, no sample is copied
+	 */
+	synchronized MetricExport export(long from, long to, long cursorStart, int cursorOffset, long limit) {
+		if (window != null) {
+			throw new IllegalArgumentException("Metric: " + name + " keeps a sliding window and cannot be exported");
+		}
+		if (!timeIndex.keepsSamples()) {
+			throw new IllegalArgumentException("Metric: " + name + " keeps no samples by time and cannot be exported, "
+					+ "create it with timeIndex");
+		}
+
+		drainWriteBuffer();
+		long resumeFrom = Math.max(from, cursorStart);
+		Iterable<TimePartition> partitions = resumeFrom > to
+				? Collections.<TimePartition>emptyList() : timeIndex.overlapping(resumeFrom, to);
+		return new MetricExport(this, partitions, from, to, cursorStart, cursorOffset, limit);
+	}
+
+	boolean keepsRawValues() {
+		return config.keepsRawValues();
+	}
+
+	synchronized double[] toArray() {
+		drainWriteBuffer();
+		return currentSeries().toArray();
+	}
+
+	private RunningStatistics currentStatistics() {
+		return window != null ? window.getStatistics(System.currentTimeMillis()) : statistics;
+	}
+
+	private IMetricSeries currentSeries() {
+		return window != null ? window.getSeries(System.currentTimeMillis()) : series;
+	}
+}
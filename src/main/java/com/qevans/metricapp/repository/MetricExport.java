@@ -0,0 +1,173 @@
+package com.qevans.metricapp.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>One page of the samples of a metric measured between two times, read in time partition order and in
+ * arrival order within a partition.
+ * </p>
+ * The page is fixed when it is created: the time partitions it spans and how many samples each held, taken under
+ * one acquisition of the metric lock without copying a value. Partitions only ever have samples appended and
+ * retention drops whole partitions, so the page reads the same samples however long it takes and whatever is
+ * written meanwhile. Samples are then copied one partition at a time, each under a short hold of the metric lock,
+ * so memory is bounded by the largest partition and writers are never blocked for the whole export.
+ *
+ * The cursor of the next page is known up front: it names the partition and position the page stops at, and the
+ * range the export was started with, so every page reads the same range. Not thread safe.
+ */
+public class MetricExport {
+
+	private final Object lock;
+	private final long from;
+	private final long to;
+	private final List<Slice> slices;
+	private final String nextCursor;
+
+	private int sliceIndex;
+	private long[] timestamps = new long[0];
+	private double[] values = new double[0];
+	private int position;
+	private int loaded;
+
+	/**
+	 * @param lock is the object writers of the metric synchronize on
+	 * @param partitions is every partition that may hold samples in range, oldest first, read under lock
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @param cursorStart is the start of the partition to resume in, Long.MIN_VALUE for the first page
+	 * @param cursorOffset is the position to resume at within that partition
+	 * @param limit is the most samples the page reads, samples outside the range at its edges count as read
+	 */
+	MetricExport(Object lock, Iterable<TimePartition> partitions, long from, long to, long cursorStart,
+			int cursorOffset, long limit) {
+		this.lock = lock;
+		this.from = from;
+		this.to = to;
+		this.slices = new ArrayList<>();
+
+		String cursor = null;
+		long remaining = limit;
+		for (TimePartition partition : partitions) {
+			if (partition.getStart() < cursorStart || partition.getDigest() != null) {
+				continue;
+			}
+
+			int offset = partition.getStart() == cursorStart ? Math.min(cursorOffset, partition.size()) : 0;
+			int end = partition.size();
+			if (end - offset > remaining) {
+				end = offset + (int) remaining;
+				cursor = toCursor(from, to, partition.getStart(), end);
+			}
+
+			if (end > offset) {
+				slices.add(new Slice(partition, offset, end));
+			}
+			remaining -= end - offset;
+
+			if (cursor != null) {
+				break;
+			}
+		}
+		this.nextCursor = cursor;
+	}
+
+	/**
+	 * @return cursor to pass back for the next page, null if this page reaches the end of the range
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * <p>This method copies the next samples of the page
+	 * </p>
+	 * @param timestampsOut is a long array the samples are copied into from index 0
+	 * @param valuesOut is a double array the same length as timestampsOut
+	 * @return how many samples were copied, 0 once the page is read
+	 *
+	 * Big O(samples copied), plus O(samples of a partition) under the metric lock each time a partition is reached
+	 */
+	public int read(long[] timestampsOut, double[] valuesOut) {
+		int copied = 0;
+
+		while (copied < timestampsOut.length) {
+			if (position == loaded && !loadNextSlice()) {
+				break;
+			}
+
+			long timestamp = timestamps[position];
+			if (timestamp >= from && timestamp <= to) {
+				timestampsOut[copied] = timestamp;
+				valuesOut[copied++] = values[position];
+			}
+			position++;
+		}
+
+		return copied;
+	}
+
+	private boolean loadNextSlice() {
+		if (sliceIndex == slices.size()) {
+			return false;
+		}
+
+		Slice slice = slices.get(sliceIndex++);
+		if (timestamps.length < slice.end) {
+			timestamps = new long[slice.end];
+			values = new double[slice.end];
+		}
+
+		synchronized (lock) {
+			slice.partition.copyTo(timestamps, values, slice.end);
+		}
+		position = slice.offset;
+		loaded = slice.end;
+		return true;
+	}
+
+	static String toCursor(long from, long to, long partitionStart, int offset) {
+		return from + ":" + to + ":" + partitionStart + ":" + offset;
+	}
+
+	/**
+	 * @param cursor is a cursor returned by getNextCursor
+	 * @return from, to, partition start and offset
+	 * @throws IllegalArgumentException if cursor was not returned by getNextCursor
+	 */
+	static long[] parseCursor(String cursor) {
+		String[] parts = cursor.split(":");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Cursor: " + cursor + " is not valid.");
+		}
+
+		try {
+			long[] parsed = new long[4];
+			for (int index = 0; index < 4; index++) {
+				parsed[index] = Long.parseLong(parts[index]);
+			}
+			if (parsed[0] > parsed[1] || parsed[3] < 0 || parsed[3] > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Cursor: " + cursor + " is not valid.");
+			}
+			return parsed;
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Cursor: " + cursor + " is not valid.");
+		}
+	}
+
+	/**
+	 * Positions [offset, end) of one partition.
+	 */
+	private static final class Slice {
+
+		final TimePartition partition;
+		final int offset;
+		final int end;
+
+		Slice(TimePartition partition, int offset, int end) {
+			this.partition = partition;
+			this.offset = offset;
+			this.end = end;
+		}
+	}
+}
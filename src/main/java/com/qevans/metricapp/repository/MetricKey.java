@@ -0,0 +1,161 @@
+package com.qevans.metricapp.repository;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>Name and tags of a labeled metric, kept in the repository under the key name{key=value,key=value}.
+ * </p>
+ * The key is an ordinary metric name everywhere else, so labeled metrics are logged, snapshotted, replicated
+ * and routed like any other. Tags are written sorted by key so one set of tags always makes the same key.
+ * A name that does not end in a valid tag list is a metric without tags.
+ */
+public final class MetricKey {
+
+	private final String name;
+	private final SortedMap<String, String> tags;
+
+	private MetricKey(String name, SortedMap<String, String> tags) {
+		this.name = name;
+		this.tags = Collections.unmodifiableSortedMap(tags);
+	}
+
+	/**
+	 * @param name is the metric name without tags
+	 * @param tags is a Map of tag key to value, may be empty
+	 * @return the key the metric is stored under, name itself if there are no tags
+	 * @throws IllegalArgumentException if name is null or empty or holds {, or a tag key or value is empty or
+	 * holds one of {}=,
+	 */
+	public static String format(String name, Map<String, String> tags) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Metric cannot be null or empty.");
+		}
+
+		if (name.indexOf('{') >= 0) {
+			throw new IllegalArgumentException("Metric: " + name + " cannot hold {.");
+		}
+
+		if (tags == null || tags.isEmpty()) {
+			return name;
+		}
+
+		StringBuilder key = new StringBuilder(name).append('{');
+		for (Map.Entry<String, String> tag : new TreeMap<>(tags).entrySet()) {
+			if (!isValid(tag.getKey()) || !isValid(tag.getValue())) {
+				throw new IllegalArgumentException("Tag: " + tag.getKey() + "=" + tag.getValue()
+						+ " must have a key and value without {}=,");
+			}
+			key.append(tag.getKey()).append('=').append(tag.getValue()).append(',');
+		}
+		key.setCharAt(key.length() - 1, '}');
+		return key.toString();
+	}
+
+	/**
+	 * @param key is a metric key, e.g. latency{region=us,service=api}
+	 * @return its name and tags, the whole key with no tags if it does not end in a valid tag list
+	 * @throws IllegalArgumentException if key is null
+	 *
+	 * Big O(length of key)
+	 */
+	public static MetricKey parse(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Metric cannot be null");
+		}
+
+		int open = key.indexOf('{');
+		if (open <= 0 || !key.endsWith("}") || open == key.length() - 2) {
+			return new MetricKey(key, new TreeMap<>());
+		}
+
+		SortedMap<String, String> tags = new TreeMap<>();
+		for (String pair : key.substring(open + 1, key.length() - 1).split(",", -1)) {
+			int equals = pair.indexOf('=');
+			if (equals < 0) {
+				return new MetricKey(key, new TreeMap<>());
+			}
+			String tagKey = pair.substring(0, equals);
+			String tagValue = pair.substring(equals + 1);
+			if (!isValid(tagKey) || !isValid(tagValue) || tags.put(tagKey, tagValue) != null) {
+				return new MetricKey(key, new TreeMap<>());
+			}
+		}
+		return new MetricKey(key.substring(0, open), tags);
+	}
+
+	/**
+	 * @param key is a metric key, tags in any order
+	 * @return the key the metric is stored under, with its tags sorted, key itself if it has no tags
+	 * @throws IllegalArgumentException if key is null
+	 *
+	 * Big O(constant) for a key without tags, O(length of key) otherwise
+	 */
+	public static String canonical(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Metric cannot be null");
+		}
+		return key.indexOf('{') < 0 ? key : parse(key).toString();
+	}
+
+	/**
+	 * @param selector is a String of key=value pairs separated by commas, e.g. service=api,region=us
+	 * @return tag key to value in the order given, empty if selector is null or empty
+	 * @throws IllegalArgumentException if a pair is not key=value or a key is given twice
+	 */
+	public static Map<String, String> parseTags(String selector) {
+		Map<String, String> tags = new LinkedHashMap<>();
+		if (selector == null || selector.trim().isEmpty()) {
+			return tags;
+		}
+
+		for (String pair : selector.split(",")) {
+			int equals = pair.indexOf('=');
+			String tagKey = equals < 0 ? "" : pair.substring(0, equals).trim();
+			String tagValue = equals < 0 ? "" : pair.substring(equals + 1).trim();
+			if (!isValid(tagKey) || !isValid(tagValue)) {
+				throw new IllegalArgumentException("Tags must be key=value pairs separated by commas");
+			}
+			if (tags.put(tagKey, tagValue) != null) {
+				throw new IllegalArgumentException("Tag: " + tagKey + " is given more than once.");
+			}
+		}
+		return tags;
+	}
+
+	private static boolean isValid(String part) {
+		if (part == null || part.isEmpty()) {
+			return false;
+		}
+
+		for (int index = 0; index < part.length(); index++) {
+			char character = part.charAt(index);
+			if (character == '{' || character == '}' || character == '=' || character == ',') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return tag key to value, sorted by key
+	 */
+	public SortedMap<String, String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return the key the metric is stored under, with tags sorted by key
+	 */
+	@Override
+	public String toString() {
+		return tags.isEmpty() ? name : format(name, tags);
+	}
+}
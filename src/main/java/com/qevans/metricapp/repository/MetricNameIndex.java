@@ -0,0 +1,263 @@
+package com.qevans.metricapp.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Radix trie over metric names, so the metrics under a prefix are found without looking at every name.
+ * </p>
+ * A run of characters with no branch is kept as one node labelled with the whole run, so a node is only made
+ * where names part ways and metrics sharing a long prefix like service.region.host cost a node per name rather
+ * than one per character. Each node keeps its children in a sorted char array of the first character of their
+ * labels, searched by binary search, so names come out in sorted order. Names are only ever added, or all cleared
+ * at once, which matches how metrics come and go in the repository.
+ *
+ * Thread safe, lookups share a read lock and adds take the write lock.
+ */
+class MetricNameIndex {
+
+	private static final char[] NO_KEYS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private Node root = new Node("");
+
+	/**
+	 * @param name is a metric name
+	 *
+	 * Big O(length of name * log(alphabet)), a node whose label the name leaves part way through is split in two
+	 */
+	void add(String name) {
+		lock.writeLock().lock();
+		try {
+			Node node = root;
+			int index = 0;
+			while (index < name.length()) {
+				int slot = node.slotOf(name.charAt(index));
+				if (slot < 0) {
+					node.insert(-slot - 1, new Node(name.substring(index)));
+					node = node.children[-slot - 1];
+					break;
+				}
+
+				Node child = node.children[slot];
+				int common = commonLength(child.label, name, index);
+				if (common < child.label.length()) {
+					// the name leaves the label part way, so the shared part becomes a node of its own
+					Node shared = new Node(child.label.substring(0, common));
+					child.label = child.label.substring(common);
+					shared.insert(0, child);
+					node.children[slot] = shared;
+					child = shared;
+				}
+
+				node = child;
+				index += common;
+			}
+			node.terminal = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			root = new Node("");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>This method finds the names matching a glob pattern, * matching any run of characters and ? any one
+	 * character. Only the names under the literal prefix before the first wildcard are looked at.
+	 * </p>
+	 * @param pattern is a glob pattern like latency.* or a plain name
+	 * @return every name matching pattern, sorted
+	 * @throws IllegalArgumentException if pattern is null or empty
+	 *
+	 * Big O(length of prefix + names under the prefix * their length)
+	 */
+	List<String> matching(String pattern) {
+		if (pattern == null || pattern.isEmpty()) {
+			throw new IllegalArgumentException("Pattern cannot be null or empty");
+		}
+
+		int wildcard = firstWildcard(pattern);
+		if (wildcard == pattern.length()) {
+			List<String> names = new ArrayList<>(1);
+			lock.readLock().lock();
+			try {
+				StringBuilder path = new StringBuilder();
+				Node node = find(pattern, path);
+				if (node != null && node.terminal && path.length() == pattern.length()) {
+					names.add(pattern);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			return names;
+		}
+
+		String prefix = pattern.substring(0, wildcard);
+		// a trailing * alone keeps everything under the prefix, no need to match each name
+		Pattern regex = wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*' ? null : toRegex(pattern);
+
+		List<String> names = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			StringBuilder path = new StringBuilder();
+			Node node = find(prefix, path);
+			if (node != null) {
+				collect(node, path, regex, names);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return names;
+	}
+
+	/**
+	 * @param prefix is a String
+	 * @param path is set to the name of the node found, prefix and then the rest of the label it ends in
+	 * @return the first node whose name starts with prefix, null if no name does
+	 */
+	private Node find(String prefix, StringBuilder path) {
+		Node node = root;
+		int index = 0;
+		while (index < prefix.length()) {
+			int slot = node.slotOf(prefix.charAt(index));
+			if (slot < 0) {
+				return null;
+			}
+
+			node = node.children[slot];
+			int common = commonLength(node.label, prefix, index);
+			if (common < node.label.length() && index + common < prefix.length()) {
+				return null;
+			}
+			path.append(node.label);
+			index += node.label.length();
+		}
+		return node;
+	}
+
+	/**
+	 * @return how many characters label shares with name from offset
+	 */
+	private static int commonLength(String label, String name, int offset) {
+		int length = Math.min(label.length(), name.length() - offset);
+		int common = 0;
+		while (common < length && label.charAt(common) == name.charAt(offset + common)) {
+			common++;
+		}
+		return common;
+	}
+
+	/**
+	 * Walks the subtree of start in key order without recursion, since names may be longer than the stack is deep.
+	 */
+	private static void collect(Node start, StringBuilder name, Pattern regex, List<String> names) {
+		Node[] path = new Node[16];
+		int[] next = new int[16];
+		int depth = 0;
+		path[0] = start;
+		addIfMatches(start, name, regex, names);
+
+		while (depth >= 0) {
+			Node node = path[depth];
+			if (next[depth] < node.size) {
+				int index = next[depth]++;
+				name.append(node.children[index].label);
+				if (++depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+					next = Arrays.copyOf(next, depth * 2);
+				}
+				path[depth] = node.children[index];
+				next[depth] = 0;
+				addIfMatches(path[depth], name, regex, names);
+			} else {
+				if (depth > 0) {
+					name.setLength(name.length() - node.label.length());
+				}
+				depth--;
+			}
+		}
+	}
+
+	private static void addIfMatches(Node node, StringBuilder name, Pattern regex, List<String> names) {
+		if (node.terminal && (regex == null || regex.matcher(name).matches())) {
+			names.add(name.toString());
+		}
+	}
+
+	private static int firstWildcard(String pattern) {
+		for (int index = 0; index < pattern.length(); index++) {
+			char character = pattern.charAt(index);
+			if (character == '*' || character == '?') {
+				return index;
+			}
+		}
+		return pattern.length();
+	}
+
+	private static Pattern toRegex(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		int literalStart = 0;
+		for (int index = 0; index < pattern.length(); index++) {
+			char character = pattern.charAt(index);
+			if (character == '*' || character == '?') {
+				if (index > literalStart) {
+					regex.append(Pattern.quote(pattern.substring(literalStart, index)));
+				}
+				regex.append(character == '*' ? ".*" : ".");
+				literalStart = index + 1;
+			}
+		}
+		if (literalStart < pattern.length()) {
+			regex.append(Pattern.quote(pattern.substring(literalStart)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	private static final class Node {
+
+		// characters from the parent to this node, never empty below the root
+		private String label;
+		// first character of the label of each child
+		private char[] keys = NO_KEYS;
+		private Node[] children = NO_CHILDREN;
+		private int size;
+		private boolean terminal;
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return index of the child whose label starts with key, or -(insertion point) - 1 if there is none
+		 */
+		int slotOf(char key) {
+			return Arrays.binarySearch(keys, 0, size, key);
+		}
+
+		void insert(int insertAt, Node child) {
+			if (size == keys.length) {
+				int capacity = Math.max(2, size * 2);
+				keys = Arrays.copyOf(keys, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(keys, insertAt, keys, insertAt + 1, size - insertAt);
+			System.arraycopy(children, insertAt, children, insertAt + 1, size - insertAt);
+
+			keys[insertAt] = child.label.charAt(0);
+			children[insertAt] = child;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+
+/**
+ * <p>Everything needed to rebuild one metric: its config, statistics, stored values and the sequence number
+ * of the last journaled change they include.
+ * </p>
+ * For raw storage values holds the sorted values and weights is null. For SKETCH storage values holds the
+ * t-digest centroid means and weights their weights. partitions holds the time index of the metric and
+ * rollups the buckets of its rollup tiers, empty if it keeps none.
+ */
+public class MetricSnapshot {
+
+	private final String name;
+	private final MetricConfig config;
+	private final long lastSequence;
+	private final RunningStatistics statistics;
+	private final DoubleBuffer values;
+	private final DoubleBuffer weights;
+	private final List<TimePartitionSnapshot> partitions;
+	private final List<TimePartitionSnapshot> rollups;
+
+	public MetricSnapshot(String name, MetricConfig config, long lastSequence, RunningStatistics statistics,
+			DoubleBuffer values, DoubleBuffer weights, List<TimePartitionSnapshot> partitions,
+			List<TimePartitionSnapshot> rollups) {
+		this.name = name;
+		this.config = config;
+		this.lastSequence = lastSequence;
+		this.statistics = statistics;
+		this.values = values;
+		this.weights = weights;
+		this.partitions = partitions;
+		this.rollups = rollups;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MetricConfig getConfig() {
+		return config;
+	}
+
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	public RunningStatistics getStatistics() {
+		return statistics;
+	}
+
+	public DoubleBuffer getValues() {
+		return values;
+	}
+
+	public DoubleBuffer getWeights() {
+		return weights;
+	}
+
+	public List<TimePartitionSnapshot> getPartitions() {
+		return partitions;
+	}
+
+	public List<TimePartitionSnapshot> getRollups() {
+		return rollups;
+	}
+}
@@ -0,0 +1,124 @@
+package com.qevans.metricapp.repository;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Mergeable summary of a set of values: count, compensated sum, min, max, spread and a t-digest of them.
+ * </p>
+ * Summaries of disjoint sets of values merge into the summary of their union in O(compression), so statistics
+ * over data split across time partitions, metrics or cluster nodes are answered by merging one summary per part
+ * instead of moving the values. Count, mean, min, max, variance and stddev are exact, median and percentiles
+ * are estimates from the merged digest.
+ *
+ * Not thread safe. A summary belongs to the caller it was handed to.
+ */
+public class MetricSummary {
+
+	private final RunningStatistics statistics;
+	private final TDigest digest;
+
+	public MetricSummary() {
+		this(new RunningStatistics(), new TDigest());
+	}
+
+	MetricSummary(RunningStatistics statistics, TDigest digest) {
+		this.statistics = statistics;
+		this.digest = digest;
+	}
+
+	/**
+	 * <p>This method rebuilds a summary sent by another node
+	 * </p>
+	 * @param count is the number of values
+	 * @param sum is the sum of the values
+	 * @param mean is the mean of the values
+	 * @param squaredDifferences is the sum of squared differences from the mean
+	 * @param minimum is the smallest value, ignored if count is 0
+	 * @param maximum is the largest value, ignored if count is 0
+	 * @param compression is the compression of the digest, at least 10
+	 * @param means is a double array of centroid means in ascending order
+	 * @param weights is a double array of centroid weights, the same length as means
+	 * @return summary that merges like the one that was sent
+	 * @throws IllegalArgumentException if compression is less than 10, means or weights is null or they differ in length
+	 */
+	public static MetricSummary restore(long count, double sum, double mean, double squaredDifferences,
+			double minimum, double maximum, double compression, double[] means, double[] weights) {
+		if (means == null || weights == null) {
+			throw new IllegalArgumentException("Means and weights cannot be null");
+		}
+
+		return new MetricSummary(RunningStatistics.restore(count, sum, mean, squaredDifferences, minimum, maximum),
+				TDigest.fromCentroids(compression, means, weights, minimum, maximum));
+	}
+
+	/**
+	 * <p>This method folds another summary into this one, the result summarizes both sets of values
+	 * </p>
+	 * @param other is a MetricSummary of values not already in this one, it is not changed
+	 *
+	 * Big O(compression)
+	 */
+	public void merge(MetricSummary other) {
+		statistics.merge(other.statistics);
+		digest.merge(other.digest);
+	}
+
+	/**
+	 * @param statistics is a List of Statistic
+	 * @return statistic name to value, in the order asked for. If the summary is empty, every value is 0.
+	 *
+	 * Big O(compression) for median and percentiles, O(constant) for the others
+	 */
+	public Map<String, Double> getStatistics(List<Statistic> statistics) {
+		IMetricSeries series = new SketchSeries(digest);
+		Map<String, Double> results = new LinkedHashMap<>();
+		for (Statistic statistic : statistics) {
+			results.put(statistic.getName(), statistic.valueOf(this.statistics, series));
+		}
+		return results;
+	}
+
+	public long getCount() {
+		return statistics.getCount();
+	}
+
+	public double getSum() {
+		return statistics.getSum();
+	}
+
+	public double getMean() {
+		return statistics.getMean();
+	}
+
+	public double getSquaredDifferences() {
+		return statistics.getSquaredDifferences();
+	}
+
+	public double getMinimum() {
+		return statistics.getMinimum();
+	}
+
+	public double getMaximum() {
+		return statistics.getMaximum();
+	}
+
+	public double getCompression() {
+		return digest.getCompression();
+	}
+
+	/**
+	 * @return centroid means of the digest in ascending order
+	 */
+	public double[] getCentroidMeans() {
+		return digest.centroidMeans();
+	}
+
+	/**
+	 * @return centroid weights of the digest in the order of getCentroidMeans
+	 */
+	public double[] getCentroidWeights() {
+		return digest.centroidWeights();
+	}
+}
@@ -0,0 +1,93 @@
+package com.qevans.metricapp.repository;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The journals attached to a repository and the sequence number handed to them.
+ * </p>
+ * When no journal is attached nothing is counted, so the write path does not share a counter between cores
+ * unless something needs it.
+ */
+class MetricsJournals {
+
+	private final List<IMetricsJournal> journals = new CopyOnWriteArrayList<>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	void add(IMetricsJournal journal) {
+		journals.add(journal);
+	}
+
+	boolean remove(IMetricsJournal journal) {
+		return journals.remove(journal);
+	}
+
+	long getLastSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * Moves the sequence forward to at least the given value, used when changes are restored from a log.
+	 */
+	void advanceTo(long restoredSequence) {
+		long current = sequence.get();
+		while (current < restoredSequence && !sequence.compareAndSet(current, restoredSequence)) {
+			current = sequence.get();
+		}
+	}
+
+	/**
+	 * Waits until every journal holds a change durably, called with no lock held. Does nothing for sequence 0.
+	 */
+	void awaitDurable(long changeSequence) {
+		if (changeSequence == 0) {
+			return;
+		}
+
+		for (IMetricsJournal journal : journals) {
+			journal.awaitDurable(changeSequence);
+		}
+	}
+
+	/**
+	 * @return sequence number given to the change, 0 if no journal is attached
+	 */
+	long metricAdded(String metric, MetricConfig config) {
+		if (journals.isEmpty()) {
+			return 0;
+		}
+
+		long changeSequence = sequence.incrementAndGet();
+		for (IMetricsJournal journal : journals) {
+			journal.metricAdded(changeSequence, metric, config);
+		}
+		return changeSequence;
+	}
+
+	/**
+	 * @return sequence number given to the change, 0 if no journal is attached
+	 */
+	long dataAdded(String metric, double value, long timestamp) {
+		if (journals.isEmpty()) {
+			return 0;
+		}
+
+		return dataAdded(metric, new double[] {value}, new long[] {timestamp});
+	}
+
+	/**
+	 * @return sequence number given to the change, 0 if no journal is attached
+	 */
+	long dataAdded(String metric, double[] values, long[] timestamps) {
+		if (journals.isEmpty()) {
+			return 0;
+		}
+
+		long changeSequence = sequence.incrementAndGet();
+		for (IMetricsJournal journal : journals) {
+			journal.dataAdded(changeSequence, metric, values, timestamps);
+		}
+		return changeSequence;
+	}
+}
@@ -1,22 +1,81 @@
 package com.qevans.metricapp.repository;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.springframework.stereotype.Component;
 
 @Component
 public class MetricsRepository implements IMetricsRepository {
 
-	private Map<String, List<Double>> metricRepository;
+	private Map<String, MetricData> metricRepository;
+	private final MetricConfig defaultConfig;
+	private final MetricsJournals journals = new MetricsJournals();
+	private final MetricNameIndex metricNames = new MetricNameIndex();
+	private final TagIndex tagIndex = new TagIndex();
+	// held while a metric is created, so a snapshot can see every metric journaled before it starts
+	private final Object creationLock = new Object();
 
 	public MetricsRepository() {
-		metricRepository = new ConcurrentHashMap<String, List<Double>>();
+		this(StorageType.HEAP);
+	}
+
+	public MetricsRepository(StorageType storageType) {
+		this(new MetricConfig(storageType));
+	}
+
+	/**
+	 * @param defaultConfig is a MetricConfig used for metrics added without their own config, it is copied
+	 * @throws IllegalArgumentException if defaultConfig is null
+	 */
+	public MetricsRepository(MetricConfig defaultConfig) {
+		if (defaultConfig == null) {
+			throw new IllegalArgumentException("Metric config cannot be null");
+		}
+
+		this.defaultConfig = new MetricConfig(defaultConfig);
+		metricRepository = new ConcurrentHashMap<String, MetricData>();
+	}
+
+	public StorageType getStorageType() {
+		return defaultConfig.getStorageType();
+	}
+
+	/**
+	 * @return a copy of the config used for metrics added without their own config
+	 */
+	@Override
+	public MetricConfig getDefaultConfig() {
+		return new MetricConfig(defaultConfig);
+	}
+
+	/**
+	 * @param metric is a String
+	 * @return a copy of the config the metric was added with
+	 * @throws IllegalArgumentException is metric is null or is not in data store
+	 */
+	@Override
+	public MetricConfig getConfigOfMetric(String metric) {
+		return new MetricConfig(getMetricData(metric).getConfig());
+	}
+
+	/**
+	 * @param metric is a String
+	 * @return true if the metric is in the data store, metrics are never removed so a write after stays valid
+	 *
+	 * Big O(constant)
+	 */
+	@Override
+	public boolean hasMetric(String metric) {
+		return metric != null && metricRepository.containsKey(MetricKey.canonical(metric));
 	}
 
 	/**
@@ -25,26 +84,263 @@ public class MetricsRepository implements IMetricsRepository {
 	 * @param metric is a String
 	 * @return true is add is successful and false if metric already exists
 	 * @throws IllegalArgumentException is metric is null or empty
-	 * 
+	 *
 	 * Big O(constant) space is linear
 	 */
 	@Override
 	public boolean addMetric(String metric) {
+		return addMetric(metric, defaultConfig);
+	}
+
+	/**
+	 * <p>This method adds a new metric name with its own storage settings to the data store of metrics
+	 * </p>
+	 * @param metric is a String
+	 * @param config is a MetricConfig, e.g. SKETCH storage for metrics with unbounded data
+	 * @return true is add is successful and false if metric already exists
+	 * @throws IllegalArgumentException is metric is null or empty or config is null
+	 *
+	 * Big O(constant)
+	 */
+	@Override
+	public boolean addMetric(String metric, MetricConfig config) {
 
 		if (metric == null || metric.isEmpty()) {
 			throw new IllegalArgumentException("Metric cannot be null or empty.");
 		}
 
+		if (config == null) {
+			throw new IllegalArgumentException("Metric config cannot be null");
+		}
+
+		// tags are kept sorted, so the same tags in any order name the same metric
+		metric = MetricKey.canonical(metric);
+
 		// check if metric exists
 		if (metricRepository.containsKey(metric)) {
 			return false;
 		}
 
-		// create empty concurrent list
-		List<Double> metricDataList = Collections.synchronizedList(new ArrayList<>());
+		// add to map, computeIfAbsent so two callers racing on the same name cannot both win and the metric
+		// is journaled before anyone can add data to it
+		MetricConfig metricConfig = new MetricConfig(config);
+		boolean[] added = new boolean[1];
+		long[] sequence = new long[1];
+		synchronized (creationLock) {
+			metricRepository.computeIfAbsent(metric, name -> {
+				MetricData metricData = new MetricData(name, metricConfig, journals);
+				sequence[0] = journals.metricAdded(name, metricConfig);
+				metricData.setLastSequence(sequence[0]);
+				metricNames.add(name);
+				tagIndex.add(name);
+				added[0] = true;
+				return metricData;
+			});
+		}
+		journals.awaitDurable(sequence[0]);
+
+		return added[0];
+	}
+
+	/**
+	 * <p>This method attaches a journal that is told about every change made from now on
+	 * </p>
+	 * @param journal is an IMetricsJournal, e.g. a write ahead log
+	 * @throws IllegalArgumentException if journal is null
+	 */
+	public void addJournal(IMetricsJournal journal) {
+		if (journal == null) {
+			throw new IllegalArgumentException("Journal cannot be null");
+		}
+
+		journals.add(journal);
+	}
+
+	public boolean removeJournal(IMetricsJournal journal) {
+		return journals.remove(journal);
+	}
+
+	/**
+	 * @return sequence number of the last change handed to a journal or restored, 0 if none
+	 */
+	public long getLastSequence() {
+		return journals.getLastSequence();
+	}
+
+	/**
+	 * <p>This method adds a metric that was journaled before, e.g. while replaying a log. Nothing is journaled
+	 * again and later changes are numbered after the given sequence.
+	 * </p>
+	 * @param sequence is the sequence number the metric was journaled with
+	 * @param metric is a String
+	 * @param config is a MetricConfig
+	 * @return true is add is successful and false if metric already exists
+	 * @throws IllegalArgumentException is metric is null or empty or config is null
+	 */
+	public boolean restoreMetric(long sequence, String metric, MetricConfig config) {
+		if (metric == null || metric.isEmpty()) {
+			throw new IllegalArgumentException("Metric cannot be null or empty.");
+		}
+
+		if (config == null) {
+			throw new IllegalArgumentException("Metric config cannot be null");
+		}
+
+		journals.advanceTo(sequence);
 
-		// add to map
-		metricRepository.put(metric, metricDataList);
+		MetricConfig metricConfig = new MetricConfig(config);
+		boolean[] added = new boolean[1];
+		metricRepository.computeIfAbsent(metric, name -> {
+			MetricData metricData = new MetricData(name, metricConfig, journals);
+			metricData.setLastSequence(sequence);
+			metricNames.add(name);
+			tagIndex.add(name);
+			added[0] = true;
+			return metricData;
+		});
+
+		return added[0];
+	}
+
+	/**
+	 * <p>This method adds a metric from a snapshot. Its raw values are read from the snapshot buffer in place
+	 * until the metric is warmed up or written to, so a memory mapped snapshot is usable right away.
+	 * </p>
+	 * @param snapshot is a MetricSnapshot
+	 * @return true is add is successful and false if metric already exists
+	 * @throws IllegalArgumentException if snapshot is null
+	 *
+	 * Big O(constant) for raw storage, O(compression) for sketch storage
+	 */
+	public boolean restoreMetric(MetricSnapshot snapshot) {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("Snapshot cannot be null");
+		}
+
+		journals.advanceTo(snapshot.getLastSequence());
+
+		boolean[] added = new boolean[1];
+		metricRepository.computeIfAbsent(snapshot.getName(), name -> {
+			metricNames.add(name);
+			tagIndex.add(name);
+			added[0] = true;
+			return new MetricData(snapshot, journals);
+		});
+
+		return added[0];
+	}
+
+	/**
+	 * <p>This method drops every metric, e.g. before a replication follower loads a fresh copy from its leader.
+	 * Sequence numbers carry on from where they were.
+	 * </p>
+	 */
+	public void clear() {
+		synchronized (creationLock) {
+			metricRepository.clear();
+			metricNames.clear();
+			tagIndex.clear();
+		}
+	}
+
+	/**
+	 * <p>This method captures every metric for a snapshot, one metric at a time so only one metric's values
+	 * are copied at once. Writes carry on while it runs.
+	 * </p>
+	 * @param consumer is called with each MetricSnapshot
+	 * @return sequence number every change at or before which is in the snapshot, changes after it may or may not be
+	 *
+	 * Big O(n) over all metrics
+	 */
+	public long snapshotMetrics(Consumer<MetricSnapshot> consumer) {
+		long coveredSequence;
+		List<MetricData> metrics;
+		synchronized (creationLock) {
+			coveredSequence = journals.getLastSequence();
+			metrics = new ArrayList<>(metricRepository.values());
+		}
+
+		for (MetricData metricData : metrics) {
+			consumer.accept(metricData.snapshot());
+		}
+
+		return coveredSequence;
+	}
+
+	/**
+	 * <p>This method copies every metric still reading from a snapshot into its configured series
+	 * </p>
+	 * @return number of metrics warmed up
+	 */
+	public int warmUp() {
+		int warmed = 0;
+		for (MetricData metricData : metricRepository.values()) {
+			if (metricData.warmUp()) {
+				warmed++;
+			}
+		}
+		return warmed;
+	}
+
+	/**
+	 * <p>This method enforces the retention limits of every metric, dropping their oldest values in bulk
+	 * </p>
+	 * @return number of values dropped
+	 *
+	 * Each metric is locked only while it is compacted, writes to other metrics carry on.
+	 */
+	public long compact() {
+		return compact(System.currentTimeMillis());
+	}
+
+	long compact(long now) {
+		long removed = 0;
+		for (MetricData metricData : metricRepository.values()) {
+			removed += metricData.compact(now);
+		}
+		return removed;
+	}
+
+	/**
+	 * <p>This method adds data values that were journaled before, e.g. while replaying a log. Nothing is journaled
+	 * again and later changes are numbered after the given sequence. Values already in the snapshot the metric
+	 * was restored from are skipped.
+	 * </p>
+	 * @param sequence is the sequence number the values were journaled with
+	 * @param metric is a String
+	 * @param data is a double array in any order, it is not changed
+	 * @param timestamps is a long array of epoch milliseconds, one per value
+	 * @return true if add is successful and false if metric does not exist
+	 * @throws IllegalArgumentException is metric is null or data is null or holds NaN or an infinite value
+	 * or timestamps is not the same length as data. Nothing is restored if any value is rejected.
+	 */
+	public boolean restoreData(long sequence, String metric, double[] data, long[] timestamps) {
+		if (metric == null) {
+			throw new IllegalArgumentException("Metric cannot be null");
+		}
+
+		if (data == null) {
+			throw new IllegalArgumentException("Data cannot be null");
+		}
+
+		if (timestamps == null || timestamps.length != data.length) {
+			throw new IllegalArgumentException("Timestamps must be the same length as data");
+		}
+
+		journals.advanceTo(sequence);
+
+		// a log written before values were checked may still hold ones no storage accepts
+		for (double value : data) {
+			MetricData.checkValue(value);
+		}
+
+		MetricData metricData = metricRepository.get(metric);
+
+		if (metricData == null) {
+			return false;
+		}
+
+		metricData.restore(sequence, data, timestamps);
 
 		return true;
 	}
@@ -53,8 +349,8 @@ public class MetricsRepository implements IMetricsRepository {
 	 * <p>This method returns all metric names created in the data store of metrics
 	 * </p>
 	 * @param metric is a String
-	 * @return String array of containing all metric names 
-	 * 
+	 * @return String array of containing all metric names
+	 *
 	 * Big O(n)
 	 */
 	@Override
@@ -71,215 +367,556 @@ public class MetricsRepository implements IMetricsRepository {
 	 * @param data is a double that will be added to list of data for metric
 	 * @return true if add is successful and false if metric does not exist
 	 * @throws IllegalArgumentException is metric is null
-	 * 
-	 * Big O(n): This add maintains the list of data as a sorted list.
+	 *
+	 * Big O(log n + chunk size): This add maintains the data as a sorted series of primitive chunks.
 	 * This is done using a binary search to find where to insert the new value.
-	 * It is linear time because the other values in the list have to be shifted so that the 
-	 * new value can be inserted in the proper place.
-	 * 
+	 * Only the values inside one chunk have to be shifted so that the new value can be inserted in the proper place.
+	 * The running count, sum, min, max and variance are updated in constant time alongside the insert.
+	 *
 	 * This makes for a slower add then is possible, but does allow for very fast calculation of median, min, and max of a given list.
 	 * Reducing from nlog(n) time to constant for calculating these statistics.  Depending on use of the API, the tradeoff can be made.
-	 * 
+	 *
 	 * If users are more using this to add a lot of values and won't use the statistics much, then I'd favor having adding of values be
 	 * constant and have slower statistics calculations.
-	 * 
+	 *
 	 * I assumed users would use this mainly to get statistics quickly, so I went with the slower add but with the fast stat calculations.
-	 * 
+	 *
 	 * Space is linear
 	 */
 	@Override
 	public boolean addDataToMetric(String metric, double data) {
+		return addDataToMetric(metric, data, System.currentTimeMillis());
+	}
+
+	/**
+	 * <p>This method adds a data value measured at a given time to the data for a specified metric
+	 * </p>
+	 * @param metric is a String
+	 * @param data is a double that will be added to list of data for metric
+	 * @param timestamp is when the value was measured, epoch milliseconds. Values may arrive in any time order.
+	 * @return true if add is successful and false if metric does not exist
+	 * @throws IllegalArgumentException is metric is null or data is NaN or infinite
+	 *
+	 * Big O(log n + chunk size + log partitions)
+	 */
+	@Override
+	public boolean addDataToMetric(String metric, double data, long timestamp) {
 
 		if (metric == null) {
 			throw new IllegalArgumentException("Metric cannot be null");
 		}
+
+		MetricData.checkValue(data);
 		// if metric not in map, don't do anything
-		// else, if length is 0, insert
-		if (!metricRepository.containsKey(metric)) {
+		MetricData metricData = metricRepository.get(MetricKey.canonical(metric));
+
+		if (metricData == null) {
 			return false;
 		}
 
-		List<Double> metricsDataList = metricRepository.get(metric);
-		// need to synchronize here
-		synchronized (metricsDataList) {
-			int insertionIndex = Collections.binarySearch(metricsDataList, data);
-
-			if (insertionIndex < 0) {
-				metricsDataList.add(~insertionIndex, data);
-			} else {
-				metricsDataList.add(insertionIndex, data);
-			}
-		}
+		metricData.add(data, timestamp);
 
 		return true;
 	}
 
 	/**
-	 * <p>This method adds new metric names to the data store of metrics
+	 * <p>This method adds a batch of data values to the data for a specified metric
 	 * </p>
 	 * @param metric is a String
-	 * @return median of list of values for metric as a double.  If list has even amount of values
-	 * then function returns the average between the 2 center values in the list. If list is empty, will return 0.
-	 * @throws IllegalArgumentException is metric is null or is not in data store
-	 * 
-	 * Big O(constant)
+	 * @param data is a double array in any order, it is not changed
+	 * @return true if add is successful and false if metric does not exist
+	 * @throws IllegalArgumentException is metric is null or data is null
+	 *
+	 * Big O(m log m + merge): the batch is sorted once outside the lock and merged into the stored
+	 * series in a single locked pass, so lock and lookup costs are paid once per batch instead of once per value.
 	 */
 	@Override
-	public double getMedianOfMetric(String metric) {
+	public boolean addDataToMetric(String metric, double[] data) {
+		return addDataToMetric(metric, data, null);
+	}
+
+	/**
+	 * <p>This method adds a batch of data values measured at given times to the data for a specified metric
+	 * </p>
+	 * @param metric is a String
+	 * @param data is a double array in any order, it is not changed
+	 * @param timestamps is a long array of epoch milliseconds, one per value, or null for the current time
+	 * @return true if add is successful and false if metric does not exist
+	 * @throws IllegalArgumentException is metric is null or data is null or holds NaN or an infinite value
+	 * or timestamps is not the same length as data. Nothing is added if any value is rejected.
+	 *
+	 * Big O(m log m + merge + m log partitions)
+	 */
+	@Override
+	public boolean addDataToMetric(String metric, double[] data, long[] timestamps) {
+
 		if (metric == null) {
 			throw new IllegalArgumentException("Metric cannot be null");
 		}
 
-		if (!metricRepository.containsKey(metric)) {
-			throw new IllegalArgumentException("Metric: " + metric + " does not exist.");
+		if (data == null) {
+			throw new IllegalArgumentException("Data cannot be null");
 		}
 
-		List<Double> metricsDataList = metricRepository.get(metric);
+		for (double value : data) {
+			MetricData.checkValue(value);
+		}
 
-		if (metricsDataList.isEmpty()) {
-			return 0.0;
+		if (timestamps != null && timestamps.length != data.length) {
+			throw new IllegalArgumentException("Timestamps must be the same length as data");
 		}
 
-		return calculateMedian(metricsDataList);
-	}
+		MetricData metricData = metricRepository.get(MetricKey.canonical(metric));
 
-	private double calculateMedian(List<Double> theList) {
-		double median;
+		if (metricData == null) {
+			return false;
+		}
 
-		synchronized (theList) {
+		metricData.addAll(data, timestamps != null ? timestamps : now(data.length));
 
-			int middleOfList = theList.size() / 2;
+		return true;
+	}
 
-			boolean isEvenLengthList = (theList.size() % 2) == 0;
+	private static long[] now(int length) {
+		long[] timestamps = new long[length];
+		Arrays.fill(timestamps, System.currentTimeMillis());
+		return timestamps;
+	}
 
-			if (isEvenLengthList) {
-				median = (theList.get(middleOfList) + theList.get(middleOfList - 1)) / 2;
-			} else {
-				median = theList.get(middleOfList);
-			}
+	/**
+	 * <p>This method returns the median of the data for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @return median of list of values for metric as a double.  If list has even amount of values
+	 * then function returns the average between the 2 center values in the list. If list is empty, will return 0.
+	 * @throws IllegalArgumentException is metric is null or is not in data store
+	 *
+	 * Big O(number of chunks), O(log n) for tree storage, O(compression) for sketch storage
+	 */
+	@Override
+	public double getMedianOfMetric(String metric) {
+		return getMetricData(metric).getMedian();
+	}
+
+	/**
+	 * <p>This method returns a percentile of the data for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @param percentile is a double between 0 and 100, e.g. 99.9
+	 * @return value at the percentile, interpolated between the 2 closest values. For sketch storage this is an estimate.
+	 * If list is empty, will return 0.
+	 * @throws IllegalArgumentException is metric is null or is not in data store or percentile is not between 0 and 100
+	 *
+	 * Big O(number of chunks), O(log n) for tree storage, O(compression) for sketch storage
+	 */
+	@Override
+	public double getPercentileOfMetric(String metric, double percentile) {
+		if (!(percentile >= 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
 		}
 
-		return median;
+		return getMetricData(metric).getQuantile(percentile / 100);
 	}
 
 	/**
-	 * <p>This method adds new metric names to the data store of metrics
+	 * <p>This method returns the minimum of the data for a metric
 	 * </p>
 	 * @param metric is a String
 	 * @return minimum of list of values for metric as a double. If list is empty, will return 0;
 	 * @throws IllegalArgumentException is metric is null or is not in data store
-	 * 
+	 *
 	 * Big O(constant)
 	 */
 	@Override
 	public double getMinimumOfMetric(String metric) {
-		if (metric == null) {
-			throw new IllegalArgumentException("Metric cannot be null");
-		}
-		// if metric doesnt exist, throw error
-		if (!metricRepository.containsKey(metric)) {
-			throw new IllegalArgumentException("Metric: " + metric + " does not exist.");
-		}
-
-		List<Double> metricsDataList = metricRepository.get(metric);
-
-		if(metricsDataList.isEmpty())
-		{
-			return 0.0;
-		}
-		
-		return metricsDataList.get(0);
+		return getMetricData(metric).getMinimum();
 	}
 
 	/**
-	 * <p>This method adds new metric names to the data store of metrics
+	 * <p>This method returns the maximum of the data for a metric
 	 * </p>
 	 * @param metric is a String
 	 * @return maximum of list of values for metric as a double. If list is empty, will retun 0.
 	 * @throws IllegalArgumentException is metric is null or is not in data store
-	 * 
+	 *
 	 * Big O(constant)
 	 */
 	@Override
 	public double getMaximumOfMetric(String metric) {
-		if (metric == null) {
-			throw new IllegalArgumentException("Metric cannot be null");
-		}
+		return getMetricData(metric).getMaximum();
+	}
 
-		if (!metricRepository.containsKey(metric)) {
-			throw new IllegalArgumentException("Metric: " + metric + " does not exist.");
+	/**
+	 * <p>This method returns the mean of the data for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @return mean of list of values for metric as a double. If list is empty, will return 0.
+	 * @throws IllegalArgumentException is metric is null or is not in data store
+	 *
+	 * Big O(constant): read from the compensated running sum kept by addDataToMetric
+	 */
+	@Override
+	public double getAverageOfMetric(String metric) {
+		return getMetricData(metric).getMean();
+	}
+
+	/**
+	 * <p>This method returns the population variance of the data for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @return variance of list of values for metric as a double. If list is empty, will return 0.
+	 * @throws IllegalArgumentException is metric is null or is not in data store
+	 *
+	 * Big O(constant)
+	 */
+	@Override
+	public double getVarianceOfMetric(String metric) {
+		return getMetricData(metric).getVariance();
+	}
+
+	/**
+	 * <p>This method returns the population standard deviation of the data for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @return standard deviation of list of values for metric as a double. If list is empty, will return 0.
+	 * @throws IllegalArgumentException is metric is null or is not in data store
+	 *
+	 * Big O(constant)
+	 */
+	@Override
+	public double getStandardDeviationOfMetric(String metric) {
+		return getMetricData(metric).getStandardDeviation();
+	}
+
+	/**
+	 * <p>This method returns several statistics of the data for a metric in one call
+	 * </p>
+	 * @param metric is a String
+	 * @param statistics is a List of Statistic, e.g. Statistic.parseList("min,max,p99")
+	 * @return statistic name to value, in the order asked for. Every value is read under the same lock acquisition.
+	 * @throws IllegalArgumentException is metric is null or is not in data store or statistics is null or empty
+	 *
+	 * Big O(number of statistics * cost of the slowest statistic)
+	 */
+	@Override
+	public Map<String, Double> getStatisticsOfMetric(String metric, List<Statistic> statistics) {
+		if (statistics == null || statistics.isEmpty()) {
+			throw new IllegalArgumentException("Statistics cannot be null or empty");
 		}
 
-		List<Double> metricsDataList = metricRepository.get(metric);
+		return getMetricData(metric).getStatistics(statistics);
+	}
 
-		if (metricsDataList.isEmpty()) {
-			return 0.0;
+	/**
+	 * <p>This method returns several statistics of the data measured between two times for a metric
+	 * </p>
+	 * @param metric is a String
+	 * @param statistics is a List of Statistic, e.g. Statistic.parseList("count,p99")
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return statistic name to value, in the order asked for. If nothing was measured in the range, every value is 0.
+	 * For sketch storage the range is rounded out to whole time partitions.
+	 * @throws IllegalArgumentException is metric is null or is not in data store or statistics is null or empty
+	 * or from is after to
+	 *
+	 * Big O(partitions in range), plus O(m log m) over the m values in range for median and percentiles
+	 */
+	@Override
+	public Map<String, Double> getStatisticsOfMetric(String metric, List<Statistic> statistics, long from, long to) {
+		if (statistics == null || statistics.isEmpty()) {
+			throw new IllegalArgumentException("Statistics cannot be null or empty");
 		}
 
-		int endOfMetricsDataList = metricsDataList.size() - 1;
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
+		}
 
-		return metricsDataList.get(endOfMetricsDataList);
+		return getMetricData(metric).getStatistics(statistics, from, to);
 	}
 
 	/**
-	 * <p>This method adds new metric names to the data store of metrics
+	 * <p>This method returns a mergeable summary of the data measured between two times for a metric
 	 * </p>
 	 * @param metric is a String
-	 * @return mean of list of values for metric as a double. If list is empty, will return 0.
-	 * @throws IllegalArgumentException is metric is null or is not in data store
-	 * 
-	 * Big O(n)
+	 * @param from is the first timestamp included, epoch milliseconds, Long.MIN_VALUE with to Long.MAX_VALUE for
+	 * all of the data, which is the only range a windowed metric answers
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return MetricSummary of the data, for sketch storage the range is rounded out to whole time partitions
+	 * @throws IllegalArgumentException is metric is null or is not in data store, from is after to, or the metric
+	 * is windowed and a narrower range is asked for
+	 *
+	 * Big O(partitions in range * compression), plus O(m) over the m raw values in range
 	 */
 	@Override
-	public double getAverageOfMetric(String metric) {
-		if (metric == null) {
-			throw new IllegalArgumentException("Metric cannot be null");
+	public MetricSummary getSummaryOfMetric(String metric, long from, long to) {
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
 		}
 
-		if (!metricRepository.containsKey(metric)) {
-			throw new IllegalArgumentException("Metric: " + metric + " does not exist.");
+		return getMetricData(metric).summarize(from, to);
+	}
+
+	/**
+	 * <p>This method merges the summaries of several metrics, e.g. one measurement split into a metric per host
+	 * </p>
+	 * @param metrics is a Collection of String
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return MetricSummary of the data of every metric
+	 * @throws IllegalArgumentException if metrics is null or empty, holds a metric that is not in data store,
+	 * or from is after to
+	 *
+	 * Big O(metrics * compression) to merge, the metrics are summarized in parallel, each gathered under its own lock
+	 */
+	@Override
+	public MetricSummary getSummaryOfMetrics(Collection<String> metrics, long from, long to) {
+		if (metrics == null || metrics.isEmpty()) {
+			throw new IllegalArgumentException("Metrics cannot be null or empty");
+		}
+
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
+		}
+
+		List<MetricData> metricData = new ArrayList<>(metrics.size());
+		for (String metric : metrics) {
+			metricData.add(getMetricData(metric));
+		}
+
+		return metricData.parallelStream().map(data -> data.summarize(from, to)).reduce((first, second) -> {
+			first.merge(second);
+			return first;
+		}).get();
+	}
+
+	/**
+	 * <p>This method finds metric names by a glob pattern from the prefix index, without scanning every name
+	 * </p>
+	 * @param pattern is a glob pattern, * matches any run of characters and ? any one character, e.g. latency.*
+	 * @return sorted List of the names matching pattern
+	 * @throws IllegalArgumentException if pattern is null or empty
+	 *
+	 * Big O(length of prefix + names under the prefix before the first wildcard)
+	 */
+	@Override
+	public List<String> findMetrics(String pattern) {
+		return metricNames.matching(pattern);
+	}
+
+	/**
+	 * <p>This method returns statistics of every metric matching a pattern
+	 * </p>
+	 * @param pattern is a glob pattern, see findMetrics
+	 * @param statistics is a List of Statistic
+	 * @return metric name to its statistics in the order asked for, sorted by name. Empty if nothing matches.
+	 * @throws IllegalArgumentException if pattern is null or empty, or statistics is null or empty
+	 *
+	 * Big O(matches * cost of the statistics / cores), see getStatisticsOfMetrics(String, List, long, long)
+	 */
+	@Override
+	public Map<String, Map<String, Double>> getStatisticsOfMetrics(String pattern, List<Statistic> statistics) {
+		return getStatisticsOfMetrics(pattern, statistics, null);
+	}
+
+	/**
+	 * <p>This method returns statistics of the data every metric matching a pattern measured in a time range
+	 * </p>
+	 * @param pattern is a glob pattern, see findMetrics
+	 * @param statistics is a List of Statistic
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return metric name to its statistics in the order asked for, sorted by name. Empty if nothing matches.
+	 * @throws IllegalArgumentException if pattern is null or empty, statistics is null or empty, from is after to
+	 * or a matching metric keeps a sliding window
+	 *
+	 * Big O(matches * cost of the statistics / cores): the metrics are read in parallel on the common
+	 * ForkJoinPool, each under its own lock, so one slow metric does not hold up the rest
+	 */
+	@Override
+	public Map<String, Map<String, Double>> getStatisticsOfMetrics(String pattern, List<Statistic> statistics,
+			long from, long to) {
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
 		}
 
-		List<Double> metricsDataList = metricRepository.get(metric);
+		return getStatisticsOfMetrics(pattern, statistics, new long[] {from, to});
+	}
 
-		return calculateAverage(metricsDataList);
+	private Map<String, Map<String, Double>> getStatisticsOfMetrics(String pattern, List<Statistic> statistics,
+			long[] range) {
+		if (statistics == null || statistics.isEmpty()) {
+			throw new IllegalArgumentException("Statistics cannot be null or empty");
+		}
+
+		List<String> names = metricNames.matching(pattern);
+
+		// encounter order is kept, so results line up with the sorted names
+		List<Map<String, Double>> results = names.parallelStream().map(name -> {
+			MetricData metricData = metricRepository.get(name);
+			if (metricData == null) {
+				// dropped by clear() since it was matched
+				return null;
+			}
+			return range == null ? metricData.getStatistics(statistics)
+					: metricData.getStatistics(statistics, range[0], range[1]);
+		}).collect(Collectors.toList());
+
+		Map<String, Map<String, Double>> statisticsByMetric = new LinkedHashMap<>();
+		for (int index = 0; index < names.size(); index++) {
+			if (results.get(index) != null) {
+				statisticsByMetric.put(names.get(index), results.get(index));
+			}
+		}
+		return statisticsByMetric;
 	}
 
-	private double calculateAverage(List<Double> theList) {
-		Double sum = 0d;
-		synchronized (theList) {
-			if (!theList.isEmpty()) {
-				for (Double value : theList) {
-					sum += value;
+	/**
+	 * <p>This method finds labeled metrics by name and tags from the tag index, see MetricKey
+	 * </p>
+	 * @param name is a metric name without tags, null for any name
+	 * @param tags is a Map of tag key to the value a metric must have, e.g. service=api and region=us
+	 * @return sorted List of the keys of the metrics with name and every tag
+	 * @throws IllegalArgumentException if name is null and tags is null or empty
+	 *
+	 * Big O(tags * smallest bitmap + matches * log matches)
+	 */
+	@Override
+	public List<String> selectMetrics(String name, Map<String, String> tags) {
+		return tagIndex.select(name, tags);
+	}
+
+	/**
+	 * <p>This method merges the summaries of the selected metrics by the value of one of their tags, e.g. the
+	 * latency of every host of a service grouped by region
+	 * </p>
+	 * @param name is a metric name without tags, null for any name
+	 * @param tags is a Map of tag key to the value a metric must have
+	 * @param groupBy is the tag key to group by, selected metrics without it are left out
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return value of groupBy to the MetricSummary of its metrics, sorted by value
+	 * @throws IllegalArgumentException if name is null and tags is null or empty, groupBy is null or empty, or
+	 * from is after to
+	 *
+	 * Big O(matches * compression) to merge, the metrics are summarized in parallel, each gathered under its own lock
+	 */
+	@Override
+	public Map<String, MetricSummary> getSummariesByTag(String name, Map<String, String> tags, String groupBy,
+			long from, long to) {
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
+		}
+
+		Map<String, List<String>> groups = tagIndex.groupBy(name, tags, groupBy);
+
+		List<String> keys = new ArrayList<>();
+		for (List<String> members : groups.values()) {
+			keys.addAll(members);
+		}
+
+		List<MetricSummary> summaries = keys.parallelStream().map(key -> {
+			MetricData metricData = metricRepository.get(key);
+			// null if dropped by clear() since it was selected
+			return metricData == null ? null : metricData.summarize(from, to);
+		}).collect(Collectors.toList());
+
+		Map<String, MetricSummary> summariesByGroup = new LinkedHashMap<>();
+		int index = 0;
+		for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+			MetricSummary merged = new MetricSummary();
+			for (int member = 0; member < group.getValue().size(); member++, index++) {
+				if (summaries.get(index) != null) {
+					merged.merge(summaries.get(index));
 				}
-				return sum / theList.size();
 			}
+			summariesByGroup.put(group.getKey(), merged);
 		}
-		return sum;
+		return summariesByGroup;
 	}
 
 	/**
-	 * <p>This method adds new metric names to the data store of metrics
+	 * <p>This method returns the data stored for a metric
 	 * </p>
 	 * @param metric is a String
-	 * @return returns list of values stored for that metric
-	 * @throws IllegalArgumentException is metric is null or is not in data store
-	 * 
-	 * Big O(constant)
+	 * @return returns a sorted copy of the values stored for that metric
+	 * @throws IllegalArgumentException is metric is null or is not in data store or only keeps a sketch
+	 *
+	 * Big O(n): the copy is taken under the metric lock so callers never see a half written series
 	 */
 	@Override
 	public List<Double> getDataForMetric(String metric) {
+		MetricData metricData = getMetricData(metric);
+
+		if (!metricData.keepsRawValues()) {
+			throw new IllegalArgumentException("Metric: " + metric + " only keeps a sketch, raw data is not available.");
+		}
+
+		double[] values = metricData.toArray();
+
+		List<Double> metricsDataList = new ArrayList<>(values.length);
+		for (double value : values) {
+			metricsDataList.add(value);
+		}
+
+		return metricsDataList;
+	}
+
+	/**
+	 * <p>This method returns a page of the samples measured between two times for a metric, to stream out without
+	 * holding the whole metric in memory
+	 * </p>
+	 * @param metric is a String
+	 * @param from is the first timestamp included, epoch milliseconds, ignored when resuming from a cursor
+	 * @param to is the last timestamp included, epoch milliseconds, ignored when resuming from a cursor
+	 * @param cursor is the next cursor of the previous page, null for the first page
+	 * @param limit is the most samples the page reads, pages cut by the edges of the range may hold fewer
+	 * @return MetricExport of the page, in time partition order
+	 * @throws IllegalArgumentException is metric is null or is not in data store or only keeps a sketch or is windowed,
+	 * or from is after to, or cursor is not valid, or limit is not positive
+	 *
+	 * Big O(partitions in the page) under the metric lock, samples are copied as they are read
+	 */
+	@Override
+	public MetricExport exportMetric(String metric, long from, long to, String cursor, long limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Limit must be positive");
+		}
+
+		long cursorStart = Long.MIN_VALUE;
+		int cursorOffset = 0;
+		if (cursor != null) {
+			long[] parsed = MetricExport.parseCursor(cursor);
+			from = parsed[0];
+			to = parsed[1];
+			cursorStart = parsed[2];
+			cursorOffset = (int) parsed[3];
+		}
+
+		if (from > to) {
+			throw new IllegalArgumentException("From cannot be after to");
+		}
+
+		MetricData metricData = getMetricData(metric);
+
+		if (!metricData.keepsRawValues()) {
+			throw new IllegalArgumentException("Metric: " + metric + " only keeps a sketch, raw data is not available.");
+		}
+
+		return metricData.export(from, to, cursorStart, cursorOffset, limit);
+	}
+
+	private MetricData getMetricData(String metric) {
 		if (metric == null) {
 			throw new IllegalArgumentException("Metric cannot be null");
 		}
 
-		if (!metricRepository.containsKey(metric)) {
+		MetricData metricData = metricRepository.get(MetricKey.canonical(metric));
+
+		if (metricData == null) {
 			throw new IllegalArgumentException("Metric: " + metric + " does not exist.");
 		}
 
-		List<Double> metricsDataList = metricRepository.get(metric);
-
-		return metricsDataList;
+		return metricData;
 	}
 
 }
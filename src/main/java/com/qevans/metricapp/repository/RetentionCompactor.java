@@ -0,0 +1,69 @@
+package com.qevans.metricapp.repository;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Compacts a MetricsRepository on a background thread every interval, so retention limits are enforced
+ * in bulk and never on the write path.
+ * </p>
+ * Between runs a metric can go over its limits by what arrives in one interval.
+ */
+public class RetentionCompactor implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetentionCompactor.class);
+
+	private final MetricsRepository repository;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param repository is the MetricsRepository to compact
+	 * @param intervalSeconds is how often to compact
+	 * @throws IllegalArgumentException if repository is null or intervalSeconds is not positive
+	 */
+	public RetentionCompactor(MetricsRepository repository, long intervalSeconds) {
+		if (repository == null) {
+			throw new IllegalArgumentException("Repository cannot be null");
+		}
+
+		if (intervalSeconds <= 0) {
+			throw new IllegalArgumentException("Compaction interval must be positive");
+		}
+
+		this.repository = repository;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::compactQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private void compactQuietly() {
+		try {
+			long started = System.nanoTime();
+			long removed = repository.compact();
+			if (removed > 0) {
+				LOGGER.info("Compaction dropped {} values past retention in {} ms", removed,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+			}
+		} catch (RuntimeException ex) {
+			LOGGER.error("Compaction failed", ex);
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * <p>One tier of rollups: count, sum, min, max, spread and a t-digest of a metric's values for every fixed width
+ * bucket of time, e.g. every 10 seconds.
+ * </p>
+ * A range of a million samples is answered from a few thousand rollups. Only the newest bucket keeps a full
+ * t-digest, older buckets are sealed down to their centroids, which for a bucket of a few values is a few values.
+ * Buckets older than the horizon of the tier are dropped by compaction, coarser tiers keep a longer horizon.
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+class RollupTier {
+
+	static final long[] WIDTHS = {3_600_000, 60_000, 10_000};
+	// a year of hours, the finer tiers only answer the edges of ranges so they need less history
+	static final long[] HORIZONS = {366L * 24 * 3_600_000, 7L * 24 * 3_600_000, 6L * 3_600_000};
+
+	private final long width;
+	private final long horizonMillis;
+	private final double compression;
+	private final TreeMap<Long, Rollup> buckets = new TreeMap<>();
+	private final List<Rollup> reopened = new ArrayList<>();
+	private Rollup open;
+	// buckets before this were dropped, values older than it are not taken again
+	private long coveredFrom = Long.MIN_VALUE;
+
+	/**
+	 * @param width is the width of a bucket in milliseconds
+	 * @param horizonMillis is how long buckets are kept, 0 for forever
+	 * @param compression is the compression of the bucket digests
+	 */
+	RollupTier(long width, long horizonMillis, double compression) {
+		this.width = width;
+		this.horizonMillis = horizonMillis;
+		this.compression = compression;
+	}
+
+	/**
+	 * @param config is the MetricConfig of the owning metric
+	 * @param snapshots is a List of TimePartitionSnapshot saved from every tier, buckets of other widths are skipped
+	 * @return the tiers of a metric that keeps rollups, coarsest first
+	 */
+	static List<RollupTier> newTiers(MetricConfig config, List<TimePartitionSnapshot> snapshots) {
+		List<RollupTier> tiers = new ArrayList<>(WIDTHS.length);
+		for (int index = 0; index < WIDTHS.length; index++) {
+			RollupTier tier = new RollupTier(WIDTHS[index], HORIZONS[index], config.getCompression());
+			for (TimePartitionSnapshot snapshot : snapshots) {
+				if (snapshot.getWidth() == tier.width) {
+					tier.buckets.put(snapshot.getStart(), new Rollup(snapshot));
+				}
+			}
+			if (!tier.buckets.isEmpty()) {
+				tier.coveredFrom = tier.buckets.firstKey();
+				tier.open = tier.buckets.lastEntry().getValue();
+			}
+			tiers.add(tier);
+		}
+		return tiers;
+	}
+
+	long getWidth() {
+		return width;
+	}
+
+	long getCoveredFrom() {
+		return coveredFrom;
+	}
+
+	/**
+	 * Big O(log buckets + log compression) amortized
+	 */
+	void add(long timestamp, double value) {
+		if (timestamp < coveredFrom) {
+			return;
+		}
+
+		long start = Math.floorDiv(timestamp, width) * width;
+		Rollup rollup = open != null && open.start == start ? open : buckets.get(start);
+
+		boolean created = rollup == null;
+		if (created) {
+			rollup = new Rollup(start, compression);
+			buckets.put(start, rollup);
+		}
+
+		if (open == null || start > open.start) {
+			if (open != null) {
+				open.seal();
+			}
+			open = rollup;
+		} else if (rollup != open && (created || rollup.isSealed())) {
+			// a late value for an older bucket, new or sealed, holds a full digest until the next compaction
+			reopened.add(rollup);
+		}
+
+		rollup.add(value, compression);
+	}
+
+	/**
+	 * <p>This method merges the buckets starting between from and end into the running statistics and digest
+	 * </p>
+	 * @param from is the first bucket start included, aligned to the width
+	 * @param end is the first bucket start excluded, aligned to the width
+	 * @param statistics is a RunningStatistics to merge into
+	 * @param digest is a TDigest to merge into, null if no rank based statistic is asked for
+	 *
+	 * Big O(log buckets + buckets in range), times O(compression) with a digest
+	 */
+	void mergeInto(long from, long end, RunningStatistics statistics, TDigest digest) {
+		for (Rollup rollup : buckets.subMap(from, true, end, false).values()) {
+			statistics.merge(rollup.statistics);
+			if (digest != null) {
+				rollup.mergeInto(digest);
+			}
+		}
+	}
+
+	/**
+	 * <p>This method drops buckets past the horizon and seals buckets that were reopened by late values
+	 * </p>
+	 * @param now is the time ages are measured from, epoch milliseconds
+	 */
+	void compact(long now) {
+		for (Rollup rollup : reopened) {
+			if (rollup != open) {
+				rollup.seal();
+			}
+		}
+		reopened.clear();
+
+		if (horizonMillis == 0) {
+			return;
+		}
+
+		while (!buckets.isEmpty() && buckets.firstKey() + width <= now - horizonMillis) {
+			Rollup dropped = buckets.pollFirstEntry().getValue();
+			coveredFrom = dropped.start + width;
+			if (dropped == open) {
+				open = null;
+			}
+		}
+	}
+
+	/**
+	 * @return every bucket as it would be saved in a snapshot, oldest first
+	 */
+	List<TimePartitionSnapshot> snapshot() {
+		List<TimePartitionSnapshot> snapshots = new ArrayList<>(buckets.size());
+		for (Rollup rollup : buckets.values()) {
+			snapshots.add(rollup.snapshot(width));
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return approximate bytes of memory held by the buckets, O(buckets)
+	 */
+	long sizeInBytes() {
+		long bytes = 0;
+		for (Rollup rollup : buckets.values()) {
+			bytes += rollup.sizeInBytes();
+		}
+		return bytes;
+	}
+
+	private static final class Rollup {
+
+		private final long start;
+		private final RunningStatistics statistics;
+		// the full digest while the bucket takes values, otherwise only its centroids
+		private TDigest digest;
+		private double[] means;
+		private double[] weights;
+
+		Rollup(long start, double compression) {
+			this.start = start;
+			this.statistics = new RunningStatistics();
+			this.digest = new TDigest(compression);
+		}
+
+		Rollup(TimePartitionSnapshot snapshot) {
+			this.start = snapshot.getStart();
+			this.statistics = snapshot.getStatistics();
+			this.means = MappedSeries.copyOf(snapshot.getValues());
+			this.weights = MappedSeries.copyOf(snapshot.getWeights());
+		}
+
+		boolean isSealed() {
+			return digest == null;
+		}
+
+		void add(double value, double compression) {
+			if (digest == null) {
+				digest = TDigest.fromCentroids(compression, means, weights, statistics.getMinimum(),
+						statistics.getMaximum());
+				means = null;
+				weights = null;
+			}
+			digest.add(value);
+			statistics.add(value);
+		}
+
+		void seal() {
+			if (digest == null) {
+				return;
+			}
+			means = digest.centroidMeans();
+			weights = digest.centroidWeights();
+			digest = null;
+		}
+
+		void mergeInto(TDigest target) {
+			if (digest != null) {
+				target.merge(digest);
+			} else {
+				target.merge(means, weights, statistics.getMinimum(), statistics.getMaximum());
+			}
+		}
+
+		TimePartitionSnapshot snapshot(long width) {
+			double[] snapshotMeans = digest != null ? digest.centroidMeans() : Arrays.copyOf(means, means.length);
+			double[] snapshotWeights = digest != null ? digest.centroidWeights() : Arrays.copyOf(weights, weights.length);
+			return new TimePartitionSnapshot(start, width, statistics.copy(), null, DoubleBuffer.wrap(snapshotMeans),
+					DoubleBuffer.wrap(snapshotWeights));
+		}
+
+		long sizeInBytes() {
+			if (digest != null) {
+				return digest.sizeInBytes();
+			}
+			return (long) (means.length + weights.length) * Double.BYTES;
+		}
+	}
+}
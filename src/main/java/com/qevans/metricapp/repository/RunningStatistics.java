@@ -0,0 +1,177 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>Count, sum, min, max and spread of a stream of values, updated one value at a time
+ * so none of them ever needs to walk the stored data.
+ * </p>
+ * The sum uses Neumaier compensated summation so the mean does not drift as millions of values are added.
+ * The spread is kept as Welford's sum of squared differences from the mean, which is the numerically
+ * stable form of a running sum of squares.
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+public class RunningStatistics {
+
+	private long count;
+	private double sum;
+	private double compensation;
+	private double mean;
+	private double squaredDifferences;
+	private double minimum = Double.POSITIVE_INFINITY;
+	private double maximum = Double.NEGATIVE_INFINITY;
+
+	public RunningStatistics() {
+	}
+
+	/**
+	 * <p>This method rebuilds statistics saved earlier, e.g. in a snapshot
+	 * </p>
+	 * @param count is the number of values
+	 * @param sum is the sum of the values
+	 * @param mean is the mean of the values
+	 * @param squaredDifferences is the sum of squared differences from the mean
+	 * @param minimum is the smallest value, ignored if count is 0
+	 * @param maximum is the largest value, ignored if count is 0
+	 * @return statistics that continue from the saved ones
+	 */
+	public static RunningStatistics restore(long count, double sum, double mean, double squaredDifferences,
+			double minimum, double maximum) {
+		RunningStatistics statistics = new RunningStatistics();
+		statistics.count = count;
+		statistics.sum = sum;
+		statistics.mean = mean;
+		statistics.squaredDifferences = squaredDifferences;
+		if (count > 0) {
+			statistics.minimum = minimum;
+			statistics.maximum = maximum;
+		}
+		return statistics;
+	}
+
+	/**
+	 * Big O(constant)
+	 */
+	public void add(double value) {
+		count++;
+		addToSum(value);
+
+		double delta = value - mean;
+		mean += delta / count;
+		squaredDifferences += delta * (value - mean);
+
+		if (value < minimum) {
+			minimum = value;
+		}
+		if (value > maximum) {
+			maximum = value;
+		}
+	}
+
+	/**
+	 * <p>This method folds another set of statistics into this one, the result describes both sets of values
+	 * </p>
+	 * @param other is a RunningStatistics, it is not changed
+	 *
+	 * Big O(constant): the squared differences are combined with Chan's formula for merging two Welford states
+	 */
+	public void merge(RunningStatistics other) {
+		if (other.count == 0) {
+			return;
+		}
+
+		if (count == 0) {
+			count = other.count;
+			sum = other.sum;
+			compensation = other.compensation;
+			mean = other.mean;
+			squaredDifferences = other.squaredDifferences;
+			minimum = other.minimum;
+			maximum = other.maximum;
+			return;
+		}
+
+		long total = count + other.count;
+		double delta = other.mean - mean;
+
+		mean += delta * other.count / total;
+		squaredDifferences += other.squaredDifferences + delta * delta * ((double) count * other.count / total);
+		addToSum(other.sum);
+		addToSum(other.compensation);
+		count = total;
+
+		minimum = Math.min(minimum, other.minimum);
+		maximum = Math.max(maximum, other.maximum);
+	}
+
+	/**
+	 * @return an independent copy of these statistics
+	 */
+	public RunningStatistics copy() {
+		RunningStatistics copy = new RunningStatistics();
+		copy.merge(this);
+		return copy;
+	}
+
+	private void addToSum(double value) {
+		double newSum = sum + value;
+		if (Math.abs(sum) >= Math.abs(value)) {
+			compensation += (sum - newSum) + value;
+		} else {
+			compensation += (value - newSum) + sum;
+		}
+		sum = newSum;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum + compensation;
+	}
+
+	/**
+	 * @return mean of all values added, 0 if there are none
+	 */
+	public double getMean() {
+		if (count == 0) {
+			return 0.0;
+		}
+		return getSum() / count;
+	}
+
+	/**
+	 * @return population variance of all values added, 0 if there are none
+	 */
+	public double getVariance() {
+		if (count == 0) {
+			return 0.0;
+		}
+		return squaredDifferences / count;
+	}
+
+	/**
+	 * @return sum of squared differences from the mean, kept so the statistics can be saved and restored
+	 */
+	public double getSquaredDifferences() {
+		return squaredDifferences;
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return smallest value added, 0 if there are none
+	 */
+	public double getMinimum() {
+		return count == 0 ? 0.0 : minimum;
+	}
+
+	/**
+	 * @return largest value added, 0 if there are none
+	 */
+	public double getMaximum() {
+		return count == 0 ? 0.0 : maximum;
+	}
+}
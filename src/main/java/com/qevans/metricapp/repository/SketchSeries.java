@@ -0,0 +1,65 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>Series that keeps a t-digest instead of the raw values.
+ * </p>
+ * Memory is bounded by the compression no matter how many values arrive, in exchange
+ * percentiles are estimates. Raw values and ranks cannot be read back.
+ */
+public class SketchSeries implements IMetricSeries {
+
+	private final TDigest digest;
+
+	public SketchSeries(double compression) {
+		this.digest = new TDigest(compression);
+	}
+
+	SketchSeries(TDigest digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * Big O(log compression) amortized
+	 */
+	@Override
+	public void add(double value) {
+		digest.add(value);
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, digest.getCount());
+	}
+
+	@Override
+	public double valueAt(int rank) {
+		throw new UnsupportedOperationException("A sketch does not keep values by rank.");
+	}
+
+	@Override
+	public double[] toArray() {
+		throw new UnsupportedOperationException("A sketch does not keep raw values.");
+	}
+
+	/**
+	 * Big O(compression)
+	 */
+	@Override
+	public double quantile(double quantile) {
+		return digest.quantile(quantile);
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return digest.sizeInBytes();
+	}
+
+	@Override
+	public boolean keepsRawValues() {
+		return false;
+	}
+
+	TDigest getDigest() {
+		return digest;
+	}
+}
@@ -0,0 +1,140 @@
+package com.qevans.metricapp.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A statistic that can be asked of a metric: count, mean, median, min, max, variance, stddev or a percentile
+ * written as p followed by a number between 0 and 100, e.g. p95, p99.9.
+ * </p>
+ */
+public class Statistic {
+
+	public enum Type {
+		COUNT, MEAN, MEDIAN, MIN, MAX, VARIANCE, STDDEV, PERCENTILE
+	}
+
+	// plain decimal only, Double.parseDouble alone would also take p99d, p99f or hex like p0x1p6
+	private static final Pattern PERCENTILE_DIGITS = Pattern.compile("\\d+(\\.\\d+)?");
+
+	private final String name;
+	private final Type type;
+	private final double percentile;
+
+	private Statistic(String name, Type type, double percentile) {
+		this.name = name;
+		this.type = type;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * <p>This method parses one statistic name, ignoring case
+	 * </p>
+	 * @param name is a String such as mean or p99.9
+	 * @return matching Statistic
+	 * @throws IllegalArgumentException if name is null, empty or not a supported statistic
+	 */
+	public static Statistic parse(String name) {
+		if (name == null || name.trim().isEmpty()) {
+			throw new IllegalArgumentException("Statistic cannot be null or empty");
+		}
+
+		String normalized = name.trim().toLowerCase();
+
+		if (normalized.length() > 1 && normalized.charAt(0) == 'p') {
+			String digits = normalized.substring(1);
+			if (!PERCENTILE_DIGITS.matcher(digits).matches()) {
+				throw new IllegalArgumentException("Statistic: " + name + " is not supported.");
+			}
+
+			double percentile = Double.parseDouble(digits);
+
+			if (!(percentile >= 0 && percentile <= 100)) {
+				throw new IllegalArgumentException("Percentile must be between 0 and 100");
+			}
+
+			return new Statistic(normalized, Type.PERCENTILE, percentile);
+		}
+
+		for (Type type : Type.values()) {
+			if (type != Type.PERCENTILE && type.name().equalsIgnoreCase(normalized)) {
+				return new Statistic(normalized, type, Double.NaN);
+			}
+		}
+
+		throw new IllegalArgumentException("Statistic: " + name + " is not supported.");
+	}
+
+	/**
+	 * <p>This method parses a comma separated list of statistics, e.g. min,max,p99
+	 * </p>
+	 * @param names is a String
+	 * @return statistics in the order they were asked for
+	 * @throws IllegalArgumentException if names is null or empty or any statistic is not supported
+	 */
+	public static List<Statistic> parseList(String names) {
+		if (names == null || names.trim().isEmpty()) {
+			throw new IllegalArgumentException("Statistic cannot be null or empty");
+		}
+
+		List<Statistic> statistics = new ArrayList<>();
+		for (String name : names.split(",")) {
+			statistics.add(parse(name));
+		}
+
+		return statistics;
+	}
+
+	/**
+	 * @return true if the statistic needs the values by rank, not just the running statistics
+	 */
+	public boolean isRankBased() {
+		return type == Type.MEDIAN || type == Type.PERCENTILE;
+	}
+
+	/**
+	 * <p>This method reads the statistic from the running statistics and series of a set of values
+	 * </p>
+	 * @param statistics is the RunningStatistics of the values
+	 * @param series is an IMetricSeries holding the values, only read for rank based statistics
+	 * @return value of the statistic
+	 */
+	double valueOf(RunningStatistics statistics, IMetricSeries series) {
+		switch (type) {
+		case COUNT:
+			return statistics.getCount();
+		case MEAN:
+			return statistics.getMean();
+		case MEDIAN:
+			return series.quantile(0.5);
+		case MIN:
+			return statistics.getMinimum();
+		case MAX:
+			return statistics.getMaximum();
+		case VARIANCE:
+			return statistics.getVariance();
+		case STDDEV:
+			return statistics.getStandardDeviation();
+		case PERCENTILE:
+			return series.quantile(percentile / 100);
+		default:
+			throw new IllegalArgumentException("Statistic: " + name + " is not supported.");
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return percentile between 0 and 100 for PERCENTILE statistics, NaN otherwise
+	 */
+	public double getPercentile() {
+		return percentile;
+	}
+}
@@ -0,0 +1,113 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>The ways a metric can store its values.
+ * </p>
+ * HEAP keeps primitive double chunks on the java heap.
+ * OFF_HEAP keeps the same chunks in direct buffers so large series do not add to GC work.
+ * TREE keeps an order statistic tree so inserts stay O(log n) for very large series.
+ * SKETCH keeps a t-digest, memory is bounded and percentiles are estimates.
+ * COMPRESSED keeps values only in their time partitions, sealed partitions Gorilla encoded in a few bytes a sample,
+ * and decodes them on demand for median, percentiles and raw data. Its series is a read only view over the partitions.
+ */
+public enum StorageType {
+
+	HEAP(0) {
+		@Override
+		IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex) {
+			return new ChunkedSeries(false);
+		}
+	},
+	OFF_HEAP(1) {
+		@Override
+		IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex) {
+			return new ChunkedSeries(true);
+		}
+	},
+	TREE(2) {
+		@Override
+		IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex) {
+			return new TreeSeries();
+		}
+	},
+	SKETCH(3) {
+		@Override
+		IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex) {
+			return new SketchSeries(config.getCompression());
+		}
+
+		@Override
+		public boolean keepsRawValues() {
+			return false;
+		}
+	},
+	COMPRESSED(4) {
+		@Override
+		IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex) {
+			return new CompressedSeries(timeIndex);
+		}
+	};
+
+	private final byte code;
+
+	StorageType(int code) {
+		this.code = (byte) code;
+	}
+
+	/**
+	 * @param config is the MetricConfig of the owning metric
+	 * @param timeIndex is the TimeIndex of the owning metric
+	 * @return an empty series of this storage type
+	 */
+	abstract IMetricSeries newSeries(MetricConfig config, TimeIndex timeIndex);
+
+	/**
+	 * @return false if the storage only keeps a summary, so raw values and ranks cannot be read back
+	 */
+	public boolean keepsRawValues() {
+		return true;
+	}
+
+	/**
+	 * @return code of the storage type in logs and snapshots, fixed for good so reordering the types is safe
+	 */
+	public byte getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code is a byte read from a log or snapshot
+	 * @return StorageType written with that code
+	 * @throws IllegalArgumentException if no storage type has the code
+	 */
+	public static StorageType fromCode(byte code) {
+		for (StorageType type : values()) {
+			if (type.code == code) {
+				return type;
+			}
+		}
+
+		throw new IllegalArgumentException("Storage type code: " + code + " does not exist.");
+	}
+
+	/**
+	 * <p>This method looks up a storage type by name ignoring case, so "off_heap" and "off-heap" both work
+	 * </p>
+	 * @param name is a String
+	 * @return matching StorageType
+	 * @throws IllegalArgumentException if name is null or not a storage type
+	 */
+	public static StorageType fromString(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Storage type cannot be null");
+		}
+
+		for (StorageType type : values()) {
+			if (type.name().equalsIgnoreCase(name.trim().replace('-', '_'))) {
+				return type;
+			}
+		}
+
+		throw new IllegalArgumentException("Storage type: " + name + " does not exist.");
+	}
+}
@@ -0,0 +1,157 @@
+package com.qevans.metricapp.repository;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Append only buffer split into stripes so that many threads can write to one metric at the same time.
+ * </p>
+ * A writer starts at the stripe picked by its thread and, like LongAdder does with its cells, moves on to the
+ * next stripe when that one is busy instead of waiting. Each stripe lock is only held for an array store, so
+ * writers almost never block each other, and the metric lock is not touched at all on the write path.
+ *
+ * Values are unsorted until drain hands them to the metric, which sorts and merges them as one batch.
+ * A stripe also remembers the highest journal sequence number written to it, so a drain knows which
+ * changes it has taken.
+ */
+class StripedWriteBuffer {
+
+	static final int DRAIN_THRESHOLD = 16384;
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	StripedWriteBuffer() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	StripedWriteBuffer(int minimumStripes) {
+		int stripeCount = Integer.highestOneBit(Math.max(1, minimumStripes - 1)) << 1;
+		stripes = new Stripe[stripeCount];
+		for (int index = 0; index < stripeCount; index++) {
+			stripes[index] = new Stripe();
+		}
+		mask = stripeCount - 1;
+	}
+
+	/**
+	 * <p>This method takes every buffered value out of the buffer. All stripes are locked together so the
+	 * values taken are exactly those written before some point in time.
+	 * </p>
+	 * @return buffered values and their timestamps in no particular order, empty if there are none
+	 *
+	 * Big O(buffered values)
+	 */
+	Drained drain() {
+		double[][] taken = new double[stripes.length][];
+		long[][] takenTimestamps = new long[stripes.length][];
+		int[] counts = new int[stripes.length];
+		int total = 0;
+		long lastSequence = 0;
+
+		for (Stripe stripe : stripes) {
+			stripe.lock();
+		}
+		try {
+			for (int index = 0; index < stripes.length; index++) {
+				Stripe stripe = stripes[index];
+				counts[index] = stripe.count;
+				if (stripe.count > 0) {
+					taken[index] = stripe.values;
+					takenTimestamps[index] = stripe.timestamps;
+					stripe.values = new double[Stripe.INITIAL_CAPACITY];
+					stripe.timestamps = new long[Stripe.INITIAL_CAPACITY];
+					stripe.count = 0;
+				}
+				lastSequence = Math.max(lastSequence, stripe.lastSequence);
+				total += counts[index];
+			}
+		} finally {
+			for (Stripe stripe : stripes) {
+				stripe.unlock();
+			}
+		}
+
+		double[] drained = new double[total];
+		long[] drainedTimestamps = new long[total];
+		int offset = 0;
+		for (int index = 0; index < stripes.length; index++) {
+			if (counts[index] > 0) {
+				System.arraycopy(taken[index], 0, drained, offset, counts[index]);
+				System.arraycopy(takenTimestamps[index], 0, drainedTimestamps, offset, counts[index]);
+				offset += counts[index];
+			}
+		}
+
+		return new Drained(drained, drainedTimestamps, lastSequence);
+	}
+
+	/**
+	 * Locks and returns a stripe for the calling thread, the caller must unlock it.
+	 */
+	Stripe acquireStripe() {
+		int home = spread(Thread.currentThread().getId());
+
+		for (int attempt = 0; attempt <= mask; attempt++) {
+			Stripe stripe = stripes[(home + attempt) & mask];
+			if (stripe.tryLock()) {
+				return stripe;
+			}
+		}
+
+		// every stripe is busy, more writers than stripes, wait on the home stripe
+		Stripe stripe = stripes[home & mask];
+		stripe.lock();
+		return stripe;
+	}
+
+	private static int spread(long threadId) {
+		long hash = threadId * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@SuppressWarnings("serial")
+	static final class Stripe extends ReentrantLock {
+
+		static final int INITIAL_CAPACITY = 64;
+
+		double[] values = new double[INITIAL_CAPACITY];
+		long[] timestamps = new long[INITIAL_CAPACITY];
+		int count;
+		long lastSequence;
+
+		boolean append(double value, long timestamp) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+				timestamps = Arrays.copyOf(timestamps, values.length);
+			}
+			values[count] = value;
+			timestamps[count++] = timestamp;
+			return count >= DRAIN_THRESHOLD;
+		}
+
+		boolean appendAll(double[] newValues, long[] newTimestamps) {
+			if (count + newValues.length > values.length) {
+				values = Arrays.copyOf(values, Math.max(values.length * 2, count + newValues.length));
+				timestamps = Arrays.copyOf(timestamps, values.length);
+			}
+			System.arraycopy(newValues, 0, values, count, newValues.length);
+			System.arraycopy(newTimestamps, 0, timestamps, count, newValues.length);
+			count += newValues.length;
+			return count >= DRAIN_THRESHOLD;
+		}
+	}
+
+	static final class Drained {
+
+		final double[] values;
+		final long[] timestamps;
+		final long lastSequence;
+
+		Drained(double[] values, long[] timestamps, long lastSequence) {
+			this.values = values;
+			this.timestamps = timestamps;
+			this.lastSequence = lastSequence;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.qevans.metricapp.repository;
+
+import java.util.Arrays;
+
+/**
+ * <p>Merging t-digest: a mergeable quantile sketch that keeps a bounded number of weighted centroids.
+ * </p>
+ * Centroids near the tails are kept small and centroids near the median are allowed to grow, so extreme
+ * percentiles such as p99.9 stay accurate while memory is bounded by the compression, not by how many
+ * values were added. Higher compression means more centroids and less error, roughly 1 / compression
+ * in the middle of the distribution and much less in the tails.
+ *
+ * New values are collected in a buffer and folded into the centroids when the buffer fills or a
+ * quantile is asked for, so the cost of an add is amortized O(log compression).
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+public class TDigest {
+
+	public static final double DEFAULT_COMPRESSION = 100;
+
+	private final double compression;
+
+	private double[] means;
+	private double[] weights;
+	private int centroidCount;
+
+	private final double[] buffer;
+	private int bufferCount;
+
+	private double totalWeight;
+	private double minimum = Double.POSITIVE_INFINITY;
+	private double maximum = Double.NEGATIVE_INFINITY;
+
+	public TDigest() {
+		this(DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param compression is a double of at least 10, the size/accuracy trade off of the sketch
+	 * @throws IllegalArgumentException if compression is less than 10
+	 */
+	public TDigest(double compression) {
+		if (compression < 10) {
+			throw new IllegalArgumentException("Compression must be at least 10");
+		}
+
+		this.compression = compression;
+		int maxCentroids = (int) Math.ceil(compression * Math.PI / 2) + 10;
+		this.means = new double[maxCentroids];
+		this.weights = new double[maxCentroids];
+		this.buffer = new double[(int) (compression * 5)];
+	}
+
+	public double getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Big O(log compression) amortized
+	 */
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			throw new IllegalArgumentException("Cannot add NaN to a sketch");
+		}
+
+		if (bufferCount == buffer.length) {
+			flush();
+		}
+
+		buffer[bufferCount++] = value;
+		totalWeight++;
+
+		if (value < minimum) {
+			minimum = value;
+		}
+		if (value > maximum) {
+			maximum = value;
+		}
+	}
+
+	/**
+	 * <p>This method folds another digest into this one, the result summarizes both streams
+	 * </p>
+	 * @param other is a TDigest, it is not changed
+	 *
+	 * Big O(compression)
+	 */
+	public void merge(TDigest other) {
+		if (other.totalWeight == 0) {
+			return;
+		}
+
+		flush();
+		other.flush();
+
+		mergeSorted(other.means, other.weights, other.centroidCount);
+		totalWeight += other.totalWeight;
+		minimum = Math.min(minimum, other.minimum);
+		maximum = Math.max(maximum, other.maximum);
+	}
+
+	public long getCount() {
+		return (long) totalWeight;
+	}
+
+	/**
+	 * <p>This method estimates the value at a given quantile
+	 * </p>
+	 * @param quantile is a double between 0 and 1
+	 * @return estimated value, exact for quantile 0 (min) and 1 (max). If the sketch is empty, will return 0.
+	 * @throws IllegalArgumentException if quantile is outside 0 to 1
+	 *
+	 * Big O(compression)
+	 */
+	public double quantile(double quantile) {
+		if (quantile < 0 || quantile > 1 || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException("Quantile must be between 0 and 1");
+		}
+
+		flush();
+
+		if (centroidCount == 0) {
+			return 0.0;
+		}
+
+		if (quantile == 0) {
+			return minimum;
+		}
+
+		if (quantile == 1) {
+			return maximum;
+		}
+
+		double index = quantile * totalWeight;
+
+		// left tail, between the minimum and the center of the first centroid
+		double firstCenter = weights[0] / 2;
+		if (index < firstCenter) {
+			return minimum + (means[0] - minimum) * (index / firstCenter);
+		}
+
+		double center = firstCenter;
+		for (int centroid = 0; centroid < centroidCount - 1; centroid++) {
+			double nextCenter = center + (weights[centroid] + weights[centroid + 1]) / 2;
+			if (index < nextCenter) {
+				double fraction = (index - center) / (nextCenter - center);
+				return means[centroid] + (means[centroid + 1] - means[centroid]) * fraction;
+			}
+			center = nextCenter;
+		}
+
+		// right tail, between the center of the last centroid and the maximum
+		double lastMean = means[centroidCount - 1];
+		double remaining = totalWeight - center;
+		if (remaining <= 0) {
+			return maximum;
+		}
+		return lastMean + (maximum - lastMean) * ((index - center) / remaining);
+	}
+
+	/**
+	 * <p>This method rebuilds a digest from centroids saved earlier, e.g. in a snapshot
+	 * </p>
+	 * @param compression is a double of at least 10
+	 * @param means is a double array of centroid means in ascending order
+	 * @param weights is a double array of centroid weights, the same length as means
+	 * @param minimum is the smallest value added to the saved digest
+	 * @param maximum is the largest value added to the saved digest
+	 * @return digest holding the saved centroids
+	 * @throws IllegalArgumentException if compression is less than 10 or means and weights differ in length
+	 */
+	static TDigest fromCentroids(double compression, double[] means, double[] weights, double minimum, double maximum) {
+		if (means.length != weights.length) {
+			throw new IllegalArgumentException("Means and weights must be the same length");
+		}
+
+		TDigest digest = new TDigest(compression);
+		digest.merge(means, weights, minimum, maximum);
+		return digest;
+	}
+
+	/**
+	 * <p>This method folds in centroids saved from another digest, without building a digest for them
+	 * </p>
+	 * @param means is a double array of centroid means in ascending order
+	 * @param weights is a double array of centroid weights in the order of means
+	 * @param minimum is the smallest value the centroids summarize
+	 * @param maximum is the largest value the centroids summarize
+	 *
+	 * Big O(compression + centroids)
+	 */
+	void merge(double[] means, double[] weights, double minimum, double maximum) {
+		if (means.length == 0) {
+			return;
+		}
+
+		flush();
+		mergeSorted(means, weights, means.length);
+		for (double weight : weights) {
+			totalWeight += weight;
+		}
+		this.minimum = Math.min(this.minimum, minimum);
+		this.maximum = Math.max(this.maximum, maximum);
+	}
+
+	/**
+	 * @return centroid means in ascending order, after folding in any buffered values
+	 */
+	double[] centroidMeans() {
+		flush();
+		return Arrays.copyOf(means, centroidCount);
+	}
+
+	/**
+	 * @return centroid weights in the order of centroidMeans
+	 */
+	double[] centroidWeights() {
+		flush();
+		return Arrays.copyOf(weights, centroidCount);
+	}
+
+	/**
+	 * @return memory held by the sketch, which does not grow with the number of values
+	 */
+	public long sizeInBytes() {
+		return (means.length + weights.length + buffer.length) * (long) Double.BYTES;
+	}
+
+	private void flush() {
+		if (bufferCount == 0) {
+			return;
+		}
+
+		Arrays.sort(buffer, 0, bufferCount);
+
+		double[] bufferWeights = new double[bufferCount];
+		Arrays.fill(bufferWeights, 1.0);
+
+		mergeSorted(buffer, bufferWeights, bufferCount);
+		bufferCount = 0;
+	}
+
+	/**
+	 * Merges sorted weighted points into the centroids. Neighbouring points are combined while the
+	 * combined centroid spans at most one unit of the k1 scale function.
+	 */
+	private void mergeSorted(double[] incomingMeans, double[] incomingWeights, int incomingCount) {
+		int total = centroidCount + incomingCount;
+		double[] sortedMeans = new double[total];
+		double[] sortedWeights = new double[total];
+		double mergedWeight = 0;
+
+		int existing = 0;
+		int incoming = 0;
+		for (int index = 0; index < total; index++) {
+			if (incoming >= incomingCount
+					|| (existing < centroidCount && means[existing] <= incomingMeans[incoming])) {
+				sortedMeans[index] = means[existing];
+				sortedWeights[index] = weights[existing++];
+			} else {
+				sortedMeans[index] = incomingMeans[incoming];
+				sortedWeights[index] = incomingWeights[incoming++];
+			}
+			mergedWeight += sortedWeights[index];
+		}
+
+		double[] newMeans = new double[Math.max(means.length, total)];
+		double[] newWeights = new double[newMeans.length];
+		int newCount = 0;
+
+		double completedWeight = 0;
+		double currentMean = sortedMeans[0];
+		double currentWeight = sortedWeights[0];
+		double kStart = scale(0);
+
+		for (int index = 1; index < total; index++) {
+			double proposedWeight = currentWeight + sortedWeights[index];
+			double kEnd = scale((completedWeight + proposedWeight) / mergedWeight);
+
+			if (kEnd - kStart <= 1) {
+				currentMean += (sortedMeans[index] - currentMean) * sortedWeights[index] / proposedWeight;
+				currentWeight = proposedWeight;
+			} else {
+				newMeans[newCount] = currentMean;
+				newWeights[newCount++] = currentWeight;
+				completedWeight += currentWeight;
+				kStart = scale(completedWeight / mergedWeight);
+
+				currentMean = sortedMeans[index];
+				currentWeight = sortedWeights[index];
+			}
+		}
+
+		newMeans[newCount] = currentMean;
+		newWeights[newCount++] = currentWeight;
+
+		means = newMeans;
+		weights = newWeights;
+		centroidCount = newCount;
+	}
+
+	private double scale(double quantile) {
+		return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1, Math.max(0, quantile)) - 1);
+	}
+}
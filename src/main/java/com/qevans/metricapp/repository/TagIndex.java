@@ -0,0 +1,150 @@
+package com.qevans.metricapp.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Inverted index from metric name and from each tag to the metrics that have it.
+ * </p>
+ * Every metric is given an int id in the order it is added, and each name and each tag key=value keeps a
+ * CompressedBitmap of the ids that have it. A selector like service=api,region=us is the intersection of a few
+ * bitmaps, so it costs about the size of the smallest one rather than a scan of every metric. Grouping by a tag
+ * intersects the selection with the bitmap of each value of that tag.
+ *
+ * Thread safe, lookups share a read lock and adds take the write lock.
+ */
+class TagIndex {
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// guarded by lock
+	private final List<String> keys = new ArrayList<>();
+	private final Map<String, CompressedBitmap> byName = new HashMap<>();
+	private final Map<String, Map<String, CompressedBitmap>> byTag = new HashMap<>();
+
+	/**
+	 * @param key is a metric key, see MetricKey
+	 *
+	 * Big O(tags of key), amortized
+	 */
+	void add(String key) {
+		MetricKey metricKey = MetricKey.parse(key);
+		lock.writeLock().lock();
+		try {
+			int id = keys.size();
+			keys.add(key);
+			byName.computeIfAbsent(metricKey.getName(), name -> new CompressedBitmap()).add(id);
+			for (Map.Entry<String, String> tag : metricKey.getTags().entrySet()) {
+				byTag.computeIfAbsent(tag.getKey(), tagKey -> new HashMap<>())
+						.computeIfAbsent(tag.getValue(), tagValue -> new CompressedBitmap()).add(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			keys.clear();
+			byName.clear();
+			byTag.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param name is a metric name without tags, null for any name
+	 * @param tags is a Map of tag key to the value a metric must have
+	 * @return sorted List of the keys of the metrics with name and every tag
+	 * @throws IllegalArgumentException if name is null and tags is null or empty
+	 *
+	 * Big O(tags * smallest bitmap + matches * log matches)
+	 */
+	List<String> select(String name, Map<String, String> tags) {
+		lock.readLock().lock();
+		try {
+			List<String> selected = keysOf(selection(name, tags));
+			Collections.sort(selected);
+			return selected;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param name is a metric name without tags, null for any name
+	 * @param tags is a Map of tag key to the value a metric must have
+	 * @param groupBy is a tag key
+	 * @return value of groupBy to the sorted keys of the selected metrics with that value, sorted by value.
+	 * Selected metrics without the groupBy tag are left out.
+	 * @throws IllegalArgumentException if name is null and tags is null or empty, or groupBy is null or empty
+	 *
+	 * Big O(values of groupBy * smallest bitmap + matches * log matches)
+	 */
+	Map<String, List<String>> groupBy(String name, Map<String, String> tags, String groupBy) {
+		if (groupBy == null || groupBy.isEmpty()) {
+			throw new IllegalArgumentException("Group by tag cannot be null or empty");
+		}
+
+		Map<String, List<String>> groups = new TreeMap<>();
+		lock.readLock().lock();
+		try {
+			CompressedBitmap selection = selection(name, tags);
+			for (Map.Entry<String, CompressedBitmap> value : byTag.getOrDefault(groupBy, Collections.emptyMap()).entrySet()) {
+				CompressedBitmap group = selection.and(value.getValue());
+				if (!group.isEmpty()) {
+					List<String> members = keysOf(group);
+					Collections.sort(members);
+					groups.put(value.getKey(), members);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return groups;
+	}
+
+	private CompressedBitmap selection(String name, Map<String, String> tags) {
+		if (name == null && (tags == null || tags.isEmpty())) {
+			throw new IllegalArgumentException("Selector needs a name or at least one tag");
+		}
+
+		List<CompressedBitmap> bitmaps = new ArrayList<>();
+		if (name != null) {
+			bitmaps.add(byName.get(name));
+		}
+		if (tags != null) {
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				bitmaps.add(byTag.getOrDefault(tag.getKey(), Collections.emptyMap()).get(tag.getValue()));
+			}
+		}
+
+		if (bitmaps.contains(null)) {
+			return new CompressedBitmap();
+		}
+
+		// smallest first, so every intersection is at most as large as it
+		bitmaps.sort((first, second) -> Integer.compare(first.cardinality(), second.cardinality()));
+		CompressedBitmap selection = bitmaps.get(0);
+		for (int index = 1; index < bitmaps.size() && !selection.isEmpty(); index++) {
+			selection = selection.and(bitmaps.get(index));
+		}
+		return selection;
+	}
+
+	private List<String> keysOf(CompressedBitmap ids) {
+		int[] values = ids.toArray();
+		List<String> selected = new ArrayList<>(values.length);
+		for (int id : values) {
+			selected.add(keys.get(id));
+		}
+		return selected;
+	}
+}
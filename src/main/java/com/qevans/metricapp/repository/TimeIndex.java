@@ -0,0 +1,678 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * <p>Samples of one metric grouped into fixed width time partitions, so statistics over a time range only read
+ * the partitions that overlap it.
+ * </p>
+ * Partitions wholly inside the range answer count, mean, min, max, variance and stddev from their running
+ * statistics without touching their samples. Only rank based statistics (median, percentiles) and the two
+ * partitions cut by the edges of the range read samples. For SKETCH storage the t-digests of the overlapping
+ * partitions are merged, and edge partitions count whole, so ranges are rounded out to partition boundaries.
+ * Partitions of a metric that keeps neither samples by time nor partition digests (see MetricConfig) are rounded
+ * out the same way, and only answer rank based statistics through rollups.
+ *
+ * A metric with rollups also keeps RollupTier buckets of 1 hour, 1 minute and 10 seconds. A range is then
+ * covered by the coarsest buckets that fit inside it, the edges by finer buckets, and only what is left below
+ * 10 seconds at each edge by the raw partitions, so a month long range reads about a thousand rollups.
+ *
+ * planSummary() gathers a MetricSummary of a range the same way, so it can be merged with the summaries of other
+ * metrics and nodes. Under the metric lock it only merges running statistics and digests and copies the samples
+ * that are needed, the samples are read into digests once the lock is released. Whole partitions keep the digest
+ * built for them, so the next summary merges its centroids instead of reading the samples again.
+ *
+ * A COMPRESSED metric seals every partition but the newest into a CompressedBlock, the partition before is sealed
+ * as soon as a newer one opens and compact() seals partitions reopened by late samples or restored from a snapshot.
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+class TimeIndex {
+
+	static final long DEFAULT_PARTITION_MILLIS = 60_000;
+	// fewer partitions to read are not worth handing to the pool
+	private static final int PARALLEL_PARTITIONS = 4;
+
+	private final MetricConfig config;
+	private final long partitionMillis;
+	private final TreeMap<Long, TimePartition> partitions = new TreeMap<>();
+	// coarsest first, null if the metric keeps no rollups
+	private final List<RollupTier> tiers;
+	// raw partitions before this were dropped by retention
+	private long rawCoveredFrom = Long.MIN_VALUE;
+	private final boolean sealing;
+	// false if partitions only keep running statistics, or a digest for SKETCH storage
+	private final boolean sampled;
+	// changes every time samples are added or dropped
+	private long modifications;
+
+	TimeIndex(MetricConfig config) {
+		this(config, Collections.<TimePartitionSnapshot>emptyList(), Collections.<TimePartitionSnapshot>emptyList());
+	}
+
+	/**
+	 * @param config is the MetricConfig of the owning metric
+	 * @param snapshots is a List of TimePartitionSnapshot, raw samples are read from their buffers in place
+	 * @param rollups is a List of TimePartitionSnapshot holding the buckets of every rollup tier
+	 */
+	TimeIndex(MetricConfig config, List<TimePartitionSnapshot> snapshots, List<TimePartitionSnapshot> rollups) {
+		this.config = config;
+		this.partitionMillis = config.getPartitionMillis();
+		this.tiers = config.isRollups() ? RollupTier.newTiers(config, rollups) : null;
+		this.sealing = config.getStorageType() == StorageType.COMPRESSED;
+		this.sampled = config.keepsSamplesByTime();
+
+		for (TimePartitionSnapshot snapshot : snapshots) {
+			partitions.put(snapshot.getStart(), new TimePartition(snapshot, config));
+		}
+
+		if (tiers != null && !partitions.isEmpty()) {
+			// the rollups may reach further back than partitions that survived retention
+			rawCoveredFrom = partitions.firstKey();
+		}
+	}
+
+	/**
+	 * Big O(log partitions), samples may arrive in any time order. A COMPRESSED metric also seals the previous
+	 * newest partition when a newer one opens, O(samples of that partition) once per partition.
+	 */
+	void add(long timestamp, double value) {
+		long start = Math.floorDiv(timestamp, partitionMillis) * partitionMillis;
+		TimePartition partition = partitions.get(start);
+
+		if (partition == null) {
+			Map.Entry<Long, TimePartition> newest = partitions.lastEntry();
+			if (sealing && newest != null && newest.getKey() < start) {
+				newest.getValue().seal();
+			}
+
+			partition = new TimePartition(start, config);
+			partitions.put(start, partition);
+		}
+
+		partition.add(timestamp, value);
+		modifications++;
+
+		if (tiers != null) {
+			for (RollupTier tier : tiers) {
+				tier.add(timestamp, value);
+			}
+		}
+	}
+
+	/**
+	 * @param timestamps is a long array the same length as values
+	 * @param values is a double array
+	 */
+	void addAll(long[] timestamps, double[] values) {
+		for (int index = 0; index < values.length; index++) {
+			add(timestamps[index], values[index]);
+		}
+	}
+
+	/**
+	 * <p>This method answers several statistics over the samples with a timestamp between from and to
+	 * </p>
+	 * @param statistics is a List of Statistic
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return statistic name to value, in the order asked for. If there are no samples in the range, every value is 0.
+	 *
+	 * Big O(overlapping partitions) for running statistics, plus O(m log m) over the m samples in range when a
+	 * rank based statistic is asked for. With rollups, O(buckets of the coarsest tiers that fit) instead, and rank
+	 * based statistics are estimates from the merged bucket digests.
+	 */
+	Map<String, Double> getStatistics(List<Statistic> statistics, long from, long to) {
+		boolean rankBased = false;
+		for (Statistic statistic : statistics) {
+			rankBased |= statistic.isRankBased();
+		}
+
+		Range range = new Range(rankBased, tiers == null && sampled, config.getCompression());
+
+		if (from <= to) {
+			if (tiers == null) {
+				addPartitions(from, to, range);
+			} else {
+				// half open from here on, so bucket edges line up
+				cover(from, to == Long.MAX_VALUE ? Long.MAX_VALUE : to + 1, 0, range);
+			}
+		}
+
+		IMetricSeries rangeSeries = range.toSeries();
+
+		Map<String, Double> results = new LinkedHashMap<>();
+		for (Statistic statistic : statistics) {
+			if (statistic.isRankBased() && rangeSeries == null) {
+				results.put(statistic.getName(), 0.0);
+			} else {
+				results.put(statistic.getName(), statistic.valueOf(range.statistics, rangeSeries));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * <p>Covers [from, end) with whole buckets of the tier at level, coarsest first, and hands the uneven edges
+	 * down to the next finer level. The level past the finest tier is the raw partitions. A level that has already
+	 * dropped the start of its edge (retention or tier horizon) leaves it to the whole bucket of the coarser level
+	 * holding it, so the range is rounded out there instead of losing values. What is older than the coarsest tier
+	 * is left to the raw partitions that are still kept.
+	 * </p>
+	 */
+	private void cover(long from, long end, int level, Range range) {
+		if (from >= end) {
+			return;
+		}
+
+		long coveredFrom;
+		if (level < tiers.size()) {
+			coveredFrom = tiers.get(level).getCoveredFrom();
+		} else {
+			// partitions without samples cannot be cut at an edge, so the finest rollups round the edges out instead
+			coveredFrom = sampled ? rawCoveredFrom : Long.MAX_VALUE;
+		}
+		if (coveredFrom > from && level == 0) {
+			long roundedEnd = Math.min(end, coveredFrom);
+			addPartitions(from, roundedEnd - 1, range);
+			cover(roundedEnd, end, level, range);
+			return;
+		}
+		if (coveredFrom > from && level > 0) {
+			RollupTier coarser = tiers.get(level - 1);
+			long roundedEnd = Math.min(end, coveredFrom);
+			coarser.mergeInto(alignDown(from, coarser.getWidth()), alignUp(roundedEnd, coarser.getWidth()),
+					range.statistics, range.digest);
+			cover(roundedEnd, end, level, range);
+			return;
+		}
+
+		if (level == tiers.size()) {
+			addPartitions(from, end - 1, range);
+			return;
+		}
+
+		RollupTier tier = tiers.get(level);
+		long width = tier.getWidth();
+		long firstBucket = alignUp(from, width);
+		long lastBucket = end == Long.MAX_VALUE ? end : alignDown(end, width);
+
+		if (firstBucket >= lastBucket) {
+			cover(from, end, level + 1, range);
+			return;
+		}
+
+		tier.mergeInto(firstBucket, lastBucket, range.statistics, range.digest);
+		cover(from, firstBucket, level + 1, range);
+		cover(lastBucket, end, level + 1, range);
+	}
+
+	/**
+	 * @return start of the bucket holding timestamp, Long.MIN_VALUE if that is before the first bucket
+	 */
+	private static long alignDown(long timestamp, long width) {
+		long aligned = Math.floorDiv(timestamp, width) * width;
+		return aligned > timestamp ? Long.MIN_VALUE : aligned;
+	}
+
+	/**
+	 * @return first bucket start at or after timestamp, Long.MAX_VALUE if that is past the last bucket
+	 */
+	private static long alignUp(long timestamp, long width) {
+		long aligned = alignDown(timestamp, width);
+		if (aligned == timestamp) {
+			return timestamp;
+		}
+		return aligned > Long.MAX_VALUE - width ? Long.MAX_VALUE : aligned + width;
+	}
+
+	/**
+	 * <p>This method gathers what a summary of the samples with a timestamp between from and to needs, so the
+	 * samples can be read after the metric lock is released
+	 * </p>
+	 * @param from is the first timestamp included, epoch milliseconds
+	 * @param to is the last timestamp included, epoch milliseconds
+	 * @return SummaryPlan of the range, empty if from is after to
+	 *
+	 * Big O(overlapping partitions * compression), plus a copy of the samples of partitions cut by the range or
+	 * without a cached digest
+	 */
+	SummaryPlan planSummary(long from, long to) {
+		SummaryPlan plan = new SummaryPlan(config.getCompression());
+
+		if (from <= to) {
+			if (tiers == null) {
+				addPartitions(from, to, plan.range);
+			} else {
+				cover(from, to == Long.MAX_VALUE ? Long.MAX_VALUE : to + 1, 0, plan.range);
+			}
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Adds the samples of the raw partitions between from and to, both included
+	 */
+	private void addPartitions(long from, long to, Range range) {
+		List<TimePartition> sampled = new ArrayList<>();
+
+		for (TimePartition partition : overlapping(from, to)) {
+			boolean whole = isWhole(partition, from, to);
+
+			if (!partition.keepsSamples()) {
+				range.statistics.merge(partition.getStatistics());
+				if (range.rankBased && partition.getDigest() != null) {
+					range.digest().merge(partition.getDigest());
+				}
+				continue;
+			}
+
+			if (whole) {
+				range.statistics.merge(partition.getStatistics());
+				if (!range.rankBased) {
+					// running statistics already cover this partition and no sample is needed
+					continue;
+				}
+			}
+
+			if (range.parts != null) {
+				range.parts.add(new PartitionPart(partition, whole, from, to));
+				continue;
+			}
+
+			sampled.add(partition);
+		}
+
+		if (range.values == null && sampled.size() >= PARALLEL_PARTITIONS) {
+			// digests merge, so each partition is read into its own on a pool thread. The metric lock held by
+			// this thread keeps writers out until every part is merged
+			range.merge(sampled.parallelStream().map(partition -> {
+				Range part = new Range(range.rankBased, false, range.compression);
+				addSamples(partition, from, to, part);
+				return part;
+			}).reduce((first, second) -> {
+				first.merge(second);
+				return first;
+			}).get());
+			return;
+		}
+
+		for (TimePartition partition : sampled) {
+			addSamples(partition, from, to, range);
+		}
+	}
+
+	private void addSamples(TimePartition partition, long from, long to, Range range) {
+		boolean whole = isWhole(partition, from, to);
+
+		partition.forEach((timestamp, value) -> {
+			if (!whole) {
+				if (timestamp < from || timestamp > to) {
+					return;
+				}
+				range.statistics.add(value);
+			}
+
+			if (range.rankBased) {
+				range.addRanked(value);
+			}
+		});
+	}
+
+	private boolean isWhole(TimePartition partition, long from, long to) {
+		return partition.getStart() >= from && partition.getStart() + (partitionMillis - 1) <= to;
+	}
+
+	/**
+	 * @return true if rank based statistics over a time range can be answered, from samples, partition digests
+	 * or rollups
+	 */
+	boolean answersRanks() {
+		return sampled || tiers != null || config.keepsPartitionDigests();
+	}
+
+	/**
+	 * @return true if the partitions keep every sample with its timestamp
+	 */
+	boolean keepsSamples() {
+		return sampled;
+	}
+
+	/**
+	 * @return partitions that may hold samples between from and to, oldest first
+	 */
+	Iterable<TimePartition> overlapping(long from, long to) {
+		// the partition holding from starts at or before it
+		Long fromKey = partitions.floorKey(from);
+		if (fromKey == null || fromKey + (partitionMillis - 1) < from) {
+			fromKey = from;
+		}
+
+		NavigableMap<Long, TimePartition> range = partitions.subMap(fromKey, true, to, true);
+		return range.values();
+	}
+
+	/**
+	 * @return every partition, oldest first
+	 */
+	Collection<TimePartition> partitions() {
+		return partitions.values();
+	}
+
+	/**
+	 * <p>This method drops the oldest partitions, e.g. once they are past retention
+	 * </p>
+	 * @param count is how many partitions to drop
+	 * @return the dropped partitions, oldest first
+	 *
+	 * Big O(count log partitions)
+	 */
+	List<TimePartition> removeOldest(int count) {
+		List<TimePartition> removed = new ArrayList<>(count);
+		while (removed.size() < count && !partitions.isEmpty()) {
+			TimePartition partition = partitions.pollFirstEntry().getValue();
+			rawCoveredFrom = Math.max(rawCoveredFrom, partition.getStart() + partitionMillis);
+			removed.add(partition);
+			modifications++;
+		}
+		return removed;
+	}
+
+	/**
+	 * @return number of samples in every partition, O(partitions)
+	 */
+	long getCount() {
+		long count = 0;
+		for (TimePartition partition : partitions.values()) {
+			count += partition.getStatistics().getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return a number that changes whenever samples are added or dropped
+	 */
+	long getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * @return running statistics of every partition merged, O(partitions)
+	 */
+	RunningStatistics getStatistics() {
+		RunningStatistics merged = new RunningStatistics();
+		for (TimePartition partition : partitions.values()) {
+			merged.merge(partition.getStatistics());
+		}
+		return merged;
+	}
+
+	/**
+	 * @return a digest of every partition merged, for SKETCH storage with partition digests, O(partitions * compression)
+	 */
+	TDigest getDigest() {
+		TDigest merged = new TDigest(config.getCompression());
+		for (TimePartition partition : partitions.values()) {
+			merged.merge(partition.getDigest());
+		}
+		return merged;
+	}
+
+	/**
+	 * <p>This method drops rollup buckets past the horizon of their tier and seals buckets reopened by late values.
+	 * A COMPRESSED metric also seals every partition but the newest.
+	 * </p>
+	 * @param now is the time ages are measured from, epoch milliseconds
+	 */
+	void compact(long now) {
+		if (sealing && !partitions.isEmpty()) {
+			for (TimePartition partition : partitions.headMap(partitions.lastKey()).values()) {
+				partition.seal();
+			}
+		}
+
+		if (tiers == null) {
+			return;
+		}
+
+		for (RollupTier tier : tiers) {
+			tier.compact(now);
+		}
+	}
+
+	/**
+	 * @return approximate bytes of memory held by the raw partitions and the rollups, O(partitions + buckets)
+	 */
+	long sizeInBytes() {
+		long bytes = 0;
+		for (TimePartition partition : partitions.values()) {
+			bytes += partition.sizeInBytes();
+		}
+		if (tiers != null) {
+			for (RollupTier tier : tiers) {
+				bytes += tier.sizeInBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the buckets of every rollup tier as they would be saved in a snapshot, empty without rollups
+	 */
+	List<TimePartitionSnapshot> snapshotRollups() {
+		List<TimePartitionSnapshot> snapshots = new ArrayList<>();
+		if (tiers != null) {
+			for (RollupTier tier : tiers) {
+				snapshots.addAll(tier.snapshot());
+			}
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return every partition as it would be saved in a snapshot, oldest first
+	 */
+	List<TimePartitionSnapshot> snapshot() {
+		List<TimePartitionSnapshot> snapshots = new ArrayList<>(partitions.size());
+		for (TimePartition partition : partitions.values()) {
+			snapshots.add(partition.snapshot());
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Running statistics of the samples in a range, and for rank based statistics either the exact samples or
+	 * a digest of them.
+	 */
+	private static final class Range {
+
+		final RunningStatistics statistics = new RunningStatistics();
+		final boolean rankBased;
+		final double compression;
+		TDigest digest;
+		double[] values;
+		int count;
+		// partitions whose samples are read later, null if they are read right away
+		List<PartitionPart> parts;
+
+		Range(boolean rankBased, boolean exact, double compression) {
+			this.rankBased = rankBased;
+			this.compression = compression;
+			if (rankBased && exact) {
+				values = new double[16];
+			} else if (rankBased) {
+				digest = new TDigest(compression);
+			}
+		}
+
+		TDigest digest() {
+			if (digest == null) {
+				digest = new TDigest(compression);
+			}
+			return digest;
+		}
+
+		void addRanked(double value) {
+			if (values == null) {
+				digest().add(value);
+				return;
+			}
+
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+		}
+
+		/**
+		 * Folds in a range over other partitions, only for ranges that keep a digest
+		 */
+		void merge(Range other) {
+			statistics.merge(other.statistics);
+			if (other.digest != null) {
+				digest().merge(other.digest);
+			}
+		}
+
+		IMetricSeries toSeries() {
+			if (values != null) {
+				double[] sorted = Arrays.copyOf(values, count);
+				Arrays.sort(sorted);
+				return new MappedSeries(DoubleBuffer.wrap(sorted));
+			}
+			return digest != null ? new SketchSeries(digest) : null;
+		}
+	}
+
+	/**
+	 * <p>A summary gathered under the metric lock: running statistics and digests merged so far, and the partitions
+	 * whose samples still have to be read. Shares no state the metric changes, except the partitions it caches
+	 * digests in.
+	 * </p>
+	 */
+	static final class SummaryPlan {
+
+		private final Range range;
+
+		private SummaryPlan(double compression) {
+			range = new Range(true, false, compression);
+			range.parts = new ArrayList<>();
+		}
+
+		/**
+		 * <p>This method reads the copied samples into digests and merges them, without the metric lock
+		 * </p>
+		 * @return MetricSummary of the range
+		 *
+		 * Big O(copied samples log compression + parts * compression), parts are read in parallel
+		 */
+		MetricSummary summarize() {
+			Stream<PartitionPart> parts = range.parts.size() >= PARALLEL_PARTITIONS
+					? range.parts.parallelStream() : range.parts.stream();
+			parts.map(part -> part.read(range.compression)).reduce((first, second) -> {
+				first.merge(second);
+				return first;
+			}).ifPresent(range::merge);
+
+			return new MetricSummary(range.statistics, range.digest());
+		}
+
+		/**
+		 * <p>This method keeps the digests built for whole partitions, under the metric lock, after summarize
+		 * </p>
+		 */
+		void cacheDigests() {
+			for (PartitionPart part : range.parts) {
+				if (part.partition != null && part.builtMeans != null) {
+					part.partition.cacheCentroids(part.size, part.builtMeans, part.builtWeights);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One partition of a summary: either the cached centroids of a whole partition or a copy of its samples in range.
+	 */
+	private static final class PartitionPart {
+
+		private final boolean whole;
+		// set for a whole partition without cached centroids, to cache the digest read from its samples
+		private final TimePartition partition;
+		private final int size;
+		private final double[] values;
+		private final double[] means;
+		private final double[] weights;
+		private final double minimum;
+		private final double maximum;
+		private double[] builtMeans;
+		private double[] builtWeights;
+
+		/**
+		 * Big O(constant) with cached centroids, O(samples) to copy them otherwise
+		 */
+		PartitionPart(TimePartition partition, boolean whole, long from, long to) {
+			this.whole = whole;
+			this.size = partition.size();
+			this.minimum = partition.getStatistics().getMinimum();
+			this.maximum = partition.getStatistics().getMaximum();
+
+			if (whole && partition.getCentroidMeans() != null) {
+				this.partition = null;
+				this.values = null;
+				this.means = partition.getCentroidMeans();
+				this.weights = partition.getCentroidWeights();
+				return;
+			}
+
+			this.partition = whole ? partition : null;
+			this.means = null;
+			this.weights = null;
+			if (whole) {
+				this.values = partition.copyOfValues();
+				return;
+			}
+
+			double[] inRange = new double[size];
+			int[] next = new int[1];
+			partition.forEach((timestamp, value) -> {
+				if (timestamp >= from && timestamp <= to) {
+					inRange[next[0]++] = value;
+				}
+			});
+			this.values = Arrays.copyOf(inRange, next[0]);
+		}
+
+		Range read(double compression) {
+			Range part = new Range(true, false, compression);
+			if (means != null) {
+				part.digest().merge(means, weights, minimum, maximum);
+				return part;
+			}
+
+			for (double value : values) {
+				if (!whole) {
+					part.statistics.add(value);
+				}
+				part.addRanked(value);
+			}
+
+			if (partition != null) {
+				builtMeans = part.digest().centroidMeans();
+				builtWeights = part.digest().centroidWeights();
+			}
+			return part;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * <p>The samples of one metric that arrived in one time window, [start, start + width).
+ * </p>
+ * Running statistics are kept for the whole partition, so a query whose range covers the partition reads them
+ * in constant time. Partitions of a metric that keeps samples by time also keep every timestamp and value in arrival
+ * order, for rank based statistics and for partitions cut by the edge of a range, off heap for OFF_HEAP storage.
+ * SKETCH partitions keep a t-digest instead when the metric asks for one (see MetricConfig), and the partitions
+ * of other metrics only keep the running statistics. A partition that keeps samples also caches the centroids of
+ * a digest of them once a summary has built one, so later summaries merge the centroids instead of reading every
+ * sample again, until the next sample arrives.
+ *
+ * Partitions restored from a snapshot read from the snapshot buffers until they are written to.
+ * A COMPRESSED metric seals its partitions into a CompressedBlock once they stop receiving samples, and a late
+ * sample decodes the partition back into arrays until it is sealed again.
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+class TimePartition {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final long start;
+	private final RunningStatistics statistics;
+	private final TDigest digest;
+	private final boolean sampled;
+	private final boolean offHeap;
+
+	private LongBuffer timestamps;
+	private DoubleBuffer values;
+	private CompressedBlock block;
+	private int count;
+	private boolean writable;
+	// digest of the samples as of the last summary, null until one is built and again once a sample is added
+	private double[] centroidMeans;
+	private double[] centroidWeights;
+
+	/**
+	 * Receives the samples of a partition in arrival order.
+	 */
+	@FunctionalInterface
+	interface SampleVisitor {
+		void accept(long timestamp, double value);
+	}
+
+	/**
+	 * @param start is the first timestamp of the partition
+	 * @param config is the MetricConfig of the owning metric
+	 */
+	TimePartition(long start, MetricConfig config) {
+		this.start = start;
+		this.statistics = new RunningStatistics();
+		this.sampled = config.keepsSamplesByTime();
+		this.offHeap = config.getStorageType() == StorageType.OFF_HEAP;
+		this.digest = config.keepsPartitionDigests() ? new TDigest(config.getCompression()) : null;
+
+		if (sampled) {
+			grow();
+		}
+	}
+
+	/**
+	 * @param snapshot is a TimePartitionSnapshot, raw samples are read from its buffers in place
+	 * @param config is the MetricConfig of the owning metric, samples are only kept if it keeps samples by time
+	 */
+	TimePartition(TimePartitionSnapshot snapshot, MetricConfig config) {
+		this.start = snapshot.getStart();
+		this.statistics = snapshot.getStatistics();
+		this.sampled = config.keepsSamplesByTime() && snapshot.getTimestamps() != null;
+		this.offHeap = config.getStorageType() == StorageType.OFF_HEAP;
+
+		if (snapshot.getWeights() != null && config.keepsPartitionDigests()) {
+			this.digest = TDigest.fromCentroids(config.getCompression(), MappedSeries.copyOf(snapshot.getValues()),
+					MappedSeries.copyOf(snapshot.getWeights()), statistics.getMinimum(), statistics.getMaximum());
+		} else {
+			this.digest = null;
+		}
+
+		if (sampled) {
+			this.timestamps = snapshot.getTimestamps().duplicate();
+			this.values = snapshot.getValues().duplicate();
+			this.count = values.limit();
+		}
+	}
+
+	long getStart() {
+		return start;
+	}
+
+	RunningStatistics getStatistics() {
+		return statistics;
+	}
+
+	TDigest getDigest() {
+		return digest;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return true if the partition keeps every sample with its timestamp
+	 */
+	boolean keepsSamples() {
+		return sampled;
+	}
+
+	/**
+	 * @param visitor is handed every sample in arrival order, decoded first if the partition is sealed
+	 *
+	 * Big O(samples)
+	 */
+	void forEach(SampleVisitor visitor) {
+		if (block != null) {
+			block.forEach(visitor);
+			return;
+		}
+
+		for (int index = 0; index < count; index++) {
+			visitor.accept(timestamps.get(index), values.get(index));
+		}
+	}
+
+	/**
+	 * <p>This method copies the first samples in arrival order. Samples are only ever appended, so the first
+	 * samples stay the same until the partition is dropped.
+	 * </p>
+	 * @param timestampsOut is a long array with room for limit samples
+	 * @param valuesOut is a double array with room for limit samples
+	 * @param limit is how many samples to copy, at most size()
+	 *
+	 * Big O(limit), O(samples) if the partition is sealed
+	 */
+	void copyTo(long[] timestampsOut, double[] valuesOut, int limit) {
+		if (block != null) {
+			int[] next = new int[1];
+			block.forEach((timestamp, value) -> {
+				if (next[0] < limit) {
+					timestampsOut[next[0]] = timestamp;
+					valuesOut[next[0]++] = value;
+				}
+			});
+			return;
+		}
+
+		for (int index = 0; index < limit; index++) {
+			timestampsOut[index] = timestamps.get(index);
+			valuesOut[index] = values.get(index);
+		}
+	}
+
+	/**
+	 * @return centroid means of a digest of every sample, null if none is cached. Never changed once returned
+	 */
+	double[] getCentroidMeans() {
+		return centroidMeans;
+	}
+
+	/**
+	 * @return centroid weights in the order of getCentroidMeans, null if none are cached
+	 */
+	double[] getCentroidWeights() {
+		return centroidWeights;
+	}
+
+	/**
+	 * <p>This method caches a digest of the samples for later summaries, if no sample arrived since it was built
+	 * and its centroids take less room than the samples they stand for
+	 * </p>
+	 * @param size is the number of samples the digest was built from
+	 * @param means is a double array of centroid means in ascending order, kept as is
+	 * @param weights is a double array of centroid weights in the order of means, kept as is
+	 */
+	void cacheCentroids(int size, double[] means, double[] weights) {
+		if (!sampled || size != count || means.length * 2 > count) {
+			return;
+		}
+
+		centroidMeans = means;
+		centroidWeights = weights;
+	}
+
+	/**
+	 * @return a copy of every value in arrival order
+	 */
+	double[] copyOfValues() {
+		double[] copy = new double[count];
+		int[] next = new int[1];
+		forEach((timestamp, value) -> copy[next[0]++] = value);
+		return copy;
+	}
+
+	boolean isSealed() {
+		return block != null;
+	}
+
+	/**
+	 * <p>This method encodes the samples into a CompressedBlock and lets go of the arrays or snapshot buffers
+	 * that held them. Sketch partitions and empty partitions are left as they are.
+	 * </p>
+	 * Big O(samples)
+	 */
+	void seal() {
+		if (!sampled || block != null || count == 0) {
+			return;
+		}
+
+		block = CompressedBlock.encode(timestamps, values, count);
+		timestamps = null;
+		values = null;
+		writable = false;
+	}
+
+	/**
+	 * @return approximate bytes of memory the partition holds
+	 */
+	long sizeInBytes() {
+		if (digest != null) {
+			return digest.sizeInBytes();
+		}
+		long centroidBytes = centroidMeans == null ? 0 : (long) centroidMeans.length * Double.BYTES * 2;
+		if (block != null) {
+			return block.sizeInBytes() + centroidBytes;
+		}
+		if (!sampled) {
+			return 0;
+		}
+		return (long) values.capacity() * (Double.BYTES + Long.BYTES) + centroidBytes;
+	}
+
+	/**
+	 * Big O(constant) amortized, O(log compression) for sketch storage, O(samples) to reopen a sealed partition
+	 */
+	void add(long timestamp, double value) {
+		statistics.add(value);
+
+		if (digest != null) {
+			digest.add(value);
+		}
+		if (!sampled) {
+			return;
+		}
+		centroidMeans = null;
+		centroidWeights = null;
+
+		if (!writable || count == values.capacity()) {
+			grow();
+		}
+
+		timestamps.put(count, timestamp);
+		values.put(count, value);
+		count++;
+	}
+
+	/**
+	 * Copies the samples into buffers with room to spare, direct buffers for OFF_HEAP storage, also used to leave
+	 * the snapshot buffers or a sealed block behind.
+	 */
+	private void grow() {
+		int capacity = Math.max(INITIAL_CAPACITY, count * 2);
+		LongBuffer grownTimestamps;
+		DoubleBuffer grownValues;
+		if (offHeap) {
+			grownTimestamps = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+			grownValues = ByteBuffer.allocateDirect(capacity * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		} else {
+			grownTimestamps = LongBuffer.allocate(capacity);
+			grownValues = DoubleBuffer.allocate(capacity);
+		}
+		int[] next = new int[1];
+
+		forEach((timestamp, value) -> {
+			grownTimestamps.put(next[0], timestamp);
+			grownValues.put(next[0]++, value);
+		});
+		block = null;
+
+		timestamps = grownTimestamps;
+		values = grownValues;
+		writable = true;
+	}
+
+	/**
+	 * @return the partition as it would be saved in a snapshot, sharing no state with it
+	 */
+	TimePartitionSnapshot snapshot() {
+		if (digest != null) {
+			return new TimePartitionSnapshot(start, statistics.copy(), null, DoubleBuffer.wrap(digest.centroidMeans()),
+					DoubleBuffer.wrap(digest.centroidWeights()));
+		}
+		if (!sampled) {
+			return new TimePartitionSnapshot(start, statistics.copy(), null, DoubleBuffer.allocate(0), null);
+		}
+
+		long[] timestampCopy = new long[count];
+		double[] valueCopy = new double[count];
+		int[] next = new int[1];
+		forEach((timestamp, value) -> {
+			timestampCopy[next[0]] = timestamp;
+			valueCopy[next[0]++] = value;
+		});
+
+		return new TimePartitionSnapshot(start, statistics.copy(), LongBuffer.wrap(timestampCopy),
+				DoubleBuffer.wrap(valueCopy), null);
+	}
+}
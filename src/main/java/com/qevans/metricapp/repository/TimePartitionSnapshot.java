@@ -0,0 +1,63 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * <p>One time partition of a metric as saved in a snapshot.
+ * </p>
+ * For raw storage timestamps and values hold the samples in arrival order and weights is null. For SKETCH
+ * storage timestamps is null, values holds the partition's t-digest centroid means and weights their weights.
+ * Rollup buckets are saved the same way as SKETCH partitions, with the width of their tier.
+ */
+public class TimePartitionSnapshot {
+
+	private final long start;
+	private final long width;
+	private final RunningStatistics statistics;
+	private final LongBuffer timestamps;
+	private final DoubleBuffer values;
+	private final DoubleBuffer weights;
+
+	public TimePartitionSnapshot(long start, RunningStatistics statistics, LongBuffer timestamps, DoubleBuffer values,
+			DoubleBuffer weights) {
+		this(start, 0, statistics, timestamps, values, weights);
+	}
+
+	/**
+	 * @param width is the width of the partition in milliseconds, 0 for the partition width of the metric
+	 */
+	public TimePartitionSnapshot(long start, long width, RunningStatistics statistics, LongBuffer timestamps,
+			DoubleBuffer values, DoubleBuffer weights) {
+		this.start = start;
+		this.width = width;
+		this.statistics = statistics;
+		this.timestamps = timestamps;
+		this.values = values;
+		this.weights = weights;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getWidth() {
+		return width;
+	}
+
+	public RunningStatistics getStatistics() {
+		return statistics;
+	}
+
+	public LongBuffer getTimestamps() {
+		return timestamps;
+	}
+
+	public DoubleBuffer getValues() {
+		return values;
+	}
+
+	public DoubleBuffer getWeights() {
+		return weights;
+	}
+}
@@ -0,0 +1,222 @@
+package com.qevans.metricapp.repository;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Sliding window over the values of a metric measured in the last N milliseconds.
+ * </p>
+ * The window is cut into a fixed ring of buckets, each keeping running statistics and a t-digest of the
+ * values measured in its slice of time. A bucket is evicted by the first value that lands on its ring slot
+ * for a later slice, so nothing is ever scanned to expire old data, and buckets that have fallen out of the
+ * window are skipped when it is read.
+ *
+ * Only the bucket of the latest value keeps a whole t-digest. Once a later bucket opens the digest is sealed into
+ * its centroids, like a RollupTier bucket, so a closed bucket costs a few hundred doubles rather than a digest
+ * and its insert buffer. A late value reopens its bucket until the next one opens.
+ *
+ * Count, mean, min, max and spread merge at most BUCKETS bucket statistics, O(constant). Median and percentiles
+ * merge the sealed buckets once into a digest that is kept until a bucket opens, seals, reopens or falls out of
+ * the window, so a read in between merges that digest and the open buckets, O(compression). Memory is bounded by
+ * BUCKETS sets of centroids however fast values arrive. The window moves one bucket at a time, so it spans the
+ * last N milliseconds to within one bucket width.
+ *
+ * Not thread safe. Callers synchronize on the owning metric.
+ */
+class TimeWindow implements ISlidingWindow {
+
+	static final int BUCKETS = 60;
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final double compression;
+	private final long bucketMillis;
+	private final int bucketCount;
+	// the slice of time each slot holds, start / bucketMillis, or EMPTY
+	private final long[] slices;
+	private final RunningStatistics[] statistics;
+	// the digest of an open bucket, null once it is sealed into means and weights
+	private final TDigest[] digests;
+	private final double[][] means;
+	private final double[][] weights;
+	private long latestSlice = EMPTY;
+	// sealed buckets live at sealedNowSlice merged, null once a bucket opens, seals or reopens
+	private TDigest sealed;
+	private long sealedNowSlice;
+
+	/**
+	 * @param windowMillis is how many milliseconds the window spans
+	 * @param compression is the compression of the bucket digests
+	 */
+	TimeWindow(long windowMillis, double compression) {
+		this.compression = compression;
+		this.bucketCount = (int) Math.min(BUCKETS, windowMillis);
+		this.bucketMillis = (windowMillis + bucketCount - 1) / bucketCount;
+		this.slices = new long[bucketCount];
+		this.statistics = new RunningStatistics[bucketCount];
+		this.digests = new TDigest[bucketCount];
+		this.means = new double[bucketCount][];
+		this.weights = new double[bucketCount][];
+		Arrays.fill(slices, EMPTY);
+	}
+
+	/**
+	 * @param windowMillis is how many milliseconds the window spans
+	 * @param compression is the compression of the bucket digests
+	 * @param snapshots is what snapshot() returned, one partition per bucket
+	 */
+	TimeWindow(long windowMillis, double compression, List<TimePartitionSnapshot> snapshots) {
+		this(windowMillis, compression);
+		for (TimePartitionSnapshot snapshot : snapshots) {
+			long slice = Math.floorDiv(snapshot.getStart(), bucketMillis);
+			int slot = slotOf(slice);
+			RunningStatistics bucketStatistics = snapshot.getStatistics();
+
+			slices[slot] = slice;
+			statistics[slot] = bucketStatistics;
+			means[slot] = MappedSeries.copyOf(snapshot.getValues());
+			weights[slot] = MappedSeries.copyOf(snapshot.getWeights());
+			latestSlice = Math.max(latestSlice, slice);
+		}
+	}
+
+	/**
+	 * <p>This method adds a value to the bucket for its timestamp. Values older than the window of the latest
+	 * value already added are dropped.
+	 * </p>
+	 * Big O(log compression) amortized, plus O(BUCKETS) to seal the others when a later bucket opens and
+	 * O(compression) to reopen a sealed bucket
+	 */
+	@Override
+	public void add(long timestamp, double value) {
+		if (Double.isNaN(value)) {
+			throw new IllegalArgumentException("Cannot add NaN to a window");
+		}
+
+		long slice = Math.floorDiv(timestamp, bucketMillis);
+		if (latestSlice != EMPTY && slice <= latestSlice - bucketCount) {
+			return;
+		}
+
+		int slot = slotOf(slice);
+		if (slices[slot] != slice) {
+			slices[slot] = slice;
+			statistics[slot] = new RunningStatistics();
+			digests[slot] = new TDigest(compression);
+			means[slot] = null;
+			weights[slot] = null;
+			sealed = null;
+		} else if (digests[slot] == null) {
+			digests[slot] = TDigest.fromCentroids(compression, means[slot], weights[slot],
+					statistics[slot].getMinimum(), statistics[slot].getMaximum());
+			means[slot] = null;
+			weights[slot] = null;
+			sealed = null;
+		}
+
+		statistics[slot].add(value);
+		digests[slot].add(value);
+
+		if (latestSlice == EMPTY || slice > latestSlice) {
+			latestSlice = slice;
+			sealOtherThan(slot);
+		}
+	}
+
+	private void sealOtherThan(int open) {
+		for (int slot = 0; slot < bucketCount; slot++) {
+			if (slot != open && digests[slot] != null) {
+				means[slot] = digests[slot].centroidMeans();
+				weights[slot] = digests[slot].centroidWeights();
+				digests[slot] = null;
+				sealed = null;
+			}
+		}
+	}
+
+	/**
+	 * Big O(BUCKETS)
+	 */
+	@Override
+	public RunningStatistics getStatistics(long now) {
+		RunningStatistics merged = new RunningStatistics();
+		long nowSlice = Math.floorDiv(now, bucketMillis);
+
+		for (int slot = 0; slot < bucketCount; slot++) {
+			if (isLive(slot, nowSlice)) {
+				merged.merge(statistics[slot]);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Big O(compression) while the sealed buckets are unchanged, O(BUCKETS * compression) to merge them again
+	 */
+	@Override
+	public IMetricSeries getSeries(long now) {
+		long nowSlice = Math.floorDiv(now, bucketMillis);
+
+		if (sealed == null || sealedNowSlice != nowSlice) {
+			sealed = new TDigest(compression);
+			sealedNowSlice = nowSlice;
+			for (int slot = 0; slot < bucketCount; slot++) {
+				if (isLive(slot, nowSlice) && digests[slot] == null) {
+					sealed.merge(means[slot], weights[slot], statistics[slot].getMinimum(),
+							statistics[slot].getMaximum());
+				}
+			}
+		}
+
+		TDigest merged = new TDigest(compression);
+		merged.merge(sealed);
+		for (int slot = 0; slot < bucketCount; slot++) {
+			if (isLive(slot, nowSlice) && digests[slot] != null) {
+				merged.merge(digests[slot]);
+			}
+		}
+		return new SketchSeries(merged);
+	}
+
+	@Override
+	public boolean keepsRawValues() {
+		return false;
+	}
+
+	/**
+	 * @return one sketch partition per bucket still in the window of the latest value, oldest first
+	 */
+	@Override
+	public List<TimePartitionSnapshot> snapshot() {
+		List<TimePartitionSnapshot> snapshots = new ArrayList<>(bucketCount);
+		if (latestSlice == EMPTY) {
+			return snapshots;
+		}
+
+		for (long slice = latestSlice - bucketCount + 1; slice <= latestSlice; slice++) {
+			int slot = slotOf(slice);
+			if (slices[slot] == slice) {
+				double[] snapshotMeans = digests[slot] != null ? digests[slot].centroidMeans()
+						: Arrays.copyOf(means[slot], means[slot].length);
+				double[] snapshotWeights = digests[slot] != null ? digests[slot].centroidWeights()
+						: Arrays.copyOf(weights[slot], weights[slot].length);
+				snapshots.add(new TimePartitionSnapshot(slice * bucketMillis, statistics[slot].copy(), null,
+						DoubleBuffer.wrap(snapshotMeans), DoubleBuffer.wrap(snapshotWeights)));
+			}
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Buckets ahead of now, from clocks running fast, still count
+	 */
+	private boolean isLive(int slot, long nowSlice) {
+		return slices[slot] != EMPTY && slices[slot] > nowSlice - bucketCount;
+	}
+
+	private int slotOf(long slice) {
+		return (int) Math.floorMod(slice, (long) bucketCount);
+	}
+}
@@ -0,0 +1,274 @@
+package com.qevans.metricapp.repository;
+
+import java.util.Arrays;
+
+/**
+ * <p>Sorted series backed by an order statistic tree (a treap whose nodes know their subtree size).
+ * </p>
+ * Nodes live in parallel primitive arrays instead of objects, so there is no boxing and no per node header.
+ * Inserts and rank lookups are both O(log n) expected, which keeps ingest flat for series with millions of
+ * values where shifting an array, even a chunk of one, starts to dominate.
+ *
+ * Space is linear, about 24 bytes per value. Slots of removed values are reused by later inserts.
+ */
+public class TreeSeries implements IMetricSeries {
+
+	private static final int NIL = 0;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private double[] keys;
+	private int[] left;
+	private int[] right;
+	private int[] subtreeSize;
+	private int[] priority;
+	private int root = NIL;
+	private int nodeCount;
+	// removed slots chained through left, NIL when empty
+	private int freeNodes = NIL;
+	private int seed = 0x2545F491;
+
+	public TreeSeries() {
+		// slot 0 is the NIL node, its subtree size stays 0
+		keys = new double[INITIAL_CAPACITY];
+		left = new int[INITIAL_CAPACITY];
+		right = new int[INITIAL_CAPACITY];
+		subtreeSize = new int[INITIAL_CAPACITY];
+		priority = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * <p>This method inserts a value keeping the series sorted
+	 * </p>
+	 * @param value is a double
+	 *
+	 * Big O(log n) expected
+	 */
+	@Override
+	public void add(double value) {
+		int node;
+		if (freeNodes != NIL) {
+			node = freeNodes;
+			freeNodes = left[node];
+		} else {
+			ensureCapacity(nodeCount + 2);
+			node = ++nodeCount;
+		}
+
+		keys[node] = value;
+		left[node] = NIL;
+		right[node] = NIL;
+		subtreeSize[node] = 1;
+		priority[node] = nextPriority();
+
+		root = insert(root, node);
+	}
+
+	/**
+	 * <p>This method removes one occurrence of a value
+	 * </p>
+	 * @param value is a double
+	 * @return true if the value was in the series
+	 *
+	 * Big O(log n) expected
+	 */
+	public boolean remove(double value) {
+		int node = root;
+		while (node != NIL && keys[node] != value) {
+			node = value < keys[node] ? left[node] : right[node];
+		}
+
+		if (node == NIL) {
+			return false;
+		}
+
+		root = delete(root, value);
+		return true;
+	}
+
+	/**
+	 * Big O(m log n) expected
+	 */
+	@Override
+	public void removeAll(double[] sortedValues) {
+		for (double value : sortedValues) {
+			remove(value);
+		}
+	}
+
+	/**
+	 * @return bytes of the node arrays, slots freed by removals included
+	 */
+	@Override
+	public long sizeInBytes() {
+		return (long) keys.length * (Double.BYTES + Integer.BYTES * 4);
+	}
+
+	@Override
+	public int size() {
+		return subtreeSize[root];
+	}
+
+	/**
+	 * <p>This method returns the value at a given position of the sorted series
+	 * </p>
+	 * @param rank is an int between 0 and size - 1
+	 * @return value at that rank
+	 * @throws IndexOutOfBoundsException if rank is outside the series
+	 *
+	 * Big O(log n) expected
+	 */
+	@Override
+	public double valueAt(int rank) {
+		if (rank < 0 || rank >= size()) {
+			throw new IndexOutOfBoundsException("Rank: " + rank + " Size: " + size());
+		}
+
+		int node = root;
+		int remaining = rank;
+
+		while (true) {
+			int leftSize = subtreeSize[left[node]];
+			if (remaining < leftSize) {
+				node = left[node];
+			} else if (remaining == leftSize) {
+				return keys[node];
+			} else {
+				remaining -= leftSize + 1;
+				node = right[node];
+			}
+		}
+	}
+
+	/**
+	 * Big O(n): iterative in order walk, the stack is bounded by the tree height
+	 */
+	@Override
+	public double[] toArray() {
+		double[] values = new double[size()];
+		int[] stack = new int[32];
+		int stackSize = 0;
+		int node = root;
+		int index = 0;
+
+		while (node != NIL || stackSize > 0) {
+			while (node != NIL) {
+				if (stackSize == stack.length) {
+					stack = Arrays.copyOf(stack, stackSize * 2);
+				}
+				stack[stackSize++] = node;
+				node = left[node];
+			}
+
+			node = stack[--stackSize];
+			values[index++] = keys[node];
+			node = right[node];
+		}
+
+		return values;
+	}
+
+	private int insert(int node, int newNode) {
+		if (node == NIL) {
+			return newNode;
+		}
+
+		subtreeSize[node]++;
+
+		// equal values go right so they keep insertion order
+		if (keys[newNode] < keys[node]) {
+			left[node] = insert(left[node], newNode);
+			if (priority[left[node]] > priority[node]) {
+				node = rotateRight(node);
+			}
+		} else {
+			right[node] = insert(right[node], newNode);
+			if (priority[right[node]] > priority[node]) {
+				node = rotateLeft(node);
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Removes the first node holding value on the search path, the value must be in the subtree
+	 */
+	private int delete(int node, double value) {
+		subtreeSize[node]--;
+
+		if (value < keys[node]) {
+			left[node] = delete(left[node], value);
+			return node;
+		}
+		if (value != keys[node]) {
+			right[node] = delete(right[node], value);
+			return node;
+		}
+
+		int merged = join(left[node], right[node]);
+		left[node] = freeNodes;
+		freeNodes = node;
+		return merged;
+	}
+
+	/**
+	 * Joins two treaps where every value of the first is at or below every value of the second
+	 */
+	private int join(int lower, int upper) {
+		if (lower == NIL) {
+			return upper;
+		}
+		if (upper == NIL) {
+			return lower;
+		}
+
+		if (priority[lower] > priority[upper]) {
+			subtreeSize[lower] += subtreeSize[upper];
+			right[lower] = join(right[lower], upper);
+			return lower;
+		}
+
+		subtreeSize[upper] += subtreeSize[lower];
+		left[upper] = join(lower, left[upper]);
+		return upper;
+	}
+
+	private int rotateRight(int node) {
+		int pivot = left[node];
+		left[node] = right[pivot];
+		right[pivot] = node;
+		subtreeSize[pivot] = subtreeSize[node];
+		subtreeSize[node] = subtreeSize[left[node]] + subtreeSize[right[node]] + 1;
+		return pivot;
+	}
+
+	private int rotateLeft(int node) {
+		int pivot = right[node];
+		right[node] = left[pivot];
+		left[pivot] = node;
+		subtreeSize[pivot] = subtreeSize[node];
+		subtreeSize[node] = subtreeSize[left[node]] + subtreeSize[right[node]] + 1;
+		return pivot;
+	}
+
+	private int nextPriority() {
+		// xorshift, the tree only needs priorities that are uncorrelated with the values
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= keys.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(capacity, keys.length + (keys.length >> 1));
+		keys = Arrays.copyOf(keys, newCapacity);
+		left = Arrays.copyOf(left, newCapacity);
+		right = Arrays.copyOf(right, newCapacity);
+		subtreeSize = Arrays.copyOf(subtreeSize, newCapacity);
+		priority = Arrays.copyOf(priority, newCapacity);
+	}
+}
@@ -0,0 +1,62 @@
+package com.qevans.metricapp.repository;
+
+/**
+ * <p>How writes reach a metric.
+ * </p>
+ * DIRECT inserts each value into the sorted series under the metric lock.
+ * STRIPED appends values to per thread stripes without the metric lock and merges them into the
+ * sorted series when a statistic is read, so ingest on one hot metric scales across cores.
+ */
+public enum WriteMode {
+
+	DIRECT(0), STRIPED(1);
+
+	private final byte code;
+
+	WriteMode(int code) {
+		this.code = (byte) code;
+	}
+
+	/**
+	 * @return code of the write mode in logs and snapshots, fixed for good so reordering the modes is safe
+	 */
+	public byte getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code is a byte read from a log or snapshot
+	 * @return WriteMode written with that code
+	 * @throws IllegalArgumentException if no write mode has the code
+	 */
+	public static WriteMode fromCode(byte code) {
+		for (WriteMode mode : values()) {
+			if (mode.code == code) {
+				return mode;
+			}
+		}
+
+		throw new IllegalArgumentException("Write mode code: " + code + " does not exist.");
+	}
+
+	/**
+	 * <p>This method looks up a write mode by name ignoring case
+	 * </p>
+	 * @param name is a String
+	 * @return matching WriteMode
+	 * @throws IllegalArgumentException if name is null or not a write mode
+	 */
+	public static WriteMode fromString(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Write mode cannot be null");
+		}
+
+		for (WriteMode mode : values()) {
+			if (mode.name().equalsIgnoreCase(name.trim())) {
+				return mode;
+			}
+		}
+
+		throw new IllegalArgumentException("Write mode: " + name + " does not exist.");
+	}
+}
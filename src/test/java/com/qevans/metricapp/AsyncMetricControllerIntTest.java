@@ -0,0 +1,114 @@
+package com.qevans.metricapp;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+// the metrics added here would otherwise be seen by the other tests sharing the context
+@DirtiesContext
+@Category({Unit.class})
+public class AsyncMetricControllerIntTest {
+
+	@Autowired
+	private AsyncMetricController asyncMetricController;
+	
+	@Autowired
+	private MetricController metricController;
+	
+	private MockMvc mockMvc;
+	
+	@Before
+	public void setUp()
+	{
+		this.mockMvc = MockMvcBuilders.standaloneSetup(metricController, asyncMetricController).build();
+	}
+	
+	@Test
+	public void asyncEndpointsTest() throws Exception
+	{
+		mockMvc.perform(post("/metric").content("async"))
+		.andExpect(status().isCreated());
+		
+		//Answered from the request executor, the same as the synchronous endpoint
+		MvcResult result = mockMvc.perform(post("/async/metric/async/batch").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"values\": [1, 2, 3]}"))
+		.andExpect(request().asyncStarted())
+		.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+		.andExpect(status().isOk())
+		.andExpect(content().string("3"));
+		
+		result = mockMvc.perform(get("/async/metric/async?stat=count,max"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(3.0))
+		.andExpect(jsonPath("$.max").value(3.0));
+		
+		result = mockMvc.perform(post("/async/metric/notThere/batch").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"values\": [1]}"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+		.andExpect(status().isBadRequest());
+	}
+	
+	@Test
+	public void saturatedExecutorTest() throws Exception
+	{
+		// one thread held busy and a queue of one, so the third call has nowhere to go
+		ExecutorService saturated = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+		CountDownLatch release = new CountDownLatch(1);
+		saturated.execute(() -> {
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		saturated.execute(() -> { });
+		
+		Object executor = ReflectionTestUtils.getField(asyncMetricController, "executor");
+		ReflectionTestUtils.setField(asyncMetricController, "executor", saturated);
+		try
+		{
+			MvcResult result = mockMvc.perform(get("/async/metric/any?stat=count"))
+			.andReturn();
+			mockMvc.perform(asyncDispatch(result))
+			.andExpect(status().isServiceUnavailable())
+			.andExpect(header().string("Retry-After", "1"));
+		}
+		finally
+		{
+			ReflectionTestUtils.setField(asyncMetricController, "executor", executor);
+			release.countDown();
+			saturated.shutdown();
+		}
+	}
+}
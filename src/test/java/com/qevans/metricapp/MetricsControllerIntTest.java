@@ -1,5 +1,6 @@
 package com.qevans.metricapp;
 
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -17,10 +18,12 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MockMvcBuilder;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qevans.metricapp.dto.DataDTO;
+import com.qevans.metricapp.ingest.BinaryFrames;
 
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 import static org.hamcrest.Matchers.*;
@@ -66,9 +69,9 @@ public class MetricsControllerIntTest {
 		.andExpect(status().isCreated())
 		.andExpect(content().string(specialCharMetricName));
 		
-		//Post regular metric
+		//Post regular metric, keeping its values by time for the range queries and exports below
 		String metricName = "metric";
-		mockMvc.perform(post(METRIC_URI).content(metricName))		
+		mockMvc.perform(post(METRIC_URI + "?timeIndex=true").content(metricName))		
 		.andExpect(status().isCreated())
 		.andExpect(content().string(metricName));
 		
@@ -77,6 +80,17 @@ public class MetricsControllerIntTest {
 		.andExpect(status().isExpectationFailed())
 		.andExpect(content().string("Metric Already Exists."));
 		
+		//Post metric with unknown storage
+		mockMvc.perform(post(METRIC_URI + "?storage=disk").content("diskMetric"))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Storage type: disk does not exist."));
+		
+		//Post sketch metric
+		String sketchMetricName = "sketchMetric";
+		mockMvc.perform(post(METRIC_URI + "?storage=sketch&compression=50").content(sketchMetricName))		
+		.andExpect(status().isCreated())
+		.andExpect(content().string(sketchMetricName));
+		
 		//Get metric with Entries
 		mockMvc.perform(get(METRIC_URI))		
 		.andExpect(status().isOk())
@@ -110,20 +124,88 @@ public class MetricsControllerIntTest {
 		//Post add data to Metric Name
 		mockMvc.perform(post(METRIC_URI + "/" + metricName).content(mapper.writeValueAsString(data)).contentType(MediaType.APPLICATION_JSON))		
 		.andExpect(status().isOk())
-		.andExpect(content().string(containsString(Double.toString(data.getValue()))));
+		.andExpect(jsonPath("$.metric").value(metricName))
+		.andExpect(jsonPath("$.count").value(1))
+		.andExpect(jsonPath("$.min").value(data.getValue()))
+		.andExpect(jsonPath("$.max").value(data.getValue()));
 
-		//Post 2x data to Metric Name
-		mockMvc.perform(post(METRIC_URI + "/" + metricName).content(mapper.writeValueAsString(data2)).contentType(MediaType.APPLICATION_JSON))		
+		//Post 2x data to Metric Name, asking for the whole series back
+		mockMvc.perform(post(METRIC_URI + "/" + metricName + "?response=series").content(mapper.writeValueAsString(data2)).contentType(MediaType.APPLICATION_JSON))		
 		.andExpect(status().isOk())
 		.andExpect(content().string(containsString(Double.toString(data.getValue()))))
 		.andExpect(content().string(containsString(Double.toString(data2.getValue()))));
 		
-		mockMvc.perform(post(METRIC_URI + "/" + metricName).content(mapper.writeValueAsString(data3)).contentType(MediaType.APPLICATION_JSON))		
+		//Post with no response body
+		mockMvc.perform(post(METRIC_URI + "/" + metricName + "?response=none").content(mapper.writeValueAsString(data3)).contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isNoContent())
+		.andExpect(content().string(""));
+		
+		//Post with unknown response
+		mockMvc.perform(post(METRIC_URI + "/" + metricName + "?response=everything").content(mapper.writeValueAsString(data3)).contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Response must be ack, none or series."));
+		
+		//Post a value too large for a double, read as Infinity and refused
+		mockMvc.perform(post(METRIC_URI + "/" + metricName).content("{\"value\":1e400}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Value must be a finite number."));
+		
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=count"))		
 		.andExpect(status().isOk())
-		.andExpect(content().string(containsString(Double.toString(data.getValue()))))
-		.andExpect(content().string(containsString(Double.toString(data2.getValue()))))
-		.andExpect(content().string(containsString(Double.toString(data3.getValue()))));
+		.andExpect(content().string("3.0"));
+		
+		//Post asking for the series of a sketch, refused before the value is written
+		mockMvc.perform(post(METRIC_URI + "/" + sketchMetricName + "?response=series").content(mapper.writeValueAsString(data3)).contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Metric: " + sketchMetricName + " only keeps a sketch, response=series is not available."));
+		
+		mockMvc.perform(get(METRIC_URI + "/" + sketchMetricName + "?stat=count"))		
+		.andExpect(status().isOk())
+		.andExpect(content().string("0.0"));
 
+		//A striped metric acks without aggregates, so a write does not drain its stripes
+		String stripedMetricName = "stripedMetric";
+		mockMvc.perform(post(METRIC_URI + "?writeMode=striped").content(stripedMetricName))		
+		.andExpect(status().isCreated());
+		
+		mockMvc.perform(post(METRIC_URI + "/" + stripedMetricName).content(mapper.writeValueAsString(data)).contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.metric").value(stripedMetricName))
+		.andExpect(jsonPath("$.accepted").value(1))
+		.andExpect(jsonPath("$.count").doesNotExist())
+		.andExpect(jsonPath("$.mean").doesNotExist());
+
+		//Post batch to Metric Name
+		String batchMetricName = "batchMetric";
+		mockMvc.perform(post(METRIC_URI).content(batchMetricName))		
+		.andExpect(status().isCreated());
+		
+		mockMvc.perform(post(METRIC_URI + "/" + batchMetricName + "/batch").content("{\"values\":[3.0,1.0,2.0]}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isOk())
+		.andExpect(content().string("3"));
+		
+		mockMvc.perform(post(METRIC_URI + "/" + noExistMetric + "/batch").content("{\"values\":[3.0]}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Metric Name : " + noExistMetric + " does not exist."));
+		
+		//Post batches to several metrics
+		mockMvc.perform(post("/batch").content("{\"" + batchMetricName + "\":[4.0,5.0],\"" + specialCharMetricName + "\":[1.0]}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$." + batchMetricName).value(2));
+		
+		mockMvc.perform(post("/batch").content("{\"" + noExistMetric + "\":[4.0]}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Metric Names : [" + noExistMetric + "] do not exist."));
+		
+		// nothing is added when one of the metrics does not exist
+		mockMvc.perform(post("/batch").content("{\"" + batchMetricName + "\":[100.0],\"" + noExistMetric + "\":[4.0]}").contentType(MediaType.APPLICATION_JSON))		
+		.andExpect(status().isBadRequest());
+		
+		mockMvc.perform(get(METRIC_URI + "/" + batchMetricName + "?stat=mean,median"))		
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.mean").value(3.0))
+		.andExpect(jsonPath("$.median").value(3.0));
+		
 		//Get null metricName
 		mockMvc.perform(get(METRIC_URI + "/" + null))		
 		.andExpect(status().isBadRequest());
@@ -153,10 +235,131 @@ public class MetricsControllerIntTest {
 		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=Max"))		
 		.andExpect(status().isOk())
 		.andExpect(content().string(Double.toString(data3.getValue())));
+		//Get stat variance
+		double expectedVariance = (Math.pow(data.getValue() - expectedMean, 2) + Math.pow(data2.getValue() - expectedMean, 2)
+				+ Math.pow(data3.getValue() - expectedMean, 2)) / 3;
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=Variance"))		
+		.andExpect(status().isOk())
+		.andExpect(content().string(Double.toString(expectedVariance)));
+		//Get stat stddev
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=StdDev"))		
+		.andExpect(status().isOk())
+		.andExpect(content().string(Double.toString(Math.sqrt(expectedVariance))));
+		//Get stat percentile
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=p50"))		
+		.andExpect(status().isOk())
+		.andExpect(content().string(Double.toString(data2.getValue())));
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=P100"))		
+		.andExpect(status().isOk())
+		.andExpect(content().string(Double.toString(data3.getValue())));
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=p99d"))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string(containsString("No Supported Statistic Requested.")));
+		//Get several stats at once
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=min,max,p99.9"))		
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.min").value(data.getValue()))
+		.andExpect(jsonPath("$.max").value(data3.getValue()))
+		.andExpect(jsonPath("$['p99.9']").value(closeTo(2.998, 0.0000001)));
+		//Get stats over a time range, only the value measured at 1000 is inside it
+		mockMvc.perform(post(METRIC_URI + "/" + metricName + "?response=none").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"value\": 7.5, \"timestamp\": 1000}"))
+		.andExpect(status().isNoContent());
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=count,max&from=0&to=5000"))		
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(1.0))
+		.andExpect(jsonPath("$.max").value(7.5));
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=count&from=5000&to=0"))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("From cannot be after to"));
+		//Add values in binary frames, the frames of metrics that do not exist are skipped
+		mockMvc.perform(post("/ingest").contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.content(BinaryFrames.encode(metricName, new double[] {2.5, 3.5}, new long[] {6000, 7000}).array()))
+		.andExpect(status().isOk())
+		.andExpect(content().string("2"));
+		mockMvc.perform(post("/ingest").contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.content(BinaryFrames.encode("notThere", new double[] {1}, null).array()))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Metric Names : [notThere] do not exist."));
+		mockMvc.perform(post("/ingest").contentType(MediaType.APPLICATION_OCTET_STREAM).content(new byte[] {0, 0}))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Body ends inside a frame."));
+		//Summaries merge across metrics
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "/summary?from=0&to=5000"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(1))
+		.andExpect(jsonPath("$.means[0]").value(7.5));
+		mockMvc.perform(get("/summary?metrics=" + metricName + "&stat=count,max&from=5000&to=9000"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(2.0))
+		.andExpect(jsonPath("$.max").value(3.5));
+		mockMvc.perform(get("/summary?metrics=" + metricName + ",notThere&stat=count"))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Metric: notThere does not exist."));
+		//Statistics of every metric matching a pattern in one call
+		mockMvc.perform(get("/query?metrics=met*&stat=count,max&from=5000&to=9000"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(1))
+		.andExpect(jsonPath("$.metrics.metric.max").value(3.5))
+		.andExpect(jsonPath("$.across.count.max").value(2.0));
+		mockMvc.perform(get("/query?metrics=nothing*&stat=max"))
+		.andExpect(status().isOk())
+		.andExpect(jsonPath("$.count").value(0));
+		mockMvc.perform(get("/query?metrics=met*&stat=notAStat"))
+		.andExpect(status().isBadRequest());
+		//Labeled metrics are stored with their tags sorted and selected by tag
+		mockMvc.perform(post(METRIC_URI).content("requests{service=api,region=us}"))
+		.andExpect(status().isCreated())
+		.andExpect(content().string("requests{region=us,service=api}"));
+		mockMvc.perform(post(METRIC_URI).content("requests{region=eu,service=api}"))
+		.andExpect(status().isCreated());
+		mockMvc.perform(post(METRIC_URI + "/{metricName}", "requests{region=us,service=api}").contentType(MediaType.APPLICATION_JSON).content("{\"value\":4}"))
+		.andExpect(status().isOk());
+		mockMvc.perform(get("/select?tags=service=api"))
+		.andExpect(status().isOk())
+		.andExpect(content().string("[\"requests{region=eu,service=api}\",\"requests{region=us,service=api}\"]"));
+		mockMvc.perform(get("/select/summary?name=requests&groupBy=region&stat=count,max"))
+		.andExpect(status().isOk())
+		.andExpect(content().string("{\"eu\":{\"count\":0.0,\"max\":0.0},\"us\":{\"count\":1.0,\"max\":4.0}}"));
+		mockMvc.perform(get("/select?tags=service"))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Tags must be key=value pairs separated by commas"));
+		//Stream the samples of the time range, in each format
+		MvcResult export = mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?from=0&to=5000"))
+		.andExpect(request().asyncStarted())
+		.andReturn();
+		mockMvc.perform(asyncDispatch(export))
+		.andExpect(status().isOk())
+		.andExpect(content().string("{\"timestamp\":1000,\"value\":7.5}\n"));
+		export = mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?from=0&to=5000&format=csv"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(export))
+		.andExpect(content().string("timestamp,value\n1000,7.5\n"));
+		export = mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?from=0&to=5000&format=binary"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(export))
+		.andExpect(content().bytes(ByteBuffer.allocate(16).putLong(1000).putDouble(7.5).array()));
+		//A page that stops at the limit says where the next one starts
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?limit=1"))
+		.andExpect(header().exists("X-Next-Cursor"));
+		export = mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?format=xml"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(export))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Format must be ndjson, csv or binary."));
+		export = mockMvc.perform(get(METRIC_URI + "/" + metricName + "/export?cursor=nope"))
+		.andReturn();
+		mockMvc.perform(asyncDispatch(export))
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string("Cursor: nope is not valid."));
 		//Get stat doesnt exist
+		String unsupportedStatistic = "No Supported Statistic Requested. Please add ?stat=count|mean|median|min|max|variance|stddev|pNN to url, comma separated for several.";
 		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=NotReal"))		
 		.andExpect(status().isBadRequest())
-		.andExpect(content().string("No Supported Statistic Requested. Please add ?stat=mean|median|min|max to url."));		
+		.andExpect(content().string(unsupportedStatistic));
+		mockMvc.perform(get(METRIC_URI + "/" + metricName + "?stat=min,p101"))		
+		.andExpect(status().isBadRequest())
+		.andExpect(content().string(unsupportedStatistic));		
 	}
 	
 	public static byte[] toByteArray(double value) {
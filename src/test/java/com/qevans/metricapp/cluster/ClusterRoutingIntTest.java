@@ -0,0 +1,158 @@
+package com.qevans.metricapp.cluster;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.StreamUtils;
+
+import com.qevans.metricapp.Application;
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.ingest.BinaryFrames;
+import com.qevans.metricapp.repository.MetricsRepository;
+
+/**
+ * Three local nodes on their own ports, every call is made to a node that does not own the metric where possible.
+ */
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class ClusterRoutingIntTest {
+
+	private static final List<ConfigurableApplicationContext> NODES = new ArrayList<>();
+	private static final List<String> URLS = new ArrayList<>();
+	private static HashRing ring;
+
+	@BeforeClass
+	public static void startNodes() throws IOException {
+		for (int index = 0; index < 3; index++) {
+			try (ServerSocket socket = new ServerSocket(0)) {
+				URLS.add("http://localhost:" + socket.getLocalPort());
+			}
+		}
+		ring = new HashRing(URLS, 128);
+
+		for (String url : URLS) {
+			NODES.add(new SpringApplicationBuilder(Application.class).properties(
+					"server.port=" + url.substring(url.lastIndexOf(':') + 1),
+					"metrics.cluster.nodes=" + String.join(",", URLS),
+					"metrics.cluster.self=" + url).run());
+		}
+	}
+
+	@AfterClass
+	public static void stopNodes() {
+		NODES.forEach(ConfigurableApplicationContext::close);
+	}
+
+	@Test
+	public void routingTest() throws IOException {
+		List<String> metrics = Arrays.asList("cpu", "memory", "disk", "latency", "errors", "requests");
+
+		for (String metric : metrics) {
+			String caller = notOwner(metric);
+			assertTrue(call(caller, "POST", "/metric?timeIndex=true", "text/plain", metric.getBytes(StandardCharsets.UTF_8)).startsWith("201"));
+			assertTrue(call(caller, "POST", "/metric", "text/plain", metric.getBytes(StandardCharsets.UTF_8)).startsWith("417"));
+			assertTrue(call(caller, "POST", "/metric/" + metric, "application/json", "{\"value\":2}".getBytes(StandardCharsets.UTF_8))
+					.startsWith("200 {\"metric\":\"" + metric + "\",\"count\":1"));
+
+			// every metric lives only on its owner
+			for (int index = 0; index < URLS.size(); index++) {
+				MetricsRepository repository = NODES.get(index).getBean(MetricsRepository.class);
+				assertTrue(Arrays.asList(repository.getAllMetrics()).contains(metric) == URLS.get(index).equals(ring.ownerOf(metric)));
+			}
+		}
+
+		assertTrue(call(URLS.get(0), "GET", "/metric", null, null)
+				.equals("200 [\"cpu\",\"disk\",\"errors\",\"latency\",\"memory\",\"requests\"]"));
+
+		// split by owner, a node adds nothing of its part when one of its metrics does not exist
+		String batch = "{\"cpu\":[4,6],\"memory\":[4],\"disk\":[1],\"latency\":[10],\"errors\":[0]}";
+		assertTrue(call(URLS.get(1), "POST", "/batch", "application/json", batch.getBytes(StandardCharsets.UTF_8))
+				.equals("200 {\"cpu\":2,\"memory\":1,\"disk\":1,\"latency\":1,\"errors\":1}"));
+		assertTrue(call(URLS.get(1), "POST", "/batch", "application/json", "{\"missing\":[1]}".getBytes(StandardCharsets.UTF_8))
+				.equals("400 Metric Names : [missing] do not exist."));
+
+		ByteBuffer frames = ByteBuffer.allocate(1024);
+		frames.put(BinaryFrames.encode("requests", new double[] {1, 2, 3}, null));
+		frames.put(BinaryFrames.encode("latency", new double[] {20}, null));
+		assertTrue(call(URLS.get(2), "POST", "/ingest", "application/octet-stream", Arrays.copyOf(frames.array(), frames.position()))
+				.equals("200 4"));
+
+		for (String url : URLS) {
+			assertTrue(call(url, "GET", "/metric/cpu?stat=count,mean", null, null).equals("200 {\"count\":3.0,\"mean\":4.0}"));
+			assertTrue(call(url, "GET", "/metric/latency?stat=max", null, null).equals("200 20.0"));
+			assertTrue(call(url, "GET", "/metric/requests/export?format=csv", null, null).startsWith("200 timestamp,value\n"));
+		}
+
+		// merged from one summary per node
+		assertTrue(call(URLS.get(0), "GET", "/summary?metrics=cpu,memory,disk,latency&stat=count,min,max", null, null)
+				.equals("200 {\"count\":10.0,\"min\":1.0,\"max\":20.0}"));
+		assertTrue(call(URLS.get(0), "GET", "/summary?metrics=cpu,nothing&stat=count", null, null)
+				.equals("400 Metric: nothing does not exist."));
+		assertTrue(call(notOwner("nothing"), "GET", "/metric/nothing?stat=mean", null, null).startsWith("400"));
+
+		// every node answers for its own metrics matching the pattern
+		assertTrue(call(URLS.get(1), "GET", "/query?metrics=*e*&stat=max", null, null)
+				.equals("200 {\"count\":4,\"metrics\":{\"errors\":{\"max\":2.0},\"latency\":{\"max\":20.0},"
+						+ "\"memory\":{\"max\":4.0},\"requests\":{\"max\":3.0}},"
+						+ "\"across\":{\"max\":{\"min\":2.0,\"max\":20.0,\"mean\":7.25}}}"));
+
+		// labeled metrics spread over the nodes by their sorted key, selected and grouped across all of them
+		for (String host : new String[] {"h1", "h2", "h3", "h4", "h5"}) {
+			String region = host.equals("h5") ? "eu" : "us";
+			assertTrue(call(URLS.get(0), "POST", "/metric", "text/plain", ("disk{region=" + region + ",host=" + host + "}")
+					.getBytes(StandardCharsets.UTF_8)).equals("201 disk{host=" + host + ",region=" + region + "}"));
+			assertTrue(call(URLS.get(2), "POST", "/metric/disk%7Bhost=" + host + ",region=" + region + "%7D", "application/json",
+					("{\"value\":" + host.substring(1) + "}").getBytes(StandardCharsets.UTF_8)).startsWith("200"));
+		}
+		assertTrue(call(URLS.get(1), "GET", "/select?name=disk&tags=region=us", null, null)
+				.equals("200 [\"disk{host=h1,region=us}\",\"disk{host=h2,region=us}\",\"disk{host=h3,region=us}\",\"disk{host=h4,region=us}\"]"));
+		assertTrue(call(URLS.get(1), "GET", "/select/summary?name=disk&groupBy=region&stat=count,max", null, null)
+				.equals("200 {\"eu\":{\"count\":1.0,\"max\":5.0},\"us\":{\"count\":4.0,\"max\":4.0}}"));
+	}
+
+	private static String notOwner(String metric) {
+		String owner = ring.ownerOf(metric);
+		return URLS.get(0).equals(owner) ? URLS.get(1) : URLS.get(0);
+	}
+
+	private static String call(String node, String method, String path, String contentType, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(node + path).openConnection();
+		connection.setRequestMethod(method);
+		if (body != null) {
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+		}
+
+		int status = connection.getResponseCode();
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+			if (in != null) {
+				StreamUtils.copy(in, read);
+			}
+		}
+		return status + " " + new String(read.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,59 @@
+package com.qevans.metricapp.cluster;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class HashRingTest {
+
+	@Test
+	public void ownershipTest() {
+		HashRing three = new HashRing(Arrays.asList("http://a:8080", "http://b:8080/", "http://c:8080"), 128);
+		HashRing reordered = new HashRing(Arrays.asList("http://c:8080", "http://a:8080", " http://b:8080"), 128);
+		HashRing four = new HashRing(Arrays.asList("http://a:8080", "http://b:8080", "http://c:8080", "http://d:8080"), 128);
+
+		int metrics = 30000;
+		Map<String, Integer> owned = new HashMap<>();
+		int moved = 0;
+		for (int index = 0; index < metrics; index++) {
+			String metric = "service.requests." + index;
+			String owner = three.ownerOf(metric);
+			assertTrue(owner.equals(reordered.ownerOf(metric)));
+			// a labeled metric is owned by its key with the tags sorted
+			assertTrue(three.ownerOf(metric + "{b=2,a=1}").equals(three.ownerOf(metric + "{a=1,b=2}")));
+			owned.merge(owner, 1, Integer::sum);
+
+			String newOwner = four.ownerOf(metric);
+			if (!newOwner.equals(owner)) {
+				// only the new node takes metrics, the others keep theirs
+				assertTrue(newOwner.equals("http://d:8080"));
+				moved++;
+			}
+		}
+
+		assertTrue(owned.size() == 3);
+		for (int count : owned.values()) {
+			assertTrue(count > metrics / 3 * 0.8 && count < metrics / 3 * 1.2);
+		}
+		assertTrue(moved > metrics / 4 * 0.8 && moved < metrics / 4 * 1.2);
+
+		try {
+			new HashRing(Arrays.asList("http://a:8080", "http://a:8080/"), 16);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Node: http://a:8080 is listed more than once."));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.qevans.metricapp.ingest;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.Statistic;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class BinaryIngestTest {
+
+	@Test
+	public void decodeFramesTest() {
+		MetricConfig config = new MetricConfig();
+		config.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(config);
+		repo.addMetric("stamped");
+		repo.addMetric("plain");
+
+		ByteBuffer stamped = BinaryFrames.encode("stamped", new double[] {1.5, 2.5, 3.5}, new long[] {1000, 2000, 3000});
+		ByteBuffer plain = BinaryFrames.encode("plain", new double[] {-1, 1}, null);
+		ByteBuffer missing = BinaryFrames.encode("missing", new double[] {7}, null);
+
+		ByteBuffer stream = ByteBuffer.allocate(stamped.remaining() + plain.remaining() + missing.remaining());
+		stream.put(stamped).put(missing).put(plain);
+
+		// all but the last byte, the last frame waits for the rest of it
+		stream.flip();
+		stream.limit(stream.limit() - 1);
+		List<String> missingMetrics = new ArrayList<>();
+		assertTrue(BinaryFrames.decode(stream, repo, missingMetrics) == 3);
+		assertTrue(missingMetrics.size() == 1 && missingMetrics.get(0).equals("missing"));
+		assertTrue(stream.remaining() == plain.capacity() - 1);
+
+		stream.limit(stream.capacity());
+		assertTrue(BinaryFrames.decode(stream, repo, null) == 2);
+		assertTrue(!stream.hasRemaining());
+
+		assertTrue(repo.getDataForMetric("plain").size() == 2);
+		assertTrue(repo.getStatisticsOfMetric("stamped", Statistic.parseList("count,mean"), 1500, 3000).get("mean") == 3);
+
+		// a count that does not match the frame length
+		ByteBuffer malformed = BinaryFrames.encode("plain", new double[] {1, 2}, null);
+		malformed.putInt(malformed.capacity() - Double.BYTES * 2 - Integer.BYTES, 3);
+		try {
+			BinaryFrames.decode(malformed, repo, null);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Frame for metric: plain has 16 bytes for 3 values."));
+		}
+
+		try {
+			BinaryFrames.decode(ByteBuffer.allocate(8).putInt(0, -5), repo, null);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Frame length: -5 is not valid."));
+		}
+
+		// a value that cannot be stored, the frame is refused whole
+		try {
+			BinaryFrames.decode(BinaryFrames.encode("plain", new double[] {4, Double.NaN}, null), repo, null);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Frame for metric: plain holds a value that is not finite."));
+		}
+		assertTrue(repo.getDataForMetric("plain").size() == 2);
+	}
+
+	@Test
+	public void tcpListenerTest() throws IOException, InterruptedException {
+		MetricsRepository repo = new MetricsRepository();
+		repo.addMetric("tcp");
+
+		// larger than the initial connection buffer, so it arrives in pieces and the buffer grows
+		double[] values = new double[20000];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = index;
+		}
+
+		try (BinaryIngestListener listener = new BinaryIngestListener(repo, new InetSocketAddress("localhost", 0));
+				Socket socket = new Socket("localhost", listener.getPort())) {
+			OutputStream out = socket.getOutputStream();
+			out.write(BinaryFrames.encode("tcp", values, null).array());
+			out.write(BinaryFrames.encode("tcp", new double[] {-1}, new long[] {5}).array());
+			out.flush();
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (repo.getDataForMetric("tcp").size() < values.length + 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+
+		assertTrue(repo.getDataForMetric("tcp").size() == values.length + 1);
+		assertTrue(repo.getMinimumOfMetric("tcp") == -1);
+		assertTrue(repo.getMaximumOfMetric("tcp") == values.length - 1);
+	}
+
+	@Test
+	public void slowWriteHoldsUpOnlyItsConnectionTest() throws IOException, InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		// stands in for a write waiting on an fsync
+		MetricsRepository repo = new MetricsRepository() {
+			@Override
+			public boolean addDataToMetric(String metric, double[] data, long[] timestamps) {
+				if (metric.equals("slow")) {
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.addDataToMetric(metric, data, timestamps);
+			}
+		};
+		repo.addMetric("slow");
+		repo.addMetric("fast");
+
+		try (BinaryIngestListener listener = new BinaryIngestListener(repo, new InetSocketAddress("localhost", 0), 2);
+				Socket slow = new Socket("localhost", listener.getPort());
+				Socket fast = new Socket("localhost", listener.getPort())) {
+			slow.getOutputStream().write(BinaryFrames.encode("slow", new double[] {1}, null).array());
+			slow.getOutputStream().write(BinaryFrames.encode("slow", new double[] {2}, null).array());
+			fast.getOutputStream().write(BinaryFrames.encode("fast", new double[] {3}, null).array());
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (repo.getDataForMetric("fast").size() < 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(repo.getDataForMetric("fast").size() == 1);
+			assertTrue(repo.getDataForMetric("slow").size() == 0);
+
+			release.countDown();
+			while (repo.getDataForMetric("slow").size() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(repo.getDataForMetric("slow").size() == 2);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.qevans.metricapp.ingest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.repository.MetricsRepository;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class StatsdListenerTest {
+
+	@Test
+	public void parseTest() {
+		String lines = "api.latency:12.5|ms\n"
+				+ "api.latency:-0.25|ms|#region:eu\r\n"
+				+ "api.hits:3|c|@0.5\n"
+				+ "queue.depth:1e3|g\n"
+				+ "users:alice|s\n"
+				+ "\n"
+				+ "broken\n"
+				+ "api.hits:x|c\n"
+				+ "api.hits:1|c|@2\n"
+				+ "api.hits:1e308|c|@0.1\n"
+				+ "api.latency:1|nope";
+		ByteBuffer packet = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+
+		StatsdListener.Batches batches = new StatsdListener.Batches();
+		assertTrue(StatsdListener.parse(packet, batches) == 5);
+		assertTrue(batches.size == 4);
+
+		MetricsRepository repo = new MetricsRepository();
+		repo.addMetric("api.latency");
+		batches.flush(repo);
+
+		// existing metrics are added to, new ones are created
+		assertTrue(repo.getDataForMetric("api.latency").size() == 2);
+		assertTrue(repo.getMinimumOfMetric("api.latency") == -0.25);
+		assertTrue(repo.getMaximumOfMetric("api.latency") == 12.5);
+		assertTrue(repo.getAverageOfMetric("api.hits") == 6);
+		assertTrue(repo.getAverageOfMetric("queue.depth") == 1000);
+		assertTrue(batches.size == 0);
+
+		assertTrue(StatsdListener.parseNumber("0.1".getBytes(StandardCharsets.UTF_8), 0, 3) == 0.1);
+		assertTrue(StatsdListener.parseNumber("123456.789".getBytes(StandardCharsets.UTF_8), 0, 10) == 123456.789);
+	}
+
+	@Test
+	public void refusedMetricTest() {
+		MetricsRepository repo = new MetricsRepository() {
+			@Override
+			public boolean addDataToMetric(String metric, double[] data, long[] timestamps) {
+				if (metric.equals("refused")) {
+					throw new IllegalArgumentException("Refused");
+				}
+				return super.addDataToMetric(metric, data, timestamps);
+			}
+		};
+
+		StatsdListener.Batches batches = new StatsdListener.Batches();
+		String lines = "refused:1|g\nkept:1|g\nkept.too:2|g";
+		StatsdListener.parse(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)), batches);
+		batches.flush(repo);
+
+		// one refused metric neither stops the others nor is sent again with the next flush
+		assertTrue(repo.getDataForMetric("kept").size() == 1);
+		assertTrue(repo.getDataForMetric("kept.too").size() == 1);
+		assertTrue(batches.size == 0);
+
+		StatsdListener.parse(ByteBuffer.wrap("kept:3|g".getBytes(StandardCharsets.UTF_8)), batches);
+		batches.flush(repo);
+		assertTrue(repo.getDataForMetric("kept").size() == 2);
+		assertTrue(repo.getDataForMetric("kept.too").size() == 1);
+	}
+
+	@Test
+	public void udpListenerTest() throws IOException, InterruptedException {
+		MetricsRepository repo = new MetricsRepository();
+
+		try (StatsdListener listener = new StatsdListener(repo, new InetSocketAddress("localhost", 0));
+				DatagramSocket socket = new DatagramSocket()) {
+			for (int packet = 0; packet < 10; packet++) {
+				byte[] bytes = ("udp.timer:" + packet + "|ms\nudp.count:1|c").getBytes(StandardCharsets.UTF_8);
+				socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), listener.getPort()));
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!hasCount(repo, "udp.timer", 10) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+
+		assertTrue(hasCount(repo, "udp.timer", 10));
+		assertTrue(repo.getMaximumOfMetric("udp.timer") == 9);
+		assertTrue(hasCount(repo, "udp.count", 10));
+	}
+
+	private static boolean hasCount(MetricsRepository repo, String metric, int count) {
+		try {
+			return repo.getDataForMetric(metric).size() == count;
+		} catch (IllegalArgumentException ex) {
+			// not created yet
+			return false;
+		}
+	}
+}
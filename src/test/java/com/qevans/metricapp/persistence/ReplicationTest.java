@@ -0,0 +1,160 @@
+package com.qevans.metricapp.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.StorageType;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class ReplicationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void followLeaderTest() throws IOException, InterruptedException {
+		MetricsRepository leaderRepo = new MetricsRepository();
+		leaderRepo.addMetric("latency");
+		leaderRepo.addMetric("sizes", new MetricConfig(StorageType.SKETCH));
+		for (int value = 1; value <= 100; value++) {
+			leaderRepo.addDataToMetric("latency", value);
+			leaderRepo.addDataToMetric("sizes", value);
+		}
+
+		MetricsRepository followerRepo = new MetricsRepository();
+		followerRepo.addMetric("stale");
+
+		try (ReplicationLeader leader = new ReplicationLeader(leaderRepo, new InetSocketAddress("localhost", 0),
+				folder.newFolder("leader").toPath(), ReplicationLeader.DEFAULT_MAX_PENDING_BYTES);
+				ReplicationFollower follower = new ReplicationFollower(followerRepo,
+						new InetSocketAddress("localhost", leader.getPort()), folder.newFolder("follower").toPath(),
+						ReplicationFollower.DEFAULT_RECONNECT_MILLIS)) {
+			// the snapshot replaces whatever the follower held
+			waitFor(follower::isConnected);
+			assertFalse(Arrays.asList(followerRepo.getAllMetrics()).contains("stale"));
+			assertTrue(followerRepo.getDataForMetric("latency").equals(leaderRepo.getDataForMetric("latency")));
+			assertTrue(followerRepo.getMaximumOfMetric("sizes") == 100);
+
+			// changes after the snapshot are streamed, including new metrics
+			leaderRepo.addMetric("errors");
+			leaderRepo.addDataToMetric("errors", new double[] {1, 2, 3});
+			leaderRepo.addDataToMetric("latency", 500);
+			waitFor(() -> follower.getAppliedSequence() == leaderRepo.getLastSequence());
+
+			assertTrue(followerRepo.getDataForMetric("errors").size() == 3);
+			assertTrue(followerRepo.getDataForMetric("latency").equals(leaderRepo.getDataForMetric("latency")));
+			assertEquals(leaderRepo.getAverageOfMetric("sizes"), followerRepo.getAverageOfMetric("sizes"), 1e-9);
+			assertTrue(leader.getFollowerCount() == 1);
+
+			// once promoted the follower stops applying the leader's changes
+			assertTrue(follower.promote());
+			assertFalse(follower.promote());
+			assertFalse(follower.isFollowing());
+			leaderRepo.addDataToMetric("errors", 4);
+			followerRepo.addDataToMetric("errors", 40);
+			Thread.sleep(100);
+			assertTrue(followerRepo.getMaximumOfMetric("errors") == 40);
+			assertTrue(followerRepo.getDataForMetric("errors").size() == 4);
+		}
+	}
+
+	@Test
+	public void followersShareRecentSnapshotTest() throws IOException, InterruptedException {
+		MetricsRepository leaderRepo = new MetricsRepository();
+		leaderRepo.addMetric("latency");
+		leaderRepo.addDataToMetric("latency", new double[] {1, 2, 3});
+
+		MetricsRepository firstRepo = new MetricsRepository();
+		MetricsRepository secondRepo = new MetricsRepository();
+		try (ReplicationLeader leader = new ReplicationLeader(leaderRepo, new InetSocketAddress("localhost", 0),
+				folder.newFolder("leader").toPath(), ReplicationLeader.DEFAULT_MAX_PENDING_BYTES);
+				ReplicationFollower first = new ReplicationFollower(firstRepo,
+						new InetSocketAddress("localhost", leader.getPort()), folder.newFolder("first").toPath(),
+						ReplicationFollower.DEFAULT_RECONNECT_MILLIS)) {
+			waitFor(first::isConnected);
+
+			// changes between the snapshot and the second follower reach it through the backlog
+			leaderRepo.addMetric("errors");
+			leaderRepo.addDataToMetric("errors", new double[] {4, 5});
+			leaderRepo.addDataToMetric("latency", 4);
+
+			try (ReplicationFollower second = new ReplicationFollower(secondRepo,
+					new InetSocketAddress("localhost", leader.getPort()), folder.newFolder("second").toPath(),
+					ReplicationFollower.DEFAULT_RECONNECT_MILLIS)) {
+				waitFor(() -> second.getAppliedSequence() == leaderRepo.getLastSequence());
+				leaderRepo.addDataToMetric("errors", 6);
+				waitFor(() -> second.getAppliedSequence() == leaderRepo.getLastSequence()
+						&& first.getAppliedSequence() == leaderRepo.getLastSequence());
+
+				assertTrue(leader.getSnapshotsWritten() == 1);
+				assertTrue(leader.getFollowerCount() == 2);
+				for (MetricsRepository followerRepo : new MetricsRepository[] {firstRepo, secondRepo}) {
+					assertTrue(followerRepo.getDataForMetric("latency").equals(leaderRepo.getDataForMetric("latency")));
+					assertTrue(followerRepo.getDataForMetric("errors").equals(leaderRepo.getDataForMetric("errors")));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void reconnectToSameSnapshotTest() throws IOException, InterruptedException {
+		MetricsRepository leaderRepo = new MetricsRepository();
+		leaderRepo.addMetric("latency");
+		leaderRepo.addMetric("sizes", new MetricConfig(StorageType.SKETCH));
+		for (int value = 1; value <= 100; value++) {
+			leaderRepo.addDataToMetric("latency", value);
+			leaderRepo.addDataToMetric("sizes", value);
+		}
+
+		MetricsRepository followerRepo = new MetricsRepository();
+		try (ReplicationLeader leader = new ReplicationLeader(leaderRepo, new InetSocketAddress("localhost", 0),
+				folder.newFolder("leader").toPath(), ReplicationLeader.DEFAULT_MAX_PENDING_BYTES);
+				ReplicationFollower follower = new ReplicationFollower(followerRepo,
+						new InetSocketAddress("localhost", leader.getPort()), folder.newFolder("follower").toPath(),
+						200)) {
+			waitFor(follower::isConnected);
+			assertTrue(followerRepo.getMaximumOfMetric("sizes") == 100);
+
+			// with no writes in between the reconnect receives a snapshot covering the same sequence
+			follower.disconnect();
+			waitFor(() -> !follower.isConnected());
+			waitFor(follower::isConnected);
+
+			assertTrue(leader.getSnapshotsWritten() == 1);
+			assertTrue(followerRepo.getDataForMetric("latency").equals(leaderRepo.getDataForMetric("latency")));
+			assertTrue(followerRepo.getMaximumOfMetric("sizes") == 100);
+			assertEquals(leaderRepo.getAverageOfMetric("latency"), followerRepo.getAverageOfMetric("latency"), 1e-9);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parseAddressTest() {
+		assertEquals(7100, ReplicationFollower.parseAddress("localhost:7100").getPort());
+		ReplicationFollower.parseAddress("localhost");
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting for the follower", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
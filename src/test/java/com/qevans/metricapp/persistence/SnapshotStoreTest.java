@@ -0,0 +1,133 @@
+package com.qevans.metricapp.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.Statistic;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class SnapshotStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void mappedSnapshotTest() throws IOException {
+		MetricsRepository repo = new MetricsRepository();
+		repo.addMetric("heap");
+		repo.addMetric("sketch", new MetricConfig(StorageType.SKETCH));
+		repo.addMetric("empty");
+		MetricConfig rollupConfig = new MetricConfig();
+		rollupConfig.setRollups(true);
+		repo.addMetric("rolled", rollupConfig);
+		MetricConfig timedConfig = new MetricConfig();
+		timedConfig.setTimeIndex(true);
+		repo.addMetric("timed", timedConfig);
+
+		for (int value = 10000; value > 0; value--) {
+			repo.addDataToMetric("heap", value);
+			repo.addDataToMetric("sketch", value);
+			repo.addDataToMetric("rolled", value, value * 1000L);
+			repo.addDataToMetric("timed", value, value * 1000L);
+		}
+
+		SnapshotStore store = new SnapshotStore(folder.getRoot().toPath());
+		store.write(repo);
+
+		MetricsRepository restored = new MetricsRepository();
+		store.load(restored);
+
+		// answered from the mapped file before warm up
+		assertTrue(restored.getMinimumOfMetric("heap") == 1);
+		assertTrue(restored.getMaximumOfMetric("heap") == 10000);
+		assertTrue(restored.getMedianOfMetric("heap") == 5000.5);
+		assertTrue(restored.getPercentileOfMetric("heap", 99) == repo.getPercentileOfMetric("heap", 99));
+		assertTrue(restored.getAverageOfMetric("heap") == repo.getAverageOfMetric("heap"));
+		assertTrue(restored.getVarianceOfMetric("heap") == repo.getVarianceOfMetric("heap"));
+		assertTrue(restored.getPercentileOfMetric("sketch", 99) == repo.getPercentileOfMetric("sketch", 99));
+		assertTrue(restored.getDataForMetric("empty").isEmpty());
+		List<Statistic> statistics = Statistic.parseList("count,mean,p50");
+		assertTrue(restored.getStatisticsOfMetric("rolled", statistics, 1234567, 7654321)
+				.equals(repo.getStatisticsOfMetric("rolled", statistics, 1234567, 7654321)));
+		assertTrue(restored.getStatisticsOfMetric("timed", statistics, 1234567, 7654321)
+				.equals(repo.getStatisticsOfMetric("timed", statistics, 1234567, 7654321)));
+
+		// the first write copies the values off the mapped file
+		restored.addDataToMetric("heap", 0.5);
+		assertTrue(restored.getDataForMetric("heap").size() == 10001);
+		assertTrue(restored.getMinimumOfMetric("heap") == 0.5);
+		// only the empty, the rolled and the timed metric were still reading from the file
+		assertTrue(restored.warmUp() == 3);
+	}
+
+	@Test
+	public void snapshotWithLogTest() throws IOException {
+		Path snapshots = folder.newFolder("snapshots").toPath();
+		Path wal = folder.newFolder("wal").toPath();
+
+		MetricsRepository repo = new MetricsRepository();
+		WriteAheadLog writeAheadLog = new WriteAheadLog(wal);
+		MetricsPersistence persistence = new MetricsPersistence(repo, new SnapshotStore(snapshots), writeAheadLog, 0);
+		persistence.start();
+
+		MetricConfig stripedConfig = new MetricConfig(StorageType.TREE);
+		stripedConfig.setWriteMode(WriteMode.STRIPED);
+		repo.addMetric("striped", stripedConfig);
+		repo.addMetric("direct");
+		MetricConfig compressedConfig = new MetricConfig(StorageType.COMPRESSED);
+		compressedConfig.setPartitionMillis(100);
+		repo.addMetric("compressed", compressedConfig);
+
+		for (int value = 0; value < 1000; value++) {
+			repo.addDataToMetric("striped", value);
+			repo.addDataToMetric("direct", value);
+			repo.addDataToMetric("compressed", value % 10, value);
+		}
+
+		long coveredSequence = persistence.snapshot();
+		assertTrue(coveredSequence == repo.getLastSequence());
+		// only the segment started by the snapshot is left
+		assertTrue(Files.list(wal).count() == 1);
+
+		// written after the snapshot, only the log has these
+		repo.addMetric("late");
+		repo.addDataToMetric("late", 42);
+		repo.addDataToMetric("direct", new double[] {-1, 5000});
+		repo.addDataToMetric("compressed", 3, 50);
+
+		// stop without the final snapshot, as a crash would
+		writeAheadLog.close();
+		MetricsRepository restored = new MetricsRepository();
+		try (WriteAheadLog reopened = new WriteAheadLog(wal)) {
+			new SnapshotStore(snapshots).load(restored);
+			assertTrue(reopened.replay(restored) == 4);
+		}
+
+		assertTrue(restored.getDataForMetric("striped").equals(repo.getDataForMetric("striped")));
+		assertTrue(restored.getDataForMetric("direct").equals(repo.getDataForMetric("direct")));
+		assertTrue(restored.getDataForMetric("late").size() == 1);
+		assertTrue(restored.getDataForMetric("compressed").equals(repo.getDataForMetric("compressed")));
+		assertTrue(restored.getStatisticsOfMetric("compressed", Statistic.parseList("count,median"), 0, 99)
+				.equals(repo.getStatisticsOfMetric("compressed", Statistic.parseList("count,median"), 0, 99)));
+		assertEquals(repo.getAverageOfMetric("direct"), restored.getAverageOfMetric("direct"), 1e-9);
+		assertTrue(restored.getLastSequence() == repo.getLastSequence());
+	}
+}
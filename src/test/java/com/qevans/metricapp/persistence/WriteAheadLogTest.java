@@ -0,0 +1,171 @@
+package com.qevans.metricapp.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+import com.qevans.metricapp.repository.MetricConfig;
+import com.qevans.metricapp.repository.MetricsRepository;
+import com.qevans.metricapp.repository.Statistic;
+import com.qevans.metricapp.repository.StorageType;
+import com.qevans.metricapp.repository.WriteMode;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class WriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replayTest() throws IOException {
+		Path directory = folder.getRoot().toPath();
+
+		MetricsRepository repo = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory, 5, WriteAheadLog.DEFAULT_SEGMENT_BYTES)) {
+			repo.addJournal(wal);
+
+			MetricConfig sketchConfig = new MetricConfig(StorageType.SKETCH);
+			sketchConfig.setCompression(50);
+			repo.addMetric("latency", sketchConfig);
+
+			MetricConfig stripedConfig = new MetricConfig(StorageType.TREE);
+			stripedConfig.setWriteMode(WriteMode.STRIPED);
+			repo.addMetric("requests", stripedConfig);
+
+			for (int value = 1; value <= 100; value++) {
+				repo.addDataToMetric("latency", value);
+				repo.addDataToMetric("requests", value);
+			}
+			repo.addDataToMetric("requests", new double[] {500, -3});
+		}
+
+		MetricsRepository restored = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			assertTrue(wal.replay(restored) == 203);
+			assertTrue(restored.getLastSequence() == repo.getLastSequence());
+
+			assertTrue(restored.getMaximumOfMetric("latency") == 100);
+			assertTrue(restored.getAverageOfMetric("latency") == 50.5);
+			assertTrue(restored.getDataForMetric("requests").equals(repo.getDataForMetric("requests")));
+			assertEquals(repo.getVarianceOfMetric("requests"), restored.getVarianceOfMetric("requests"), 1e-9);
+
+			// changes made after replay continue the sequence and land in the new segment
+			restored.addJournal(wal);
+			restored.addDataToMetric("requests", 7);
+			assertTrue(restored.getLastSequence() == repo.getLastSequence() + 1);
+		}
+
+		MetricsRepository restoredAgain = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			assertTrue(wal.replay(restoredAgain) == 204);
+			assertTrue(restoredAgain.getDataForMetric("requests").size() == 103);
+		}
+	}
+
+	@Test
+	public void tornTailTest() throws IOException {
+		Path directory = folder.getRoot().toPath();
+
+		MetricsRepository repo = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			repo.addJournal(wal);
+			repo.addMetric("metric");
+			repo.addDataToMetric("metric", 1);
+			repo.addDataToMetric("metric", 2);
+		}
+
+		// cut the last record in half, as a crash in the middle of a write would
+		Path segment = Files.list(directory).collect(Collectors.toList()).get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 6);
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2}), channel.size());
+		}
+
+		MetricsRepository restored = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			assertTrue(wal.replay(restored) == 2);
+			assertTrue(restored.getDataForMetric("metric").equals(Arrays.asList(1.0)));
+		}
+	}
+
+	@Test
+	public void refusedRecordTest() throws IOException {
+		Path directory = folder.getRoot().toPath();
+
+		// a log written before values were checked, holding a value no storage accepts
+		MetricConfig sketchConfig = new MetricConfig(StorageType.SKETCH);
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			wal.metricAdded(1, "sketch", sketchConfig);
+			wal.dataAdded(2, "sketch", new double[] {1.0, Double.NaN}, new long[] {1, 2});
+			wal.dataAdded(3, "sketch", new double[] {2.0}, new long[] {3});
+			wal.flush();
+		}
+
+		MetricsRepository restored = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+			assertTrue(wal.replay(restored) == 2);
+			assertTrue(restored.getLastSequence() == 3);
+			assertTrue(restored.getMaximumOfMetric("sketch") == 2.0);
+			assertTrue(restored.getStatisticsOfMetric("sketch", Statistic.parseList("count")).get("count") == 1);
+		}
+	}
+
+	@Test
+	public void legacyRecordTest() {
+		MetricsRepository restored = new MetricsRepository();
+		restored.addMetric("old");
+
+		// a version 1 data record has no timestamps
+		byte[] name = "old".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(1 + Long.BYTES + Short.BYTES + name.length + Integer.BYTES + Double.BYTES * 2);
+		record.put(WriteAheadLog.DATA_RECORD).putLong(1).putShort((short) name.length).put(name);
+		record.putInt(2).putDouble(4).putDouble(6).flip();
+
+		WriteAheadLog.applyRecord(record, 1, 5000, restored);
+		assertTrue(restored.getStatisticsOfMetric("old", Statistic.parseList("count"), 5000, 5000).get("count") == 2);
+
+		// configs are written with codes that do not move when the enums are reordered
+		for (StorageType type : StorageType.values()) {
+			assertTrue(StorageType.fromCode(type.getCode()) == type);
+		}
+		assertTrue(StorageType.COMPRESSED.getCode() == 4 && WriteMode.STRIPED.getCode() == 1);
+	}
+
+	@Test
+	public void syncEveryWriteTest() throws IOException {
+		Path directory = folder.getRoot().toPath();
+
+		MetricsRepository repo = new MetricsRepository();
+		try (WriteAheadLog wal = new WriteAheadLog(directory, 0, WriteAheadLog.DEFAULT_SEGMENT_BYTES)) {
+			repo.addJournal(wal);
+			repo.addMetric("metric");
+			repo.addDataToMetric("metric", 1);
+			repo.addDataToMetric("metric", new double[] {2, 3});
+
+			// on disk once the writes return, before the log is flushed or closed
+			MetricsRepository restored = new MetricsRepository();
+			try (WriteAheadLog reader = new WriteAheadLog(directory)) {
+				assertTrue(reader.replay(restored) == 3);
+				assertTrue(restored.getDataForMetric("metric").equals(Arrays.asList(1.0, 2.0, 3.0)));
+			}
+		}
+	}
+}
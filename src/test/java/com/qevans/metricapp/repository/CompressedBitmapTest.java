@@ -0,0 +1,65 @@
+package com.qevans.metricapp.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class CompressedBitmapTest {
+
+	@Test
+	public void intersectionTest() {
+		Random random = new Random(7);
+		CompressedBitmap dense = new CompressedBitmap();
+		CompressedBitmap sparse = new CompressedBitmap();
+		BitSet denseExpected = new BitSet();
+		BitSet sparseExpected = new BitSet();
+
+		// the dense set turns its first containers into bitsets, the sparse one keeps sorted arrays
+		for (int value = 0; value < 200000; value++) {
+			if (random.nextInt(4) != 0) {
+				dense.add(value);
+				denseExpected.set(value);
+			}
+		}
+		for (int count = 0; count < 3000; count++) {
+			int value = random.nextInt(400000);
+			sparse.add(value);
+			sparseExpected.set(value);
+		}
+		// out of order and repeated adds
+		sparse.add(5);
+		sparse.add(5);
+		sparseExpected.set(5);
+
+		assertTrue(dense.cardinality() == denseExpected.cardinality());
+		assertTrue(sparse.cardinality() == sparseExpected.cardinality());
+		assertArrayEquals(denseExpected.stream().toArray(), dense.toArray());
+		assertArrayEquals(sparseExpected.stream().toArray(), sparse.toArray());
+		assertTrue(sparse.contains(5));
+		assertFalse(dense.contains(-1));
+
+		BitSet both = (BitSet) denseExpected.clone();
+		both.and(sparseExpected);
+		assertArrayEquals(both.stream().toArray(), dense.and(sparse).toArray());
+		assertArrayEquals(both.stream().toArray(), sparse.and(dense).toArray());
+		assertArrayEquals(denseExpected.stream().toArray(), dense.and(dense).toArray());
+		assertTrue(sparse.and(new CompressedBitmap()).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeTest() {
+		new CompressedBitmap().add(-1);
+	}
+}
@@ -0,0 +1,225 @@
+package com.qevans.metricapp.repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class MetricSeriesTest {
+
+	@Test
+	public void heapSeriesStaysSortedAcrossChunksTest() {
+		checkSortedAcrossChunks(newSeries(StorageType.HEAP));
+	}
+
+	@Test
+	public void offHeapSeriesStaysSortedAcrossChunksTest() {
+		checkSortedAcrossChunks(newSeries(StorageType.OFF_HEAP));
+	}
+
+	@Test
+	public void treeSeriesStaysSortedTest() {
+		checkSortedAcrossChunks(newSeries(StorageType.TREE));
+	}
+
+	@Test
+	public void chunksGrowWithTheirValuesTest() {
+		for (StorageType type : new StorageType[] {StorageType.HEAP, StorageType.OFF_HEAP}) {
+			IMetricSeries series = newSeries(type);
+			series.add(1);
+			assertTrue(series.sizeInBytes() < 1024);
+
+			// split chunks only hold the half they keep
+			for (int index = 0; index < ChunkedSeries.CHUNK_CAPACITY * 4; index++) {
+				series.add(index);
+			}
+			assertTrue(series.sizeInBytes() < (long) series.size() * Double.BYTES * 2);
+		}
+	}
+
+	@Test
+	public void treeSeriesSortedInputTest() {
+		// ascending input is the worst case for an unbalanced tree
+		IMetricSeries series = newSeries(StorageType.TREE);
+		int count = 200000;
+
+		for (int index = 0; index < count; index++) {
+			series.add(index);
+		}
+
+		assertTrue(series.size() == count);
+		assertTrue(series.valueAt(0) == 0);
+		assertTrue(series.valueAt(count / 2) == count / 2);
+		assertTrue(series.valueAt(count - 1) == count - 1);
+	}
+
+	@Test
+	public void treeSeriesRemoveTest() {
+		TreeSeries series = new TreeSeries();
+		Random random = new Random(7);
+		double[] values = new double[5000];
+
+		for (int index = 0; index < values.length; index++) {
+			values[index] = random.nextInt(100);
+			series.add(values[index]);
+		}
+
+		// remove the first half, freed slots are reused by the inserts after
+		for (int index = 0; index < values.length / 2; index++) {
+			assertTrue(series.remove(values[index]));
+			series.add(values[index] + 1000);
+		}
+		assertTrue(!series.remove(-1));
+
+		double[] expected = new double[values.length];
+		for (int index = 0; index < values.length; index++) {
+			expected[index] = index < values.length / 2 ? values[index] + 1000 : values[index];
+		}
+		Arrays.sort(expected);
+
+		assertArrayEquals(expected, series.toArray(), 0);
+		assertTrue(series.valueAt(values.length / 2) == expected[values.length / 2]);
+	}
+
+	private void checkSortedAcrossChunks(IMetricSeries series) {
+		Random random = new Random(42);
+		// enough values to force several chunk splits
+		double[] expected = new double[ChunkedSeries.CHUNK_CAPACITY * 5 + 17];
+
+		for (int index = 0; index < expected.length; index++) {
+			// small range so there are plenty of duplicates
+			expected[index] = random.nextInt(1000) - 500;
+			series.add(expected[index]);
+		}
+
+		Arrays.sort(expected);
+
+		assertTrue(series.size() == expected.length);
+		assertArrayEquals(expected, series.toArray(), 0.0);
+		assertTrue(series.valueAt(0) == expected[0]);
+		assertTrue(series.valueAt(expected.length / 2) == expected[expected.length / 2]);
+		assertTrue(series.valueAt(expected.length - 1) == expected[expected.length - 1]);
+
+		try {
+			series.valueAt(expected.length);
+			fail();
+		} catch (IndexOutOfBoundsException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void addAllMergesSortedBatchesTest() {
+		for (StorageType type : new StorageType[] {StorageType.HEAP, StorageType.OFF_HEAP, StorageType.TREE}) {
+			IMetricSeries series = newSeries(type);
+			Random random = new Random(11);
+			double[] expected = new double[0];
+
+			// batches of very different sizes, including ones larger than a chunk
+			for (int batchSize : new int[] {1, 10, ChunkedSeries.CHUNK_CAPACITY * 3, 0, 500, ChunkedSeries.CHUNK_CAPACITY + 1}) {
+				double[] batch = new double[batchSize];
+				for (int index = 0; index < batchSize; index++) {
+					batch[index] = random.nextInt(5000);
+				}
+				Arrays.sort(batch);
+
+				series.addAll(batch);
+				// single inserts between batches have to land in the merged chunks correctly
+				series.add(2500);
+
+				int previousLength = expected.length;
+				expected = Arrays.copyOf(expected, previousLength + batchSize + 1);
+				System.arraycopy(batch, 0, expected, previousLength, batchSize);
+				expected[expected.length - 1] = 2500;
+			}
+
+			Arrays.sort(expected);
+
+			assertTrue(type + " size", series.size() == expected.length);
+			assertArrayEquals(expected, series.toArray(), 0.0);
+			assertTrue(series.valueAt(expected.length / 3) == expected[expected.length / 3]);
+		}
+	}
+
+	@Test
+	public void storageTypeFromStringTest() {
+		assertTrue(StorageType.fromString("heap") == StorageType.HEAP);
+		assertTrue(StorageType.fromString("Off-Heap") == StorageType.OFF_HEAP);
+		assertTrue(StorageType.fromString("TREE") == StorageType.TREE);
+
+		try {
+			StorageType.fromString("disk");
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Storage type: disk does not exist."));
+		}
+	}
+
+	@Test
+	public void compressedBlockTest() {
+		Random random = new Random(5);
+		int count = 5000;
+		long[] timestamps = new long[count];
+		double[] values = new double[count];
+
+		for (int index = 0; index < count; index++) {
+			// a steady rate with jitter and late samples, slowly moving values with repeats and odd doubles
+			timestamps[index] = 1538000000000L + index * 1000L + (index % 7 == 0 ? -random.nextInt(100000) : 0);
+			values[index] = index % 3 == 0 ? values[Math.max(0, index - 1)] : 100 + random.nextGaussian();
+		}
+		timestamps[1] = Long.MIN_VALUE;
+		timestamps[2] = Long.MAX_VALUE;
+		values[3] = -0.0;
+		values[4] = Double.POSITIVE_INFINITY;
+		values[5] = Double.MIN_VALUE;
+
+		CompressedBlock block = CompressedBlock.encode(LongBuffer.wrap(timestamps), DoubleBuffer.wrap(values), count);
+		long[] decodedTimestamps = new long[count];
+		double[] decodedValues = new double[count];
+		int[] next = new int[1];
+		block.forEach((timestamp, value) -> {
+			decodedTimestamps[next[0]] = timestamp;
+			decodedValues[next[0]++] = value;
+		});
+
+		assertTrue(next[0] == count && block.size() == count);
+		assertArrayEquals(timestamps, decodedTimestamps);
+		for (int index = 0; index < count; index++) {
+			assertTrue(Double.doubleToRawLongBits(values[index]) == Double.doubleToRawLongBits(decodedValues[index]));
+		}
+
+		// one value a second that repeats most of the time takes a few bits a sample
+		MetricConfig config = new MetricConfig(StorageType.COMPRESSED);
+		config.setPartitionMillis(60000);
+		TimeIndex compressed = new TimeIndex(config);
+		MetricConfig heapConfig = new MetricConfig(StorageType.HEAP);
+		heapConfig.setTimeIndex(true);
+		TimeIndex heap = new TimeIndex(heapConfig);
+		for (int second = 0; second < 3600; second++) {
+			compressed.add(second * 1000L, second / 10);
+			heap.add(second * 1000L, second / 10);
+		}
+		compressed.compact(3600000);
+		assertTrue(compressed.sizeInBytes() * 10 < heap.sizeInBytes());
+		assertTrue(compressed.getStatistics(Statistic.parseList("count,p50"), 0, 3600000)
+				.equals(heap.getStatistics(Statistic.parseList("count,p50"), 0, 3600000)));
+	}
+
+	private static IMetricSeries newSeries(StorageType type) {
+		MetricConfig config = new MetricConfig(type);
+		return type.newSeries(config, new TimeIndex(config));
+	}
+}
@@ -4,7 +4,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -173,6 +178,33 @@ public class MetricsRepositoryTest {
 		printList(metricDataList);
 		
 		assertTrue(isOrderedList(metricDataList));		
+		
+		//values that cannot be ordered or summed are rejected
+		for (double notFinite : new double[] {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY})
+		{
+			try
+			{
+				repo.addDataToMetric(metric, notFinite);
+				fail();
+			}
+			catch(IllegalArgumentException ex)
+			{
+				assertTrue(ex.getMessage().equals("Data must be a finite number"));
+			}
+		}
+		
+		//a batch holding one is rejected whole
+		try
+		{
+			repo.addDataToMetric(metric, new double[] {2.0, Double.NaN});
+			fail();
+		}
+		catch(IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Data must be a finite number"));
+		}
+		assertTrue(repo.getDataForMetric(metric).size() == 5);
+		assertTrue(isOrderedList(repo.getDataForMetric(metric)));
 	}
 	
 	@Test
@@ -475,4 +507,741 @@ public class MetricsRepositoryTest {
 		assertTrue(repo.getMinimumOfMetric(reallySmallMetric) == tinytiny5);
 		assertTrue(repo.getMaximumOfMetric(reallySmallMetric) == small1);
 	}
+
+	@Test
+	public void runningStatisticsTest()
+	{
+		MetricsRepository repo = new MetricsRepository();
+		
+		String metric = "metric";
+		repo.addMetric(metric);
+		
+		try
+		{
+			repo.getVarianceOfMetric(null);
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Metric cannot be null"));
+		}
+		
+		try
+		{
+			repo.getStandardDeviationOfMetric("");
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Metric: " + "" + " does not exist."));
+		}
+		
+		assertTrue(repo.getVarianceOfMetric(metric) == 0.0);
+		assertTrue(repo.getStandardDeviationOfMetric(metric) == 0.0);
+		
+		double[] data = {2, 4, 4, 4, 5, 5, 7, 9};
+		for (double value : data)
+		{
+			repo.addDataToMetric(metric, value);
+		}
+		
+		assertTrue(repo.getAverageOfMetric(metric) == 5.0);
+		assertTrue(repo.getVarianceOfMetric(metric) == 4.0);
+		assertTrue(repo.getStandardDeviationOfMetric(metric) == 2.0);
+		assertTrue(repo.getPercentileOfMetric(metric, 0) == 2.0);
+		assertTrue(repo.getPercentileOfMetric(metric, 50) == 4.5);
+		assertTrue(repo.getPercentileOfMetric(metric, 100) == 9.0);
+		
+		//compensated sum keeps the small values a naive sum would lose
+		String cancelMetric = "cancelMetric";
+		repo.addMetric(cancelMetric);
+		
+		repo.addDataToMetric(cancelMetric, 1.0);
+		repo.addDataToMetric(cancelMetric, 1e100);
+		repo.addDataToMetric(cancelMetric, 1.0);
+		repo.addDataToMetric(cancelMetric, -1e100);
+		
+		assertTrue(repo.getAverageOfMetric(cancelMetric) == 0.5);
+	}
+
+	@Test
+	public void addBatchToMetricTest()
+	{
+		MetricsRepository repo = new MetricsRepository();
+		
+		String metric = "metric";
+		double[] data = {5.0, -1.0, 3.0, 3.0, 10.0};
+		
+		try
+		{
+			repo.addDataToMetric(null, data);
+			fail();
+		}
+		catch(IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Metric cannot be null"));
+		}
+		
+		assertFalse(repo.addDataToMetric(metric, data));
+		repo.addMetric(metric);
+		
+		try
+		{
+			repo.addDataToMetric(metric, (double[]) null);
+			fail();
+		}
+		catch(IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Data cannot be null"));
+		}
+		
+		repo.addDataToMetric(metric, 4.0);
+		assertTrue(repo.addDataToMetric(metric, data));
+		
+		//batch is not changed by the add
+		assertTrue(data[0] == 5.0);
+		
+		List<Double> metricDataList = repo.getDataForMetric(metric);
+		assertTrue(metricDataList.size() == 6);
+		assertTrue(isOrderedList(metricDataList));
+		
+		assertTrue(repo.getMinimumOfMetric(metric) == -1.0);
+		assertTrue(repo.getMaximumOfMetric(metric) == 10.0);
+		assertTrue(repo.getMedianOfMetric(metric) == 3.5);
+		assertTrue(repo.getAverageOfMetric(metric) == 4.0);
+	}
+
+	@Test
+	public void stripedWriteModeMultithreadTest() throws InterruptedException
+	{
+		MetricConfig config = new MetricConfig(StorageType.HEAP);
+		config.setWriteMode(WriteMode.STRIPED);
+		MetricsRepository repo = new MetricsRepository(config);
+		
+		final String metric = "hotMetric";
+		repo.addMetric(metric);
+		
+		final int threadCount = 8;
+		// more than the drain threshold so writers drain while others keep writing
+		final int valuesPerThread = StripedWriteBuffer.DRAIN_THRESHOLD * 3;
+		Thread[] threads = new Thread[threadCount];
+		
+		for (int threadIndex = 0; threadIndex < threadCount; threadIndex++)
+		{
+			final int offset = threadIndex;
+			threads[threadIndex] = new Thread(() -> {
+				for (int value = 0; value < valuesPerThread; value++)
+				{
+					if (value % 1000 == 0)
+					{
+						repo.addDataToMetric(metric, new double[] {offset, offset});
+						value++;
+					}
+					else
+					{
+						repo.addDataToMetric(metric, offset);
+					}
+					
+					//readers in the middle of ingest see a consistent count
+					if (value % 10000 == 0)
+					{
+						repo.getAverageOfMetric(metric);
+					}
+				}
+			});
+			threads[threadIndex].start();
+		}
+		
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		
+		List<Double> metricDataList = repo.getDataForMetric(metric);
+		
+		assertTrue(metricDataList.size() == threadCount * valuesPerThread);
+		assertTrue(repo.getStatisticsOfMetric(metric, Statistic.parseList("count")).get("count") == threadCount * valuesPerThread);
+		assertTrue(repo.getAverageOfMetric(metric) == (threadCount - 1) / 2.0);
+		assertTrue(repo.getMinimumOfMetric(metric) == 0);
+		assertTrue(repo.getMaximumOfMetric(metric) == threadCount - 1);
+		
+		for (int index = 1; index < metricDataList.size(); index++)
+		{
+			assertTrue(metricDataList.get(index - 1) <= metricDataList.get(index));
+		}
+	}
+
+	@Test
+	public void stripedWriteModeRejectsBeforeBufferingTest()
+	{
+		MetricConfig config = new MetricConfig(StorageType.SKETCH);
+		config.setWriteMode(WriteMode.STRIPED);
+		MetricsRepository repo = new MetricsRepository(config);
+		List<Long> journaled = new ArrayList<>();
+		repo.addJournal(new IMetricsJournal() {
+			@Override
+			public void metricAdded(long sequence, String metric, MetricConfig metricConfig) {
+			}
+
+			@Override
+			public void dataAdded(long sequence, String metric, double[] values, long[] timestamps) {
+				journaled.add(sequence);
+			}
+		});
+		
+		String metric = "s";
+		repo.addMetric(metric);
+		
+		try
+		{
+			repo.addDataToMetric(metric, new double[] {1.0, Double.NaN}, new long[] {1, 2});
+			fail();
+		}
+		catch(IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Data must be a finite number"));
+		}
+		
+		//nothing was buffered or journaled, so reads still work and later values are kept
+		assertTrue(journaled.isEmpty());
+		assertTrue(repo.getStatisticsOfMetric(metric, Statistic.parseList("count")).get("count") == 0);
+		assertTrue(repo.addDataToMetric(metric, new double[] {1.0, 3.0}, new long[] {1, 2}));
+		assertTrue(repo.getStatisticsOfMetric(metric, Statistic.parseList("count")).get("count") == 2);
+		assertTrue(repo.getStatisticsOfMetric(metric, Statistic.parseList("count"), 0, 10).get("count") == 2);
+	}
+
+	@Test
+	public void timeRangeStatisticsTest()
+	{
+		MetricConfig config = new MetricConfig(StorageType.HEAP);
+		config.setPartitionMillis(1000);
+		config.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(config);
+		
+		String metric = "timedMetric";
+		repo.addMetric(metric);
+		
+		// one value per 100ms from 0 to 9900, value equal to the second it falls in, arriving out of order
+		double[] values = new double[100];
+		long[] timestamps = new long[100];
+		for (int index = 0; index < 100; index++)
+		{
+			int position = (index * 37) % 100;
+			timestamps[index] = position * 100L;
+			values[index] = position / 10;
+		}
+		repo.addDataToMetric(metric, values, timestamps);
+		repo.addDataToMetric(metric, 100, 60000L);
+		
+		List<Statistic> statistics = Statistic.parseList("count,min,max,mean,median");
+		
+		// whole partitions 2 and 3
+		Map<String, Double> whole = repo.getStatisticsOfMetric(metric, statistics, 2000, 3999);
+		assertTrue(whole.get("count") == 20);
+		assertTrue(whole.get("min") == 2);
+		assertTrue(whole.get("max") == 3);
+		assertTrue(whole.get("mean") == 2.5);
+		assertTrue(whole.get("median") == 2.5);
+		
+		// cuts partitions 2 and 4
+		Map<String, Double> cut = repo.getStatisticsOfMetric(metric, statistics, 2500, 4200);
+		assertTrue(cut.get("count") == 18);
+		assertTrue(cut.get("min") == 2);
+		assertTrue(cut.get("max") == 4);
+		
+		assertTrue(repo.getStatisticsOfMetric(metric, statistics, 50000, 70000).get("max") == 100);
+		assertTrue(repo.getStatisticsOfMetric(metric, statistics, 20000, 30000).get("count") == 0);
+		assertTrue(repo.getStatisticsOfMetric(metric, statistics, Long.MIN_VALUE, Long.MAX_VALUE).get("count") == 101);
+		
+		try {
+			repo.getStatisticsOfMetric(metric, statistics, 10, 5);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("From cannot be after to"));
+		}
+		
+		try {
+			repo.addDataToMetric(metric, new double[] {1, 2}, new long[] {1});
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Timestamps must be the same length as data"));
+		}
+	}
+
+	@Test
+	public void statisticsOnlyPartitionsTest()
+	{
+		MetricConfig config = new MetricConfig(StorageType.HEAP);
+		config.setPartitionMillis(1000);
+		MetricsRepository repo = new MetricsRepository(config);
+		
+		String metric = "untimedMetric";
+		repo.addMetric(metric);
+		for (int index = 0; index < 100; index++)
+		{
+			repo.addDataToMetric(metric, index / 10, index * 100L);
+		}
+		
+		// without samples by time the cut partitions 2 and 4 count whole
+		Map<String, Double> rounded = repo.getStatisticsOfMetric(metric, Statistic.parseList("count,min,max"), 2500, 4200);
+		assertTrue(rounded.get("count") == 30);
+		assertTrue(rounded.get("min") == 2);
+		assertTrue(rounded.get("max") == 4);
+		
+		// all time is still answered from the sorted series
+		assertTrue(repo.getStatisticsOfMetric(metric, Statistic.parseList("median"), Long.MIN_VALUE, Long.MAX_VALUE)
+				.get("median") == 4.5);
+		assertTrue(repo.getSummaryOfMetric(metric, Long.MIN_VALUE, Long.MAX_VALUE).getCount() == 100);
+		
+		try {
+			repo.getStatisticsOfMetric(metric, Statistic.parseList("median"), 2000, 3999);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().startsWith("Metric: untimedMetric keeps no samples by time"));
+		}
+		
+		try {
+			repo.exportMetric(metric, Long.MIN_VALUE, Long.MAX_VALUE, null, Long.MAX_VALUE);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().startsWith("Metric: untimedMetric keeps no samples by time"));
+		}
+		
+		// sketch partitions only keep a digest each with timeIndex
+		MetricConfig sketchConfig = new MetricConfig(StorageType.SKETCH);
+		sketchConfig.setPartitionMillis(1000);
+		TimeIndex sketch = new TimeIndex(sketchConfig);
+		MetricConfig timedSketchConfig = new MetricConfig(sketchConfig);
+		timedSketchConfig.setTimeIndex(true);
+		TimeIndex timedSketch = new TimeIndex(timedSketchConfig);
+		for (int index = 0; index < 100; index++)
+		{
+			sketch.add(index * 100L, index);
+			timedSketch.add(index * 100L, index);
+		}
+		assertTrue(sketch.sizeInBytes() == 0 && !sketch.answersRanks());
+		assertTrue(timedSketch.sizeInBytes() > 0 && timedSketch.answersRanks());
+		assertTrue(sketch.getStatistics(Statistic.parseList("count,max"), 2500, 4200)
+				.equals(timedSketch.getStatistics(Statistic.parseList("count,max"), 2500, 4200)));
+	}
+
+	@Test
+	public void retentionTest()
+	{
+		for (StorageType storageType : StorageType.values())
+		{
+			MetricConfig config = new MetricConfig(storageType);
+			config.setPartitionMillis(1000);
+			config.setMaxSamples(25);
+			MetricsRepository repo = new MetricsRepository(config);
+			repo.addMetric("kept");
+			
+			// ten values per second for four seconds, value equal to its position
+			for (int position = 0; position < 40; position++)
+			{
+				repo.addDataToMetric("kept", position, position * 100L);
+			}
+			
+			// whole seconds are dropped until no more than 25 values are left
+			assertTrue(repo.compact(0) == 20);
+			assertTrue(repo.getStatisticsOfMetric("kept", Statistic.parseList("count")).get("count") == 20);
+			assertTrue(repo.getMinimumOfMetric("kept") == 20);
+			assertTrue(repo.getAverageOfMetric("kept") == 29.5);
+			assertTrue(Math.abs(repo.getMedianOfMetric("kept") - 29.5) <= 1);
+			if (storageType != StorageType.SKETCH)
+			{
+				assertTrue(repo.getDataForMetric("kept").size() == 20);
+			}
+			assertTrue(repo.compact(0) == 0);
+		}
+		
+		MetricConfig config = new MetricConfig();
+		config.setPartitionMillis(1000);
+		config.setMaxAgeMillis(2000);
+		MetricsRepository repo = new MetricsRepository(config);
+		repo.addMetric("aged");
+		for (int position = 0; position < 40; position++)
+		{
+			repo.addDataToMetric("aged", position, position * 100L);
+		}
+		
+		// at 4500 only seconds that end after 2500 are kept
+		assertTrue(repo.compact(4500) == 20);
+		assertTrue(repo.getMinimumOfMetric("aged") == 20);
+		assertTrue(repo.getStatisticsOfMetric("aged", Statistic.parseList("count"), 0, 1999).get("count") == 0);
+		
+		try {
+			config.setMaxBytes(-1);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Retention cannot be negative"));
+		}
+	}
+
+	@Test
+	public void rollupTest()
+	{
+		MetricConfig rollupConfig = new MetricConfig();
+		rollupConfig.setRollups(true);
+		rollupConfig.setTimeIndex(true);
+		MetricConfig rawConfig = new MetricConfig();
+		rawConfig.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(rawConfig);
+		repo.addMetric("rolled", rollupConfig);
+		repo.addMetric("raw");
+		
+		// one value a second for three hours, value equal to the second
+		for (int second = 0; second < 3 * 3600; second++)
+		{
+			repo.addDataToMetric("rolled", second, second * 1000L);
+			repo.addDataToMetric("raw", second, second * 1000L);
+		}
+		
+		List<Statistic> statistics = Statistic.parseList("count,min,max,mean,median");
+		Map<String, Double> raw = repo.getStatisticsOfMetric("raw", statistics, 1234567, 9000000);
+		Map<String, Double> rolled = repo.getStatisticsOfMetric("rolled", statistics, 1234567, 9000000);
+		
+		// seconds 1235 to 9000, exact from the rollups and the raw edges
+		assertTrue(rolled.get("count") == 7766);
+		assertTrue(rolled.get("min").equals(raw.get("min")));
+		assertTrue(rolled.get("max").equals(raw.get("max")));
+		assertTrue(Math.abs(rolled.get("mean") - raw.get("mean")) < 1e-9);
+		// the median is estimated from the rollup digests
+		assertTrue(Math.abs(rolled.get("median") - raw.get("median")) < 7766 * 0.01);
+		
+		// once the raw values of the first two hours are dropped, the left edge is rounded out to 10 seconds
+		rollupConfig.setMaxAgeMillis(3600000);
+		MetricsRepository retained = new MetricsRepository();
+		retained.addMetric("rolled", rollupConfig);
+		for (int second = 0; second < 3 * 3600; second++)
+		{
+			retained.addDataToMetric("rolled", second, second * 1000L);
+		}
+		assertTrue(retained.compact(3 * 3600000L) == 2 * 3600);
+		
+		Map<String, Double> rounded = retained.getStatisticsOfMetric("rolled", statistics, 1234567, 9000000);
+		assertTrue(rounded.get("count") == 7771);
+		assertTrue(rounded.get("min") == 1230);
+		assertTrue(rounded.get("max") == 9000);
+		
+		// rollups count towards the size of the metric, even hourly ones are dropped after a year and the
+		// running statistics of the partitions answer for them
+		MetricConfig hourlyConfig = new MetricConfig();
+		hourlyConfig.setRollups(true);
+		TimeIndex hourly = new TimeIndex(hourlyConfig);
+		for (int second = 0; second < 3 * 3600; second++)
+		{
+			hourly.add(second * 1000L, second);
+		}
+		assertTrue(hourly.sizeInBytes() > 0);
+		hourly.compact(400L * 24 * 3600000);
+		assertTrue(hourly.sizeInBytes() == 0);
+		assertTrue(hourly.getStatistics(Statistic.parseList("count"), 0, 3 * 3600000).get("count") == 3 * 3600);
+		
+		// late values that open buckets older than the newest are sealed by compaction like any other
+		MetricConfig lateConfig = new MetricConfig();
+		lateConfig.setRollups(true);
+		TimeIndex ascending = new TimeIndex(lateConfig);
+		TimeIndex descending = new TimeIndex(lateConfig);
+		for (int bucket = 0; bucket < 1000; bucket++)
+		{
+			ascending.add(bucket * 10000L, bucket);
+			descending.add((999 - bucket) * 10000L, 999 - bucket);
+		}
+		ascending.compact(0);
+		descending.compact(0);
+		assertTrue(descending.sizeInBytes() == ascending.sizeInBytes());
+	}
+	
+	@Test
+	public void compressedStorageTest()
+	{
+		MetricConfig config = new MetricConfig(StorageType.COMPRESSED);
+		config.setPartitionMillis(1000);
+		MetricConfig heapConfig = new MetricConfig();
+		heapConfig.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(heapConfig);
+		repo.addMetric("compressed", config);
+		repo.addMetric("heap");
+		Random random = new Random(3);
+		
+		// ten values a second for a minute, some of them late
+		for (int position = 0; position < 600; position++)
+		{
+			long timestamp = position * 100L - (position % 10 == 0 ? 5000 : 0);
+			double value = random.nextInt(100);
+			repo.addDataToMetric("compressed", value, timestamp);
+			repo.addDataToMetric("heap", value, timestamp);
+		}
+		repo.compact(0);
+		repo.addDataToMetric("compressed", new double[] {5, 50}, new long[] {100, 59000});
+		repo.addDataToMetric("heap", new double[] {5, 50}, new long[] {100, 59000});
+		
+		List<Statistic> statistics = Statistic.parseList("count,mean,min,max,median,p99");
+		assertTrue(repo.getDataForMetric("compressed").equals(repo.getDataForMetric("heap")));
+		assertTrue(repo.getStatisticsOfMetric("compressed", statistics)
+				.equals(repo.getStatisticsOfMetric("heap", statistics)));
+		assertTrue(repo.getStatisticsOfMetric("compressed", statistics, 1250, 42049)
+				.equals(repo.getStatisticsOfMetric("heap", statistics, 1250, 42049)));
+		
+		// values only reach a compressed series through its time index
+		try
+		{
+			MetricConfig compressedConfig = new MetricConfig(StorageType.COMPRESSED);
+			StorageType.COMPRESSED.newSeries(compressedConfig, new TimeIndex(compressedConfig)).add(1);
+			fail();
+		}
+		catch (UnsupportedOperationException ex)
+		{
+			assertTrue(ex.getMessage().equals("A compressed series is read through its time index."));
+		}
+	}
+	
+	@Test
+	public void exportTest()
+	{
+		MetricConfig config = new MetricConfig();
+		config.setPartitionMillis(1000);
+		config.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository();
+		repo.addMetric("exported", config);
+		
+		// ten values a second for ten seconds, value equal to its position
+		for (int position = 0; position < 100; position++)
+		{
+			repo.addDataToMetric("exported", position, position * 100L);
+		}
+		
+		// pages of 15 read from 1.25 to 8.5 seconds, the edge partitions are cut to the range
+		long[] timestamps = new long[7];
+		double[] values = new double[7];
+		List<Double> exported = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do
+		{
+			MetricExport export = repo.exportMetric("exported", 1250, 8500, cursor, 15);
+			cursor = export.getNextCursor();
+			pages++;
+			
+			// written after the page was fixed, into a partition it already covers, so no page reads it
+			repo.addDataToMetric("exported", -1, 1500);
+			
+			for (int read; (read = export.read(timestamps, values)) > 0;)
+			{
+				for (int index = 0; index < read; index++)
+				{
+					assertTrue(timestamps[index] == values[index] * 100);
+					exported.add(values[index]);
+				}
+			}
+		}
+		while (cursor != null);
+		
+		// values 13 to 85 in order, and the partitions from 1 to 8 seconds are 80 samples read 15 a page
+		assertTrue(exported.size() == 73);
+		for (int index = 0; index < exported.size(); index++)
+		{
+			assertTrue(exported.get(index) == 13 + index);
+		}
+		assertTrue(pages == 6);
+		
+		try
+		{
+			repo.exportMetric("exported", 0, 1, "1:2:3", 10);
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Cursor: 1:2:3 is not valid."));
+		}
+	}
+	
+	@Test
+	public void summaryTest()
+	{
+		MetricsRepository repo = new MetricsRepository();
+		MetricConfig config = new MetricConfig(StorageType.HEAP);
+		config.setPartitionMillis(1000);
+		config.setTimeIndex(true);
+		repo.addMetric("host1", config);
+		repo.addMetric("host2", new MetricConfig(StorageType.SKETCH));
+		
+		// 10 partitions on host1, enough to be read in parallel
+		double[] values = new double[10000];
+		long[] timestamps = new long[values.length];
+		for (int index = 0; index < values.length; index++)
+		{
+			values[index] = index;
+			timestamps[index] = index;
+		}
+		repo.addDataToMetric("host1", values, timestamps);
+		repo.addDataToMetric("host2", new double[] {-5, 20000}, new long[] {0, 9999});
+		
+		MetricSummary host1 = repo.getSummaryOfMetric("host1", 2500, 7499);
+		assertTrue(host1.getCount() == 5000);
+		assertTrue(host1.getMean() == 4999.5);
+		assertTrue(Math.abs(host1.getStatistics(Statistic.parseList("p50")).get("p50") - 4999.5) < 50);
+		
+		// whole partitions answer the next summary from the digests kept by the first, until a sample arrives
+		MetricSummary cached = repo.getSummaryOfMetric("host1", 2500, 7499);
+		assertTrue(cached.getCount() == 5000 && cached.getMean() == 4999.5);
+		assertTrue(cached.getStatistics(Statistic.parseList("p50")).equals(host1.getStatistics(Statistic.parseList("p50"))));
+		repo.addDataToMetric("host1", new double[] {100000}, new long[] {4500});
+		MetricSummary late = repo.getSummaryOfMetric("host1", 2500, 7499);
+		assertTrue(late.getCount() == 5001 && late.getMaximum() == 100000);
+		
+		Map<String, Double> merged = repo.getSummaryOfMetrics(Arrays.asList("host1", "host2"), Long.MIN_VALUE, Long.MAX_VALUE)
+				.getStatistics(Statistic.parseList("count,min,max,mean,p99"));
+		assertTrue(merged.get("count") == 10003);
+		assertTrue(merged.get("min") == -5);
+		assertTrue(merged.get("max") == 100000);
+		assertTrue(merged.get("mean") == (4999.5 * 10000 + 19995 + 100000) / 10003);
+		assertTrue(Math.abs(merged.get("p99") - 9900) < 50);
+		
+		// a summary sent elsewhere merges like the original
+		MetricSummary restored = MetricSummary.restore(host1.getCount(), host1.getSum(), host1.getMean(),
+				host1.getSquaredDifferences(), host1.getMinimum(), host1.getMaximum(), host1.getCompression(),
+				host1.getCentroidMeans(), host1.getCentroidWeights());
+		restored.merge(repo.getSummaryOfMetric("host1", 7500, 7500));
+		assertTrue(restored.getCount() == 5001 && restored.getMaximum() == 7500);
+		
+		try
+		{
+			repo.getSummaryOfMetrics(Arrays.asList("host1", "host3"), 0, 1);
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Metric: host3 does not exist."));
+		}
+	}
+	
+	@Test
+	public void queryTest()
+	{
+		MetricConfig config = new MetricConfig();
+		config.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(config);
+		for (String host : new String[] {"web2", "web1", "db1", "web10"})
+		{
+			repo.addMetric("latency." + host);
+			repo.addDataToMetric("latency." + host, new double[] {1, host.length() * 10}, new long[] {1000, 2000});
+		}
+		repo.addMetric("latency");
+		repo.addMetric("errors.web1");
+		
+		// the prefix index returns names sorted, a wildcard anywhere is matched after the prefix
+		assertTrue(repo.findMetrics("latency.*").equals(Arrays.asList("latency.db1", "latency.web1", "latency.web10", "latency.web2")));
+		assertTrue(repo.findMetrics("latency.web?").equals(Arrays.asList("latency.web1", "latency.web2")));
+		assertTrue(repo.findMetrics("*.web1").equals(Arrays.asList("errors.web1", "latency.web1")));
+		assertTrue(repo.findMetrics("latency").equals(Arrays.asList("latency")));
+		assertTrue(repo.findMetrics("latency.web3").isEmpty());
+		
+		// prefixes and names that end part way through a shared run of characters
+		assertTrue(repo.findMetrics("lat*").size() == 5);
+		assertTrue(repo.findMetrics("latency.w*").equals(Arrays.asList("latency.web1", "latency.web10", "latency.web2")));
+		assertTrue(repo.findMetrics("latency.we").isEmpty());
+		assertTrue(repo.findMetrics("latx*").isEmpty());
+		
+		Map<String, Map<String, Double>> results = repo.getStatisticsOfMetrics("latency.web*", Statistic.parseList("count,max"));
+		assertTrue(results.keySet().toString().equals("[latency.web1, latency.web10, latency.web2]"));
+		assertTrue(results.get("latency.web10").get("max") == 50);
+		assertTrue(results.get("latency.web2").get("count") == 2);
+		
+		results = repo.getStatisticsOfMetrics("latency.*", Statistic.parseList("count"), 1500, 2500);
+		assertTrue(results.size() == 4 && results.get("latency.db1").get("count") == 1);
+		
+		// names that end part way through the run of characters of a node split it
+		repo.addMetric("lat");
+		repo.addMetric("latency.we");
+		assertTrue(repo.findMetrics("lat").equals(Arrays.asList("lat")));
+		assertTrue(repo.findMetrics("latency.we*").equals(Arrays.asList("latency.we", "latency.web1", "latency.web10", "latency.web2")));
+		assertTrue(repo.findMetrics("l*").size() == 7);
+		
+		// a follower reloading from its leader starts from an empty index
+		repo.clear();
+		assertTrue(repo.findMetrics("*").isEmpty());
+		repo.addMetric("latency.web1");
+		assertTrue(repo.findMetrics("latency.*").equals(Arrays.asList("latency.web1")));
+		
+		try
+		{
+			repo.findMetrics("");
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Pattern cannot be null or empty"));
+		}
+	}
+	
+	@Test
+	public void labeledMetricsTest()
+	{
+		// tags are written sorted, so any order makes the same key
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("service", "api");
+		tags.put("region", "us");
+		assertTrue(MetricKey.format("latency", tags).equals("latency{region=us,service=api}"));
+		assertTrue(MetricKey.parse("latency{service=api,region=us}").toString().equals("latency{region=us,service=api}"));
+		assertTrue(MetricKey.parse("latency{broken}").getTags().isEmpty());
+		assertTrue(MetricKey.parseTags("service=api, region=us").equals(tags));
+		
+		MetricConfig config = new MetricConfig();
+		config.setTimeIndex(true);
+		MetricsRepository repo = new MetricsRepository(config);
+		String[][] series = {
+				{"api", "us", "h1"}, {"api", "us", "h2"}, {"api", "eu", "h3"}, {"db", "us", "h4"}
+		};
+		for (int index = 0; index < series.length; index++)
+		{
+			Map<String, String> seriesTags = new LinkedHashMap<>();
+			seriesTags.put("service", series[index][0]);
+			seriesTags.put("region", series[index][1]);
+			seriesTags.put("host", series[index][2]);
+			String key = MetricKey.format("latency", seriesTags);
+			repo.addMetric(key);
+			repo.addDataToMetric(key, new double[] {index, index + 10}, new long[] {1000, 2000});
+		}
+		repo.addMetric("latency");
+		repo.addMetric("errors{service=api}");
+		
+		assertTrue(repo.selectMetrics("latency", MetricKey.parseTags("service=api,region=us"))
+				.equals(Arrays.asList("latency{host=h1,region=us,service=api}", "latency{host=h2,region=us,service=api}")));
+		assertTrue(repo.selectMetrics(null, MetricKey.parseTags("service=api")).size() == 4);
+		assertTrue(repo.selectMetrics("latency", null).size() == 5);
+		assertTrue(repo.selectMetrics("latency", MetricKey.parseTags("region=asia")).isEmpty());
+		
+		Map<String, MetricSummary> byRegion = repo.getSummariesByTag("latency", MetricKey.parseTags("service=api"), "region",
+				Long.MIN_VALUE, Long.MAX_VALUE);
+		assertTrue(byRegion.keySet().toString().equals("[eu, us]"));
+		assertTrue(byRegion.get("us").getCount() == 4 && byRegion.get("us").getMaximum() == 11);
+		assertTrue(byRegion.get("eu").getMean() == 7);
+		
+		byRegion = repo.getSummariesByTag("latency", null, "region", 1500, 2500);
+		assertTrue(byRegion.get("us").getCount() == 3 && byRegion.get("us").getMinimum() == 10);
+		
+		// any order of the tags names the same metric, for creation, writes and reads
+		assertTrue(!repo.addMetric("errors{service=api}"));
+		assertTrue(!repo.addMetric("latency{service=api,host=h1,region=us}"));
+		assertTrue(repo.hasMetric("latency{service=api,region=us,host=h1}"));
+		assertTrue(repo.addDataToMetric("latency{service=api,region=us,host=h1}", 20, 3000));
+		assertTrue(repo.addDataToMetric("latency{region=us,service=api,host=h1}", new double[] {30}, new long[] {4000}));
+		assertTrue(repo.getMaximumOfMetric("latency{service=api,host=h1,region=us}") == 30);
+		assertTrue(repo.getDataForMetric("latency{host=h1,region=us,service=api}").size() == 4);
+		
+		repo.clear();
+		assertTrue(repo.selectMetrics("latency", null).isEmpty());
+		
+		try
+		{
+			repo.selectMetrics(null, null);
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			assertTrue(ex.getMessage().equals("Selector needs a name or at least one tag"));
+		}
+	}
 }
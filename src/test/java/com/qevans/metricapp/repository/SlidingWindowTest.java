@@ -0,0 +1,132 @@
+package com.qevans.metricapp.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class SlidingWindowTest {
+
+	@Test
+	public void countWindowTest() {
+		int windowSize = 100;
+		CountWindow window = new CountWindow(windowSize);
+		Random random = new Random(11);
+		double[] added = new double[2500];
+
+		for (int index = 0; index < added.length; index++) {
+			added[index] = random.nextGaussian() * 1000;
+			window.add(index, added[index]);
+
+			// compare against the last windowSize values every so often, across many evictions and recomputes
+			if (index % 97 == 0 || index == added.length - 1) {
+				double[] expected = Arrays.copyOfRange(added, Math.max(0, index + 1 - windowSize), index + 1);
+				checkWindow(window, expected);
+			}
+		}
+	}
+
+	private void checkWindow(CountWindow window, double[] expected) {
+		double mean = Arrays.stream(expected).average().getAsDouble();
+		double variance = Arrays.stream(expected).map(value -> (value - mean) * (value - mean)).sum() / expected.length;
+		RunningStatistics statistics = window.getStatistics(0);
+
+		assertTrue(statistics.getCount() == expected.length);
+		assertEquals(mean, statistics.getMean(), 1e-9);
+		assertEquals(variance, statistics.getVariance(), 1e-6);
+		assertTrue(statistics.getMinimum() == Arrays.stream(expected).min().getAsDouble());
+		assertTrue(statistics.getMaximum() == Arrays.stream(expected).max().getAsDouble());
+
+		double[] sorted = expected.clone();
+		Arrays.sort(sorted);
+		assertTrue(Arrays.equals(window.getSeries(0).toArray(), sorted));
+	}
+
+	@Test
+	public void countWindowSnapshotTest() {
+		CountWindow window = new CountWindow(3);
+		for (int value = 1; value <= 5; value++) {
+			window.add(value * 10, value);
+		}
+
+		CountWindow restored = new CountWindow(3, window.snapshot());
+		restored.add(60, 6);
+
+		assertTrue(Arrays.equals(restored.getSeries(0).toArray(), new double[] {4, 5, 6}));
+		assertTrue(restored.getStatistics(0).getMinimum() == 4);
+	}
+
+	@Test
+	public void timeWindowTest() {
+		// 60 buckets of one second
+		TimeWindow window = new TimeWindow(60_000, TDigest.DEFAULT_COMPRESSION);
+
+		for (long second = 0; second < 120; second++) {
+			window.add(second * 1000, second);
+		}
+
+		// only seconds 60 to 119 are left
+		RunningStatistics statistics = window.getStatistics(119_999);
+		assertTrue(statistics.getCount() == 60);
+		assertTrue(statistics.getMinimum() == 60);
+		assertTrue(statistics.getMaximum() == 119);
+		assertEquals(89.5, statistics.getMean(), 1e-9);
+		assertEquals(89.5, window.getSeries(119_999).quantile(0.5), 1);
+
+		// thirty seconds later with nothing new, half the window has expired
+		assertTrue(window.getStatistics(149_999).getCount() == 30);
+		assertTrue(window.getStatistics(149_999).getMinimum() == 90);
+
+		// older than the window of the latest value, dropped
+		window.add(0, -1);
+		assertTrue(window.getStatistics(119_999).getMinimum() == 60);
+
+		TimeWindow restored = new TimeWindow(60_000, TDigest.DEFAULT_COMPRESSION, window.snapshot());
+		assertTrue(restored.getStatistics(119_999).getCount() == 60);
+		assertTrue(restored.getSeries(119_999).quantile(1) == 119);
+		assertTrue(!restored.keepsRawValues());
+
+		// the merged sealed buckets are reused by the next read, and dropped by a late value or a new bucket
+		assertEquals(89.5, restored.getSeries(119_999).quantile(0.5), 1);
+		restored.add(61_000, 1000);
+		assertTrue(restored.getSeries(119_999).quantile(1) == 1000);
+		restored.add(119_500, -1000);
+		assertTrue(restored.getSeries(119_999).quantile(0) == -1000);
+		restored.add(120_000, 2000);
+		assertTrue(restored.getSeries(120_999).quantile(1) == 2000);
+		assertTrue(restored.getStatistics(120_999).getCount() == 62);
+		assertTrue(restored.snapshot().size() == 60);
+	}
+
+	@Test
+	public void windowedMetricTest() {
+		MetricsRepository repo = new MetricsRepository();
+		MetricConfig config = new MetricConfig();
+		config.setWindowSamples(3);
+		repo.addMetric("latest", config);
+
+		repo.addDataToMetric("latest", new double[] {9, 1, 5, 7});
+
+		assertTrue(repo.getMinimumOfMetric("latest") == 1);
+		assertTrue(repo.getMaximumOfMetric("latest") == 7);
+		assertTrue(repo.getMedianOfMetric("latest") == 5);
+		assertTrue(repo.getDataForMetric("latest").size() == 3);
+
+		try {
+			config.setWindowMillis(1000);
+			assertTrue(false);
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("A window is either a number of samples or a time span, not both"));
+		}
+	}
+}
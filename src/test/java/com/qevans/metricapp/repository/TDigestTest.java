@@ -0,0 +1,131 @@
+package com.qevans.metricapp.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.qevans.metricapp.Unit;
+
+@RunWith(SpringRunner.class)
+@Category({Unit.class})
+public class TDigestTest {
+
+	@Test
+	public void quantileAccuracyTest() {
+		TDigest digest = new TDigest(200);
+		Random random = new Random(7);
+		int count = 500000;
+		double[] values = new double[count];
+
+		for (int index = 0; index < count; index++) {
+			values[index] = random.nextGaussian() * 10 + 100;
+			digest.add(values[index]);
+		}
+
+		Arrays.sort(values);
+
+		assertTrue(digest.getCount() == count);
+		assertTrue(digest.quantile(0) == values[0]);
+		assertTrue(digest.quantile(1) == values[count - 1]);
+
+		for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+			double exact = values[(int) (quantile * (count - 1))];
+			// compare by rank so the check does not depend on the spread of the data
+			int estimatedRank = Math.abs(Arrays.binarySearch(values, digest.quantile(quantile)));
+			double rankError = Math.abs(estimatedRank - quantile * count) / count;
+			assertTrue("quantile " + quantile + " exact " + exact + " rank error " + rankError, rankError < 0.005);
+		}
+
+		// memory is bounded by the compression, not the count
+		assertTrue(digest.sizeInBytes() < 64 * 1024);
+	}
+
+	@Test
+	public void mergeTest() {
+		TDigest low = new TDigest();
+		TDigest high = new TDigest();
+
+		for (int value = 0; value < 10000; value++) {
+			low.add(value);
+			high.add(value + 10000);
+		}
+
+		low.merge(high);
+
+		assertTrue(low.getCount() == 20000);
+		assertTrue(low.quantile(0) == 0);
+		assertTrue(low.quantile(1) == 19999);
+		assertEquals(10000, low.quantile(0.5), 200);
+		assertEquals(19800, low.quantile(0.99), 20);
+	}
+
+	@Test
+	public void edgeCasesTest() {
+		TDigest digest = new TDigest();
+
+		assertTrue(digest.quantile(0.5) == 0.0);
+
+		digest.add(3.0);
+		assertTrue(digest.quantile(0) == 3.0);
+		assertTrue(digest.quantile(0.5) == 3.0);
+		assertTrue(digest.quantile(1) == 3.0);
+
+		try {
+			digest.quantile(1.5);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Quantile must be between 0 and 1"));
+		}
+
+		try {
+			new TDigest(1);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Compression must be at least 10"));
+		}
+	}
+
+	@Test
+	public void sketchMetricTest() {
+		MetricsRepository repo = new MetricsRepository();
+		String metric = "sketchMetric";
+
+		MetricConfig config = new MetricConfig(StorageType.SKETCH);
+		config.setCompression(50);
+		assertTrue(repo.addMetric(metric, config));
+
+		for (int value = 1; value <= 1001; value++) {
+			repo.addDataToMetric(metric, value);
+		}
+
+		assertTrue(repo.getMinimumOfMetric(metric) == 1);
+		assertTrue(repo.getMaximumOfMetric(metric) == 1001);
+		assertTrue(repo.getAverageOfMetric(metric) == 501);
+		assertEquals(501, repo.getMedianOfMetric(metric), 10);
+		assertEquals(991, repo.getPercentileOfMetric(metric, 99), 5);
+
+		// callers check the capability before asking for raw values
+		assertTrue(!repo.getConfigOfMetric(metric).keepsRawValues());
+		try {
+			repo.getDataForMetric(metric);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Metric: sketchMetric only keeps a sketch, raw data is not available."));
+		}
+
+		try {
+			repo.getPercentileOfMetric(metric, 101);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().equals("Percentile must be between 0 and 100"));
+		}
+	}
+}